@@ -1,8 +1,12 @@
 package io.surisoft.capi.lb.builder;
 
 import io.surisoft.capi.lb.cache.StickySessionCacheManager;
+import io.surisoft.capi.lb.processor.MemoryAdmissionProcessor;
 import io.surisoft.capi.lb.processor.MetricsProcessor;
+import io.surisoft.capi.lb.processor.RequestSpoolingProcessor;
+import io.surisoft.capi.lb.processor.ResponseBufferingProcessor;
 import io.surisoft.capi.lb.processor.SessionChecker;
+import io.surisoft.capi.lb.processor.UpstreamConnectionLimitProcessor;
 import io.surisoft.capi.lb.schema.Api;
 import io.surisoft.capi.lb.utils.Constants;
 import io.surisoft.capi.lb.utils.RouteUtils;
@@ -33,6 +37,10 @@ public class DirectRouteProcessor extends RouteBuilder {
     public void configure() {
 
         RouteDefinition routeDefinition = from("direct:" + routeId);
+        boolean streamCaching = !(api.isStreamingEnabled() || api.isSpoolingEnabled() || api.isResponseBufferingEnabled());
+        if(!streamCaching) {
+            routeDefinition.noStreamCaching();
+        }
 
         if(api.isForwardPrefix()) {
             routeDefinition
@@ -40,30 +48,43 @@ public class DirectRouteProcessor extends RouteBuilder {
         }
         log.trace("Trying to build and deploy route {}", routeId);
         routeUtils.buildOnExceptionDefinition(routeDefinition, api.isZipkinShowTraceId(), false, false, routeId);
+        routeDefinition.process(metricsProcessor);
+        if(api.isSpoolingEnabled()) {
+            // the whole body is read before we take an upstream connection
+            routeDefinition.process(new RequestSpoolingProcessor(routeUtils.getRequestBodySpool(), api));
+        }
+        if(!api.isStreamingEnabled() && !api.isSpoolingEnabled()) {
+            // the raw request stream is buffered here, against the memory budget
+            routeDefinition.process(MemoryAdmissionProcessor.request(routeUtils.getMemoryBudget(), routeUtils.getReplayBufferPool(), api));
+        }
+        if(api.getMaxConnections() > 0) {
+            routeDefinition.process(new UpstreamConnectionLimitProcessor(routeUtils.getUpstreamConnectionPoolManager(), api));
+        }
         if(api.isFailoverEnabled()) {
             routeDefinition
-                    .process(metricsProcessor)
                     .loadBalance()
                     .failover(1, false, api.isRoundRobinEnabled(), false)
                     .to(routeUtils.buildEndpoints(api))
-                    .end()
-                    .routeId(routeId);
+                    .end();
         } else if(api.isStickySession()) {
             routeDefinition
-                    .process(metricsProcessor)
-                    .loadBalance(new SessionChecker(stickySessionCacheManager, api.getStickySessionParam(), api.isStickySessionParamInCookie()))
+                    .loadBalance(new SessionChecker(stickySessionCacheManager, routeUtils.getReplayBufferPool(), routeUtils.getMemoryBudget(), api.getId(), api.getStickySessionParam(), api.isStickySessionParamInCookie()))
                     .to(routeUtils.buildEndpoints(api))
-                    .end()
-                    .routeId(routeId);
+                    .end();
         } else {
             routeDefinition
-                    .process(metricsProcessor)
                     .loadBalance()
                     .roundRobin()
                     .to(routeUtils.buildEndpoints(api))
-                    .end()
-                    .routeId(routeId);
+                    .end();
+        }
+        if(streamCaching) {
+            routeDefinition.process(MemoryAdmissionProcessor.response(routeUtils.getMemoryBudget(), api));
+        }
+        if(api.isResponseBufferingEnabled()) {
+            routeDefinition.process(new ResponseBufferingProcessor(routeUtils.getRequestBodySpool(), api));
         }
+        routeDefinition.routeId(routeId);
         routeUtils.registerMetric(routeId);
         api.setRouteId(routeId);
         routeUtils.registerTracer(api);
@@ -23,6 +23,10 @@ public class RestDefinitionProcessor extends RouteBuilder {
     @Override
     public void configure() {
         String restRouteId = Constants.CAMEL_REST_PREFIX + routeId;
+        if(api.isStreamingEnabled() || api.isSpoolingEnabled()) {
+            configureRawBodyRoute(restRouteId);
+            return;
+        }
         RestDefinition restDefinition = getRestDefinition(api);
         if(restDefinition != null) {
             restDefinition.to(Constants.CAMEL_DIRECT + routeId);
@@ -33,6 +37,22 @@ public class RestDefinitionProcessor extends RouteBuilder {
         }
     }
 
+    /**
+     * The rest dsl only takes consumer options for all routes, so streaming and spooling APIs declare the servlet endpoint
+     * themselves to get the raw request stream instead of a cached body.
+     */
+    private void configureRawBodyRoute(String restRouteId) {
+        api.setMatchOnUriPrefix(true);
+        from(Constants.CAMEL_SERVLET + routeUtils.buildFrom(api)
+                + Constants.MATCH_ON_URI_PREFIX + api.isMatchOnUriPrefix()
+                + "&httpMethodRestrict=" + routeUtils.getMethodFromRouteId(routeId).toUpperCase()
+                + "&" + Constants.DISABLE_STREAM_CACHE + true)
+                .noStreamCaching()
+                .to(Constants.CAMEL_DIRECT + routeId)
+                .routeId(restRouteId);
+        routeUtils.registerMetric(restRouteId);
+    }
+
     private RestDefinition getRestDefinition(Api api) {
         RestDefinition restDefinition = null;
         api.setMatchOnUriPrefix(true);
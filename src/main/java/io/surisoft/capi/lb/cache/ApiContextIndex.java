@@ -0,0 +1,71 @@
+package io.surisoft.capi.lb.cache;
+
+import io.surisoft.capi.lb.schema.Api;
+import org.cache2k.Cache2kBuilder;
+import org.cache2k.event.CacheEntryCreatedListener;
+import org.cache2k.event.CacheEntryEvictedListener;
+import org.cache2k.event.CacheEntryRemovedListener;
+import org.cache2k.event.CacheEntryUpdatedListener;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The deployed Apis by context, kept in step with the Api cache through its listeners, so a request path is
+ * matched with one lookup per path segment instead of a scan over every Api.
+ * Contexts are kept with a leading and without a trailing slash, the root context is the empty string.
+ */
+public class ApiContextIndex {
+
+    private final Map<String, Map<String, Api>> apisByContext = new ConcurrentHashMap<>();
+
+    /**
+     * Registers the listeners that keep this index up to date, on the builder of the Api cache.
+     */
+    public Cache2kBuilder<String, Api> listenTo(Cache2kBuilder<String, Api> builder) {
+        return builder
+                .addListener((CacheEntryCreatedListener<String, Api>) (cache, entry) -> add(entry.getValue()))
+                .addListener((CacheEntryUpdatedListener<String, Api>) (cache, currentEntry, newEntry) -> {
+                    // replaced in place, a lookup never misses an Api that stays on its context
+                    add(newEntry.getValue());
+                    if(currentEntry.getValue() != null && newEntry.getValue() != null && !Objects.equals(currentEntry.getValue().getContext(), newEntry.getValue().getContext())) {
+                        remove(currentEntry.getValue());
+                    }
+                })
+                .addListener((CacheEntryRemovedListener<String, Api>) (cache, entry) -> remove(entry.getValue()))
+                .addListener((CacheEntryEvictedListener<String, Api>) (cache, entry) -> remove(entry.getValue()));
+    }
+
+    /**
+     * The Apis deployed on exactly this context, usually one, more when they split the http methods.
+     */
+    public Collection<Api> find(String context) {
+        Map<String, Api> apis = apisByContext.get(context);
+        return apis != null ? apis.values() : List.of();
+    }
+
+    public static String normalize(String context) {
+        String normalized = context.startsWith("/") ? context : "/" + context;
+        return normalized.endsWith("/") ? normalized.substring(0, normalized.length() - 1) : normalized;
+    }
+
+    private void add(Api api) {
+        if(api == null || api.getContext() == null) {
+            return;
+        }
+        apisByContext.computeIfAbsent(normalize(api.getContext()), context -> new ConcurrentHashMap<>()).put(api.getId(), api);
+    }
+
+    private void remove(Api api) {
+        if(api == null || api.getContext() == null) {
+            return;
+        }
+        apisByContext.computeIfPresent(normalize(api.getContext()), (context, apis) -> {
+            apis.remove(api.getId());
+            return apis.isEmpty() ? null : apis;
+        });
+    }
+}
@@ -0,0 +1,106 @@
+package io.surisoft.capi.lb.cache;
+
+import io.surisoft.capi.lb.cache.ApiContextIndex;
+import io.surisoft.capi.lb.schema.Api;
+import io.surisoft.capi.lb.schema.HttpMethod;
+import org.cache2k.Cache;
+
+/**
+ * Finds the deployed Api serving a request path, the same way the servlet routes match on the Api context, for the
+ * Netty engine and the admission control of the servlet requests.
+ * The path is looked up in the context index one segment at a time, from the full path down.
+ */
+public class ApiResolver {
+
+    private final Cache<String, Api> apiCache;
+    private final ApiContextIndex apiContextIndex;
+    private final String capiContext;
+
+    public ApiResolver(Cache<String, Api> apiCache, ApiContextIndex apiContextIndex, String capiContext) {
+        this.apiCache = apiCache;
+        this.apiContextIndex = apiContextIndex;
+        this.capiContext = capiContext;
+    }
+
+    public Api getApi(String apiId) {
+        return apiCache.peek(apiId);
+    }
+
+    /**
+     * Returns null when no Api matches, the longest context wins.
+     */
+    public ApiMatch resolve(String uri, String method) {
+        int queryIndex = uri.indexOf('?');
+        String path = queryIndex > -1 ? uri.substring(0, queryIndex) : uri;
+        if(!path.startsWith(capiContext + "/")) {
+            return null;
+        }
+        String apiPath = path.substring(capiContext.length());
+        String context = apiPath.endsWith("/") ? apiPath.substring(0, apiPath.length() - 1) : apiPath;
+        while(true) {
+            for(Api api : apiContextIndex.find(context)) {
+                if(api.getTcpPort() <= 0 && isMethodAllowed(api, method)) {
+                    return new ApiMatch(api, apiPath.substring(context.length()), queryIndex > -1 ? uri.substring(queryIndex) : "");
+                }
+            }
+            if(context.isEmpty()) {
+                return null;
+            }
+            context = context.substring(0, context.lastIndexOf('/'));
+        }
+    }
+
+    /**
+     * gRPC clients call /package.Service/Method, either under the CAPI context and the Api context like any request,
+     * or bare when the Api context is the service name, in which case the path goes upstream unchanged.
+     */
+    public ApiMatch resolveGrpc(String path) {
+        if(path.startsWith(capiContext + "/")) {
+            ApiMatch apiMatch = resolve(path, "POST");
+            return apiMatch != null && apiMatch.getApi().isGrpcEnabled() ? apiMatch : null;
+        }
+        int serviceEnd = path.indexOf('/', 1);
+        if(serviceEnd < 0) {
+            return null;
+        }
+        for(Api api : apiContextIndex.find(path.substring(0, serviceEnd))) {
+            if(api.isGrpcEnabled() && api.getTcpPort() <= 0) {
+                return new ApiMatch(api, path, "");
+            }
+        }
+        return null;
+    }
+
+    public String getCapiContext() {
+        return capiContext;
+    }
+
+    private boolean isMethodAllowed(Api api, String method) {
+        return api.getHttpMethod() == null || api.getHttpMethod() == HttpMethod.ALL || api.getHttpMethod().getMethod().equalsIgnoreCase(method);
+    }
+
+    public static class ApiMatch {
+        private final Api api;
+        private final String remainingPath;
+        private final String query;
+
+        private ApiMatch(Api api, String remainingPath, String query) {
+            this.api = api;
+            this.remainingPath = remainingPath;
+            this.query = query;
+        }
+
+        public Api getApi() {
+            return api;
+        }
+
+        /**
+         * The request path below the Api context, appended to the root context of the mapping.
+         */
+        public String getUpstreamUri(String rootContext) {
+            String root = rootContext == null || rootContext.equals("/") ? "" : (rootContext.endsWith("/") ? rootContext.substring(0, rootContext.length() - 1) : rootContext);
+            String upstreamPath = root + (remainingPath.isEmpty() || remainingPath.startsWith("/") ? remainingPath : "/" + remainingPath);
+            return (upstreamPath.isEmpty() ? "/" : upstreamPath) + query;
+        }
+    }
+}
@@ -225,13 +225,24 @@ public class CacheConfiguration {
     @Value("${sticky.session.time.to.live}")
     private Integer stickySessionTimeToLive;
 
+    @Value("${capi.cache.api.capacity}")
+    private long apiCacheCapacity;
+
+    @Value("${capi.cache.sticky.session.capacity}")
+    private long stickySessionCacheCapacity;
+
+    @Bean
+    public ApiContextIndex apiContextIndex() {
+        return new ApiContextIndex();
+    }
+
     @Bean
-    public Cache<String, Api> apiCache() {
+    public Cache<String, Api> apiCache(ApiContextIndex apiContextIndex) {
         log.debug("Creating API Cache");
-        return new Cache2kBuilder<String, Api>(){}
+        return apiContextIndex.listenTo(new Cache2kBuilder<String, Api>(){})
                 .name("apiCache-" + hashCode())
                 .eternal(true)
-                .entryCapacity(10000)
+                .entryCapacity(apiCacheCapacity)
                 .storeByReference(true)
                 .build();
     }
@@ -242,7 +253,7 @@ public class CacheConfiguration {
         return new Cache2kBuilder<String, StickySession>(){}
                 .name("stickySession-" + hashCode())
                 .expireAfterWrite(stickySessionTimeToLive, TimeUnit.HOURS)
-                .entryCapacity(10000)
+                .entryCapacity(stickySessionCacheCapacity)
                 .storeByReference(true)
                 .build();
     }
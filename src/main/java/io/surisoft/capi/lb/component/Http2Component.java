@@ -0,0 +1,69 @@
+package io.surisoft.capi.lb.component;
+
+import io.surisoft.capi.lb.service.ClientIdentityManager;
+import okhttp3.OkHttpClient;
+import org.apache.camel.Endpoint;
+import org.apache.camel.support.DefaultComponent;
+
+import javax.net.ssl.SSLSocketFactory;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Upstream component for nodes speaking HTTP/2, h2 negotiates the protocol with ALPN over TLS
+ * and h2c uses prior knowledge over clear text. All endpoints share the same connection pool,
+ * so in-flight requests to a node are multiplexed over a few connections.
+ */
+public class Http2Component extends DefaultComponent {
+
+    private final OkHttpClient httpClient;
+    private final boolean secure;
+    private ClientIdentityManager clientIdentityManager;
+
+    public Http2Component(OkHttpClient httpClient, boolean secure) {
+        this.httpClient = httpClient;
+        this.secure = secure;
+    }
+
+    @Override
+    protected Endpoint createEndpoint(String uri, String remaining, Map<String, Object> parameters) throws Exception {
+        Http2Endpoint endpoint = new Http2Endpoint(uri, this, (secure ? "https://" : "http://") + remaining);
+        setProperties(endpoint, parameters);
+        return endpoint;
+    }
+
+    /**
+     * Clients created here only differ on timeouts and client identity, the connection pool and the dispatcher are shared.
+     * okhttp doesn't reuse a connection across socket factories, so identities never share one.
+     */
+    OkHttpClient createHttpClient(int connectTimeout, int socketTimeout, String clientIdentity) {
+        OkHttpClient.Builder builder = httpClient.newBuilder();
+        if(clientIdentity != null) {
+            SSLSocketFactory sslSocketFactory = secure && clientIdentityManager != null ? clientIdentityManager.getSocketFactory(clientIdentity) : null;
+            if(sslSocketFactory == null) {
+                throw new IllegalArgumentException("Client identity " + clientIdentity + " is not available for " + (secure ? "h2" : "h2c") + " endpoints");
+            }
+            builder.sslSocketFactory(sslSocketFactory, clientIdentityManager.getTrustManager());
+        }
+        if(connectTimeout > -1) {
+            builder.connectTimeout(connectTimeout, TimeUnit.MILLISECONDS);
+        }
+        if(socketTimeout > -1) {
+            builder.readTimeout(socketTimeout, TimeUnit.MILLISECONDS);
+            builder.writeTimeout(socketTimeout, TimeUnit.MILLISECONDS);
+        }
+        return builder.build();
+    }
+
+    public OkHttpClient getHttpClient() {
+        return httpClient;
+    }
+
+    public void setClientIdentityManager(ClientIdentityManager clientIdentityManager) {
+        this.clientIdentityManager = clientIdentityManager;
+    }
+
+    public boolean isSecure() {
+        return secure;
+    }
+}
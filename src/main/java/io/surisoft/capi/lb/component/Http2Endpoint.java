@@ -0,0 +1,110 @@
+package io.surisoft.capi.lb.component;
+
+import okhttp3.OkHttpClient;
+import org.apache.camel.Consumer;
+import org.apache.camel.Processor;
+import org.apache.camel.Producer;
+import org.apache.camel.support.DefaultEndpoint;
+
+public class Http2Endpoint extends DefaultEndpoint {
+
+    private final String baseUrl;
+    private boolean bridgeEndpoint;
+    private boolean throwExceptionOnFailure = true;
+    private int connectTimeout = -1;
+    private int socketTimeout = -1;
+    private String customHostHeader;
+    private boolean disableStreamCache;
+    private String clientIdentity;
+    private OkHttpClient httpClient;
+
+    public Http2Endpoint(String endpointUri, Http2Component component, String baseUrl) {
+        super(endpointUri, component);
+        this.baseUrl = baseUrl;
+    }
+
+    @Override
+    public Producer createProducer() {
+        return new Http2Producer(this);
+    }
+
+    @Override
+    public Consumer createConsumer(Processor processor) {
+        throw new UnsupportedOperationException("The HTTP/2 upstream component does not support consumers");
+    }
+
+    @Override
+    public Http2Component getComponent() {
+        return (Http2Component) super.getComponent();
+    }
+
+    @Override
+    protected void doStart() throws Exception {
+        super.doStart();
+        httpClient = getComponent().createHttpClient(connectTimeout, socketTimeout, clientIdentity);
+    }
+
+    public OkHttpClient getHttpClient() {
+        return httpClient;
+    }
+
+    public String getBaseUrl() {
+        return baseUrl;
+    }
+
+    public boolean isBridgeEndpoint() {
+        return bridgeEndpoint;
+    }
+
+    public void setBridgeEndpoint(boolean bridgeEndpoint) {
+        this.bridgeEndpoint = bridgeEndpoint;
+    }
+
+    public boolean isThrowExceptionOnFailure() {
+        return throwExceptionOnFailure;
+    }
+
+    public void setThrowExceptionOnFailure(boolean throwExceptionOnFailure) {
+        this.throwExceptionOnFailure = throwExceptionOnFailure;
+    }
+
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    public int getSocketTimeout() {
+        return socketTimeout;
+    }
+
+    public void setSocketTimeout(int socketTimeout) {
+        this.socketTimeout = socketTimeout;
+    }
+
+    public String getCustomHostHeader() {
+        return customHostHeader;
+    }
+
+    public void setCustomHostHeader(String customHostHeader) {
+        this.customHostHeader = customHostHeader;
+    }
+
+    public boolean isDisableStreamCache() {
+        return disableStreamCache;
+    }
+
+    public void setDisableStreamCache(boolean disableStreamCache) {
+        this.disableStreamCache = disableStreamCache;
+    }
+
+    public String getClientIdentity() {
+        return clientIdentity;
+    }
+
+    public void setClientIdentity(String clientIdentity) {
+        this.clientIdentity = clientIdentity;
+    }
+}
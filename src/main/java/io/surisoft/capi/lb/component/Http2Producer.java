@@ -0,0 +1,217 @@
+package io.surisoft.capi.lb.component;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Headers;
+import okhttp3.HttpUrl;
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.BufferedSink;
+import okio.Okio;
+import okio.Source;
+import org.apache.camel.AsyncCallback;
+import org.apache.camel.CamelExchangeException;
+import org.apache.camel.Exchange;
+import org.apache.camel.Message;
+import org.apache.camel.support.DefaultAsyncProducer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Sends the exchange to the node the same way the http component does with bridgeEndpoint,
+ * the request stays in the IN message and the reply is written to the OUT message.
+ */
+public class Http2Producer extends DefaultAsyncProducer {
+
+    // same headers the camel http component keeps away from the upstream request
+    private static final Set<String> REQUEST_FILTERED_HEADERS = Set.of("content-length", "content-type", "host", "cache-control", "connection", "date", "pragma", "trailer", "transfer-encoding", "upgrade", "via", "warning", "keep-alive", "te", "proxy-connection");
+    private static final Set<String> RESPONSE_FILTERED_HEADERS = Set.of("content-length", "connection", "keep-alive", "trailer", "transfer-encoding", "upgrade", "proxy-connection");
+
+    public Http2Producer(Http2Endpoint endpoint) {
+        super(endpoint);
+    }
+
+    @Override
+    public Http2Endpoint getEndpoint() {
+        return (Http2Endpoint) super.getEndpoint();
+    }
+
+    @Override
+    public boolean process(Exchange exchange, AsyncCallback callback) {
+        Request request;
+        try {
+            request = createRequest(exchange);
+        } catch(Exception e) {
+            exchange.setException(e);
+            callback.done(true);
+            return true;
+        }
+
+        getEndpoint().getHttpClient().newCall(request).enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                exchange.setException(e);
+                callback.done(false);
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                try {
+                    populateResponse(exchange, response);
+                } catch(Exception e) {
+                    exchange.setException(e);
+                }
+                // a streamed body releases the connection once the client has read it
+                if(!getEndpoint().isDisableStreamCache() || exchange.getException() != null) {
+                    response.close();
+                }
+                callback.done(false);
+            }
+        });
+        return false;
+    }
+
+    private Request createRequest(Exchange exchange) throws Exception {
+        Message message = exchange.getIn();
+        String method = message.getHeader(Exchange.HTTP_METHOD, String.class);
+        if(method == null) {
+            method = message.getBody() == null ? "GET" : "POST";
+        }
+
+        Request.Builder builder = new Request.Builder().url(createUrl(exchange));
+        for(Map.Entry<String, Object> header : message.getHeaders().entrySet()) {
+            if(header.getValue() == null || isFilteredHeader(header.getKey(), REQUEST_FILTERED_HEADERS)) {
+                continue;
+            }
+            if(header.getValue() instanceof Iterable) {
+                for(Object value : (Iterable<?>) header.getValue()) {
+                    builder.addHeader(header.getKey(), value.toString());
+                }
+            } else {
+                builder.addHeader(header.getKey(), header.getValue().toString());
+            }
+        }
+        if(getEndpoint().getCustomHostHeader() != null) {
+            builder.header("Host", getEndpoint().getCustomHostHeader());
+        }
+        if(message.getHeader("Accept-Encoding") == null) {
+            // otherwise okhttp asks for gzip and decompresses the reply on our behalf
+            builder.header("Accept-Encoding", "identity");
+        }
+        builder.method(method, createRequestBody(exchange, method));
+        return builder.build();
+    }
+
+    private HttpUrl createUrl(Exchange exchange) {
+        String url = getEndpoint().getBaseUrl();
+        String path = exchange.getIn().getHeader(Exchange.HTTP_PATH, String.class);
+        if(path != null) {
+            if(path.length() > 1 && path.startsWith("/")) {
+                path = path.substring(1);
+            }
+            if(path.length() > 0) {
+                url = url.endsWith("/") || path.startsWith("/") ? url + path : url + "/" + path;
+            }
+        }
+        String query = exchange.getIn().getHeader(Exchange.HTTP_QUERY, String.class);
+        if(query != null && !query.isEmpty()) {
+            url = url + "?" + query;
+        }
+        HttpUrl httpUrl = HttpUrl.parse(url);
+        if(httpUrl == null) {
+            throw new IllegalArgumentException("Invalid upstream url: " + url);
+        }
+        return httpUrl;
+    }
+
+    private RequestBody createRequestBody(Exchange exchange, String method) throws Exception {
+        if(method.equals("GET") || method.equals("HEAD")) {
+            return null;
+        }
+        Message message = exchange.getIn();
+        String contentType = message.getHeader(Exchange.CONTENT_TYPE, String.class);
+        MediaType mediaType = contentType != null ? MediaType.parse(contentType) : null;
+
+        Object body = message.getBody();
+        if(body == null) {
+            return RequestBody.create(mediaType, new byte[0]);
+        } else if(body instanceof byte[]) {
+            return RequestBody.create(mediaType, (byte[]) body);
+        } else if(body instanceof String) {
+            return RequestBody.create(mediaType, ((String) body).getBytes(StandardCharsets.UTF_8));
+        }
+        InputStream inputStream = exchange.getContext().getTypeConverter().mandatoryConvertTo(InputStream.class, exchange, body);
+        Long contentLength = message.getHeader(Exchange.CONTENT_LENGTH, Long.class);
+        return new InputStreamRequestBody(mediaType, contentLength != null ? contentLength : -1, inputStream);
+    }
+
+    private void populateResponse(Exchange exchange, Response response) throws Exception {
+        // the reply replaces the request on the same message, none of the request headers go back to the caller
+        Message answer = exchange.getMessage();
+        answer.getHeaders().clear();
+        answer.setBody(null);
+        answer.setHeader(Exchange.HTTP_RESPONSE_CODE, response.code());
+        answer.setHeader(Exchange.HTTP_RESPONSE_TEXT, response.message());
+
+        Headers headers = response.headers();
+        for(String name : headers.names()) {
+            if(isFilteredHeader(name, RESPONSE_FILTERED_HEADERS)) {
+                continue;
+            }
+            List<String> values = headers.values(name);
+            answer.setHeader(name, values.size() == 1 ? values.get(0) : values);
+        }
+
+        ResponseBody responseBody = response.body();
+        if(responseBody != null) {
+            answer.setBody(getEndpoint().isDisableStreamCache() ? responseBody.byteStream() : responseBody.bytes());
+        }
+
+        if(getEndpoint().isThrowExceptionOnFailure() && response.code() >= 300) {
+            exchange.setException(new CamelExchangeException("HTTP operation failed invoking " + response.request().url() + " with statusCode: " + response.code(), exchange));
+        }
+    }
+
+    private boolean isFilteredHeader(String name, Set<String> filteredHeaders) {
+        return name.startsWith("Camel") || name.startsWith("camel") || name.startsWith("org.apache.camel.") || filteredHeaders.contains(name.toLowerCase(Locale.ROOT));
+    }
+
+    private static class InputStreamRequestBody extends RequestBody {
+
+        private final MediaType mediaType;
+        private final long contentLength;
+        private final InputStream inputStream;
+
+        private InputStreamRequestBody(MediaType mediaType, long contentLength, InputStream inputStream) {
+            this.mediaType = mediaType;
+            this.contentLength = contentLength;
+            this.inputStream = inputStream;
+        }
+
+        @Override
+        public MediaType contentType() {
+            return mediaType;
+        }
+
+        @Override
+        public long contentLength() {
+            return contentLength;
+        }
+
+        @Override
+        public void writeTo(BufferedSink sink) throws IOException {
+            try(Source source = Okio.source(inputStream)) {
+                sink.writeAll(source);
+            }
+        }
+    }
+}
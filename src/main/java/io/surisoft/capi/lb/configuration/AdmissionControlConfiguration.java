@@ -0,0 +1,47 @@
+package io.surisoft.capi.lb.configuration;
+
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import io.surisoft.capi.lb.cache.ApiContextIndex;
+import io.surisoft.capi.lb.cache.ApiResolver;
+import io.surisoft.capi.lb.schema.Api;
+import io.surisoft.capi.lb.service.AdmissionController;
+import io.surisoft.capi.lb.utils.HttpUtils;
+import org.cache2k.Cache;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.web.embedded.undertow.UndertowServletWebServerFactory;
+import org.springframework.boot.web.server.WebServerFactoryCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+@ConditionalOnProperty(prefix = "capi.admission", name = "enabled", havingValue = "true")
+public class AdmissionControlConfiguration {
+
+    @Value("${capi.admission.queue.wait.target}")
+    private long queueWaitTarget;
+
+    @Value("${capi.admission.queue.wait.interval}")
+    private long queueWaitInterval;
+
+    @Value("${capi.admission.max.in.flight}")
+    private int maxInFlight;
+
+    @Value("${capi.admission.retry.after}")
+    private int retryAfter;
+
+    @Value("${camel.servlet.mapping.context-path}")
+    private String capiContext;
+
+    @Bean
+    public AdmissionController admissionController(Cache<String, Api> apiCache, ApiContextIndex apiContextIndex, HttpUtils httpUtils, CompositeMeterRegistry meterRegistry) {
+        return new AdmissionController(new ApiResolver(apiCache, apiContextIndex, httpUtils.getCapiContext(capiContext)), queueWaitTarget, queueWaitInterval, maxInFlight, retryAfter, meterRegistry);
+    }
+
+    @Bean
+    public WebServerFactoryCustomizer<UndertowServletWebServerFactory> admissionControlCustomizer(AdmissionController admissionController) {
+        return factory -> factory.addDeploymentInfoCustomizers(deploymentInfo -> deploymentInfo
+                .addInitialHandlerChainWrapper(admissionController::admissionHandler)
+                .addOuterHandlerChainWrapper(admissionController::dequeueHandler));
+    }
+}
@@ -216,8 +216,8 @@ import org.apache.camel.component.http.HttpClientConfigurer;
 import org.apache.camel.component.http.HttpComponent;
 import org.apache.camel.component.micrometer.CamelJmxConfig;
 import org.apache.camel.component.micrometer.DistributionStatisticConfigFilter;
+import org.apache.camel.spi.RestConfiguration;
 import org.apache.camel.zipkin.ZipkinTracer;
-import org.apache.http.impl.client.HttpClientBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
@@ -228,7 +228,9 @@ import zipkin2.reporter.AsyncReporter;
 import zipkin2.reporter.okhttp3.OkHttpSender;
 
 import java.time.Duration;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 
 import static org.apache.camel.component.micrometer.MicrometerConstants.DISTRIBUTION_SUMMARIES;
@@ -263,11 +265,32 @@ public class CapiConfiguration {
     @ConditionalOnProperty(prefix = "capi.disable", name = "redirect", havingValue = "true")
     public HttpComponent disableFollowRedirect(CamelContext camelContext) {
         HttpComponent httpComponent = (HttpComponent) camelContext.getComponent("http");
-        HttpClientConfigurer httpClientConfigurer = HttpClientBuilder::disableRedirectHandling;
+        HttpClientConfigurer existingConfigurer = httpComponent.getHttpClientConfigurer();
+        HttpClientConfigurer httpClientConfigurer = clientBuilder -> {
+            if(existingConfigurer != null) {
+                existingConfigurer.configureHttpClient(clientBuilder);
+            }
+            clientBuilder.disableRedirectHandling();
+        };
         httpComponent.setHttpClientConfigurer(httpClientConfigurer);
         return httpComponent;
     }
 
+    /**
+     * The rest consumers hand the raw request stream over, the direct routes buffer it against the memory budget.
+     */
+    @Bean
+    public RestConfiguration restConfiguration(CamelContext camelContext) {
+        RestConfiguration restConfiguration = camelContext.getRestConfiguration();
+        Map<String, Object> endpointProperties = new HashMap<>();
+        if(restConfiguration.getEndpointProperties() != null) {
+            endpointProperties.putAll(restConfiguration.getEndpointProperties());
+        }
+        endpointProperties.put("disableStreamCache", true);
+        restConfiguration.setEndpointProperties(endpointProperties);
+        return restConfiguration;
+    }
+
     @Bean
     public CompositeMeterRegistry metrics() {
         DistributionStatisticConfigFilter timerMeterFilter = new DistributionStatisticConfigFilter()
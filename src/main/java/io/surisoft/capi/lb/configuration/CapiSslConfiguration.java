@@ -8,7 +8,6 @@ import org.apache.camel.support.jsse.TrustManagersParameters;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.core.io.Resource;
 import org.springframework.core.io.ResourceLoader;
@@ -16,8 +15,10 @@ import org.springframework.core.io.ResourceLoader;
 import java.io.File;
 import java.io.IOException;
 
+/**
+ * Always registered, the upstream TLS setup depends on it by name, it only installs the trust store when enabled.
+ */
 @Configuration
-@ConditionalOnProperty(prefix = "capi.trust.store", name = "enabled", havingValue = "true")
 public class CapiSslConfiguration {
 
     private static final Logger log = LoggerFactory.getLogger(CapiSslConfiguration.class);
@@ -28,12 +29,14 @@ public class CapiSslConfiguration {
     private ResourceLoader resourceLoader;
     private CamelContext camelContext;
 
-    public CapiSslConfiguration(CamelContext camelContext, ResourceLoader resourceLoader, @Value("${capi.trust.store.path}") String capiTrustStorePath, @Value("${capi.trust.store.password}") String capiTrustStorePassword) {
+    public CapiSslConfiguration(CamelContext camelContext, ResourceLoader resourceLoader, @Value("${capi.trust.store.path}") String capiTrustStorePath, @Value("${capi.trust.store.password}") String capiTrustStorePassword, @Value("${capi.trust.store.enabled}") boolean capiTrustStoreEnabled) {
         this.camelContext = camelContext;
         this.resourceLoader = resourceLoader;
         this.capiTrustStorePath = capiTrustStorePath;
         this.capiTrustStorePassword = capiTrustStorePassword;
-        createSslContext();
+        if(capiTrustStoreEnabled) {
+            createSslContext();
+        }
     }
 
     private void createSslContext() {
@@ -9,6 +9,7 @@ import io.surisoft.capi.lb.utils.HttpUtils;
 import io.surisoft.capi.lb.utils.RouteUtils;
 import org.apache.camel.CamelContext;
 import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.model.RouteDefinition;
 import org.cache2k.Cache;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -31,6 +32,9 @@ public class ConsulAutoConfiguration {
     @Value("${camel.servlet.mapping.context-path}")
     private String capiContext;
 
+    @Value("${capi.virtual.threads.enabled}")
+    private boolean virtualThreads;
+
     @Bean(name = "consulNodeDiscovery")
     @ConditionalOnProperty(prefix = "capi.consul.discovery", name = "enabled", havingValue = "true")
     public ConsulNodeDiscovery consulNodeDiscovery(CamelContext camelContext, ApiUtils apiUtils, RouteUtils routeUtils, MetricsProcessor metricsProcessor, HttpUtils httpUtils, StickySessionCacheManager stickySessionCacheManager, Cache<String, Api> apiCache) {
@@ -47,7 +51,12 @@ public class ConsulAutoConfiguration {
         return new RouteBuilder() {
             @Override
             public void configure() {
-                from("timer:consul-inspect?period=" + consulTimerInterval + "s")
+                RouteDefinition routeDefinition = from("timer:consul-inspect?period=" + consulTimerInterval + "s&synchronous=true");
+                if(virtualThreads) {
+                    // the timer thread waits while the discovery blocks a virtual thread
+                    routeDefinition.threads();
+                }
+                routeDefinition
                         .to("bean:consulNodeDiscovery?method=processInfo")
                         .routeId("consul-discovery-service");
             }
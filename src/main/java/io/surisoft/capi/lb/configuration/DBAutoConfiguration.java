@@ -11,6 +11,7 @@ import io.surisoft.capi.lb.utils.HttpUtils;
 import io.surisoft.capi.lb.utils.RouteUtils;
 import org.apache.camel.CamelContext;
 import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.model.RouteDefinition;
 import org.cache2k.Cache;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -30,6 +31,9 @@ public class DBAutoConfiguration {
     @Value("${camel.servlet.mapping.context-path}")
     private String capiContext;
 
+    @Value("${capi.virtual.threads.enabled}")
+    private boolean virtualThreads;
+
     @Bean(name = "dbNodeDiscovery")
     @ConditionalOnProperty(prefix = "capi.persistence", name = "enabled", havingValue = "true")
     public DBNodeDiscovery dbNodeDiscovery(CamelContext camelContext, ApiUtils apiUtils, RouteUtils routeUtils, MetricsProcessor metricsProcessor, HttpUtils httpUtils, StickySessionCacheManager stickySessionCacheManager, ApiRepository apiRepository, Cache<String, Api> apiCache) {
@@ -46,7 +50,12 @@ public class DBAutoConfiguration {
         return new RouteBuilder() {
             @Override
             public void configure() {
-                from("timer:db-inspect?period=" + dbTimerInterval + "s")
+                RouteDefinition routeDefinition = from("timer:db-inspect?period=" + dbTimerInterval + "s&synchronous=true");
+                if(virtualThreads) {
+                    // the timer thread waits while the discovery blocks a virtual thread
+                    routeDefinition.threads();
+                }
+                routeDefinition
                         .to("bean:dbNodeDiscovery?method=processInfo")
                         .routeId("db-discovery-service");
             }
@@ -0,0 +1,110 @@
+package io.surisoft.capi.lb.configuration;
+
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import io.surisoft.capi.lb.service.ClientConnectionLimiter;
+import io.surisoft.capi.lb.service.ClientLimitHandler;
+import io.surisoft.capi.lb.service.ClientTrackingTable;
+import io.undertow.Undertow;
+import io.undertow.UndertowOptions;
+import io.undertow.server.OpenListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.web.context.WebServerInitializedEvent;
+import org.springframework.boot.web.embedded.undertow.UndertowServletWebServerFactory;
+import org.springframework.boot.web.embedded.undertow.UndertowWebServer;
+import org.springframework.boot.web.server.WebServerFactoryCustomizer;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.util.ReflectionUtils;
+import org.xnio.ChannelListener;
+import org.xnio.ChannelListeners;
+import org.xnio.Options;
+import org.xnio.StreamConnection;
+import org.xnio.channels.AcceptingChannel;
+
+import java.lang.reflect.Field;
+
+@Configuration
+public class DownstreamClientLimitConfiguration {
+
+    private static final Logger log = LoggerFactory.getLogger(DownstreamClientLimitConfiguration.class);
+
+    @Value("${capi.downstream.client.max.connections}")
+    private int maxConnectionsPerClient;
+
+    @Value("${capi.downstream.client.max.requests.per.second}")
+    private int maxRequestsPerSecond;
+
+    @Value("${capi.downstream.client.table.size}")
+    private int tableSize;
+
+    @Value("${capi.downstream.client.header.read.timeout}")
+    private int headerReadTimeout;
+
+    @Value("${capi.downstream.client.body.read.timeout}")
+    private int bodyReadTimeout;
+
+    @Value("${capi.downstream.client.idle.timeout}")
+    private int idleTimeout;
+
+    @Bean
+    public ClientTrackingTable clientTrackingTable() {
+        return new ClientTrackingTable(tableSize);
+    }
+
+    @Bean
+    public WebServerFactoryCustomizer<UndertowServletWebServerFactory> downstreamClientLimitCustomizer(ClientTrackingTable clientTrackingTable, CompositeMeterRegistry meterRegistry) {
+        return factory -> {
+            factory.addBuilderCustomizers(builder -> builder
+                    // a client trickling its headers is cut off once the whole request head took this long
+                    .setServerOption(UndertowOptions.REQUEST_PARSE_TIMEOUT, headerReadTimeout)
+                    .setServerOption(UndertowOptions.NO_REQUEST_TIMEOUT, idleTimeout)
+                    // no byte read for this long, a body trickled byte by byte still resets it
+                    .setSocketOption(Options.READ_TIMEOUT, bodyReadTimeout));
+            if(maxRequestsPerSecond > 0) {
+                factory.addDeploymentInfoCustomizers(deploymentInfo -> deploymentInfo.addInitialHandlerChainWrapper(handler -> new ClientLimitHandler(handler, clientTrackingTable, maxRequestsPerSecond, meterRegistry)));
+            }
+        };
+    }
+
+    @Bean
+    public ApplicationListener<WebServerInitializedEvent> downstreamConnectionLimiter(ClientTrackingTable clientTrackingTable, CompositeMeterRegistry meterRegistry) {
+        return event -> {
+            if((maxConnectionsPerClient > 0 || maxRequestsPerSecond > 0) && event.getWebServer() instanceof UndertowWebServer) {
+                limitConnectionsAtAccept((UndertowWebServer) event.getWebServer(), clientTrackingTable, meterRegistry);
+            }
+        };
+    }
+
+    /**
+     * Undertow has no hook between the accept and its open listener, and Spring keeps the server to itself. The
+     * accepting channels Spring started are reached the way Spring itself reads their ports, and their accept
+     * listeners replaced with ones that go through the ClientConnectionLimiter first.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private void limitConnectionsAtAccept(UndertowWebServer webServer, ClientTrackingTable clientTrackingTable, CompositeMeterRegistry meterRegistry) {
+        Field undertowField = ReflectionUtils.findField(UndertowWebServer.class, "undertow");
+        Field openListenerField = ReflectionUtils.findField(Undertow.ListenerInfo.class, "openListener");
+        Field channelField = ReflectionUtils.findField(Undertow.ListenerInfo.class, "channel");
+        if(undertowField == null || openListenerField == null || channelField == null) {
+            log.warn("The Undertow listeners could not be reached, the connections per client are not limited");
+            return;
+        }
+        ReflectionUtils.makeAccessible(undertowField);
+        ReflectionUtils.makeAccessible(openListenerField);
+        ReflectionUtils.makeAccessible(channelField);
+        Undertow undertow = (Undertow) ReflectionUtils.getField(undertowField, webServer);
+        if(undertow == null) {
+            return;
+        }
+        for(Undertow.ListenerInfo listenerInfo : undertow.getListenerInfo()) {
+            OpenListener openListener = (OpenListener) ReflectionUtils.getField(openListenerField, listenerInfo);
+            AcceptingChannel<? extends StreamConnection> channel = (AcceptingChannel<? extends StreamConnection>) ReflectionUtils.getField(channelField, listenerInfo);
+            ChannelListener<AcceptingChannel<StreamConnection>> acceptListener = ChannelListeners.openListenerAdapter(new ClientConnectionLimiter(openListener, clientTrackingTable, maxConnectionsPerClient, meterRegistry));
+            ((ChannelListener.Setter) channel.getAcceptSetter()).set(acceptListener);
+            log.info("Limiting the connections per client on the {} listener {}", listenerInfo.getProtcol(), listenerInfo.getAddress());
+        }
+    }
+}
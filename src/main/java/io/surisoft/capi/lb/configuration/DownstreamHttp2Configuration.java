@@ -0,0 +1,43 @@
+package io.surisoft.capi.lb.configuration;
+
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import io.surisoft.capi.lb.service.Http2ConnectionMetricsHandler;
+import io.undertow.UndertowOptions;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.web.embedded.undertow.UndertowServletWebServerFactory;
+import org.springframework.boot.web.server.WebServerFactoryCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+public class DownstreamHttp2Configuration {
+
+    @Value("${capi.downstream.http2.max.concurrent.streams}")
+    private int maxConcurrentStreams;
+
+    @Value("${capi.downstream.http2.initial.window.size}")
+    private int initialWindowSize;
+
+    @Value("${capi.downstream.http2.max.frame.size}")
+    private int maxFrameSize;
+
+    @Value("${capi.downstream.http2.max.header.list.size}")
+    private int maxHeaderListSize;
+
+    /**
+     * server.http2.enabled turns on ALPN and the h2c upgrade, these are the limits each client connection is given.
+     */
+    @Bean
+    public WebServerFactoryCustomizer<UndertowServletWebServerFactory> downstreamHttp2Customizer(CompositeMeterRegistry meterRegistry) {
+        return factory -> {
+            factory.addBuilderCustomizers(builder -> builder
+                    .setServerOption(UndertowOptions.HTTP2_SETTINGS_MAX_CONCURRENT_STREAMS, maxConcurrentStreams)
+                    .setServerOption(UndertowOptions.HTTP2_SETTINGS_INITIAL_WINDOW_SIZE, initialWindowSize)
+                    .setServerOption(UndertowOptions.HTTP2_SETTINGS_MAX_FRAME_SIZE, maxFrameSize)
+                    .setServerOption(UndertowOptions.HTTP2_SETTINGS_MAX_HEADER_LIST_SIZE, maxHeaderListSize)
+                    // a gateway has nothing to push
+                    .setServerOption(UndertowOptions.HTTP2_SETTINGS_ENABLE_PUSH, false));
+            factory.addDeploymentInfoCustomizers(deploymentInfo -> deploymentInfo.addInitialHandlerChainWrapper(handler -> new Http2ConnectionMetricsHandler(handler, meterRegistry)));
+        };
+    }
+}
@@ -0,0 +1,43 @@
+package io.surisoft.capi.lb.configuration;
+
+import io.surisoft.capi.lb.service.DownstreamTlsProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.web.embedded.undertow.UndertowServletWebServerFactory;
+import org.springframework.boot.web.server.Ssl;
+import org.springframework.boot.web.server.WebServerFactoryCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.security.Security;
+
+@Configuration
+public class DownstreamTlsConfiguration {
+
+    private static final Logger log = LoggerFactory.getLogger(DownstreamTlsConfiguration.class);
+
+    @Value("${capi.downstream.tls.engine}")
+    private String engine;
+
+    @Value("${capi.downstream.tls.session.cache.size}")
+    private int sessionCacheSize;
+
+    @Value("${capi.downstream.tls.session.timeout}")
+    private int sessionTimeout;
+
+    @Bean
+    public WebServerFactoryCustomizer<UndertowServletWebServerFactory> downstreamTlsCustomizer() {
+        return factory -> {
+            Ssl ssl = factory.getSsl();
+            if(ssl == null || !ssl.isEnabled()) {
+                return;
+            }
+            DownstreamTlsProvider downstreamTlsProvider = new DownstreamTlsProvider(engine, ssl.getProtocol(), sessionCacheSize, sessionTimeout);
+            Security.removeProvider(DownstreamTlsProvider.NAME);
+            Security.addProvider(downstreamTlsProvider);
+            ssl.setProtocol(DownstreamTlsProvider.PROTOCOL_PREFIX + ssl.getProtocol());
+            log.info("Downstream TLS terminated by {}", downstreamTlsProvider.getEngine());
+        };
+    }
+}
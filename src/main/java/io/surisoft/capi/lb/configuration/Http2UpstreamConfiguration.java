@@ -0,0 +1,80 @@
+package io.surisoft.capi.lb.configuration;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import io.surisoft.capi.lb.component.Http2Component;
+import io.surisoft.capi.lb.service.CapiDnsResolver;
+import io.surisoft.capi.lb.service.CapiTlsSessionManager;
+import io.surisoft.capi.lb.service.ClientIdentityManager;
+import io.surisoft.capi.lb.utils.Constants;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import org.apache.camel.CamelContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@Configuration
+public class Http2UpstreamConfiguration {
+
+    private static final Logger log = LoggerFactory.getLogger(Http2UpstreamConfiguration.class);
+
+    public Http2UpstreamConfiguration(CamelContext camelContext,
+                                      CompositeMeterRegistry meterRegistry,
+                                      CapiDnsResolver capiDnsResolver,
+                                      CapiTlsSessionManager capiTlsSessionManager,
+                                      ObjectProvider<ClientIdentityManager> clientIdentityManagerProvider,
+                                      @Value("${capi.upstream.http2.max.requests.total}") int maxRequests,
+                                      @Value("${capi.upstream.http2.max.requests.per.node}") int maxRequestsPerNode,
+                                      @Value("${capi.upstream.http2.max.idle.connections}") int maxIdleConnections,
+                                      @Value("${capi.upstream.pool.keep.alive.ttl}") long keepAliveTtl) {
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(maxRequests);
+        dispatcher.setMaxRequestsPerHost(maxRequestsPerNode);
+        ConnectionPool connectionPool = new ConnectionPool(maxIdleConnections, keepAliveTtl, TimeUnit.MILLISECONDS);
+
+        // failover is decided by the load balancer, okhttp must not send the same stream twice
+        OkHttpClient httpClient = new OkHttpClient.Builder()
+                .dispatcher(dispatcher)
+                .connectionPool(connectionPool)
+                .dns(capiDnsResolver)
+                .retryOnConnectionFailure(false)
+                .followRedirects(false)
+                .followSslRedirects(false)
+                .build();
+
+        // same SSLContext as the HTTP/1.1 pool, so both resume from one TLS session cache
+        OkHttpClient h2Client = httpClient.newBuilder()
+                .protocols(List.of(Protocol.HTTP_2, Protocol.HTTP_1_1))
+                .sslSocketFactory(capiTlsSessionManager.getSslContext().getSocketFactory(), capiTlsSessionManager.getTrustManager())
+                .build();
+        OkHttpClient h2cClient = httpClient.newBuilder()
+                .protocols(List.of(Protocol.H2_PRIOR_KNOWLEDGE))
+                .build();
+
+        // okhttp can't evict the idle connections of a single host
+        capiDnsResolver.addAddressChangeListener(hostname -> connectionPool.evictAll());
+        ClientIdentityManager clientIdentityManager = clientIdentityManagerProvider.getIfAvailable();
+        if(clientIdentityManager != null) {
+            clientIdentityManager.addRotationListener(identity -> connectionPool.evictAll());
+        }
+
+        Http2Component h2Component = new Http2Component(h2Client, true);
+        h2Component.setClientIdentityManager(clientIdentityManager);
+        camelContext.addComponent(Constants.HTTP2_SCHEME, h2Component);
+        camelContext.addComponent(Constants.H2C_SCHEME, new Http2Component(h2cClient, false));
+
+        Gauge.builder("capi.upstream.http2.connections", connectionPool, ConnectionPool::connectionCount).register(meterRegistry);
+        Gauge.builder("capi.upstream.http2.idle", connectionPool, ConnectionPool::idleConnectionCount).register(meterRegistry);
+        Gauge.builder("capi.upstream.http2.running", dispatcher, Dispatcher::runningCallsCount).register(meterRegistry);
+        Gauge.builder("capi.upstream.http2.queued", dispatcher, Dispatcher::queuedCallsCount).register(meterRegistry);
+        log.debug("HTTP/2 upstream components registered with {} in-flight requests per node", maxRequestsPerNode);
+    }
+}
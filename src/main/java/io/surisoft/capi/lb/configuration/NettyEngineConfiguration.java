@@ -0,0 +1,86 @@
+package io.surisoft.capi.lb.configuration;
+
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import io.netty.handler.ssl.ApplicationProtocolConfig;
+import io.netty.handler.ssl.ApplicationProtocolNames;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.surisoft.capi.lb.cache.ApiContextIndex;
+import io.surisoft.capi.lb.cache.ApiResolver;
+import io.surisoft.capi.lb.netty.NettyGrpcConnectionPool;
+import io.surisoft.capi.lb.netty.NettyProxyServer;
+import io.surisoft.capi.lb.netty.NettyTransport;
+import io.surisoft.capi.lb.netty.NettyUpstreamPool;
+import io.surisoft.capi.lb.netty.NettyWebSocketTunnels;
+import io.surisoft.capi.lb.schema.Api;
+import io.surisoft.capi.lb.service.CapiDnsResolver;
+import io.surisoft.capi.lb.service.CapiTlsSessionManager;
+import io.surisoft.capi.lb.utils.HttpUtils;
+import org.cache2k.Cache;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import javax.net.ssl.SSLException;
+
+@Configuration
+@ConditionalOnProperty(prefix = "capi.engine.netty", name = "enabled", havingValue = "true")
+public class NettyEngineConfiguration {
+
+    @Value("${capi.engine.netty.port}")
+    private int port;
+
+    @Value("${capi.engine.netty.threads}")
+    private int threads;
+
+    @Value("${capi.engine.netty.acceptors}")
+    private int acceptors;
+
+    @Value("${capi.downstream.http2.max.concurrent.streams}")
+    private int maxConcurrentStreams;
+
+    @Value("${capi.engine.netty.transport}")
+    private String transport;
+
+    @Value("${capi.engine.netty.max.idle.per.destination}")
+    private int maxIdlePerDestination;
+
+    @Value("${capi.engine.netty.max.idle.time}")
+    private long maxIdleTime;
+
+    @Value("${capi.engine.netty.websocket.drain.timeout}")
+    private long webSocketDrainTimeout;
+
+    @Value("${capi.engine.netty.websocket.migration.interval}")
+    private long webSocketMigrationInterval;
+
+    @Value("${camel.servlet.mapping.context-path}")
+    private String capiContext;
+
+    @Bean(initMethod = "start", destroyMethod = "stop")
+    public NettyProxyServer nettyProxyServer(Cache<String, Api> apiCache, ApiContextIndex apiContextIndex, HttpUtils httpUtils, CapiDnsResolver capiDnsResolver, CapiTlsSessionManager capiTlsSessionManager, CompositeMeterRegistry meterRegistry) throws SSLException {
+        SslContext upstreamSslContext = SslContextBuilder.forClient()
+                .trustManager(capiTlsSessionManager.getTrustManager())
+                .build();
+        SslContext grpcSslContext = SslContextBuilder.forClient()
+                .trustManager(capiTlsSessionManager.getTrustManager())
+                .applicationProtocolConfig(new ApplicationProtocolConfig(ApplicationProtocolConfig.Protocol.ALPN,
+                        ApplicationProtocolConfig.SelectorFailureBehavior.NO_ADVERTISE,
+                        ApplicationProtocolConfig.SelectedListenerFailureBehavior.ACCEPT,
+                        ApplicationProtocolNames.HTTP_2))
+                .build();
+        return new NettyProxyServer(NettyTransport.select(transport),
+                port,
+                threads,
+                acceptors,
+                maxConcurrentStreams,
+                new ApiResolver(apiCache, apiContextIndex, httpUtils.getCapiContext(capiContext)),
+                new NettyUpstreamPool(maxIdlePerDestination, maxIdleTime),
+                capiDnsResolver,
+                upstreamSslContext,
+                new NettyWebSocketTunnels(webSocketDrainTimeout, webSocketMigrationInterval, meterRegistry),
+                new NettyGrpcConnectionPool(grpcSslContext),
+                meterRegistry);
+    }
+}
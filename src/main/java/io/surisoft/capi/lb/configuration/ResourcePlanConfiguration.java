@@ -0,0 +1,47 @@
+package io.surisoft.capi.lb.configuration;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import io.surisoft.capi.lb.service.ContainerResources;
+import io.surisoft.capi.lb.service.ResourcePlan;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.ConfigurableEnvironment;
+import org.springframework.core.env.PropertySource;
+
+@Configuration
+public class ResourcePlanConfiguration {
+
+    /**
+     * Derived again from the same limits and heap, so it matches what the environment was given at startup.
+     */
+    @Bean
+    public ResourcePlan resourcePlan(ConfigurableEnvironment environment, CompositeMeterRegistry meterRegistry) {
+        ResourcePlan resourcePlan = ResourcePlan.derive(ContainerResources.detect());
+        ContainerResources resources = resourcePlan.getResources();
+        Gauge.builder("capi.resources.cpus", resources, ContainerResources::getCpus).register(meterRegistry);
+        Gauge.builder("capi.resources.memory.limit", resources, ContainerResources::getMemoryLimit).register(meterRegistry);
+        Gauge.builder("capi.resources.heap.max", resources, ContainerResources::getMaxHeap).register(meterRegistry);
+
+        PropertySource<?> plannedValues = environment.getPropertySources().get(ResourcePlan.PROPERTY_SOURCE);
+        for(String property : resourcePlan.getValues().keySet()) {
+            Long value = getNumericValue(environment, property);
+            if(value != null) {
+                String source = plannedValues != null && plannedValues.containsProperty(property) ? "plan" : "explicit";
+                Gauge.builder("capi.resources.sizing", () -> value).tag("property", property).tag("source", source).register(meterRegistry);
+            }
+        }
+        return resourcePlan;
+    }
+
+    /**
+     * Overrides can be written as data sizes (16KB), those are left out of the gauges.
+     */
+    static Long getNumericValue(ConfigurableEnvironment environment, String property) {
+        try {
+            return Long.valueOf(environment.getProperty(property, ""));
+        } catch(NumberFormatException e) {
+            return null;
+        }
+    }
+}
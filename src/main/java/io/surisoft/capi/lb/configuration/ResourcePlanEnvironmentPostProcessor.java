@@ -0,0 +1,53 @@
+package io.surisoft.capi.lb.configuration;
+
+import io.surisoft.capi.lb.service.ContainerResources;
+import io.surisoft.capi.lb.service.ResourcePlan;
+import org.apache.commons.logging.Log;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.context.config.ConfigDataEnvironmentPostProcessor;
+import org.springframework.boot.env.EnvironmentPostProcessor;
+import org.springframework.boot.logging.DeferredLogFactory;
+import org.springframework.core.Ordered;
+import org.springframework.core.env.ConfigurableEnvironment;
+import org.springframework.core.env.MapPropertySource;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Resolves the properties set to auto, or not set at all, from the container resources before any bean reads them.
+ */
+public class ResourcePlanEnvironmentPostProcessor implements EnvironmentPostProcessor, Ordered {
+
+    private final Log log;
+
+    public ResourcePlanEnvironmentPostProcessor(DeferredLogFactory logFactory) {
+        this.log = logFactory.getLog(ResourcePlanEnvironmentPostProcessor.class);
+    }
+
+    @Override
+    public void postProcessEnvironment(ConfigurableEnvironment environment, SpringApplication application) {
+        ResourcePlan resourcePlan = ResourcePlan.derive(ContainerResources.detect());
+        ContainerResources resources = resourcePlan.getResources();
+        log.info(String.format("Sizing for %d CPUs, %s memory limit and %d MB heap (%s)", resources.getCpus(),
+                resources.getMemoryLimit() < 0 ? "no" : resources.getMemoryLimit() / (1024 * 1024) + " MB", resources.getMaxHeap() / (1024 * 1024), resources.getSource()));
+
+        Map<String, Object> plannedValues = new LinkedHashMap<>();
+        resourcePlan.getValues().forEach((property, value) -> {
+            String configured = environment.getProperty(property);
+            if(configured == null || ResourcePlan.AUTO.equals(configured)) {
+                plannedValues.put(property, value);
+                log.info(String.format("  %s = %d", property, value));
+            } else {
+                log.info(String.format("  %s = %s (explicit, the plan was %d)", property, configured, value));
+            }
+        });
+        // only holds the auto properties, so it can go first without hiding an override
+        environment.getPropertySources().addFirst(new MapPropertySource(ResourcePlan.PROPERTY_SOURCE, plannedValues));
+    }
+
+    @Override
+    public int getOrder() {
+        return ConfigDataEnvironmentPostProcessor.ORDER + 1;
+    }
+}
@@ -0,0 +1,53 @@
+package io.surisoft.capi.lb.configuration;
+
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import io.surisoft.capi.lb.netty.NettyTransport;
+import io.surisoft.capi.lb.netty.TcpProxyServer;
+import io.surisoft.capi.lb.schema.Api;
+import io.surisoft.capi.lb.service.CapiDnsResolver;
+import org.cache2k.Cache;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+@ConditionalOnProperty(prefix = "capi.engine.tcp", name = "enabled", havingValue = "true")
+public class TcpEngineConfiguration {
+
+    @Value("${capi.engine.tcp.threads}")
+    private int threads;
+
+    @Value("${capi.engine.tcp.transport}")
+    private String transport;
+
+    @Value("${capi.engine.tcp.bind.address}")
+    private String bindAddress;
+
+    @Value("${capi.engine.tcp.zero.copy}")
+    private boolean zeroCopy;
+
+    @Value("${capi.engine.tcp.reconcile.interval}")
+    private long reconcileInterval;
+
+    @Value("${capi.engine.tcp.allowed.ports}")
+    private String allowedPorts;
+
+    @Bean(initMethod = "start", destroyMethod = "stop")
+    public TcpProxyServer tcpProxyServer(Cache<String, Api> apiCache, CapiDnsResolver capiDnsResolver, CompositeMeterRegistry meterRegistry) {
+        String[] portRange = allowedPorts.trim().split("-");
+        if(portRange.length != 2) {
+            throw new IllegalArgumentException("capi.engine.tcp.allowed.ports must be a range like 1024-65535, was " + allowedPorts);
+        }
+        return new TcpProxyServer(NettyTransport.select(transport),
+                threads,
+                bindAddress,
+                zeroCopy,
+                reconcileInterval,
+                Integer.parseInt(portRange[0].trim()),
+                Integer.parseInt(portRange[1].trim()),
+                apiCache,
+                capiDnsResolver,
+                meterRegistry);
+    }
+}
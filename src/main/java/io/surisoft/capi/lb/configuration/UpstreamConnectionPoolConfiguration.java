@@ -0,0 +1,178 @@
+package io.surisoft.capi.lb.configuration;
+
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import io.surisoft.capi.lb.service.CapiConnectionManager;
+import io.surisoft.capi.lb.service.CapiDnsResolver;
+import io.surisoft.capi.lb.service.CapiSslConnectionSocketFactory;
+import io.surisoft.capi.lb.service.CapiTlsSessionManager;
+import io.surisoft.capi.lb.service.ClientIdentityManager;
+import io.surisoft.capi.lb.service.ConnectionPreWarmer;
+import io.surisoft.capi.lb.service.StaleConnectionRetryHandler;
+import io.surisoft.capi.lb.service.UnixDomainSocketFactory;
+import io.surisoft.capi.lb.service.UpstreamConnectionPoolManager;
+import io.surisoft.capi.lb.utils.Constants;
+import org.apache.camel.CamelContext;
+import org.apache.camel.component.http.HttpClientConfigurer;
+import org.apache.camel.component.http.HttpComponent;
+import org.apache.camel.support.jsse.SSLContextParameters;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.DependsOn;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509TrustManager;
+import java.io.IOException;
+import java.security.KeyStore;
+
+@Configuration
+public class UpstreamConnectionPoolConfiguration {
+
+    private static final Logger log = LoggerFactory.getLogger(UpstreamConnectionPoolConfiguration.class);
+
+    @Value("${capi.upstream.pool.max.total}")
+    private int maxTotal;
+
+    @Value("${capi.upstream.pool.max.per.destination}")
+    private int maxPerDestination;
+
+    @Value("${capi.upstream.pool.keep.alive.ttl}")
+    private long keepAliveTtl;
+
+    @Value("${capi.upstream.pool.idle.timeout}")
+    private long idleTimeout;
+
+    @Value("${capi.upstream.pool.idle.eviction.interval}")
+    private long evictionInterval;
+
+    @Value("${capi.upstream.pool.validate.after.inactivity}")
+    private int validateAfterInactivity;
+
+    @Value("${capi.upstream.pool.acquire.timeout}")
+    private long acquireTimeout;
+
+    @Value("${capi.upstream.pool.acquire.api.wait}")
+    private long apiAcquireWait;
+
+    @Value("${capi.upstream.prewarm.connections}")
+    private int preWarmConnections;
+
+    @Value("${capi.upstream.prewarm.timeout}")
+    private long preWarmTimeout;
+
+    @Value("${capi.upstream.prewarm.threads}")
+    private int preWarmThreads;
+
+    @Value("${capi.upstream.tls.session.cache.size}")
+    private int tlsSessionCacheSize;
+
+    @Value("${capi.upstream.tls.session.timeout}")
+    private int tlsSessionTimeout;
+
+    @Value("${capi.client.identity.store.path}")
+    private String clientIdentityStorePath;
+
+    @Value("${capi.client.identity.store.password}")
+    private String clientIdentityStorePassword;
+
+    @Value("${capi.dns.cache.ttl}")
+    private long dnsCacheTtl;
+
+    @Value("${capi.dns.resolve.timeout}")
+    private long dnsResolveTimeout;
+
+    @Bean
+    public CapiDnsResolver capiDnsResolver(CompositeMeterRegistry meterRegistry) {
+        return new CapiDnsResolver(dnsCacheTtl, dnsResolveTimeout, meterRegistry);
+    }
+
+    /**
+     * The CAPI trust store, when enabled, has to be in place before the upstream SSLContext is built.
+     */
+    @Bean
+    @DependsOn("capiSslConfiguration")
+    public CapiTlsSessionManager capiTlsSessionManager(CamelContext camelContext, CompositeMeterRegistry meterRegistry) throws Exception {
+        X509TrustManager trustManager = getTrustManager(camelContext);
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(null, new TrustManager[] {trustManager}, null);
+        return new CapiTlsSessionManager(Constants.DEFAULT_CLIENT_IDENTITY, sslContext, trustManager, tlsSessionCacheSize, tlsSessionTimeout, meterRegistry);
+    }
+
+    @Bean
+    public UnixDomainSocketFactory unixDomainSocketFactory() {
+        return new UnixDomainSocketFactory();
+    }
+
+    @Bean
+    public UpstreamConnectionPoolManager upstreamConnectionPoolManager(CamelContext camelContext, CompositeMeterRegistry meterRegistry, CapiDnsResolver capiDnsResolver, CapiTlsSessionManager capiTlsSessionManager, UnixDomainSocketFactory unixDomainSocketFactory) {
+        Registry<ConnectionSocketFactory> socketFactoryRegistry = RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", unixDomainSocketFactory)
+                .register("https", new CapiSslConnectionSocketFactory(capiTlsSessionManager, SSLConnectionSocketFactory.getDefaultHostnameVerifier()))
+                .build();
+
+        CapiConnectionManager connectionManager = new CapiConnectionManager(socketFactoryRegistry, hostname -> unixDomainSocketFactory.resolve(hostname, capiDnsResolver), keepAliveTtl, Constants.DEFAULT_CLIENT_IDENTITY, meterRegistry);
+        connectionManager.setMaxTotal(maxTotal);
+        connectionManager.setDefaultMaxPerRoute(maxPerDestination);
+        // no stale check on every lease, idle connections are evicted in the background
+        // and a request failing on a connection the backend closed is retried
+        connectionManager.setValidateAfterInactivity(validateAfterInactivity);
+        capiDnsResolver.addAddressChangeListener(connectionManager::closeIdleConnections);
+
+        StaleConnectionRetryHandler retryHandler = new StaleConnectionRetryHandler(meterRegistry);
+        for(String scheme : new String[] {"http", "https"}) {
+            HttpComponent httpComponent = (HttpComponent) camelContext.getComponent(scheme);
+            httpComponent.setClientConnectionManager(connectionManager);
+            httpComponent.setConnectionRequestTimeout((int) acquireTimeout);
+            HttpClientConfigurer existingConfigurer = httpComponent.getHttpClientConfigurer();
+            httpComponent.setHttpClientConfigurer(clientBuilder -> {
+                if(existingConfigurer != null) {
+                    existingConfigurer.configureHttpClient(clientBuilder);
+                }
+                clientBuilder.setRetryHandler(retryHandler);
+            });
+        }
+        log.debug("Upstream connection pool created with {} connections, {} per destination", maxTotal, maxPerDestination);
+
+        UpstreamConnectionPoolManager upstreamConnectionPoolManager = new UpstreamConnectionPoolManager(connectionManager, meterRegistry, acquireTimeout, apiAcquireWait, idleTimeout, evictionInterval);
+        upstreamConnectionPoolManager.start();
+        return upstreamConnectionPoolManager;
+    }
+
+    private X509TrustManager getTrustManager(CamelContext camelContext) throws Exception {
+        HttpComponent httpComponent = (HttpComponent) camelContext.getComponent("https");
+        SSLContextParameters sslContextParameters = httpComponent.getSslContextParameters();
+        if(sslContextParameters != null && sslContextParameters.getTrustManagers() != null && sslContextParameters.getTrustManagers().getTrustManager() instanceof X509TrustManager) {
+            return (X509TrustManager) sslContextParameters.getTrustManagers().getTrustManager();
+        }
+        TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagerFactory.init((KeyStore) null);
+        for(TrustManager trustManager : trustManagerFactory.getTrustManagers()) {
+            if(trustManager instanceof X509TrustManager) {
+                return (X509TrustManager) trustManager;
+            }
+        }
+        throw new IllegalStateException("No X509 trust manager available for upstream connections");
+    }
+
+    @Bean
+    @ConditionalOnProperty(prefix = "capi.client.identity", name = "enabled", havingValue = "true")
+    public ClientIdentityManager clientIdentityManager(CamelContext camelContext, UpstreamConnectionPoolManager upstreamConnectionPoolManager, CapiDnsResolver capiDnsResolver, CapiTlsSessionManager capiTlsSessionManager, CompositeMeterRegistry meterRegistry) throws IOException {
+        ClientIdentityManager clientIdentityManager = new ClientIdentityManager(camelContext, upstreamConnectionPoolManager, capiDnsResolver, capiTlsSessionManager, clientIdentityStorePath, clientIdentityStorePassword, maxPerDestination, keepAliveTtl, tlsSessionCacheSize, tlsSessionTimeout, meterRegistry);
+        clientIdentityManager.loadIdentities();
+        return clientIdentityManager;
+    }
+
+    @Bean
+    public ConnectionPreWarmer connectionPreWarmer(UpstreamConnectionPoolManager upstreamConnectionPoolManager, CompositeMeterRegistry meterRegistry) {
+        return new ConnectionPreWarmer(upstreamConnectionPoolManager.getConnectionManager(), preWarmConnections, preWarmTimeout, preWarmThreads, meterRegistry);
+    }
+}
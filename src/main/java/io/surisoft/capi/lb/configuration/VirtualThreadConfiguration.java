@@ -0,0 +1,80 @@
+package io.surisoft.capi.lb.configuration;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import io.surisoft.capi.lb.service.BoundedThreadPerTaskExecutor;
+import io.surisoft.capi.lb.service.VirtualThreadPinningMonitor;
+import io.surisoft.capi.lb.service.VirtualThreadPoolFactory;
+import io.surisoft.capi.lb.service.VirtualThreads;
+import org.apache.camel.CamelContext;
+import org.apache.camel.spring.boot.CamelContextConfiguration;
+import org.apache.camel.util.concurrent.ThreadPoolRejectedPolicy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.web.embedded.undertow.UndertowServletWebServerFactory;
+import org.springframework.boot.web.server.WebServerFactoryCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Servlet requests, and with them the blocking camel-http calls made on their thread, the Camel thread pools and the
+ * node discovery run on virtual threads. Without virtual threads in the JDK everything stays on the platform pools.
+ */
+@Configuration
+@ConditionalOnProperty(prefix = "capi.virtual.threads", name = "enabled", havingValue = "true")
+public class VirtualThreadConfiguration {
+
+    private static final Logger log = LoggerFactory.getLogger(VirtualThreadConfiguration.class);
+
+    @Value("${capi.virtual.threads.pinned.threshold}")
+    private long pinnedThreshold;
+
+    @Value("${capi.virtual.threads.max.requests}")
+    private int maxRequests;
+
+    @Value("${capi.virtual.threads.max.queued}")
+    private int maxQueued;
+
+    /**
+     * A virtual thread per request, up to maxRequests of them at once, the rest queued up to maxQueued and answered
+     * with a 503 past that. The admission control sees the time spent in that queue like it sees the worker queue.
+     */
+    @Bean
+    public WebServerFactoryCustomizer<UndertowServletWebServerFactory> virtualThreadCustomizer(CompositeMeterRegistry meterRegistry) {
+        return factory -> {
+            if(!VirtualThreads.isSupported()) {
+                log.warn("Virtual threads are not available on Java {}, requests stay on the Undertow worker pool", Runtime.version());
+                return;
+            }
+            BoundedThreadPerTaskExecutor requestExecutor = VirtualThreads.newBoundedExecutor("capi-request-", maxRequests, maxQueued, ThreadPoolRejectedPolicy.Abort);
+            Gauge.builder("capi.virtual.threads.requests.running", requestExecutor, BoundedThreadPerTaskExecutor::getRunning).register(meterRegistry);
+            Gauge.builder("capi.virtual.threads.requests.queued", requestExecutor, BoundedThreadPerTaskExecutor::getQueued).register(meterRegistry);
+            factory.addDeploymentInfoCustomizers(deploymentInfo -> deploymentInfo
+                    .setExecutor(requestExecutor)
+                    .setAsyncExecutor(requestExecutor));
+        };
+    }
+
+    @Bean
+    public CamelContextConfiguration virtualThreadCamelContextConfiguration() {
+        return new CamelContextConfiguration() {
+            @Override
+            public void beforeApplicationStart(CamelContext camelContext) {
+                if(VirtualThreads.isSupported()) {
+                    camelContext.getExecutorServiceManager().setThreadPoolFactory(new VirtualThreadPoolFactory());
+                }
+            }
+
+            @Override
+            public void afterApplicationStart(CamelContext camelContext) {
+            }
+        };
+    }
+
+    @Bean(initMethod = "start", destroyMethod = "stop")
+    public VirtualThreadPinningMonitor virtualThreadPinningMonitor(CompositeMeterRegistry meterRegistry) {
+        return new VirtualThreadPinningMonitor(pinnedThreshold, meterRegistry);
+    }
+}
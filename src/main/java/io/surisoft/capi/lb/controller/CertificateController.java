@@ -16,6 +16,7 @@ package io.surisoft.capi.lb.controller;
  */
 
 import io.surisoft.capi.lb.schema.AliasInfo;
+import io.surisoft.capi.lb.service.ClientIdentityManager;
 import io.surisoft.capi.lb.utils.Constants;
 import io.surisoft.capi.lb.utils.RouteUtils;
 import io.swagger.v3.oas.annotations.Operation;
@@ -64,6 +65,9 @@ public class CertificateController {
     @Autowired
     RouteUtils routeUtils;
 
+    @Autowired(required = false)
+    ClientIdentityManager clientIdentityManager;
+
     @Operation(summary = "Get all certificates")
     @ApiResponses(value = {
             @ApiResponse(responseCode = "200", description = "All certificates trusted by CAPI")
@@ -174,6 +178,66 @@ public class CertificateController {
         return new ResponseEntity<>(aliasInfo, HttpStatus.OK);
     }
 
+    @Operation(summary = "Get all client identities")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "All client certificates CAPI can present to the backends")
+    })
+    @GetMapping(path = "/identity")
+    public ResponseEntity<List<AliasInfo>> getAllClientIdentities() {
+        if(clientIdentityManager == null) {
+            AliasInfo aliasInfo = new AliasInfo();
+            aliasInfo.setAdditionalInfo(Constants.CLIENT_IDENTITY_DISABLED);
+            return new ResponseEntity<>(List.of(aliasInfo), HttpStatus.OK);
+        }
+        return new ResponseEntity<>(clientIdentityManager.getIdentities(), HttpStatus.OK);
+    }
+
+    @Operation(summary = "Add or rotate a client identity (PKCS12), presented to the backends of the APIs using it.")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Client identity stored"),
+            @ApiResponse(responseCode = "400", description = "Invalid identity name, key store or password, or client identities disabled")
+    })
+    @PostMapping(path = "/identity/{identity}", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
+    public ResponseEntity<AliasInfo> clientIdentityUpload(@PathVariable String identity, @RequestPart("file") MultipartFile file, @RequestParam("password") String password) {
+        if(clientIdentityManager == null) {
+            AliasInfo aliasInfo = new AliasInfo();
+            aliasInfo.setAdditionalInfo(Constants.CLIENT_IDENTITY_DISABLED);
+            return new ResponseEntity<>(aliasInfo, HttpStatus.BAD_REQUEST);
+        }
+        try(InputStream is = file.getInputStream()) {
+            return new ResponseEntity<>(clientIdentityManager.putIdentity(identity, is, password), HttpStatus.OK);
+        } catch(Exception e) {
+            log.debug(e.getMessage(), e);
+            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+        }
+    }
+
+    @Operation(summary = "Remove a client identity, the APIs using it stop presenting a client certificate.")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Client identity removed"),
+            @ApiResponse(responseCode = "400", description = "Client identities disabled"),
+            @ApiResponse(responseCode = "404", description = "Client identity not found")
+    })
+    @DeleteMapping(path = "/identity/{identity}")
+    public ResponseEntity<AliasInfo> removeClientIdentity(@PathVariable String identity) {
+        AliasInfo aliasInfo = new AliasInfo();
+        if(clientIdentityManager == null) {
+            aliasInfo.setAdditionalInfo(Constants.CLIENT_IDENTITY_DISABLED);
+            return new ResponseEntity<>(aliasInfo, HttpStatus.BAD_REQUEST);
+        }
+        aliasInfo.setAlias(identity);
+        try {
+            if(!clientIdentityManager.removeIdentity(identity)) {
+                aliasInfo.setAdditionalInfo(Constants.NO_CLIENT_IDENTITY_FOUND);
+                return new ResponseEntity<>(aliasInfo, HttpStatus.NOT_FOUND);
+            }
+        } catch(IOException e) {
+            log.debug(e.getMessage(), e);
+            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+        }
+        return new ResponseEntity<>(aliasInfo, HttpStatus.OK);
+    }
+
     private InputStream getInputStream() throws IOException {
         log.trace(capiTrustStorePath);
         if(capiTrustStorePath.startsWith("classpath")) {
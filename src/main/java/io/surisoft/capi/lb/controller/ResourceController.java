@@ -0,0 +1,52 @@
+package io.surisoft.capi.lb.controller;
+
+import io.surisoft.capi.lb.service.ContainerResources;
+import io.surisoft.capi.lb.service.ResourcePlan;
+import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.tags.Tag;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.ConfigurableEnvironment;
+import org.springframework.core.env.PropertySource;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+@RestController
+@RequestMapping("/manager/resources")
+@Tag(name="Resources", description = "Container resources and the pool sizes derived from them")
+public class ResourceController {
+
+    @Autowired
+    private ResourcePlan resourcePlan;
+
+    @Autowired
+    private ConfigurableEnvironment environment;
+
+    @Operation(summary = "Get the detected resources and the sizing in use")
+    @GetMapping
+    public ResponseEntity<Map<String, Object>> getResourcePlan() {
+        ContainerResources resources = resourcePlan.getResources();
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("source", resources.getSource());
+        report.put("cpus", resources.getCpus());
+        report.put("memoryLimit", resources.getMemoryLimit());
+        report.put("maxHeap", resources.getMaxHeap());
+
+        PropertySource<?> plannedValues = environment.getPropertySources().get(ResourcePlan.PROPERTY_SOURCE);
+        Map<String, Object> sizing = new LinkedHashMap<>();
+        resourcePlan.getValues().forEach((property, plannedValue) -> {
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("value", environment.getProperty(property));
+            entry.put("planned", plannedValue);
+            entry.put("explicit", plannedValues == null || !plannedValues.containsProperty(property));
+            sizing.put(property, entry);
+        });
+        report.put("sizing", sizing);
+        return new ResponseEntity<>(report, HttpStatus.OK);
+    }
+}
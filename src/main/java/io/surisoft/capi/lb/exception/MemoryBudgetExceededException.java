@@ -0,0 +1,7 @@
+package io.surisoft.capi.lb.exception;
+
+public class MemoryBudgetExceededException extends Exception {
+    public MemoryBudgetExceededException(String message) {
+        super(message);
+    }
+}
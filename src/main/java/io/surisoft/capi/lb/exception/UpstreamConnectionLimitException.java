@@ -0,0 +1,7 @@
+package io.surisoft.capi.lb.exception;
+
+public class UpstreamConnectionLimitException extends Exception {
+    public UpstreamConnectionLimitException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,79 @@
+package io.surisoft.capi.lb.netty;
+
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.ReferenceCountUtil;
+
+/**
+ * Relays the response of an upstream connection to the downstream connection currently using it.
+ */
+public class NettyBackendHandler extends ChannelInboundHandlerAdapter {
+
+    private NettyFrontendHandler frontend;
+    private boolean reusable;
+    private boolean upgraded;
+
+    void bind(NettyFrontendHandler frontend) {
+        this.frontend = frontend;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        if(frontend == null) {
+            // nothing was asked, an idle connection must not send anything
+            ReferenceCountUtil.release(msg);
+            ctx.close();
+            return;
+        }
+        if(msg instanceof HttpResponse) {
+            reusable = HttpUtil.isKeepAlive((HttpResponse) msg);
+            upgraded = HttpResponseStatus.SWITCHING_PROTOCOLS.equals(((HttpResponse) msg).status());
+        }
+        ChannelFuture writeFuture = frontend.writeResponse(msg);
+        if(msg instanceof LastHttpContent) {
+            NettyFrontendHandler completedFrontend = frontend;
+            frontend = null;
+            if(upgraded) {
+                completedFrontend.upgradeComplete();
+                return;
+            }
+            completedFrontend.responseComplete(writeFuture, reusable);
+        } else if(!frontend.isDownstreamWritable()) {
+            // the client reads slower than the backend sends, stop reading until it catches up
+            ctx.channel().config().setAutoRead(false);
+        }
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+        if(frontend != null && ctx.channel().isWritable()) {
+            frontend.upstreamWritable();
+        }
+        ctx.fireChannelWritabilityChanged();
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) {
+        if(frontend != null) {
+            NettyFrontendHandler failedFrontend = frontend;
+            frontend = null;
+            failedFrontend.upstreamFailed(null);
+        }
+        ctx.fireChannelInactive();
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        if(frontend != null) {
+            NettyFrontendHandler failedFrontend = frontend;
+            frontend = null;
+            failedFrontend.upstreamFailed(cause);
+        }
+        ctx.close();
+    }
+}
@@ -0,0 +1,588 @@
+package io.surisoft.capi.lb.netty;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPipeline;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpServerExpectContinueHandler;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.timeout.ReadTimeoutException;
+import io.netty.handler.timeout.ReadTimeoutHandler;
+import io.netty.util.AsciiString;
+import io.netty.util.ReferenceCountUtil;
+import io.surisoft.capi.lb.cache.ApiResolver;
+import io.surisoft.capi.lb.schema.Api;
+import io.surisoft.capi.lb.schema.HttpProtocol;
+import io.surisoft.capi.lb.schema.Mapping;
+import io.surisoft.capi.lb.utils.Constants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Handles one downstream connection. Requests are proxied one at a time, pipelined requests wait for the previous
+ * response. Everything runs on the event loop of the downstream connection, upstream connections included, a DNS
+ * lookup that is not cached yet runs on the resolver threads and the request carries on back on the event loop.
+ */
+public class NettyFrontendHandler extends ChannelInboundHandlerAdapter {
+
+    private static final Logger log = LoggerFactory.getLogger(NettyFrontendHandler.class);
+    private static final String READ_TIMEOUT_HANDLER = "readTimeout";
+    private static final int MAX_REPLAY_BYTES = 64 * 1024;
+    private static final List<AsciiString> HOP_BY_HOP_HEADERS = List.of(HttpHeaderNames.KEEP_ALIVE, HttpHeaderNames.PROXY_AUTHENTICATE,
+            HttpHeaderNames.PROXY_AUTHORIZATION, HttpHeaderNames.TE, HttpHeaderNames.TRAILER, AsciiString.cached("proxy-connection"));
+    // the message framing is never given up, whatever the Connection header lists
+    private static final Set<String> FRAMING_HEADERS = Set.of("content-length", "transfer-encoding", "host");
+    private static final Set<HttpMethod> IDEMPOTENT_METHODS = Set.of(HttpMethod.GET, HttpMethod.HEAD, HttpMethod.OPTIONS, HttpMethod.PUT, HttpMethod.DELETE, HttpMethod.TRACE);
+
+    private final NettyProxyServer server;
+    private final Deque<Object> pending = new ArrayDeque<>();
+    private final Deque<Object> pipelined = new ArrayDeque<>();
+
+    private ChannelHandlerContext ctx;
+    private boolean inFlight;
+    private boolean requestComplete;
+    private boolean discarding;
+    private boolean responseStarted;
+    private boolean keepAlive;
+    private boolean webSocket;
+
+    private ApiResolver.ApiMatch apiMatch;
+    private Api api;
+    private List<Mapping> mappings;
+    private int firstMapping;
+    private int attempt;
+    private Channel upstream;
+    private String destination;
+    private long startTime;
+    private HttpResponseStatus responseStatus;
+    private boolean idempotent;
+    private boolean retried;
+    private List<Object> replay;
+    private int replayBytes;
+
+    NettyFrontendHandler(NettyProxyServer server) {
+        this.server = server;
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) {
+        this.ctx = ctx;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        if(inFlight && requestComplete) {
+            // a pipelined request, it waits for the current response
+            pipelined.add(msg);
+            return;
+        }
+        handleMessage(msg);
+    }
+
+    private void handleMessage(Object msg) {
+        if(msg instanceof HttpRequest) {
+            startRequest((HttpRequest) msg);
+            return;
+        }
+        if(!(msg instanceof HttpContent)) {
+            return;
+        }
+        boolean last = msg instanceof LastHttpContent;
+        if(discarding) {
+            ReferenceCountUtil.release(msg);
+            discarding = !last;
+            return;
+        }
+        if(last) {
+            requestComplete = true;
+            // no more reads until the response is complete
+            ctx.channel().config().setAutoRead(false);
+        }
+        if(upstream == null) {
+            pending.add(msg);
+        } else {
+            upstream.writeAndFlush(recordForReplay(msg));
+            if(!upstream.isWritable() && !last) {
+                ctx.channel().config().setAutoRead(false);
+            }
+        }
+    }
+
+    private void startRequest(HttpRequest request) {
+        inFlight = true;
+        requestComplete = false;
+        responseStarted = false;
+        keepAlive = HttpUtil.isKeepAlive(request);
+        startTime = System.nanoTime();
+        api = null;
+        idempotent = IDEMPOTENT_METHODS.contains(request.method());
+        retried = false;
+        String originalHost = request.headers().get(HttpHeaderNames.HOST);
+
+        apiMatch = server.getApiResolver().resolve(request.uri(), request.method().name());
+        if(apiMatch == null) {
+            rejectRequest(request, HttpResponseStatus.NOT_FOUND);
+            return;
+        }
+        api = apiMatch.getApi();
+        mappings = api.getMappingList();
+        if(!isSupported(api)) {
+            rejectRequest(request, HttpResponseStatus.NOT_IMPLEMENTED);
+            return;
+        }
+
+        webSocket = isWebSocketUpgrade(request);
+        if(webSocket && !api.isWebsocketEnabled()) {
+            rejectRequest(request, HttpResponseStatus.NOT_IMPLEMENTED);
+            return;
+        }
+
+        firstMapping = server.nextMappingIndex(api.getId(), mappings.size());
+        if(webSocket) {
+            firstMapping = server.getWebSocketTunnels().selectMapping(api, mappings, firstMapping);
+        }
+        attempt = 0;
+        removeHopByHopHeaders(request.headers(), webSocket);
+        addForwardedHeaders(request.headers(), originalHost);
+        prepareRequest(request, mappings.get(firstMapping));
+        if(api.isForwardPrefix()) {
+            request.headers().set(Constants.X_FORWARDED_PREFIX, server.getApiResolver().getCapiContext() + api.getContext());
+        }
+        if(!webSocket) {
+            // also drops Connection: Upgrade, so only WebSocket handshakes can switch protocols
+            HttpUtil.setKeepAlive(request, true);
+        }
+        pending.add(request);
+        acquireUpstream();
+    }
+
+    private void prepareRequest(HttpRequest request, Mapping mapping) {
+        request.setUri(apiMatch.getUpstreamUri(mapping.getRootContext()));
+        request.headers().set(HttpHeaderNames.HOST, mapping.getHostname());
+    }
+
+    /**
+     * Connection scoped headers, and the ones the Connection header names, stop here. A WebSocket handshake keeps
+     * its Connection: Upgrade and Upgrade headers, the backend needs them to switch protocols.
+     */
+    static void removeHopByHopHeaders(HttpHeaders headers, boolean upgrade) {
+        for(String connection : headers.getAll(HttpHeaderNames.CONNECTION)) {
+            for(String token : connection.split(",")) {
+                String name = token.trim();
+                if(!name.isEmpty() && !FRAMING_HEADERS.contains(name.toLowerCase()) && !(upgrade && HttpHeaderValues.UPGRADE.contentEqualsIgnoreCase(name))) {
+                    headers.remove(name);
+                }
+            }
+        }
+        for(AsciiString hopByHopHeader : HOP_BY_HOP_HEADERS) {
+            headers.remove(hopByHopHeader);
+        }
+        if(!upgrade) {
+            headers.remove(HttpHeaderNames.CONNECTION);
+            headers.remove(HttpHeaderNames.UPGRADE);
+        }
+    }
+
+    /**
+     * The client address is appended to the chain, protocol and host are only set when no proxy in front of us did.
+     */
+    private void addForwardedHeaders(HttpHeaders headers, String originalHost) {
+        SocketAddress remoteAddress = ctx.channel().remoteAddress();
+        if(remoteAddress instanceof InetSocketAddress && ((InetSocketAddress) remoteAddress).getAddress() != null) {
+            String clientAddress = ((InetSocketAddress) remoteAddress).getAddress().getHostAddress();
+            String forwardedFor = headers.get(Constants.X_FORWARDED_FOR);
+            headers.set(Constants.X_FORWARDED_FOR, forwardedFor == null ? clientAddress : forwardedFor + ", " + clientAddress);
+        }
+        if(!headers.contains(Constants.X_FORWARDED_PROTO)) {
+            headers.set(Constants.X_FORWARDED_PROTO, HttpProtocol.HTTP.getProtocol());
+        }
+        if(originalHost != null && !headers.contains(Constants.X_FORWARDED_HOST)) {
+            headers.set(Constants.X_FORWARDED_HOST, originalHost);
+        }
+    }
+
+    private boolean isWebSocketUpgrade(HttpRequest request) {
+        return HttpMethod.GET.equals(request.method())
+                && request.headers().containsValue(HttpHeaderNames.CONNECTION, HttpHeaderValues.UPGRADE, true)
+                && request.headers().contains(HttpHeaderNames.UPGRADE, HttpHeaderValues.WEBSOCKET, true);
+    }
+
+    /**
+     * Sticky sessions, HTTP/2, client identities and Unix domain sockets stay with the servlet routes.
+     */
+    private boolean isSupported(Api api) {
+        if(mappings == null || mappings.isEmpty() || api.isStickySession() || api.isHttp2Enabled() || api.getClientIdentity() != null) {
+            return false;
+        }
+        for(Mapping mapping : mappings) {
+            if(mapping.isHttp2Enabled() || mapping.getClientIdentity() != null || mapping.getUnixSocketPath() != null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void rejectRequest(HttpRequest request, HttpResponseStatus status) {
+        ReferenceCountUtil.release(request);
+        discarding = true;
+        sendError(status);
+    }
+
+    private void acquireUpstream() {
+        Mapping mapping = mappings.get((firstMapping + attempt) % mappings.size());
+        destination = destination(api, mapping);
+
+        // after a stale pooled connection the others to the same destination are suspect too
+        Channel pooled = retried ? null : server.getUpstreamPool().poll(destination);
+        if(pooled != null) {
+            attachUpstream(pooled, true);
+            return;
+        }
+
+        // completes right away when the address is cached, the routes prefetch their hosts
+        server.getCapiDnsResolver().resolveAsync(mapping.getHostname(), ctx.channel().eventLoop()).whenComplete((addresses, cause) -> {
+            if(cause != null) {
+                upstreamConnectFailed(cause instanceof CompletionException && cause.getCause() != null ? cause.getCause() : cause);
+            } else if(!inFlight || !ctx.channel().isActive()) {
+                releasePending();
+            } else {
+                connectUpstream(mapping, addresses[0]);
+            }
+        });
+    }
+
+    private void connectUpstream(Mapping mapping, InetAddress address) {
+        boolean secure = api.getHttpProtocol() == HttpProtocol.HTTPS;
+        int port = mapping.getPort() > 0 ? mapping.getPort() : (secure ? 443 : 80);
+        String connectingDestination = destination;
+        Bootstrap bootstrap = new Bootstrap()
+                .group(ctx.channel().eventLoop())
+                .channel(server.getTransport().getChannelClass())
+                .option(ChannelOption.TCP_NODELAY, true)
+                .option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+                .handler(new ChannelInitializer<>() {
+                    @Override
+                    protected void initChannel(Channel channel) {
+                        if(secure) {
+                            channel.pipeline().addLast(newSslHandler(channel, mapping.getHostname(), port));
+                        }
+                        channel.pipeline()
+                                .addLast(new HttpClientCodec())
+                                .addLast(new NettyBackendHandler());
+                    }
+                });
+        if(api.getConnectTimeout() > 0) {
+            bootstrap.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, api.getConnectTimeout());
+        }
+        bootstrap.connect(new InetSocketAddress(address, port)).addListener((ChannelFutureListener) future -> {
+            if(!future.isSuccess()) {
+                upstreamConnectFailed(future.cause());
+                return;
+            }
+            Channel channel = future.channel();
+            channel.closeFuture().addListener(closed -> server.getUpstreamPool().remove(connectingDestination, channel));
+            if(!inFlight || !ctx.channel().isActive()) {
+                server.getUpstreamPool().offer(connectingDestination, channel);
+                return;
+            }
+            attachUpstream(channel, false);
+        });
+    }
+
+    static String destination(Api api, Mapping mapping) {
+        boolean secure = api.getHttpProtocol() == HttpProtocol.HTTPS;
+        int port = mapping.getPort() > 0 ? mapping.getPort() : (secure ? 443 : 80);
+        return (secure ? "https://" : "http://") + mapping.getHostname() + ":" + port;
+    }
+
+    private SslHandler newSslHandler(Channel channel, String hostname, int port) {
+        SslHandler sslHandler = server.getUpstreamSslContext().newHandler(channel.alloc(), hostname, port);
+        SSLEngine sslEngine = sslHandler.engine();
+        SSLParameters sslParameters = sslEngine.getSSLParameters();
+        sslParameters.setEndpointIdentificationAlgorithm("HTTPS");
+        sslEngine.setSSLParameters(sslParameters);
+        return sslHandler;
+    }
+
+    private void upstreamConnectFailed(Throwable cause) {
+        if(!inFlight || !ctx.channel().isActive()) {
+            releasePending();
+            return;
+        }
+        log.debug("Connection to {} failed: {}", destination, cause.getMessage());
+        // nothing was written yet, the whole request is still pending and can go to the next mapping
+        if(api.isFailoverEnabled() && ++attempt < mappings.size() && (api.getMaximumFailoverAttempts() <= 0 || attempt <= api.getMaximumFailoverAttempts())) {
+            Object request = pending.peekFirst();
+            if(request instanceof HttpRequest) {
+                prepareRequest((HttpRequest) request, mappings.get((firstMapping + attempt) % mappings.size()));
+            }
+            acquireUpstream();
+            return;
+        }
+        upstreamFailed(cause);
+    }
+
+    /**
+     * A reused connection may have been closed by the backend while it sat in the pool. Until the response starts,
+     * what an idempotent request wrote to it is kept (up to a limit) so it can be sent again on a new connection.
+     */
+    private void attachUpstream(Channel channel, boolean reused) {
+        upstream = channel;
+        if(reused && idempotent && !retried) {
+            replay = new ArrayList<>();
+            replayBytes = 0;
+        }
+        if(channel.pipeline().get(READ_TIMEOUT_HANDLER) != null) {
+            channel.pipeline().remove(READ_TIMEOUT_HANDLER);
+        }
+        if(api.getSocketTimeout() > 0) {
+            channel.pipeline().addFirst(READ_TIMEOUT_HANDLER, new ReadTimeoutHandler(api.getSocketTimeout(), TimeUnit.MILLISECONDS));
+        }
+        channel.pipeline().get(NettyBackendHandler.class).bind(this);
+        channel.config().setAutoRead(true);
+        Object msg;
+        while((msg = pending.poll()) != null) {
+            channel.write(recordForReplay(msg));
+        }
+        channel.flush();
+        if(!requestComplete) {
+            ctx.channel().config().setAutoRead(channel.isWritable());
+        }
+    }
+
+    private Object recordForReplay(Object msg) {
+        if(replay == null) {
+            return msg;
+        }
+        if(msg instanceof HttpContent) {
+            HttpContent content = (HttpContent) msg;
+            replayBytes += content.content().readableBytes();
+            if(replayBytes > MAX_REPLAY_BYTES) {
+                releaseReplay();
+                return msg;
+            }
+            replay.add(content.retainedDuplicate());
+        } else {
+            replay.add(msg);
+        }
+        return msg;
+    }
+
+    private void releaseReplay() {
+        if(replay == null) {
+            return;
+        }
+        for(Object msg : replay) {
+            ReferenceCountUtil.release(msg);
+        }
+        replay = null;
+    }
+
+    ChannelFuture writeResponse(Object msg) {
+        if(msg instanceof HttpResponse) {
+            responseStarted = true;
+            releaseReplay();
+            responseStatus = ((HttpResponse) msg).status();
+            if(!HttpResponseStatus.SWITCHING_PROTOCOLS.equals(responseStatus)) {
+                removeHopByHopHeaders(((HttpResponse) msg).headers(), false);
+                HttpUtil.setKeepAlive((HttpResponse) msg, keepAlive);
+            }
+        }
+        return ctx.writeAndFlush(msg);
+    }
+
+    boolean isDownstreamWritable() {
+        return ctx.channel().isWritable();
+    }
+
+    void upstreamWritable() {
+        if(!requestComplete) {
+            ctx.channel().config().setAutoRead(true);
+        }
+    }
+
+    void responseComplete(ChannelFuture writeFuture, boolean reusable) {
+        Channel completedUpstream = upstream;
+        upstream = null;
+        if(completedUpstream.pipeline().get(READ_TIMEOUT_HANDLER) != null) {
+            completedUpstream.pipeline().remove(READ_TIMEOUT_HANDLER);
+        }
+        if(reusable && requestComplete) {
+            server.getUpstreamPool().offer(destination, completedUpstream);
+        } else {
+            // the backend answered before the whole request was sent, the connection is in an unknown state
+            completedUpstream.close();
+            discarding = !requestComplete;
+        }
+        recordRequest(responseStatus);
+        finishRequest(writeFuture);
+    }
+
+    /**
+     * The handshake is done, both connections now carry WebSocket frames. They leave the HTTP handlers, the upstream
+     * one never goes back to the pool.
+     */
+    void upgradeComplete() {
+        Channel upgradedUpstream = upstream;
+        upstream = null;
+        inFlight = false;
+        recordRequest(responseStatus);
+        if(!webSocket) {
+            // a backend switching protocols on its own, the connection is of no use to HTTP anymore
+            upgradedUpstream.close();
+            ctx.close();
+            return;
+        }
+        releasePending();
+        Object msg;
+        while((msg = pipelined.poll()) != null) {
+            ReferenceCountUtil.release(msg);
+        }
+        if(upgradedUpstream.pipeline().get(READ_TIMEOUT_HANDLER) != null) {
+            upgradedUpstream.pipeline().remove(READ_TIMEOUT_HANDLER);
+        }
+        NettyWebSocketTunnel tunnel = new NettyWebSocketTunnel(server.getWebSocketTunnels(), api.getId(), destination, ctx.channel(), upgradedUpstream);
+        tunnel.start();
+        // bytes the codecs already read past the handshake go on to the relays
+        upgradedUpstream.pipeline().remove(NettyBackendHandler.class);
+        upgradedUpstream.pipeline().remove(HttpClientCodec.class);
+        ChannelPipeline pipeline = ctx.pipeline();
+        pipeline.remove(this);
+        pipeline.remove(HttpServerExpectContinueHandler.class);
+        pipeline.remove(HttpServerCodec.class);
+        tunnel.resume();
+    }
+
+    void upstreamFailed(Throwable cause) {
+        if(upstream != null) {
+            upstream.close();
+            upstream = null;
+        }
+        // a timeout means the backend got the request, only a closed or reset connection is retried
+        if(replay != null && inFlight && !responseStarted && (cause == null || cause instanceof IOException) && ctx.channel().isActive()) {
+            log.debug("Pooled connection to {} was stale, retrying on a new connection", destination);
+            for(int i = replay.size() - 1; i >= 0; i--) {
+                pending.addFirst(replay.get(i));
+            }
+            replay = null;
+            retried = true;
+            acquireUpstream();
+            return;
+        }
+        releaseReplay();
+        releasePending();
+        if(!inFlight) {
+            return;
+        }
+        if(responseStarted) {
+            // part of the response already went out, the client can only learn about it from the closed connection
+            ctx.close();
+            return;
+        }
+        discarding = !requestComplete;
+        sendError(cause instanceof ReadTimeoutException ? HttpResponseStatus.GATEWAY_TIMEOUT : HttpResponseStatus.BAD_GATEWAY);
+    }
+
+    private void sendError(HttpResponseStatus status) {
+        FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status, Unpooled.EMPTY_BUFFER);
+        HttpUtil.setContentLength(response, 0);
+        HttpUtil.setKeepAlive(response, keepAlive);
+        recordRequest(status);
+        finishRequest(ctx.writeAndFlush(response));
+    }
+
+    private void finishRequest(ChannelFuture writeFuture) {
+        inFlight = false;
+        if(!keepAlive) {
+            writeFuture.addListener(ChannelFutureListener.CLOSE);
+            return;
+        }
+        ctx.channel().config().setAutoRead(true);
+        Object msg;
+        while(!inFlight && (msg = pipelined.poll()) != null) {
+            handleMessage(msg);
+        }
+        if(inFlight && requestComplete) {
+            ctx.channel().config().setAutoRead(false);
+        }
+    }
+
+    private void recordRequest(HttpResponseStatus status) {
+        server.requestTimer(api == null ? "none" : api.getId(), status.code() / 100)
+                .record(System.nanoTime() - startTime, TimeUnit.NANOSECONDS);
+    }
+
+    private void releasePending() {
+        Object msg;
+        while((msg = pending.poll()) != null) {
+            ReferenceCountUtil.release(msg);
+        }
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+        if(upstream != null && ctx.channel().isWritable()) {
+            upstream.config().setAutoRead(true);
+        }
+        ctx.fireChannelWritabilityChanged();
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) {
+        if(upstream != null) {
+            // the response was not fully read, the connection cannot be reused
+            upstream.close();
+            upstream = null;
+        }
+        inFlight = false;
+        releaseReplay();
+        releasePending();
+        Object msg;
+        while((msg = pipelined.poll()) != null) {
+            ReferenceCountUtil.release(msg);
+        }
+        ctx.fireChannelInactive();
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        log.debug("Downstream connection failed: {}", cause.getMessage());
+        ctx.close();
+    }
+}
@@ -0,0 +1,146 @@
+package io.surisoft.capi.lb.netty;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.EventLoop;
+import io.netty.handler.codec.http2.Http2FrameCodecBuilder;
+import io.netty.handler.codec.http2.Http2GoAwayFrame;
+import io.netty.handler.codec.http2.Http2MultiplexHandler;
+import io.netty.handler.codec.http2.Http2Settings;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.util.AttributeKey;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.FastThreadLocal;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * HTTP/2 connections to the gRPC backends, one per destination and event loop, shared by all the calls of that
+ * event loop as streams. Calls pick their mapping one by one, so a long-lived client channel spreads over every
+ * node instead of sticking to the one its connection landed on. Must only be called from an event loop thread.
+ */
+public class NettyGrpcConnectionPool {
+
+    private static final AttributeKey<Boolean> GOING_AWAY = AttributeKey.valueOf("capi.grpc.goingAway");
+
+    private final SslContext sslContext;
+    private final FastThreadLocal<Map<String, ChannelFuture>> connections = new FastThreadLocal<>() {
+        @Override
+        protected Map<String, ChannelFuture> initialValue() {
+            return new HashMap<>();
+        }
+    };
+
+    /**
+     * The SSL context must offer h2 through ALPN.
+     */
+    public NettyGrpcConnectionPool(SslContext sslContext) {
+        this.sslContext = sslContext;
+    }
+
+    /**
+     * The connection of the destination, possibly still connecting, or a new one.
+     */
+    ChannelFuture acquire(EventLoop eventLoop, NettyTransport transport, String destination, InetSocketAddress address, String hostname, boolean secure, int connectTimeout) {
+        Map<String, ChannelFuture> destinations = connections.get();
+        ChannelFuture connection = destinations.get(destination);
+        if(connection != null && isUsable(connection)) {
+            return connection;
+        }
+        Bootstrap bootstrap = new Bootstrap()
+                .group(eventLoop)
+                .channel(transport.getChannelClass())
+                .option(ChannelOption.TCP_NODELAY, true)
+                .option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+                .handler(new ChannelInitializer<>() {
+                    @Override
+                    protected void initChannel(Channel channel) {
+                        if(secure) {
+                            channel.pipeline().addLast(newSslHandler(channel, hostname, address.getPort()));
+                        }
+                        channel.pipeline()
+                                .addLast(Http2FrameCodecBuilder.forClient().initialSettings(Http2Settings.defaultSettings().pushEnabled(false)).build())
+                                .addLast(new Http2MultiplexHandler(new RefusedPushHandler()))
+                                .addLast(new GoAwayHandler());
+                    }
+                });
+        if(connectTimeout > 0) {
+            bootstrap.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, connectTimeout);
+        }
+        ChannelFuture connect = bootstrap.connect(address);
+        ChannelPromise newConnection = connect.channel().newPromise();
+        connect.addListener((ChannelFutureListener) connected -> {
+            if(!connected.isSuccess()) {
+                newConnection.tryFailure(connected.cause());
+                return;
+            }
+            // the connect promise completes before channelActive, which sends the connection preface, streams wait for it
+            connected.channel().eventLoop().execute(newConnection::trySuccess);
+        });
+        destinations.put(destination, newConnection);
+        newConnection.channel().closeFuture().addListener(closed -> destinations.remove(destination, newConnection));
+        return newConnection;
+    }
+
+    /**
+     * Drops a connection that could not open a stream, the next call gets a new one.
+     */
+    void remove(String destination, ChannelFuture connection) {
+        connections.get().remove(destination, connection);
+    }
+
+    private boolean isUsable(ChannelFuture connection) {
+        if(!connection.isDone()) {
+            return true;
+        }
+        Channel channel = connection.channel();
+        return connection.isSuccess() && channel.isActive() && channel.attr(GOING_AWAY).get() == null;
+    }
+
+    private SslHandler newSslHandler(Channel channel, String hostname, int port) {
+        SslHandler sslHandler = sslContext.newHandler(channel.alloc(), hostname, port);
+        SSLEngine sslEngine = sslHandler.engine();
+        SSLParameters sslParameters = sslEngine.getSSLParameters();
+        sslParameters.setEndpointIdentificationAlgorithm("HTTPS");
+        sslEngine.setSSLParameters(sslParameters);
+        return sslHandler;
+    }
+
+    /**
+     * Push is disabled in the settings sent to the backends, a pushed stream is closed right away.
+     */
+    @ChannelHandler.Sharable
+    private static class RefusedPushHandler extends ChannelInboundHandlerAdapter {
+        @Override
+        public void handlerAdded(ChannelHandlerContext ctx) {
+            ctx.close();
+        }
+    }
+
+    /**
+     * Streams already open on a connection the backend is closing finish on it, new calls go to a new connection.
+     */
+    private static class GoAwayHandler extends ChannelInboundHandlerAdapter {
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            if(msg instanceof Http2GoAwayFrame) {
+                ctx.channel().attr(GOING_AWAY).set(Boolean.TRUE);
+            }
+            ReferenceCountUtil.release(msg);
+        }
+    }
+}
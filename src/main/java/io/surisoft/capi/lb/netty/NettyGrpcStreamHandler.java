@@ -0,0 +1,371 @@
+package io.surisoft.capi.lb.netty;
+
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http2.DefaultHttp2DataFrame;
+import io.netty.handler.codec.http2.DefaultHttp2Headers;
+import io.netty.handler.codec.http2.DefaultHttp2HeadersFrame;
+import io.netty.handler.codec.http2.DefaultHttp2ResetFrame;
+import io.netty.handler.codec.http2.Http2DataFrame;
+import io.netty.handler.codec.http2.Http2Error;
+import io.netty.handler.codec.http2.Http2Headers;
+import io.netty.handler.codec.http2.Http2HeadersFrame;
+import io.netty.handler.codec.http2.Http2ResetFrame;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.handler.codec.http2.Http2StreamChannelBootstrap;
+import io.netty.handler.codec.http2.Http2StreamFrame;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.Future;
+import io.surisoft.capi.lb.cache.ApiResolver;
+import io.surisoft.capi.lb.schema.Api;
+import io.surisoft.capi.lb.schema.HttpProtocol;
+import io.surisoft.capi.lb.schema.Mapping;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Proxies one gRPC call, a downstream HTTP/2 stream, to a stream on an upstream HTTP/2 connection. Headers, messages
+ * and trailers are relayed frame by frame in both directions, so streaming calls and the trailers carrying the
+ * grpc-status reach the client as the backend sent them.
+ */
+class NettyGrpcStreamHandler extends ChannelInboundHandlerAdapter {
+
+    private static final Logger log = LoggerFactory.getLogger(NettyGrpcStreamHandler.class);
+    private static final String GRPC_CONTENT_TYPE = "application/grpc";
+    private static final String GRPC_STATUS = "grpc-status";
+    private static final String GRPC_MESSAGE = "grpc-message";
+    private static final int UNIMPLEMENTED = 12;
+    private static final int UNAVAILABLE = 14;
+
+    private final NettyProxyServer server;
+    private final Deque<Object> pending = new ArrayDeque<>();
+
+    private ChannelHandlerContext ctx;
+    private boolean started;
+    private boolean rejected;
+    private boolean responseStarted;
+    private boolean responseEnded;
+
+    private ApiResolver.ApiMatch apiMatch;
+    private Api api;
+    private List<Mapping> mappings;
+    private int firstMapping;
+    private int attempt;
+    private Http2Headers requestHeaders;
+    private boolean requestEndsWithHeaders;
+    private String destination;
+    private Http2StreamChannel upstream;
+    private String method;
+    private long startTime;
+
+    NettyGrpcStreamHandler(NettyProxyServer server) {
+        this.server = server;
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) {
+        this.ctx = ctx;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        if(!started && msg instanceof Http2HeadersFrame) {
+            started = true;
+            startCall((Http2HeadersFrame) msg);
+            return;
+        }
+        if(rejected || !(msg instanceof Http2DataFrame || msg instanceof Http2HeadersFrame)) {
+            if(msg instanceof Http2ResetFrame && upstream != null) {
+                upstream.writeAndFlush(new DefaultHttp2ResetFrame(((Http2ResetFrame) msg).errorCode()));
+            }
+            ReferenceCountUtil.release(msg);
+            return;
+        }
+        Object frame = unbound((Http2StreamFrame) msg);
+        if(upstream == null) {
+            pending.add(frame);
+        } else {
+            upstream.write(frame);
+        }
+    }
+
+    private void startCall(Http2HeadersFrame headersFrame) {
+        startTime = System.nanoTime();
+        requestHeaders = headersFrame.headers();
+        CharSequence path = requestHeaders.path();
+        CharSequence contentType = requestHeaders.get(HttpHeaderNames.CONTENT_TYPE);
+        if(contentType == null || !contentType.toString().startsWith(GRPC_CONTENT_TYPE)) {
+            // only gRPC is proxied here, plain HTTP/2 requests stay with the servlet routes
+            rejected = true;
+            ctx.writeAndFlush(new DefaultHttp2HeadersFrame(new DefaultHttp2Headers().status(HttpResponseStatus.NOT_IMPLEMENTED.codeAsText()), true));
+            return;
+        }
+        apiMatch = path == null ? null : server.getApiResolver().resolveGrpc(path.toString());
+        if(apiMatch == null) {
+            method = "unknown";
+            reject(UNIMPLEMENTED, "No Api serves " + path);
+            return;
+        }
+        api = apiMatch.getApi();
+        method = server.grpcMethodTag(api.getId(), grpcMethod(path.toString()));
+        mappings = api.getMappingList();
+        if(mappings == null || mappings.isEmpty()) {
+            reject(UNAVAILABLE, "No node available");
+            return;
+        }
+        requestEndsWithHeaders = headersFrame.isEndStream();
+        // the messages wait in the stream until the upstream stream is open
+        ctx.channel().config().setAutoRead(false);
+        firstMapping = server.nextMappingIndex(api.getId(), mappings.size());
+        attempt = 0;
+        openUpstream();
+    }
+
+    private void openUpstream() {
+        Mapping mapping = mappings.get((firstMapping + attempt) % mappings.size());
+        boolean secure = api.getHttpProtocol() == HttpProtocol.HTTPS;
+        int port = mapping.getPort() > 0 ? mapping.getPort() : (secure ? 443 : 80);
+        destination = NettyFrontendHandler.destination(api, mapping);
+        // completes right away when the address is cached, the routes prefetch their hosts
+        server.getCapiDnsResolver().resolveAsync(mapping.getHostname(), ctx.channel().eventLoop()).whenComplete((addresses, cause) -> {
+            if(cause != null) {
+                upstreamConnectFailed(cause instanceof CompletionException && cause.getCause() != null ? cause.getCause() : cause);
+            } else {
+                openUpstream(mapping, secure, port, addresses[0]);
+            }
+        });
+    }
+
+    private void openUpstream(Mapping mapping, boolean secure, int port, InetAddress address) {
+        String connectingDestination = destination;
+        ChannelFuture connection = server.getGrpcConnectionPool().acquire(ctx.channel().eventLoop(), server.getTransport(), destination, new InetSocketAddress(address, port), mapping.getHostname(), secure, api.getConnectTimeout());
+        connection.addListener((ChannelFutureListener) connected -> {
+            if(!connected.isSuccess()) {
+                upstreamConnectFailed(connected.cause());
+                return;
+            }
+            new Http2StreamChannelBootstrap(connected.channel())
+                    .handler(new UpstreamHandler())
+                    .open()
+                    .addListener((Future<Http2StreamChannel> opened) -> {
+                        if(!opened.isSuccess()) {
+                            server.getGrpcConnectionPool().remove(connectingDestination, connection);
+                            upstreamConnectFailed(opened.cause());
+                            return;
+                        }
+                        attachUpstream(opened.getNow(), mapping, secure, port);
+                    });
+        });
+    }
+
+    private void attachUpstream(Http2StreamChannel channel, Mapping mapping, boolean secure, int port) {
+        if(!ctx.channel().isActive()) {
+            channel.close();
+            releasePending();
+            return;
+        }
+        upstream = channel;
+        requestHeaders.path(apiMatch.getUpstreamUri(mapping.getRootContext()));
+        requestHeaders.authority(mapping.getHostname() + ":" + port);
+        requestHeaders.scheme(secure ? "https" : "http");
+        upstream.write(new DefaultHttp2HeadersFrame(requestHeaders, requestEndsWithHeaders));
+        Object msg;
+        while((msg = pending.poll()) != null) {
+            upstream.write(msg);
+        }
+        upstream.flush();
+        upstream.closeFuture().addListener(closed -> upstreamClosed());
+        ctx.channel().config().setAutoRead(upstream.isWritable());
+    }
+
+    private void upstreamConnectFailed(Throwable cause) {
+        if(!ctx.channel().isActive()) {
+            releasePending();
+            return;
+        }
+        log.debug("gRPC connection to {} failed: {}", destination, cause.getMessage());
+        // nothing was sent upstream yet, the call can go to the next mapping
+        if(api.isFailoverEnabled() && ++attempt < mappings.size() && (api.getMaximumFailoverAttempts() <= 0 || attempt <= api.getMaximumFailoverAttempts())) {
+            openUpstream();
+            return;
+        }
+        releasePending();
+        reject(UNAVAILABLE, "Upstream unavailable");
+    }
+
+    private void upstreamClosed() {
+        if(responseEnded || !ctx.channel().isActive()) {
+            return;
+        }
+        if(!responseStarted) {
+            reject(UNAVAILABLE, "Upstream stream closed");
+        } else {
+            // part of the response went out, only a reset tells the client
+            record("reset");
+            ctx.writeAndFlush(new DefaultHttp2ResetFrame(Http2Error.CANCEL));
+        }
+    }
+
+    /**
+     * Trailers-only response, the way a gRPC server reports a call failing before any message.
+     */
+    private void reject(int grpcStatus, String message) {
+        rejected = true;
+        responseEnded = true;
+        Http2Headers headers = new DefaultHttp2Headers()
+                .status(HttpResponseStatus.OK.codeAsText())
+                .set(HttpHeaderNames.CONTENT_TYPE, GRPC_CONTENT_TYPE)
+                .setInt(GRPC_STATUS, grpcStatus)
+                .set(GRPC_MESSAGE, message);
+        record(String.valueOf(grpcStatus));
+        ctx.writeAndFlush(new DefaultHttp2HeadersFrame(headers, true));
+        ctx.channel().config().setAutoRead(true);
+    }
+
+    /**
+     * The frames were bound to the stream they were read from, the ones written to the other stream are new frames
+     * around the same headers and buffers.
+     */
+    private Object unbound(Http2StreamFrame frame) {
+        if(frame instanceof Http2DataFrame) {
+            Http2DataFrame dataFrame = (Http2DataFrame) frame;
+            return new DefaultHttp2DataFrame(dataFrame.content(), dataFrame.isEndStream());
+        }
+        Http2HeadersFrame headersFrame = (Http2HeadersFrame) frame;
+        return new DefaultHttp2HeadersFrame(headersFrame.headers(), headersFrame.isEndStream());
+    }
+
+    /**
+     * package.Service/Method, the last two segments of the path.
+     */
+    static String grpcMethod(String path) {
+        int methodStart = path.lastIndexOf('/');
+        int serviceStart = methodStart > 0 ? path.lastIndexOf('/', methodStart - 1) : -1;
+        return path.substring(serviceStart + 1);
+    }
+
+    private void record(String grpcStatus) {
+        server.grpcRequestTimer(api == null ? "none" : api.getId(), method == null ? "unknown" : method, grpcStatus)
+                .record(System.nanoTime() - startTime, TimeUnit.NANOSECONDS);
+    }
+
+    private void releasePending() {
+        Object msg;
+        while((msg = pending.poll()) != null) {
+            ReferenceCountUtil.release(msg);
+        }
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) {
+        if(upstream != null) {
+            upstream.flush();
+            if(!upstream.isWritable()) {
+                ctx.channel().config().setAutoRead(false);
+            }
+        }
+        ctx.fireChannelReadComplete();
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+        if(upstream != null && ctx.channel().isWritable()) {
+            upstream.config().setAutoRead(true);
+        }
+        ctx.fireChannelWritabilityChanged();
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) {
+        releasePending();
+        if(upstream != null && upstream.isActive()) {
+            // the client went away or reset the call, the upstream stream is reset with it
+            upstream.close();
+        }
+        ctx.fireChannelInactive();
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        log.debug("Downstream gRPC stream failed: {}", cause.getMessage());
+        ctx.close();
+    }
+
+    /**
+     * Relays what the upstream stream reads to the downstream stream, and times the call once the trailers are in.
+     */
+    private class UpstreamHandler extends ChannelInboundHandlerAdapter {
+
+        @Override
+        public void channelRead(ChannelHandlerContext upstreamCtx, Object msg) {
+            if(responseEnded || !(msg instanceof Http2DataFrame || msg instanceof Http2HeadersFrame)) {
+                if(msg instanceof Http2ResetFrame && !responseEnded) {
+                    responseEnded = true;
+                    record("reset");
+                    ctx.writeAndFlush(new DefaultHttp2ResetFrame(((Http2ResetFrame) msg).errorCode()));
+                }
+                ReferenceCountUtil.release(msg);
+                return;
+            }
+            Http2StreamFrame frame = (Http2StreamFrame) msg;
+            boolean endStream;
+            if(frame instanceof Http2HeadersFrame) {
+                Http2HeadersFrame headersFrame = (Http2HeadersFrame) frame;
+                endStream = headersFrame.isEndStream();
+                if(endStream) {
+                    CharSequence grpcStatus = headersFrame.headers().get(GRPC_STATUS);
+                    record(grpcStatus == null ? "none" : grpcStatus.toString());
+                }
+            } else {
+                endStream = ((Http2DataFrame) frame).isEndStream();
+                if(endStream) {
+                    // a backend that is not gRPC, there are no trailers
+                    record("none");
+                }
+            }
+            responseStarted = true;
+            responseEnded = endStream;
+            if(endStream) {
+                // the upstream stream closes with its last frame, no read complete follows to flush it
+                ctx.writeAndFlush(unbound(frame));
+            } else {
+                ctx.write(unbound(frame));
+            }
+        }
+
+        @Override
+        public void channelReadComplete(ChannelHandlerContext upstreamCtx) {
+            ctx.flush();
+            if(!ctx.channel().isWritable()) {
+                upstreamCtx.channel().config().setAutoRead(false);
+            }
+            upstreamCtx.fireChannelReadComplete();
+        }
+
+        @Override
+        public void channelWritabilityChanged(ChannelHandlerContext upstreamCtx) {
+            if(upstreamCtx.channel().isWritable()) {
+                ctx.channel().config().setAutoRead(true);
+            }
+            upstreamCtx.fireChannelWritabilityChanged();
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext upstreamCtx, Throwable cause) {
+            log.debug("Upstream gRPC stream to {} failed: {}", destination, cause.getMessage());
+            upstreamCtx.close();
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package io.surisoft.capi.lb.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.http2.Http2CodecUtil;
+
+import java.util.List;
+
+/**
+ * Tells HTTP/2 prior knowledge connections, which is how gRPC clients talk cleartext, from HTTP/1.1 ones by their
+ * first bytes, installs the matching handlers and steps aside.
+ */
+class NettyProtocolDetector extends ByteToMessageDecoder {
+
+    private static final ByteBuf CONNECTION_PREFACE = Http2CodecUtil.connectionPrefaceBuf();
+
+    private final NettyProxyServer server;
+
+    NettyProtocolDetector(NettyProxyServer server) {
+        this.server = server;
+    }
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) {
+        int prefaceLength = CONNECTION_PREFACE.readableBytes();
+        int length = Math.min(in.readableBytes(), prefaceLength);
+        if(!ByteBufUtil.equals(in, in.readerIndex(), CONNECTION_PREFACE, CONNECTION_PREFACE.readerIndex(), length)) {
+            server.configureHttp1(ctx.pipeline());
+        } else if(length == prefaceLength) {
+            server.configureHttp2(ctx.pipeline());
+        } else {
+            // a partial preface, wait for the rest
+            return;
+        }
+        // what was read so far goes on to the new handlers
+        ctx.pipeline().remove(this);
+    }
+}
@@ -0,0 +1,237 @@
+package io.surisoft.capi.lb.netty;
+
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoopGroup;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpServerExpectContinueHandler;
+import io.netty.handler.codec.http2.Http2FrameCodecBuilder;
+import io.netty.handler.codec.http2.Http2MultiplexHandler;
+import io.netty.handler.codec.http2.Http2Settings;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.handler.ssl.SslContext;
+import io.surisoft.capi.lb.cache.ApiResolver;
+import io.surisoft.capi.lb.service.CapiDnsResolver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Front-end engine proxying straight from Netty event loops to the upstream services, next to the servlet routes.
+ * HTTP/1.1 connections carry plain requests and WebSocket upgrades, HTTP/2 prior knowledge connections gRPC calls.
+ * Downstream and upstream connections of a request share the same event loop, so a request never changes thread.
+ */
+public class NettyProxyServer {
+
+    private static final Logger log = LoggerFactory.getLogger(NettyProxyServer.class);
+    // gRPC method names come from the clients, past this many per Api they are counted as "other"
+    private static final int MAX_GRPC_METHOD_TAGS = 100;
+    private static final String OTHER_GRPC_METHOD = "other";
+
+    private final NettyTransport transport;
+    private final int port;
+    private final int threads;
+    private final int acceptors;
+    private final int maxConcurrentStreams;
+    private final ApiResolver apiResolver;
+    private final NettyUpstreamPool upstreamPool;
+    private final CapiDnsResolver capiDnsResolver;
+    private final SslContext upstreamSslContext;
+    private final NettyWebSocketTunnels webSocketTunnels;
+    private final NettyGrpcConnectionPool grpcConnectionPool;
+    private final CompositeMeterRegistry meterRegistry;
+    private final Map<String, AtomicInteger> roundRobinCounters = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> grpcMethodTags = new ConcurrentHashMap<>();
+    // request timers are looked up per request, they are registered once per Api and status class or gRPC method and status
+    private final Map<String, Map<Integer, Timer>> requestTimers = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, Map<String, Timer>>> grpcRequestTimers = new ConcurrentHashMap<>();
+
+    private EventLoopGroup eventLoopGroup;
+    private final List<Channel> serverChannels = new ArrayList<>();
+
+    public NettyProxyServer(NettyTransport transport, int port, int threads, int acceptors, int maxConcurrentStreams, ApiResolver apiResolver, NettyUpstreamPool upstreamPool, CapiDnsResolver capiDnsResolver, SslContext upstreamSslContext, NettyWebSocketTunnels webSocketTunnels, NettyGrpcConnectionPool grpcConnectionPool, CompositeMeterRegistry meterRegistry) {
+        this.transport = transport;
+        this.port = port;
+        this.threads = threads;
+        this.acceptors = acceptors;
+        this.maxConcurrentStreams = maxConcurrentStreams;
+        this.apiResolver = apiResolver;
+        this.upstreamPool = upstreamPool;
+        this.capiDnsResolver = capiDnsResolver;
+        this.upstreamSslContext = upstreamSslContext;
+        this.webSocketTunnels = webSocketTunnels;
+        this.grpcConnectionPool = grpcConnectionPool;
+        this.meterRegistry = meterRegistry;
+    }
+
+    public void start() throws InterruptedException {
+        eventLoopGroup = transport.newEventLoopGroup(threads);
+        ServerBootstrap serverBootstrap = new ServerBootstrap()
+                .group(eventLoopGroup)
+                .channel(transport.getServerChannelClass())
+                .option(ChannelOption.SO_BACKLOG, 1024)
+                .option(ChannelOption.SO_REUSEADDR, true)
+                .childOption(ChannelOption.TCP_NODELAY, true)
+                .childOption(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+                .childHandler(new ChannelInitializer<>() {
+                    @Override
+                    protected void initChannel(Channel channel) {
+                        channel.pipeline().addLast(new NettyProtocolDetector(NettyProxyServer.this));
+                    }
+                });
+        int listeners = acceptors;
+        if(listeners > 1) {
+            if(transport.getReusePortOption() == null) {
+                log.warn("SO_REUSEPORT is not supported by the {} transport, using a single listener", transport.getName());
+                listeners = 1;
+            } else {
+                serverBootstrap.option(transport.getReusePortOption(), true);
+            }
+        }
+        // the kernel spreads new connections over the listeners, each one accepts on its own event loop
+        serverChannels.add(serverBootstrap.bind(port).sync().channel());
+        for(int i = 1; i < listeners; i++) {
+            serverChannels.add(serverBootstrap.bind(getPort()).sync().channel());
+        }
+        // every event loop holds idle connections of its own, each one evicts them
+        long maxIdleTime = upstreamPool.getMaxIdleTime();
+        eventLoopGroup.forEach(eventLoop -> eventLoop.scheduleWithFixedDelay(upstreamPool::evictIdle, maxIdleTime, maxIdleTime, TimeUnit.MILLISECONDS));
+        capiDnsResolver.addAddressChangeListener(this::closeIdleUpstreams);
+        long migrationInterval = webSocketTunnels.getMigrationInterval();
+        eventLoopGroup.next().scheduleWithFixedDelay(() -> webSocketTunnels.migrate(apiResolver), migrationInterval, migrationInterval, TimeUnit.MILLISECONDS);
+        log.info("Netty engine listening on port {} with the {} transport, {} event loops and {} listeners", getPort(), transport.getName(), threads, listeners);
+    }
+
+    public void stop() {
+        for(Channel serverChannel : serverChannels) {
+            serverChannel.close().syncUninterruptibly();
+        }
+        serverChannels.clear();
+        if(eventLoopGroup != null) {
+            eventLoopGroup.shutdownGracefully(0, 5, TimeUnit.SECONDS).syncUninterruptibly();
+        }
+    }
+
+    /**
+     * Called by the DNS resolver when the addresses of a hostname change.
+     */
+    private void closeIdleUpstreams(String hostname) {
+        if(eventLoopGroup.isShuttingDown()) {
+            return;
+        }
+        eventLoopGroup.forEach(eventLoop -> eventLoop.execute(() -> upstreamPool.closeIdle(hostname)));
+    }
+
+    void configureHttp1(ChannelPipeline pipeline) {
+        pipeline.addLast(new HttpServerCodec())
+                .addLast(new HttpServerExpectContinueHandler())
+                .addLast(new NettyFrontendHandler(this));
+    }
+
+    /**
+     * Every stream of an HTTP/2 connection is a gRPC call of its own, on a child channel of the connection. Streams
+     * over the announced limit are refused by the codec.
+     */
+    void configureHttp2(ChannelPipeline pipeline) {
+        pipeline.addLast(Http2FrameCodecBuilder.forServer()
+                        .initialSettings(Http2Settings.defaultSettings().maxConcurrentStreams(maxConcurrentStreams))
+                        .build())
+                .addLast(new Http2MultiplexHandler(new ChannelInitializer<Http2StreamChannel>() {
+                    @Override
+                    protected void initChannel(Http2StreamChannel streamChannel) {
+                        streamChannel.pipeline().addLast(new NettyGrpcStreamHandler(NettyProxyServer.this));
+                    }
+                }));
+    }
+
+    /**
+     * The bound port, differs from the configured one when that was 0.
+     */
+    public int getPort() {
+        return serverChannels.isEmpty() ? port : ((InetSocketAddress) serverChannels.get(0).localAddress()).getPort();
+    }
+
+    /**
+     * Round robin over the mappings of an Api, shared by all event loops.
+     */
+    int nextMappingIndex(String apiId, int mappings) {
+        return Math.floorMod(roundRobinCounters.computeIfAbsent(apiId, key -> new AtomicInteger()).getAndIncrement(), mappings);
+    }
+
+    /**
+     * The method tag of the gRPC metrics, bounded per Api.
+     */
+    String grpcMethodTag(String apiId, String method) {
+        Set<String> methods = grpcMethodTags.computeIfAbsent(apiId, key -> ConcurrentHashMap.newKeySet());
+        if(methods.contains(method) || (methods.size() < MAX_GRPC_METHOD_TAGS && methods.add(method))) {
+            return method;
+        }
+        return OTHER_GRPC_METHOD;
+    }
+
+    /**
+     * The timer of the HTTP/1.1 requests of an Api answered with a status of the given class, 2 for 2xx.
+     */
+    Timer requestTimer(String apiId, int statusClass) {
+        return requestTimers.computeIfAbsent(apiId, key -> new ConcurrentHashMap<>())
+                .computeIfAbsent(statusClass, key -> Timer.builder("capi.netty.request")
+                        .tag("api", apiId)
+                        .tag("status", statusClass + "xx")
+                        .register(meterRegistry));
+    }
+
+    /**
+     * The timer of the gRPC calls of an Api to a method, ended with the given gRPC status.
+     */
+    Timer grpcRequestTimer(String apiId, String method, String grpcStatus) {
+        return grpcRequestTimers.computeIfAbsent(apiId, key -> new ConcurrentHashMap<>())
+                .computeIfAbsent(method, key -> new ConcurrentHashMap<>())
+                .computeIfAbsent(grpcStatus, key -> Timer.builder("capi.grpc.request")
+                        .tag("api", apiId)
+                        .tag("method", method)
+                        .tag("status", grpcStatus)
+                        .register(meterRegistry));
+    }
+
+    NettyTransport getTransport() {
+        return transport;
+    }
+
+    ApiResolver getApiResolver() {
+        return apiResolver;
+    }
+
+    NettyUpstreamPool getUpstreamPool() {
+        return upstreamPool;
+    }
+
+    CapiDnsResolver getCapiDnsResolver() {
+        return capiDnsResolver;
+    }
+
+    SslContext getUpstreamSslContext() {
+        return upstreamSslContext;
+    }
+
+    NettyWebSocketTunnels getWebSocketTunnels() {
+        return webSocketTunnels;
+    }
+
+    NettyGrpcConnectionPool getGrpcConnectionPool() {
+        return grpcConnectionPool;
+    }
+}
@@ -0,0 +1,127 @@
+package io.surisoft.capi.lb.netty;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioChannelOption;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.util.function.IntFunction;
+
+/**
+ * Native transport of the Netty engine: io_uring when the incubator transport is on the classpath and the kernel
+ * supports it, epoll on Linux, NIO everywhere else.
+ */
+public class NettyTransport {
+
+    private static final Logger log = LoggerFactory.getLogger(NettyTransport.class);
+    private static final String IO_URING_PACKAGE = "io.netty.incubator.channel.uring.";
+
+    public static final String AUTO = "auto";
+    public static final String IO_URING = "io_uring";
+    public static final String EPOLL = "epoll";
+    public static final String NIO = "nio";
+
+    private final String name;
+    private final IntFunction<EventLoopGroup> eventLoopGroupFactory;
+    private final Class<? extends ServerChannel> serverChannelClass;
+    private final Class<? extends Channel> channelClass;
+    private final ChannelOption<Boolean> reusePortOption;
+
+    private NettyTransport(String name, IntFunction<EventLoopGroup> eventLoopGroupFactory, Class<? extends ServerChannel> serverChannelClass, Class<? extends Channel> channelClass, ChannelOption<Boolean> reusePortOption) {
+        this.name = name;
+        this.eventLoopGroupFactory = eventLoopGroupFactory;
+        this.serverChannelClass = serverChannelClass;
+        this.channelClass = channelClass;
+        this.reusePortOption = reusePortOption;
+    }
+
+    public static NettyTransport select(String preferred) {
+        NettyTransport transport = null;
+        if(AUTO.equals(preferred) || IO_URING.equals(preferred)) {
+            transport = ioUring();
+        }
+        if(transport == null && (AUTO.equals(preferred) || EPOLL.equals(preferred) || IO_URING.equals(preferred)) && Epoll.isAvailable()) {
+            transport = new NettyTransport(EPOLL, EpollEventLoopGroup::new, EpollServerSocketChannel.class, EpollSocketChannel.class, EpollChannelOption.SO_REUSEPORT);
+        }
+        if(transport == null) {
+            transport = new NettyTransport(NIO, NioEventLoopGroup::new, NioServerSocketChannel.class, NioSocketChannel.class, nioReusePort());
+        }
+        if(!AUTO.equals(preferred) && !transport.getName().equals(preferred)) {
+            log.warn("Netty transport {} is not available, using {}", preferred, transport.getName());
+        }
+        return transport;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static NettyTransport ioUring() {
+        try {
+            Class<?> ioUring = Class.forName(IO_URING_PACKAGE + "IOUring");
+            if(!(Boolean) ioUring.getMethod("isAvailable").invoke(null)) {
+                return null;
+            }
+            Class<? extends EventLoopGroup> eventLoopGroupClass = Class.forName(IO_URING_PACKAGE + "IOUringEventLoopGroup").asSubclass(EventLoopGroup.class);
+            Class<? extends ServerChannel> serverChannelClass = Class.forName(IO_URING_PACKAGE + "IOUringServerSocketChannel").asSubclass(ServerChannel.class);
+            Class<? extends Channel> channelClass = Class.forName(IO_URING_PACKAGE + "IOUringSocketChannel").asSubclass(Channel.class);
+            return new NettyTransport(IO_URING, threads -> {
+                try {
+                    return eventLoopGroupClass.getConstructor(int.class).newInstance(threads);
+                } catch(ReflectiveOperationException e) {
+                    throw new IllegalStateException(e);
+                }
+            }, serverChannelClass, channelClass, (ChannelOption<Boolean>) Class.forName(IO_URING_PACKAGE + "IOUringChannelOption").getField("SO_REUSEPORT").get(null));
+        } catch(ClassNotFoundException e) {
+            return null;
+        } catch(ReflectiveOperationException | LinkageError e) {
+            log.debug("io_uring transport not usable: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * The JDK only offers SO_REUSEPORT where the platform has it, Linux and the BSDs.
+     */
+    private static ChannelOption<Boolean> nioReusePort() {
+        try(ServerSocketChannel serverSocketChannel = ServerSocketChannel.open()) {
+            return serverSocketChannel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT) ? NioChannelOption.of(StandardSocketOptions.SO_REUSEPORT) : null;
+        } catch(IOException e) {
+            return null;
+        }
+    }
+
+    public EventLoopGroup newEventLoopGroup(int threads) {
+        return eventLoopGroupFactory.apply(threads);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Class<? extends ServerChannel> getServerChannelClass() {
+        return serverChannelClass;
+    }
+
+    public Class<? extends Channel> getChannelClass() {
+        return channelClass;
+    }
+
+    /**
+     * Null when the transport can't bind several listeners to the same port.
+     */
+    public ChannelOption<Boolean> getReusePortOption() {
+        return reusePortOption;
+    }
+}
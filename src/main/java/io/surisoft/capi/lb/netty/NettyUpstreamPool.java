@@ -0,0 +1,126 @@
+package io.surisoft.capi.lb.netty;
+
+import io.netty.channel.Channel;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.FastThreadLocal;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Idle upstream connections, kept per event loop so a downstream connection only ever reuses upstream connections
+ * of its own event loop. Must only be called from an event loop thread, nothing here is synchronized.
+ * Connections idle for longer than the max idle time are closed, the most recently used ones are reused first.
+ */
+public class NettyUpstreamPool {
+
+    private static final AttributeKey<Long> IDLE_SINCE = AttributeKey.valueOf("capi.upstream.idle.since");
+
+    private final int maxIdlePerDestination;
+    private final long maxIdleTime;
+    private final FastThreadLocal<Map<String, Deque<Channel>>> idleChannels = new FastThreadLocal<>() {
+        @Override
+        protected Map<String, Deque<Channel>> initialValue() {
+            return new HashMap<>();
+        }
+    };
+
+    public NettyUpstreamPool(int maxIdlePerDestination, long maxIdleTime) {
+        this.maxIdlePerDestination = maxIdlePerDestination;
+        this.maxIdleTime = maxIdleTime;
+    }
+
+    public Channel poll(String destination) {
+        Deque<Channel> channels = idleChannels.get().get(destination);
+        if(channels == null) {
+            return null;
+        }
+        long idleBefore = System.currentTimeMillis() - maxIdleTime;
+        Channel channel;
+        while((channel = channels.pollFirst()) != null) {
+            if(isExpired(channel, idleBefore)) {
+                // the first one is the most recently used, the others are older
+                channel.close();
+                closeAll(channels);
+                return null;
+            }
+            if(channel.isActive()) {
+                return channel;
+            }
+        }
+        return null;
+    }
+
+    public void offer(String destination, Channel channel) {
+        Deque<Channel> channels = idleChannels.get().computeIfAbsent(destination, key -> new ArrayDeque<>());
+        if(!channel.isActive() || channels.size() >= maxIdlePerDestination) {
+            channel.close();
+            return;
+        }
+        channel.attr(IDLE_SINCE).set(System.currentTimeMillis());
+        channels.offerFirst(channel);
+    }
+
+    /**
+     * Called when a connection closes, its close listener runs on the same event loop.
+     */
+    public void remove(String destination, Channel channel) {
+        Deque<Channel> channels = idleChannels.get().get(destination);
+        if(channels != null) {
+            channels.remove(channel);
+        }
+    }
+
+    /**
+     * Closes the connections of this event loop idle for longer than the max idle time, run on every event loop.
+     */
+    public void evictIdle() {
+        long idleBefore = System.currentTimeMillis() - maxIdleTime;
+        for(Deque<Channel> channels : idleChannels.get().values()) {
+            Channel channel;
+            while((channel = channels.peekLast()) != null && isExpired(channel, idleBefore)) {
+                channels.pollLast();
+                channel.close();
+            }
+        }
+        idleChannels.get().values().removeIf(Deque::isEmpty);
+    }
+
+    /**
+     * Closes the connections of this event loop to a hostname, new connections will use its current addresses.
+     */
+    public void closeIdle(String hostname) {
+        idleChannels.get().entrySet().removeIf(entry -> {
+            if(!hostname.equalsIgnoreCase(hostname(entry.getKey()))) {
+                return false;
+            }
+            closeAll(entry.getValue());
+            return true;
+        });
+    }
+
+    public long getMaxIdleTime() {
+        return maxIdleTime;
+    }
+
+    /**
+     * scheme://hostname:port, the destination of {@link NettyFrontendHandler}.
+     */
+    static String hostname(String destination) {
+        return destination.substring(destination.indexOf("://") + 3, destination.lastIndexOf(':'));
+    }
+
+    private boolean isExpired(Channel channel, long idleBefore) {
+        Long idleSince = channel.attr(IDLE_SINCE).get();
+        return idleSince != null && idleSince < idleBefore;
+    }
+
+    private void closeAll(Deque<Channel> channels) {
+        Channel channel;
+        while((channel = channels.pollFirst()) != null) {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package io.surisoft.capi.lb.netty;
+
+import io.micrometer.core.instrument.Counter;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.ReferenceCountUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An upgraded WebSocket connection and its upstream connection, both on the same event loop. Frames are relayed as
+ * the buffers they were read into, only the headers of the frames going to the client are looked at, so a Close
+ * frame can be slipped in between two frames when the tunnel is drained.
+ */
+class NettyWebSocketTunnel {
+
+    private static final Logger log = LoggerFactory.getLogger(NettyWebSocketTunnel.class);
+    // Close frame from the server side, unmasked, status 1001 Going Away
+    private static final ByteBuf GOING_AWAY = Unpooled.unreleasableBuffer(Unpooled.directBuffer(4).writeBytes(new byte[] {(byte) 0x88, 0x02, 0x03, (byte) 0xE9}).asReadOnly());
+
+    private final NettyWebSocketTunnels tunnels;
+    private final String apiId;
+    private final String destination;
+    private final Channel downstream;
+    private final Channel upstream;
+    private final WebSocketFrameTracker clientFrames = new WebSocketFrameTracker();
+    private final Counter bytesFromClient;
+    private final Counter bytesToClient;
+
+    private volatile boolean draining;
+    private boolean closeSent;
+
+    NettyWebSocketTunnel(NettyWebSocketTunnels tunnels, String apiId, String destination, Channel downstream, Channel upstream) {
+        this.tunnels = tunnels;
+        this.apiId = apiId;
+        this.destination = destination;
+        this.downstream = downstream;
+        this.upstream = upstream;
+        this.bytesFromClient = Counter.builder("capi.websocket.bytes").tag("api", apiId).tag("direction", "upstream").register(tunnels.getMeterRegistry());
+        this.bytesToClient = Counter.builder("capi.websocket.bytes").tag("api", apiId).tag("direction", "downstream").register(tunnels.getMeterRegistry());
+    }
+
+    /**
+     * Adds the relays at the end of both pipelines, the HTTP handlers in front of them are removed afterwards.
+     */
+    void start() {
+        downstream.pipeline().addLast(new Relay(upstream, false));
+        upstream.pipeline().addLast(new Relay(downstream, true));
+        tunnels.opened(this);
+        downstream.closeFuture().addListener(closed -> closed());
+        upstream.closeFuture().addListener(closed -> closed());
+    }
+
+    void resume() {
+        downstream.config().setAutoRead(true);
+        upstream.config().setAutoRead(true);
+    }
+
+    /**
+     * Asks the client to go away at the next frame boundary, the connections are closed once it did or the drain
+     * timeout ran out.
+     */
+    void drain() {
+        draining = true;
+        downstream.eventLoop().execute(() -> {
+            if(clientFrames.isAtBoundary()) {
+                sendClose();
+            }
+            downstream.eventLoop().schedule(this::close, tunnels.getDrainTimeout(), TimeUnit.MILLISECONDS);
+        });
+    }
+
+    private void toClient(ByteBuf buf) {
+        if(closeSent) {
+            // nothing may follow a Close frame
+            buf.release();
+            return;
+        }
+        if(!draining) {
+            clientFrames.scan(buf, false);
+            downstream.write(buf, downstream.voidPromise());
+            return;
+        }
+        int forwarded = clientFrames.scan(buf, true);
+        if(!clientFrames.isAtBoundary()) {
+            downstream.write(buf, downstream.voidPromise());
+            return;
+        }
+        if(forwarded > 0) {
+            downstream.write(buf.retainedSlice(buf.readerIndex(), forwarded), downstream.voidPromise());
+        }
+        buf.release();
+        sendClose();
+    }
+
+    private void sendClose() {
+        if(closeSent) {
+            return;
+        }
+        closeSent = true;
+        downstream.writeAndFlush(GOING_AWAY.duplicate());
+    }
+
+    private void close() {
+        downstream.close();
+        upstream.close();
+    }
+
+    private void closed() {
+        TcpRelayHandler.closeOnFlush(downstream);
+        TcpRelayHandler.closeOnFlush(upstream);
+        tunnels.closed(this);
+    }
+
+    boolean isDraining() {
+        return draining;
+    }
+
+    String getApiId() {
+        return apiId;
+    }
+
+    String getDestination() {
+        return destination;
+    }
+
+    private class Relay extends ChannelInboundHandlerAdapter {
+
+        private final Channel peer;
+        private final boolean fromUpstream;
+
+        private Relay(Channel peer, boolean fromUpstream) {
+            this.peer = peer;
+            this.fromUpstream = fromUpstream;
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            if(!(msg instanceof ByteBuf)) {
+                ReferenceCountUtil.release(msg);
+                return;
+            }
+            ByteBuf buf = (ByteBuf) msg;
+            if(fromUpstream) {
+                bytesToClient.increment(buf.readableBytes());
+                toClient(buf);
+            } else {
+                bytesFromClient.increment(buf.readableBytes());
+                peer.write(buf, peer.voidPromise());
+            }
+        }
+
+        @Override
+        public void channelReadComplete(ChannelHandlerContext ctx) {
+            peer.flush();
+            if(!peer.isWritable()) {
+                ctx.channel().config().setAutoRead(false);
+            }
+        }
+
+        @Override
+        public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+            if(ctx.channel().isWritable()) {
+                peer.config().setAutoRead(true);
+            }
+            ctx.fireChannelWritabilityChanged();
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            log.debug("WebSocket tunnel of Api {} failed: {}", apiId, cause.getMessage());
+            ctx.close();
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package io.surisoft.capi.lb.netty;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import io.surisoft.capi.lb.cache.ApiResolver;
+import io.surisoft.capi.lb.schema.Api;
+import io.surisoft.capi.lb.schema.Mapping;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The open WebSocket tunnels of the Netty engine. New tunnels go to the mapping holding the fewest of them, since
+ * they live far longer than requests and round robin alone would leave the nodes that joined last nearly idle.
+ * Tunnels to nodes discovery removed are drained, their clients are asked to reconnect and land on the others.
+ */
+public class NettyWebSocketTunnels {
+
+    private final long drainTimeout;
+    private final long migrationInterval;
+    private final CompositeMeterRegistry meterRegistry;
+    private final Set<NettyWebSocketTunnel> tunnels = ConcurrentHashMap.newKeySet();
+    private final Map<String, AtomicInteger> destinationTunnels = new ConcurrentHashMap<>();
+    private final Map<String, AtomicInteger> apiTunnels = new ConcurrentHashMap<>();
+
+    public NettyWebSocketTunnels(long drainTimeout, long migrationInterval, CompositeMeterRegistry meterRegistry) {
+        this.drainTimeout = drainTimeout;
+        this.migrationInterval = migrationInterval;
+        this.meterRegistry = meterRegistry;
+        Gauge.builder("capi.websocket.connections.active", tunnels, Set::size).register(meterRegistry);
+    }
+
+    /**
+     * Least active connections, ties are broken round robin so an idle pool still spreads.
+     */
+    int selectMapping(Api api, List<Mapping> mappings, int roundRobinIndex) {
+        int selected = roundRobinIndex;
+        int fewest = Integer.MAX_VALUE;
+        for(int i = 0; i < mappings.size(); i++) {
+            int index = (roundRobinIndex + i) % mappings.size();
+            AtomicInteger open = destinationTunnels.get(NettyFrontendHandler.destination(api, mappings.get(index)));
+            int count = open == null ? 0 : open.get();
+            if(count < fewest) {
+                fewest = count;
+                selected = index;
+            }
+        }
+        return selected;
+    }
+
+    void opened(NettyWebSocketTunnel tunnel) {
+        tunnels.add(tunnel);
+        destinationTunnels.computeIfAbsent(tunnel.getDestination(), key -> new AtomicInteger()).incrementAndGet();
+        apiTunnels.computeIfAbsent(tunnel.getApiId(), key -> {
+            AtomicInteger open = new AtomicInteger();
+            Gauge.builder("capi.websocket.api.connections.active", open, AtomicInteger::get).tag("api", key).register(meterRegistry);
+            return open;
+        }).incrementAndGet();
+        Counter.builder("capi.websocket.connections").tag("api", tunnel.getApiId()).register(meterRegistry).increment();
+    }
+
+    void closed(NettyWebSocketTunnel tunnel) {
+        if(tunnels.remove(tunnel)) {
+            destinationTunnels.get(tunnel.getDestination()).decrementAndGet();
+            apiTunnels.get(tunnel.getApiId()).decrementAndGet();
+        }
+    }
+
+    /**
+     * Drains the tunnels whose Api is gone or no longer has a mapping to their node. Each tunnel is drained on its
+     * own event loop.
+     */
+    void migrate(ApiResolver apiResolver) {
+        for(NettyWebSocketTunnel tunnel : tunnels) {
+            if(!tunnel.isDraining() && !isStillMapped(apiResolver.getApi(tunnel.getApiId()), tunnel.getDestination())) {
+                Counter.builder("capi.websocket.migrated").tag("api", tunnel.getApiId()).register(meterRegistry).increment();
+                tunnel.drain();
+            }
+        }
+    }
+
+    private boolean isStillMapped(Api api, String destination) {
+        if(api == null || !api.isWebsocketEnabled() || api.getMappingList() == null) {
+            return false;
+        }
+        for(Mapping mapping : api.getMappingList()) {
+            if(destination.equals(NettyFrontendHandler.destination(api, mapping))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int getActive() {
+        return tunnels.size();
+    }
+
+    long getMigrationInterval() {
+        return migrationInterval;
+    }
+
+    long getDrainTimeout() {
+        return drainTimeout;
+    }
+
+    CompositeMeterRegistry getMeterRegistry() {
+        return meterRegistry;
+    }
+}
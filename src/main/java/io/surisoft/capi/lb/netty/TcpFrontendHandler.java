@@ -0,0 +1,199 @@
+package io.surisoft.capi.lb.netty;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.epoll.AbstractEpollStreamChannel;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollMode;
+import io.netty.channel.socket.ChannelInputShutdownEvent;
+import io.netty.util.ReferenceCountUtil;
+import io.surisoft.capi.lb.schema.Api;
+import io.surisoft.capi.lb.schema.Mapping;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Handles one downstream TCP connection: connects to a mapping of the Api on the same event loop, then relays the
+ * bytes both ways. With zero copy the kernel moves them between the sockets through a pipe and they never reach
+ * the JVM, otherwise they go through pooled buffers. A side that stops sending has its FIN passed on, the other
+ * direction keeps going until it ends too.
+ */
+class TcpFrontendHandler extends ChannelInboundHandlerAdapter {
+
+    private static final Logger log = LoggerFactory.getLogger(TcpFrontendHandler.class);
+
+    private final TcpProxyServer server;
+    private final String apiId;
+
+    private ChannelHandlerContext ctx;
+    private Api api;
+    private List<Mapping> mappings;
+    private int firstMapping;
+    private int attempt;
+    private Channel upstream;
+    private boolean relaying;
+    // epoll reads a client that half-closes before the relay started, whatever auto read says
+    private final List<Object> pendingReads = new ArrayList<>();
+    private boolean inputShutdown;
+
+    TcpFrontendHandler(TcpProxyServer server, String apiId) {
+        this.server = server;
+        this.apiId = apiId;
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) {
+        this.ctx = ctx;
+        api = server.getApi(apiId);
+        if(api == null || api.getMappingList() == null || api.getMappingList().isEmpty()) {
+            ctx.close();
+            return;
+        }
+        mappings = api.getMappingList();
+        firstMapping = server.nextMappingIndex(apiId, mappings.size());
+        server.getActiveConnections().incrementAndGet();
+        server.getMeterRegistry().counter("capi.l4.connections", "api", apiId).increment();
+        connect();
+    }
+
+    private void connect() {
+        Mapping mapping = mappings.get((firstMapping + attempt) % mappings.size());
+        if(mapping.getPort() <= 0) {
+            connectFailed(mapping, new IllegalArgumentException("no port on the mapping"));
+            return;
+        }
+        // completes right away when the address is cached, the server prefetches the mapping hosts
+        server.getCapiDnsResolver().resolveAsync(mapping.getHostname(), ctx.channel().eventLoop()).whenComplete((addresses, cause) -> {
+            if(cause != null) {
+                connectFailed(mapping, cause instanceof CompletionException && cause.getCause() != null ? cause.getCause() : cause);
+            } else if(ctx.channel().isActive()) {
+                connect(mapping, addresses[0]);
+            }
+        });
+    }
+
+    private void connect(Mapping mapping, InetAddress address) {
+        Channel downstream = ctx.channel();
+        Bootstrap bootstrap = new Bootstrap()
+                .group(downstream.eventLoop())
+                .channel(server.getTransport().getChannelClass())
+                .option(ChannelOption.AUTO_READ, false)
+                .option(ChannelOption.ALLOW_HALF_CLOSURE, true)
+                .option(ChannelOption.TCP_NODELAY, true)
+                .option(ChannelOption.SO_KEEPALIVE, true)
+                .option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+                .handler(new TcpRelayHandler(downstream));
+        if(server.isZeroCopy()) {
+            bootstrap.option(EpollChannelOption.EPOLL_MODE, EpollMode.LEVEL_TRIGGERED);
+        }
+        if(api.getConnectTimeout() > 0) {
+            bootstrap.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, api.getConnectTimeout());
+        }
+        bootstrap.connect(new InetSocketAddress(address, mapping.getPort())).addListener((ChannelFutureListener) future -> {
+            if(!future.isSuccess()) {
+                connectFailed(mapping, future.cause());
+                return;
+            }
+            upstream = future.channel();
+            if(!downstream.isActive()) {
+                upstream.close();
+                return;
+            }
+            startRelay(downstream, upstream);
+        });
+    }
+
+    private void startRelay(Channel downstream, Channel upstream) {
+        relaying = true;
+        // spliced bytes never reach the pipeline, the relay handler still passes on the half-closes
+        ctx.pipeline().addLast(new TcpRelayHandler(upstream));
+        for(Object msg : pendingReads) {
+            upstream.write(msg, upstream.voidPromise());
+        }
+        pendingReads.clear();
+        upstream.flush();
+        if(inputShutdown) {
+            TcpRelayHandler.inputShutdown(downstream, upstream);
+        }
+        if(server.isZeroCopy()) {
+            splice((AbstractEpollStreamChannel) downstream, (AbstractEpollStreamChannel) upstream);
+            splice((AbstractEpollStreamChannel) upstream, (AbstractEpollStreamChannel) downstream);
+        }
+        downstream.config().setAutoRead(true);
+        upstream.config().setAutoRead(true);
+    }
+
+    /**
+     * A splice ends after the given length, a new one is queued until either side goes away.
+     */
+    private void splice(AbstractEpollStreamChannel from, AbstractEpollStreamChannel to) {
+        from.spliceTo(to, Integer.MAX_VALUE).addListener((ChannelFuture future) -> {
+            if(future.isSuccess() && from.isActive() && to.isActive()) {
+                splice(from, to);
+            } else {
+                from.close();
+                to.close();
+            }
+        });
+    }
+
+    private void connectFailed(Mapping mapping, Throwable cause) {
+        log.debug("Connection to {}:{} failed: {}", mapping.getHostname(), mapping.getPort(), cause.getMessage());
+        server.getMeterRegistry().counter("capi.l4.connect.failures", "api", apiId).increment();
+        // nothing was read from the client yet, the connection can still go to the next mapping
+        if(ctx.channel().isActive() && api.isFailoverEnabled() && ++attempt < mappings.size() && (api.getMaximumFailoverAttempts() <= 0 || attempt <= api.getMaximumFailoverAttempts())) {
+            connect();
+            return;
+        }
+        ctx.close();
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        if(relaying) {
+            ctx.fireChannelRead(msg);
+        } else {
+            pendingReads.add(msg);
+        }
+    }
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) {
+        if(!relaying && evt instanceof ChannelInputShutdownEvent) {
+            inputShutdown = true;
+            return;
+        }
+        ctx.fireUserEventTriggered(evt);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) {
+        pendingReads.forEach(ReferenceCountUtil::release);
+        pendingReads.clear();
+        if(mappings != null) {
+            server.getActiveConnections().decrementAndGet();
+        }
+        if(upstream != null) {
+            TcpRelayHandler.closeOnFlush(upstream);
+        }
+        ctx.fireChannelInactive();
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        log.debug("Downstream TCP connection failed: {}", cause.getMessage());
+        ctx.close();
+    }
+}
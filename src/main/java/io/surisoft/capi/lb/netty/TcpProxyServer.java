@@ -0,0 +1,254 @@
+package io.surisoft.capi.lb.netty;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollMode;
+import io.netty.util.concurrent.ScheduledFuture;
+import io.surisoft.capi.lb.schema.Api;
+import io.surisoft.capi.lb.schema.Mapping;
+import io.surisoft.capi.lb.service.CapiDnsResolver;
+import org.cache2k.Cache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * L4 engine forwarding raw TCP streams. Every Api with a TCP port gets a listener on that port, each accepted
+ * connection is paired with a connection to one of the Api mappings and bytes are relayed both ways untouched.
+ * Listeners follow the Api cache, so Consul discovery opens, moves and closes them like it does with routes.
+ */
+public class TcpProxyServer {
+
+    private static final Logger log = LoggerFactory.getLogger(TcpProxyServer.class);
+
+    private final NettyTransport transport;
+    private final int threads;
+    private final String bindAddress;
+    private final boolean zeroCopy;
+    private final long reconcileInterval;
+    private final int minPort;
+    private final int maxPort;
+    private final Cache<String, Api> apiCache;
+    private final CapiDnsResolver capiDnsResolver;
+    private final CompositeMeterRegistry meterRegistry;
+    private final Map<String, AtomicInteger> roundRobinCounters = new ConcurrentHashMap<>();
+    private final AtomicInteger activeConnections = new AtomicInteger();
+
+    // only touched from the reconcile event loop
+    private final Map<String, Listener> listeners = new HashMap<>();
+    private final Map<String, Integer> refusedPorts = new HashMap<>();
+    private final AtomicInteger boundListeners = new AtomicInteger();
+
+    private EventLoopGroup eventLoopGroup;
+    private EventLoop reconcileLoop;
+    private ScheduledFuture<?> reconcileTask;
+
+    public TcpProxyServer(NettyTransport transport, int threads, String bindAddress, boolean zeroCopy, long reconcileInterval, int minPort, int maxPort, Cache<String, Api> apiCache, CapiDnsResolver capiDnsResolver, CompositeMeterRegistry meterRegistry) {
+        this.transport = transport;
+        this.threads = threads;
+        this.bindAddress = bindAddress;
+        // splice(2) between two sockets is only offered by the epoll transport
+        this.zeroCopy = zeroCopy && NettyTransport.EPOLL.equals(transport.getName());
+        this.reconcileInterval = reconcileInterval;
+        this.minPort = minPort;
+        this.maxPort = maxPort;
+        this.apiCache = apiCache;
+        this.capiDnsResolver = capiDnsResolver;
+        this.meterRegistry = meterRegistry;
+        Gauge.builder("capi.l4.listeners", boundListeners, AtomicInteger::get).register(meterRegistry);
+        Gauge.builder("capi.l4.connections.active", activeConnections, AtomicInteger::get).register(meterRegistry);
+    }
+
+    public void start() {
+        eventLoopGroup = transport.newEventLoopGroup(threads);
+        reconcileLoop = eventLoopGroup.next();
+        reconcileTask = reconcileLoop.scheduleWithFixedDelay(this::reconcile, 0, reconcileInterval, TimeUnit.MILLISECONDS);
+        log.info("TCP engine started with the {} transport, zero copy {}", transport.getName(), zeroCopy ? "on" : "off");
+    }
+
+    public void stop() {
+        if(reconcileTask != null) {
+            reconcileTask.cancel(false);
+        }
+        if(reconcileLoop != null) {
+            reconcileLoop.submit(() -> {
+                for(Listener listener : listeners.values()) {
+                    listener.close();
+                }
+                listeners.clear();
+            }).syncUninterruptibly();
+        }
+        if(eventLoopGroup != null) {
+            eventLoopGroup.shutdownGracefully(0, 5, TimeUnit.SECONDS).syncUninterruptibly();
+        }
+    }
+
+    /**
+     * Binds the TCP ports of new Apis and unbinds the ones of removed Apis or of Apis that moved to another port.
+     * Established connections are left alone, they end with their peers.
+     */
+    void reconcile() {
+        try {
+            Map<String, Api> tcpApis = new HashMap<>();
+            for(Api api : apiCache.asMap().values()) {
+                if(api.getTcpPort() > 0 && isPortAllowed(api)) {
+                    tcpApis.put(api.getId(), api);
+                }
+            }
+            refusedPorts.keySet().removeIf(apiId -> apiCache.peek(apiId) == null);
+            Iterator<Map.Entry<String, Listener>> iterator = listeners.entrySet().iterator();
+            while(iterator.hasNext()) {
+                Map.Entry<String, Listener> entry = iterator.next();
+                Api api = tcpApis.get(entry.getKey());
+                if(api == null || api.getTcpPort() != entry.getValue().port || entry.getValue().failed) {
+                    entry.getValue().close();
+                    iterator.remove();
+                }
+                if(api == null) {
+                    capiDnsResolver.unpin(entry.getKey());
+                }
+            }
+            for(Api api : tcpApis.values()) {
+                if(api.getMappingList() != null) {
+                    capiDnsResolver.pin(api.getId(), api.getMappingList().stream().map(Mapping::getHostname).collect(Collectors.toList()));
+                }
+                if(!listeners.containsKey(api.getId())) {
+                    listeners.put(api.getId(), bind(api.getId(), api.getTcpPort()));
+                }
+            }
+        } catch(Exception e) {
+            log.warn("Could not reconcile the TCP listeners: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Ports out of the allowed range are refused, logged once per Api and port.
+     */
+    private boolean isPortAllowed(Api api) {
+        if(api.getTcpPort() >= minPort && api.getTcpPort() <= maxPort) {
+            refusedPorts.remove(api.getId());
+            return true;
+        }
+        Integer refusedPort = refusedPorts.put(api.getId(), api.getTcpPort());
+        if(refusedPort == null || refusedPort != api.getTcpPort()) {
+            log.warn("TCP engine refused port {} for Api {}, the allowed ports are {}-{}", api.getTcpPort(), api.getId(), minPort, maxPort);
+        }
+        return false;
+    }
+
+    private Listener bind(String apiId, int port) {
+        ServerBootstrap serverBootstrap = new ServerBootstrap()
+                .group(eventLoopGroup)
+                .channel(transport.getServerChannelClass())
+                .option(ChannelOption.SO_BACKLOG, 1024)
+                .option(ChannelOption.SO_REUSEADDR, true)
+                .childOption(ChannelOption.AUTO_READ, false)
+                .childOption(ChannelOption.ALLOW_HALF_CLOSURE, true)
+                .childOption(ChannelOption.TCP_NODELAY, true)
+                .childOption(ChannelOption.SO_KEEPALIVE, true)
+                .childOption(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+                .childHandler(new ChannelInitializer<>() {
+                    @Override
+                    protected void initChannel(Channel channel) {
+                        channel.pipeline().addLast(new TcpFrontendHandler(TcpProxyServer.this, apiId));
+                    }
+                });
+        if(zeroCopy) {
+            serverBootstrap.childOption(EpollChannelOption.EPOLL_MODE, EpollMode.LEVEL_TRIGGERED);
+        }
+        Listener listener = new Listener(port);
+        listener.bindFuture = serverBootstrap.bind(new InetSocketAddress(bindAddress, port));
+        listener.bindFuture.addListener((ChannelFutureListener) future -> {
+            if(future.isSuccess()) {
+                boundListeners.incrementAndGet();
+                future.channel().closeFuture().addListener(closed -> boundListeners.decrementAndGet());
+                log.info("TCP engine listening on port {} for Api {}", port, apiId);
+            } else {
+                // retried on the next reconcile
+                listener.failed = true;
+                log.warn("TCP engine could not listen on port {} for Api {}: {}", port, apiId, future.cause().getMessage());
+            }
+        });
+        return listener;
+    }
+
+    /**
+     * The bound port of the listener of an Api, -1 while it is not listening.
+     */
+    public int getListenerPort(String apiId) {
+        try {
+            return reconcileLoop.submit(() -> {
+                Listener listener = listeners.get(apiId);
+                if(listener == null || !listener.bindFuture.isSuccess()) {
+                    return -1;
+                }
+                return ((InetSocketAddress) listener.bindFuture.channel().localAddress()).getPort();
+            }).get();
+        } catch(Exception e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Round robin over the mappings of an Api, shared by all event loops.
+     */
+    int nextMappingIndex(String apiId, int mappings) {
+        return Math.floorMod(roundRobinCounters.computeIfAbsent(apiId, key -> new AtomicInteger()).getAndIncrement(), mappings);
+    }
+
+    Api getApi(String apiId) {
+        return apiCache.peek(apiId);
+    }
+
+    NettyTransport getTransport() {
+        return transport;
+    }
+
+    boolean isZeroCopy() {
+        return zeroCopy;
+    }
+
+    CapiDnsResolver getCapiDnsResolver() {
+        return capiDnsResolver;
+    }
+
+    CompositeMeterRegistry getMeterRegistry() {
+        return meterRegistry;
+    }
+
+    AtomicInteger getActiveConnections() {
+        return activeConnections;
+    }
+
+    private static class Listener {
+        private final int port;
+        private ChannelFuture bindFuture;
+        private volatile boolean failed;
+
+        private Listener(int port) {
+            this.port = port;
+        }
+
+        private void close() {
+            bindFuture.channel().close();
+        }
+    }
+}
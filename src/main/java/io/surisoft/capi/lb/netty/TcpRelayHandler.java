@@ -0,0 +1,96 @@
+package io.surisoft.capi.lb.netty;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.socket.ChannelInputShutdownEvent;
+import io.netty.channel.socket.DuplexChannel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes what one side of a TCP pair reads to the other side. Reading stops while the other side can't keep up and
+ * resumes once it drained, so a slow peer never makes buffers pile up.
+ */
+class TcpRelayHandler extends ChannelInboundHandlerAdapter {
+
+    private static final Logger log = LoggerFactory.getLogger(TcpRelayHandler.class);
+
+    private final Channel peer;
+
+    TcpRelayHandler(Channel peer) {
+        this.peer = peer;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        peer.write(msg, peer.voidPromise());
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) {
+        peer.flush();
+        if(!peer.isWritable()) {
+            ctx.channel().config().setAutoRead(false);
+        }
+    }
+
+    /**
+     * This channel drained, the peer feeding it may read again.
+     */
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+        if(ctx.channel().isWritable()) {
+            peer.config().setAutoRead(true);
+        }
+        ctx.fireChannelWritabilityChanged();
+    }
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) {
+        if(evt instanceof ChannelInputShutdownEvent) {
+            inputShutdown(ctx.channel(), peer);
+        }
+        ctx.fireUserEventTriggered(evt);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) {
+        closeOnFlush(peer);
+        ctx.fireChannelInactive();
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        log.debug("TCP relay failed: {}", cause.getMessage());
+        ctx.close();
+    }
+
+    /**
+     * The side that stopped sending may still be reading: its FIN goes to the peer once what it sent is written, and
+     * the pair is closed when both directions are done.
+     */
+    static void inputShutdown(Channel channel, Channel peer) {
+        peer.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener((ChannelFutureListener) written -> {
+            if(!written.isSuccess() || !(peer instanceof DuplexChannel)) {
+                channel.close();
+                peer.close();
+                return;
+            }
+            ((DuplexChannel) peer).shutdownOutput().addListener((ChannelFutureListener) shutdown -> {
+                if(!shutdown.isSuccess() || (((DuplexChannel) peer).isInputShutdown() && ((DuplexChannel) channel).isOutputShutdown())) {
+                    channel.close();
+                    peer.close();
+                }
+            });
+        });
+    }
+
+    static void closeOnFlush(Channel channel) {
+        if(channel.isActive()) {
+            channel.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+        }
+    }
+}
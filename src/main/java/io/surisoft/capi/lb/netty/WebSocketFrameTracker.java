@@ -0,0 +1,58 @@
+package io.surisoft.capi.lb.netty;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * Follows the frame boundaries of one direction of a WebSocket connection by reading only the frame headers in place,
+ * payloads are skipped and nothing is copied or allocated. Knowing the boundaries is what allows a control frame to
+ * be added to a stream relayed as raw bytes.
+ */
+public class WebSocketFrameTracker {
+
+    private int headerIndex;
+    private int headerLength;
+    private int extendedLengthEnd;
+    private long payloadLength;
+    private long remaining;
+
+    /**
+     * Walks the readable bytes without moving the reader index and returns how many were walked. With stopAtBoundary
+     * the walk ends at the first frame boundary, which may be right at the start.
+     */
+    public int scan(ByteBuf buf, boolean stopAtBoundary) {
+        int start = buf.readerIndex();
+        int end = buf.writerIndex();
+        int index = start;
+        while(index < end) {
+            if(remaining > 0) {
+                int skipped = (int) Math.min(remaining, end - index);
+                remaining -= skipped;
+                index += skipped;
+                continue;
+            }
+            if(stopAtBoundary && headerIndex == 0) {
+                break;
+            }
+            int value = buf.getByte(index++) & 0xFF;
+            headerIndex++;
+            if(headerIndex == 2) {
+                int length = value & 0x7F;
+                int extendedLength = length == 126 ? 2 : (length == 127 ? 8 : 0);
+                extendedLengthEnd = 2 + extendedLength;
+                headerLength = extendedLengthEnd + ((value & 0x80) != 0 ? 4 : 0);
+                payloadLength = extendedLength == 0 ? length : 0;
+            } else if(headerIndex > 2 && headerIndex <= extendedLengthEnd) {
+                payloadLength = (payloadLength << 8) | value;
+            }
+            if(headerIndex > 1 && headerIndex == headerLength) {
+                headerIndex = 0;
+                remaining = payloadLength;
+            }
+        }
+        return index - start;
+    }
+
+    public boolean isAtBoundary() {
+        return headerIndex == 0 && remaining == 0;
+    }
+}
@@ -0,0 +1,168 @@
+package io.surisoft.capi.lb.processor;
+
+import io.surisoft.capi.lb.exception.MemoryBudgetExceededException;
+import io.surisoft.capi.lb.schema.Api;
+import io.surisoft.capi.lb.utils.Constants;
+import org.apache.camel.Exchange;
+import org.apache.camel.ExtendedExchange;
+import org.apache.camel.Message;
+import org.apache.camel.Processor;
+import org.apache.camel.StreamCache;
+import org.apache.camel.spi.StreamCachingStrategy;
+import org.apache.camel.converter.stream.CachedOutputStream;
+import org.apache.camel.support.SynchronizationAdapter;
+import org.springframework.http.HttpStatus;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Charges the memory budget with the bodies held in memory for the Apis that neither stream nor spool.
+ * The request body is read here, from the raw servlet stream, through a pooled chunk: the declared Content-Length is
+ * reserved at once, after a short wait at most, and the bytes beyond it as they are read, before they are buffered.
+ * The request is refused once the budget runs out and bodiless requests are not read at all. What the stream cache pages out to disk
+ * is given back. The response is already cached when it reaches the response side and is only accounted, so the
+ * requests following it wait for the memory instead.
+ */
+public class MemoryAdmissionProcessor implements Processor {
+
+    private final MemoryBudget memoryBudget;
+    private final ReplayBufferPool replayBufferPool;
+    private final Api api;
+    private final boolean response;
+
+    private MemoryAdmissionProcessor(MemoryBudget memoryBudget, ReplayBufferPool replayBufferPool, Api api, boolean response) {
+        this.memoryBudget = memoryBudget;
+        this.replayBufferPool = replayBufferPool;
+        this.api = api;
+        this.response = response;
+    }
+
+    public static MemoryAdmissionProcessor request(MemoryBudget memoryBudget, ReplayBufferPool replayBufferPool, Api api) {
+        return new MemoryAdmissionProcessor(memoryBudget, replayBufferPool, api, false);
+    }
+
+    public static MemoryAdmissionProcessor response(MemoryBudget memoryBudget, Api api) {
+        return new MemoryAdmissionProcessor(memoryBudget, null, api, true);
+    }
+
+    @Override
+    public void process(Exchange exchange) throws Exception {
+        long bufferedSize;
+        if(response) {
+            bufferedSize = getBufferedSize(exchange);
+            memoryBudget.account(api.getId(), bufferedSize);
+        } else {
+            bufferedSize = bufferRequest(exchange);
+            if(bufferedSize < 0) {
+                String message = "Not enough memory to buffer your request, please try again later.";
+                exchange.getIn().setHeader(Constants.REASON_CODE_HEADER, HttpStatus.SERVICE_UNAVAILABLE.value());
+                exchange.getIn().setHeader(Constants.REASON_MESSAGE_HEADER, message);
+                exchange.setException(new MemoryBudgetExceededException(message));
+                return;
+            }
+        }
+        if(bufferedSize <= 0) {
+            return;
+        }
+        exchange.adapt(ExtendedExchange.class).addOnCompletion(new SynchronizationAdapter() {
+            @Override
+            public void onDone(Exchange exchange) {
+                memoryBudget.release(api.getId(), bufferedSize);
+            }
+        });
+    }
+
+    /**
+     * Returns the bytes reserved for the body left in memory, or -1 when the budget ran out before the end of it.
+     */
+    private long bufferRequest(Exchange exchange) throws Exception {
+        Message message = exchange.getIn();
+        if(message.getBody() == null || isBodiless(message)) {
+            return 0;
+        }
+        InputStream inputStream = message.getBody(InputStream.class);
+        if(inputStream == null) {
+            return 0;
+        }
+        StreamCachingStrategy streamCachingStrategy = exchange.getContext().getStreamCachingStrategy();
+        long reserved = 0;
+        Long contentLength = message.getHeader(Exchange.CONTENT_LENGTH, Long.class);
+        if(contentLength != null && contentLength > 0) {
+            // reserved at once, the worker waits for the budget a single time
+            long inMemoryLength = streamCachingStrategy.shouldSpoolCache(contentLength) ? streamCachingStrategy.getSpoolThreshold() : contentLength;
+            if(!memoryBudget.reserve(api.getId(), inMemoryLength)) {
+                return -1;
+            }
+            reserved = inMemoryLength;
+        }
+        CachedOutputStream cachedOutputStream = new CachedOutputStream(exchange);
+        byte[] chunk = replayBufferPool.acquire();
+        long buffered = 0;
+        boolean inMemory = true;
+        try {
+            int read;
+            while((read = inputStream.read(chunk)) != -1) {
+                buffered += read;
+                if(inMemory && buffered > reserved && !streamCachingStrategy.shouldSpoolCache(buffered)) {
+                    // chunked, or more than the declared length, reserved as it comes in
+                    long missing = Math.max(buffered - reserved, chunk.length);
+                    if(!memoryBudget.reserve(api.getId(), missing)) {
+                        memoryBudget.release(api.getId(), reserved);
+                        cachedOutputStream.close();
+                        return -1;
+                    }
+                    reserved += missing;
+                }
+                cachedOutputStream.write(chunk, 0, read);
+                if(inMemory && !(cachedOutputStream.getCurrentStream() instanceof ByteArrayOutputStream)) {
+                    // paged out to disk, the memory is not held anymore
+                    memoryBudget.release(api.getId(), reserved);
+                    reserved = 0;
+                    inMemory = false;
+                }
+            }
+        } finally {
+            replayBufferPool.release(chunk);
+        }
+        if(inMemory && reserved > buffered) {
+            memoryBudget.release(api.getId(), reserved - buffered);
+            reserved = buffered;
+        }
+        message.setBody(cachedOutputStream.newStreamCache());
+        return reserved;
+    }
+
+    /**
+     * Nothing to read, nor to reserve, for an empty body or a GET or HEAD that does not announce one.
+     */
+    static boolean isBodiless(Message message) {
+        Long contentLength = message.getHeader(Exchange.CONTENT_LENGTH, Long.class);
+        if(contentLength != null) {
+            return contentLength == 0;
+        }
+        String method = message.getHeader(Exchange.HTTP_METHOD, String.class);
+        return ("GET".equalsIgnoreCase(method) || "HEAD".equalsIgnoreCase(method)) && message.getHeader(Constants.TRANSFER_ENCODING_HEADER) == null;
+    }
+
+    /**
+     * Only the bodies cached in memory count, not the ones paged out to disk nor the declared Content-Length.
+     */
+    private long getBufferedSize(Exchange exchange) throws IOException {
+        Object body = exchange.getMessage().getBody();
+        if(body instanceof byte[]) {
+            return ((byte[]) body).length;
+        }
+        long length;
+        if(body instanceof StreamCache) {
+            length = ((StreamCache) body).length();
+        } else if(body instanceof InputStream) {
+            // the http component hands its cached response over wrapped in a plain stream, read from the start
+            length = ((InputStream) body).available();
+        } else {
+            return 0;
+        }
+        return exchange.getContext().getStreamCachingStrategy().shouldSpoolCache(length) ? 0 : length;
+    }
+}
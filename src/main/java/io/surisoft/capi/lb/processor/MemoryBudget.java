@@ -0,0 +1,153 @@
+package io.surisoft.capi.lb.processor;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bytes of request and response bodies held in memory by the routes, against a global budget and a budget per Api.
+ * Reservations are made before the bytes are buffered, or accounted right after when they can't be known earlier,
+ * and are given back once the exchange is done.
+ */
+@Component
+public class MemoryBudget {
+
+    private final long totalBudget;
+    private final long apiBudget;
+    private final long waitNanos;
+    private final AtomicLong used = new AtomicLong();
+    private final Map<String, AtomicLong> apiUsage = new ConcurrentHashMap<>();
+    private final AtomicInteger waiters = new AtomicInteger();
+    // a lock rather than a monitor, a virtual thread waiting on it does not pin its carrier
+    private final ReentrantLock releaseLock = new ReentrantLock();
+    private final Condition released = releaseLock.newCondition();
+    private final CompositeMeterRegistry meterRegistry;
+    private final Counter rejections;
+
+    public MemoryBudget(@Value("${capi.memory.budget.total}") long totalBudget,
+                        @Value("${capi.memory.budget.per.api}") long apiBudget,
+                        @Value("${capi.memory.budget.wait}") long waitMillis,
+                        CompositeMeterRegistry meterRegistry) {
+        this.totalBudget = totalBudget;
+        this.apiBudget = apiBudget;
+        this.waitNanos = TimeUnit.MILLISECONDS.toNanos(waitMillis);
+        this.meterRegistry = meterRegistry;
+
+        Gauge.builder("capi.memory.budget.used", used, AtomicLong::get).register(meterRegistry);
+        Gauge.builder("capi.memory.budget.total", this, memoryBudget -> memoryBudget.totalBudget).register(meterRegistry);
+        this.rejections = Counter.builder("capi.memory.budget.rejected").register(meterRegistry);
+    }
+
+    /**
+     * Reserves the bytes if both budgets allow it right now, the Api id may be null for memory no Api owns.
+     */
+    public boolean tryReserve(String apiId, long bytes) {
+        if(bytes <= 0) {
+            return true;
+        }
+        if(used.addAndGet(bytes) > totalBudget) {
+            release(null, bytes);
+            return false;
+        }
+        if(apiId != null && getApiUsage(apiId).addAndGet(bytes) > apiBudget && apiBudget > 0) {
+            release(apiId, bytes);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Waits up to the configured time for the bytes to fit, counting a rejection when they don't.
+     */
+    public boolean reserve(String apiId, long bytes) throws InterruptedException {
+        if(tryReserve(apiId, bytes)) {
+            return true;
+        }
+        long deadline = System.nanoTime() + waitNanos;
+        waiters.incrementAndGet();
+        releaseLock.lock();
+        try {
+            long remaining;
+            while((remaining = deadline - System.nanoTime()) > 0) {
+                if(tryReserve(apiId, bytes)) {
+                    return true;
+                }
+                released.awaitNanos(remaining);
+            }
+        } finally {
+            releaseLock.unlock();
+            waiters.decrementAndGet();
+        }
+        if(tryReserve(apiId, bytes)) {
+            return true;
+        }
+        rejections.increment();
+        return false;
+    }
+
+    /**
+     * For bytes already in memory when they become known, they count against the budget even above it.
+     */
+    public void account(String apiId, long bytes) {
+        if(bytes <= 0) {
+            return;
+        }
+        used.addAndGet(bytes);
+        if(apiId != null) {
+            getApiUsage(apiId).addAndGet(bytes);
+        }
+    }
+
+    public void release(String apiId, long bytes) {
+        if(bytes <= 0) {
+            return;
+        }
+        used.addAndGet(-bytes);
+        if(apiId != null) {
+            getApiUsage(apiId).addAndGet(-bytes);
+        }
+        if(waiters.get() > 0) {
+            releaseLock.lock();
+            try {
+                released.signalAll();
+            } finally {
+                releaseLock.unlock();
+            }
+        }
+    }
+
+    private AtomicLong getApiUsage(String apiId) {
+        AtomicLong apiUsed = apiUsage.get(apiId);
+        if(apiUsed != null) {
+            return apiUsed;
+        }
+        return apiUsage.computeIfAbsent(apiId, key -> {
+            AtomicLong usage = new AtomicLong();
+            Gauge.builder("capi.memory.budget.api.used", usage, AtomicLong::get).tag("api", key).register(meterRegistry);
+            return usage;
+        });
+    }
+
+    public long getUsed() {
+        return used.get();
+    }
+
+    public long getApiUsed(String apiId) {
+        AtomicLong apiUsed = apiUsage.get(apiId);
+        return apiUsed == null ? 0 : apiUsed.get();
+    }
+
+    public long getTotalBudget() {
+        return totalBudget;
+    }
+}
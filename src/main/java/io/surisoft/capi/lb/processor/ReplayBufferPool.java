@@ -0,0 +1,54 @@
+package io.surisoft.capi.lb.processor;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@Component
+public class ReplayBufferPool {
+
+    private static final int MAXIMUM_POOLED_BUFFERS = 256;
+
+    private final int maxBodySize;
+    private final Queue<byte[]> pooledBuffers = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooledBufferCount = new AtomicInteger();
+
+    public ReplayBufferPool(@Value("${capi.failover.replay.max.body.size}") int maxBodySize) {
+        this.maxBodySize = maxBodySize;
+    }
+
+    /**
+     * Buffers are one byte larger than the maximum replayable body,
+     * so a full buffer tells us the body is too large to be replayed.
+     */
+    public byte[] acquire() {
+        byte[] buffer = pooledBuffers.poll();
+        if(buffer == null) {
+            return new byte[maxBodySize + 1];
+        }
+        pooledBufferCount.decrementAndGet();
+        return buffer;
+    }
+
+    public void release(byte[] buffer) {
+        if(buffer == null || buffer.length != maxBodySize + 1) {
+            return;
+        }
+        if(pooledBufferCount.incrementAndGet() <= MAXIMUM_POOLED_BUFFERS) {
+            pooledBuffers.offer(buffer);
+        } else {
+            pooledBufferCount.decrementAndGet();
+        }
+    }
+
+    public int getMaxBodySize() {
+        return maxBodySize;
+    }
+
+    public int getPooledBufferCount() {
+        return pooledBufferCount.get();
+    }
+}
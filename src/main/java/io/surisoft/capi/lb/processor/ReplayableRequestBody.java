@@ -0,0 +1,117 @@
+package io.surisoft.capi.lb.processor;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.StreamCache;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+
+/**
+ * Keeps the request body of an exchange in a form that can be sent again to another node,
+ * without copying the exchange. Stream cached bodies are simply reset, raw streams are read once
+ * into a pooled buffer, bodies larger than the pool buffer are sent once and are not retryable
+ * unless the Api spools them. The pooled buffer is reserved in the memory budget, without room for it the body is
+ * sent once as well. Bodiless requests and bodies already in memory are kept as they are, no buffer is taken.
+ */
+public class ReplayableRequestBody {
+
+    private final ReplayBufferPool replayBufferPool;
+    private final MemoryBudget memoryBudget;
+    private final String apiId;
+    private long reserved;
+    private StreamCache streamCache;
+    private Object body;
+    private byte[] buffer;
+    private int length;
+    private boolean replayable = true;
+
+    private ReplayableRequestBody(ReplayBufferPool replayBufferPool, MemoryBudget memoryBudget, String apiId) {
+        this.replayBufferPool = replayBufferPool;
+        this.memoryBudget = memoryBudget;
+        this.apiId = apiId;
+    }
+
+    public static ReplayableRequestBody capture(Exchange exchange, ReplayBufferPool replayBufferPool) throws IOException {
+        return capture(exchange, replayBufferPool, null, null);
+    }
+
+    public static ReplayableRequestBody capture(Exchange exchange, ReplayBufferPool replayBufferPool, MemoryBudget memoryBudget, String apiId) throws IOException {
+        ReplayableRequestBody requestBody = new ReplayableRequestBody(replayBufferPool, memoryBudget, apiId);
+        Object body = exchange.getIn().getBody();
+        requestBody.body = body;
+        if(body instanceof StreamCache) {
+            requestBody.streamCache = (StreamCache) body;
+            requestBody.replayable = body instanceof SpooledRequestBody || requestBody.streamCache.length() <= replayBufferPool.getMaxBodySize();
+        } else if(body instanceof InputStream && !MemoryAdmissionProcessor.isBodiless(exchange.getIn())) {
+            if(requestBody.reserveBuffer()) {
+                requestBody.readFrom(exchange, (InputStream) body);
+            } else {
+                requestBody.replayable = false;
+            }
+        }
+        return requestBody;
+    }
+
+    private boolean reserveBuffer() {
+        if(memoryBudget == null) {
+            return true;
+        }
+        long bufferSize = replayBufferPool.getMaxBodySize() + 1L;
+        if(!memoryBudget.tryReserve(apiId, bufferSize)) {
+            return false;
+        }
+        reserved = bufferSize;
+        return true;
+    }
+
+    private void readFrom(Exchange exchange, InputStream inputStream) throws IOException {
+        buffer = replayBufferPool.acquire();
+        int read;
+        while(length < buffer.length && (read = inputStream.read(buffer, length, buffer.length - length)) != -1) {
+            length += read;
+        }
+        if(length == buffer.length) {
+            // too large to keep, the already read bytes are sent followed by the rest of the stream
+            replayable = false;
+            exchange.getIn().setBody(new SequenceInputStream(new ByteArrayInputStream(buffer, 0, length), inputStream));
+        } else {
+            exchange.getIn().setBody(new ByteArrayInputStream(buffer, 0, length));
+        }
+    }
+
+    public void replay(Exchange exchange) {
+        if(streamCache != null) {
+            streamCache.reset();
+            exchange.getMessage().setBody(streamCache);
+        } else if(buffer != null) {
+            exchange.getMessage().setBody(new ByteArrayInputStream(buffer, 0, length));
+        } else {
+            // kept as it was, the failed reply may have taken its place
+            exchange.getMessage().setBody(body);
+        }
+    }
+
+    public boolean isReplayable() {
+        return replayable;
+    }
+
+    public void release() {
+        release(true);
+    }
+
+    /**
+     * A buffer still referenced by the exchange must not go back to the pool, its reservation is returned anyway.
+     */
+    public void release(boolean recycleBuffer) {
+        if(recycleBuffer) {
+            replayBufferPool.release(buffer);
+        }
+        buffer = null;
+        if(reserved > 0) {
+            memoryBudget.release(apiId, reserved);
+            reserved = 0;
+        }
+    }
+}
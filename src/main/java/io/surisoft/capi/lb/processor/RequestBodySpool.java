@@ -0,0 +1,113 @@
+package io.surisoft.capi.lb.processor;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Spools request bodies, and the responses of Apis buffering them, into pooled memory chunks, up to the Api threshold
+ * and while the spool and the gateway memory budgets allow, the rest of the body overflows to a temp file.
+ */
+@Component
+public class RequestBodySpool {
+
+    static final int CHUNK_SIZE = 16384;
+    private static final int MAXIMUM_POOLED_CHUNKS = 1024;
+
+    private final long memoryBudget;
+    private final int defaultMemoryThreshold;
+    private final Path spoolDirectory;
+    private final AtomicLong memoryInUse = new AtomicLong();
+    private final Queue<byte[]> pooledChunks = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooledChunkCount = new AtomicInteger();
+    private final Counter overflowCounter;
+    private final MemoryBudget gatewayMemoryBudget;
+
+    public RequestBodySpool(@Value("${capi.spool.memory.budget}") long memoryBudget,
+                            @Value("${capi.spool.memory.threshold}") int defaultMemoryThreshold,
+                            @Value("${capi.spool.directory}") String spoolDirectory,
+                            MemoryBudget gatewayMemoryBudget,
+                            CompositeMeterRegistry meterRegistry) throws IOException {
+        this.memoryBudget = memoryBudget;
+        this.gatewayMemoryBudget = gatewayMemoryBudget;
+        this.defaultMemoryThreshold = defaultMemoryThreshold;
+        this.spoolDirectory = Files.createDirectories(Paths.get(spoolDirectory));
+
+        Gauge.builder("capi.spool.memory.used", memoryInUse, AtomicLong::get).register(meterRegistry);
+        Gauge.builder("capi.spool.memory.budget", this, spool -> spool.memoryBudget).register(meterRegistry);
+        this.overflowCounter = Counter.builder("capi.spool.overflow").register(meterRegistry);
+    }
+
+    public SpooledRequestBody spool(InputStream inputStream, int memoryThreshold) throws IOException {
+        return spool(inputStream, memoryThreshold, null);
+    }
+
+    /**
+     * The memory chunks are charged to the given Api in the gateway memory budget.
+     */
+    public SpooledRequestBody spool(InputStream inputStream, int memoryThreshold, String apiId) throws IOException {
+        SpooledRequestBody spooledRequestBody = new SpooledRequestBody(this, apiId);
+        try {
+            spooledRequestBody.readFrom(inputStream, memoryThreshold > 0 ? memoryThreshold : defaultMemoryThreshold);
+        } catch(IOException e) {
+            spooledRequestBody.release();
+            throw e;
+        }
+        return spooledRequestBody;
+    }
+
+    /**
+     * Returns null when either memory budget is exhausted, the caller is expected to overflow to disk.
+     */
+    byte[] acquireChunk(String apiId) {
+        if(memoryInUse.addAndGet(CHUNK_SIZE) > memoryBudget) {
+            memoryInUse.addAndGet(-CHUNK_SIZE);
+            return null;
+        }
+        if(!gatewayMemoryBudget.tryReserve(apiId, CHUNK_SIZE)) {
+            memoryInUse.addAndGet(-CHUNK_SIZE);
+            return null;
+        }
+        byte[] chunk = pooledChunks.poll();
+        if(chunk == null) {
+            return new byte[CHUNK_SIZE];
+        }
+        pooledChunkCount.decrementAndGet();
+        return chunk;
+    }
+
+    void releaseChunk(byte[] chunk, String apiId) {
+        memoryInUse.addAndGet(-CHUNK_SIZE);
+        gatewayMemoryBudget.release(apiId, CHUNK_SIZE);
+        if(pooledChunkCount.incrementAndGet() <= MAXIMUM_POOLED_CHUNKS) {
+            pooledChunks.offer(chunk);
+        } else {
+            pooledChunkCount.decrementAndGet();
+        }
+    }
+
+    Path createSpoolFile() throws IOException {
+        overflowCounter.increment();
+        return Files.createTempFile(spoolDirectory, "capi-spool-", ".tmp");
+    }
+
+    public long getMemoryInUse() {
+        return memoryInUse.get();
+    }
+
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+}
@@ -0,0 +1,39 @@
+package io.surisoft.capi.lb.processor;
+
+import io.surisoft.capi.lb.schema.Api;
+import org.apache.camel.Exchange;
+import org.apache.camel.ExtendedExchange;
+import org.apache.camel.Processor;
+import org.apache.camel.support.SynchronizationAdapter;
+
+import java.io.InputStream;
+
+public class RequestSpoolingProcessor implements Processor {
+
+    private final RequestBodySpool requestBodySpool;
+    private final Api api;
+
+    public RequestSpoolingProcessor(RequestBodySpool requestBodySpool, Api api) {
+        this.requestBodySpool = requestBodySpool;
+        this.api = api;
+    }
+
+    @Override
+    public void process(Exchange exchange) throws Exception {
+        if(exchange.getIn().getBody() == null) {
+            return;
+        }
+        InputStream inputStream = exchange.getIn().getBody(InputStream.class);
+        if(inputStream == null) {
+            return;
+        }
+        SpooledRequestBody spooledRequestBody = requestBodySpool.spool(inputStream, api.getSpoolMemoryThreshold(), api.getId());
+        exchange.getIn().setBody(spooledRequestBody);
+        exchange.adapt(ExtendedExchange.class).addOnCompletion(new SynchronizationAdapter() {
+            @Override
+            public void onDone(Exchange exchange) {
+                spooledRequestBody.release();
+            }
+        });
+    }
+}
@@ -0,0 +1,50 @@
+package io.surisoft.capi.lb.processor;
+
+import io.surisoft.capi.lb.schema.Api;
+import io.surisoft.capi.lb.utils.Constants;
+import org.apache.camel.Exchange;
+import org.apache.camel.ExtendedExchange;
+import org.apache.camel.Message;
+import org.apache.camel.Processor;
+import org.apache.camel.support.SynchronizationAdapter;
+
+import java.io.InputStream;
+
+/**
+ * Reads the whole upstream response into the spool as fast as the backend sends it, so the upstream connection
+ * goes back to the pool (and the Api connection permit is released) before a slow client starts draining it.
+ */
+public class ResponseBufferingProcessor implements Processor {
+
+    private final RequestBodySpool requestBodySpool;
+    private final Api api;
+
+    public ResponseBufferingProcessor(RequestBodySpool requestBodySpool, Api api) {
+        this.requestBodySpool = requestBodySpool;
+        this.api = api;
+    }
+
+    @Override
+    public void process(Exchange exchange) throws Exception {
+        Message message = exchange.getMessage();
+        Object body = message.getBody();
+        if(body instanceof InputStream && !(body instanceof SpooledRequestBody)) {
+            SpooledRequestBody bufferedResponse;
+            // reading to the end releases the upstream connection, closing covers an early failure
+            try(InputStream upstreamResponse = (InputStream) body) {
+                bufferedResponse = requestBodySpool.spool(upstreamResponse, api.getSpoolMemoryThreshold(), api.getId());
+            }
+            message.setBody(bufferedResponse);
+            exchange.adapt(ExtendedExchange.class).addOnCompletion(new SynchronizationAdapter() {
+                @Override
+                public void onDone(Exchange exchange) {
+                    bufferedResponse.release();
+                }
+            });
+        }
+        Runnable connectionRelease = exchange.getProperty(Constants.UPSTREAM_CONNECTION_RELEASE, Runnable.class);
+        if(connectionRelease != null) {
+            connectionRelease.run();
+        }
+    }
+}
@@ -214,6 +214,8 @@ import org.apache.camel.support.ExchangeHelper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.util.Map;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -223,6 +225,9 @@ public class SessionChecker extends LoadBalancerSupport implements Traceable, Ca
 
     private CamelContext camelContext;
     private StickySessionCacheManager stickySessionCacheManager;
+    private ReplayBufferPool replayBufferPool;
+    private MemoryBudget memoryBudget;
+    private String apiId;
     private boolean isCookie;
     private String paramName;
 
@@ -233,8 +238,11 @@ public class SessionChecker extends LoadBalancerSupport implements Traceable, Ca
     private final AtomicInteger lastGoodIndex = new AtomicInteger(-1);
     private final ExceptionFailureStatistics statistics = new ExceptionFailureStatistics();
 
-    public SessionChecker(StickySessionCacheManager stickySessionCacheManager, String paramName, boolean isCookie) {
+    public SessionChecker(StickySessionCacheManager stickySessionCacheManager, ReplayBufferPool replayBufferPool, MemoryBudget memoryBudget, String apiId, String paramName, boolean isCookie) {
         this.stickySessionCacheManager = stickySessionCacheManager;
+        this.replayBufferPool = replayBufferPool;
+        this.memoryBudget = memoryBudget;
+        this.apiId = apiId;
         this.isCookie = isCookie;
         this.paramName = paramName;
         this.roundRobin = true;
@@ -274,8 +282,8 @@ public class SessionChecker extends LoadBalancerSupport implements Traceable, Ca
         }
 
         boolean answer = false;
-        String exchangeCode = exchange.getIn().getHeader(Exchange.HTTP_RESPONSE_CODE) + "";
-        if(exchangeCode.startsWith("5")) {
+        Integer responseCode = exchange.getMessage().getHeader(Exchange.HTTP_RESPONSE_CODE, Integer.class);
+        if(responseCode != null && responseCode >= 500 && responseCode < 600) {
             if(firstTime) {
                answer = true;
             } else {
@@ -341,11 +349,12 @@ public class SessionChecker extends LoadBalancerSupport implements Traceable, Ca
         int index;
         int attempts;
         boolean firstTime = false;
+        boolean attempted = false;
         StickySession stickySession = null;
 
-        // use a copy of the original exchange before failover to avoid populating side effects
-        // directly into the original exchange
-        Exchange copy;
+        // the original exchange is sent as is, only the request headers and body are kept so they can be replayed on failover
+        Map<String, Object> requestHeaders;
+        ReplayableRequestBody requestBody;
 
         public State(Exchange exchange, AsyncCallback callback, AsyncProcessor[] processors) {
             this.exchange = exchange;
@@ -375,16 +384,14 @@ public class SessionChecker extends LoadBalancerSupport implements Traceable, Ca
         }
 
         public void run() {
-            if (copy != null && !shouldFailOver(copy, firstTime, stickySession)) {
+            if (attempted && !shouldFailOver(exchange, firstTime, stickySession)) {
                 // remember last good index
                 lastGoodIndex.set(index);
-                // and copy the current result to original so it will contain this result of this eip
-                ExchangeHelper.copyResults(exchange, copy);
                 if (log.isDebugEnabled()) {
                     log.debug("Failover complete for exchangeId: {} >>> {}", exchange.getExchangeId(), exchange);
                 }
                 persistProcessedIndex(stickySession);
-                callback.done(false);
+                done();
                 return;
             }
 
@@ -395,17 +402,21 @@ public class SessionChecker extends LoadBalancerSupport implements Traceable, Ca
                     exchange.setException(new RejectedExecutionException());
                 }
                 // we cannot process so invoke callback
-                callback.done(false);
+                done();
                 return;
             }
 
-            if (copy != null) {
+            if (attempted) {
+                if (!requestBody.isReplayable()) {
+                    log.debug("Request body of exchangeId: {} is too large to be replayed, breaking out of failover", exchange.getExchangeId());
+                    done();
+                    return;
+                }
                 attempts++;
                 // are we exhausted by attempts?
                 if (maximumFailoverAttempts > -1 && attempts > maximumFailoverAttempts) {
                     log.debug("Breaking out of failover after {} failover attempts", attempts);
-                    ExchangeHelper.copyResults(exchange, copy);
-                    callback.done(false);
+                    done();
                     return;
                 }
 
@@ -422,21 +433,39 @@ public class SessionChecker extends LoadBalancerSupport implements Traceable, Ca
                 } else {
                     // no more processors to try
                     log.trace("Breaking out of failover as we reached the end of endpoints to use for failover");
-                    ExchangeHelper.copyResults(exchange, copy);
-                    callback.done(false);
+                    done();
                     return;
                 }
             }
 
-            // try again but copy original exchange before we failover
-            copy = prepareExchangeForFailover(exchange);
+            try {
+                if (attempted) {
+                    prepareExchangeForFailover(exchange, requestHeaders, requestBody);
+                } else {
+                    requestHeaders = copyHeaders(exchange, exchange.getIn().getHeaders());
+                    requestBody = ReplayableRequestBody.capture(exchange, replayBufferPool, memoryBudget, apiId);
+                }
+            } catch (IOException e) {
+                exchange.setException(e);
+                done();
+                return;
+            }
+            attempted = true;
             AsyncProcessor processor = processors[index];
 
             // process the exchange
-            log.debug("Processing failover at attempt {} for {}", attempts, copy);
-            processor.process(copy, doneSync -> exchange.getContext().adapt(ExtendedCamelContext.class).getReactiveExecutor()
+            log.debug("Processing failover at attempt {} for {}", attempts, exchange);
+            processor.process(exchange, doneSync -> exchange.getContext().adapt(ExtendedCamelContext.class).getReactiveExecutor()
                     .schedule(this::run));
         }
+
+        private void done() {
+            // a failed exchange is still routed to the error endpoint with its body, so the buffer is not reused
+            if (requestBody != null) {
+                requestBody.release(exchange.getException() == null);
+            }
+            callback.done(false);
+        }
     }
 
     @Override
@@ -449,9 +478,18 @@ public class SessionChecker extends LoadBalancerSupport implements Traceable, Ca
         this.camelContext = camelContext;
     }
 
-    protected Exchange prepareExchangeForFailover(Exchange exchange) {
-        // use a copy of the exchange to avoid side effects on the original exchange
-        return ExchangeHelper.createCopy(exchange, true);
+    protected void prepareExchangeForFailover(Exchange exchange, Map<String, Object> requestHeaders, ReplayableRequestBody requestBody) {
+        // the reply of the failed node becomes the current message, whichever one the producer wrote it to,
+        // and is replaced by the request as it was first sent
+        exchange.setException(null);
+        exchange.adapt(ExtendedExchange.class).setRedeliveryExhausted(false);
+        ExchangeHelper.prepareOutToIn(exchange);
+        exchange.getMessage().setHeaders(copyHeaders(exchange, requestHeaders));
+        requestBody.replay(exchange);
+    }
+
+    private Map<String, Object> copyHeaders(Exchange exchange, Map<String, Object> headers) {
+        return exchange.getContext().adapt(ExtendedCamelContext.class).getHeadersMapFactory().newMap(headers);
     }
 
     @Override
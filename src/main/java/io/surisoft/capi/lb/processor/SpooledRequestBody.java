@@ -0,0 +1,232 @@
+package io.surisoft.capi.lb.processor;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.ExtendedExchange;
+import org.apache.camel.StreamCache;
+import org.apache.camel.support.SynchronizationAdapter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Request body kept in memory chunks followed by an optional memory mapped overflow file.
+ * It can be read again after a reset, so failover can send it to another node at any size.
+ * Closing the stream does nothing, the storage is freed once {@link #release()} was called on this body and on every copy.
+ */
+public class SpooledRequestBody extends InputStream implements StreamCache {
+
+    private static final Logger log = LoggerFactory.getLogger(SpooledRequestBody.class);
+    private static final long MAXIMUM_OVERFLOW_LENGTH = Integer.MAX_VALUE;
+
+    private final Storage storage;
+    private final AtomicBoolean released = new AtomicBoolean();
+    private long position;
+
+    SpooledRequestBody(RequestBodySpool requestBodySpool, String apiId) {
+        this.storage = new Storage(requestBodySpool, apiId);
+    }
+
+    private SpooledRequestBody(Storage storage) {
+        this.storage = storage;
+    }
+
+    void readFrom(InputStream inputStream, int memoryThreshold) throws IOException {
+        storage.readFrom(inputStream, memoryThreshold);
+    }
+
+    @Override
+    public int read() {
+        if(position >= storage.length) {
+            return -1;
+        }
+        int value;
+        if(position < storage.memoryLength) {
+            value = storage.chunks.get((int) (position / RequestBodySpool.CHUNK_SIZE))[(int) (position % RequestBodySpool.CHUNK_SIZE)] & 0xff;
+        } else {
+            value = storage.overflowBuffer.get((int) (position - storage.memoryLength)) & 0xff;
+        }
+        position++;
+        return value;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int len) {
+        if(len == 0) {
+            return 0;
+        }
+        if(position >= storage.length) {
+            return -1;
+        }
+        int count;
+        if(position < storage.memoryLength) {
+            int chunkOffset = (int) (position % RequestBodySpool.CHUNK_SIZE);
+            count = (int) Math.min(len, Math.min(RequestBodySpool.CHUNK_SIZE - chunkOffset, storage.memoryLength - position));
+            System.arraycopy(storage.chunks.get((int) (position / RequestBodySpool.CHUNK_SIZE)), chunkOffset, buffer, offset, count);
+        } else {
+            count = (int) Math.min(len, storage.length - position);
+            storage.overflowBuffer.get((int) (position - storage.memoryLength), buffer, offset, count);
+        }
+        position += count;
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return (int) Math.min(Integer.MAX_VALUE, storage.length - position);
+    }
+
+    @Override
+    public void close() {
+        // storage is kept until release, so the body can be replayed
+    }
+
+    @Override
+    public void reset() {
+        position = 0;
+    }
+
+    @Override
+    public void writeTo(OutputStream outputStream) throws IOException {
+        long remaining = storage.memoryLength;
+        for(byte[] chunk : storage.chunks) {
+            int count = (int) Math.min(chunk.length, remaining);
+            outputStream.write(chunk, 0, count);
+            remaining -= count;
+        }
+        if(storage.overflowBuffer != null) {
+            Channels.newChannel(outputStream).write(storage.overflowBuffer.duplicate().rewind());
+        }
+    }
+
+    /**
+     * The copy shares the storage and holds a reference of its own, released with the exchange it was made for.
+     */
+    @Override
+    public StreamCache copy(Exchange exchange) {
+        storage.retain();
+        SpooledRequestBody copy = new SpooledRequestBody(storage);
+        if(exchange != null) {
+            exchange.adapt(ExtendedExchange.class).addOnCompletion(new SynchronizationAdapter() {
+                @Override
+                public void onDone(Exchange exchange) {
+                    copy.release();
+                }
+            });
+        }
+        return copy;
+    }
+
+    @Override
+    public boolean inMemory() {
+        return storage.overflowBuffer == null;
+    }
+
+    @Override
+    public long length() {
+        return storage.length;
+    }
+
+    public long position() {
+        return position;
+    }
+
+    public void release() {
+        if(released.compareAndSet(false, true)) {
+            storage.release();
+        }
+    }
+
+    private static class Storage {
+        private final RequestBodySpool requestBodySpool;
+        private final String apiId;
+        private final AtomicInteger references = new AtomicInteger(1);
+        private final List<byte[]> chunks = new ArrayList<>();
+        private long memoryLength;
+        private Path overflowFile;
+        private MappedByteBuffer overflowBuffer;
+        private long length;
+
+        private Storage(RequestBodySpool requestBodySpool, String apiId) {
+            this.requestBodySpool = requestBodySpool;
+            this.apiId = apiId;
+        }
+
+        private void readFrom(InputStream inputStream, int memoryThreshold) throws IOException {
+            while(memoryLength < memoryThreshold) {
+                byte[] chunk = requestBodySpool.acquireChunk(apiId);
+                if(chunk == null) {
+                    break;
+                }
+                chunks.add(chunk);
+                int wanted = (int) Math.min(chunk.length, memoryThreshold - memoryLength);
+                int read = inputStream.readNBytes(chunk, 0, wanted);
+                memoryLength += read;
+                if(read < wanted) {
+                    length = memoryLength;
+                    return;
+                }
+            }
+
+            overflowFile = requestBodySpool.createSpoolFile();
+            long overflowLength = 0;
+            byte[] buffer = new byte[RequestBodySpool.CHUNK_SIZE];
+            try(OutputStream outputStream = Files.newOutputStream(overflowFile)) {
+                int read;
+                while((read = inputStream.read(buffer)) != -1) {
+                    overflowLength += read;
+                    // checked before writing, a body that can't be mapped never fills the disk
+                    if(overflowLength > MAXIMUM_OVERFLOW_LENGTH) {
+                        throw new IOException("Request body too large to be spooled");
+                    }
+                    outputStream.write(buffer, 0, read);
+                }
+            }
+            if(overflowLength > 0) {
+                try(FileChannel fileChannel = FileChannel.open(overflowFile, StandardOpenOption.READ)) {
+                    overflowBuffer = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, overflowLength);
+                }
+            }
+            length = memoryLength + overflowLength;
+        }
+
+        private void retain() {
+            if(references.getAndIncrement() <= 0) {
+                references.decrementAndGet();
+                throw new IllegalStateException("Spooled body already released");
+            }
+        }
+
+        private void release() {
+            if(references.decrementAndGet() != 0) {
+                return;
+            }
+            for(byte[] chunk : chunks) {
+                requestBodySpool.releaseChunk(chunk, apiId);
+            }
+            chunks.clear();
+            // the mapping itself goes away with the buffer, the file can be removed right away
+            overflowBuffer = null;
+            if(overflowFile != null) {
+                try {
+                    Files.deleteIfExists(overflowFile);
+                } catch(IOException e) {
+                    log.warn("Could not delete spool file {}: {}", overflowFile, e.getMessage());
+                }
+                overflowFile = null;
+            }
+        }
+    }
+}
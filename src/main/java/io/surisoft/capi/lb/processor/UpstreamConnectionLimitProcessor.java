@@ -0,0 +1,51 @@
+package io.surisoft.capi.lb.processor;
+
+import io.surisoft.capi.lb.exception.UpstreamConnectionLimitException;
+import io.surisoft.capi.lb.schema.Api;
+import io.surisoft.capi.lb.service.UpstreamConnectionPoolManager;
+import io.surisoft.capi.lb.utils.Constants;
+import org.apache.camel.Exchange;
+import org.apache.camel.ExtendedExchange;
+import org.apache.camel.Processor;
+import org.apache.camel.support.SynchronizationAdapter;
+import org.springframework.http.HttpStatus;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class UpstreamConnectionLimitProcessor implements Processor {
+
+    private final UpstreamConnectionPoolManager upstreamConnectionPoolManager;
+    private final Api api;
+
+    public UpstreamConnectionLimitProcessor(UpstreamConnectionPoolManager upstreamConnectionPoolManager, Api api) {
+        this.upstreamConnectionPoolManager = upstreamConnectionPoolManager;
+        this.api = api;
+    }
+
+    @Override
+    public void process(Exchange exchange) throws Exception {
+        Semaphore permits = upstreamConnectionPoolManager.acquireApiConnection(api);
+        if(permits == null) {
+            String message = "All connections to your api are in use, please try again later.";
+            exchange.getIn().setHeader(Constants.REASON_CODE_HEADER, HttpStatus.SERVICE_UNAVAILABLE.value());
+            exchange.getIn().setHeader(Constants.REASON_MESSAGE_HEADER, message);
+            exchange.setException(new UpstreamConnectionLimitException(message));
+            return;
+        }
+        // released at the latest when the exchange is done, earlier when the response is buffered
+        AtomicBoolean released = new AtomicBoolean();
+        Runnable connectionRelease = () -> {
+            if(released.compareAndSet(false, true)) {
+                permits.release();
+            }
+        };
+        exchange.setProperty(Constants.UPSTREAM_CONNECTION_RELEASE, connectionRelease);
+        exchange.adapt(ExtendedExchange.class).addOnCompletion(new SynchronizationAdapter() {
+            @Override
+            public void onDone(Exchange exchange) {
+                connectionRelease.run();
+            }
+        });
+    }
+}
@@ -242,6 +242,17 @@ public class Api implements Serializable {
     private boolean zipkinShowTraceId;
     private String zipkinServiceName;
     private String authorizationEndpointPublicKey;
+    private int maxConnections;
+    private boolean http2Enabled;
+    private boolean streamingEnabled;
+    private boolean spoolingEnabled;
+    private int spoolMemoryThreshold;
+    private String clientIdentity;
+    private boolean responseBufferingEnabled;
+    private int priority;
+    private int tcpPort;
+    private boolean websocketEnabled;
+    private boolean grpcEnabled;
 
     public String getId() {
         return id;
@@ -426,4 +437,92 @@ public class Api implements Serializable {
     public void setAuthorizationEndpointPublicKey(String authorizationEndpointPublicKey) {
         this.authorizationEndpointPublicKey = authorizationEndpointPublicKey;
     }
-}
\ No newline at end of file
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    public boolean isHttp2Enabled() {
+        return http2Enabled;
+    }
+
+    public void setHttp2Enabled(boolean http2Enabled) {
+        this.http2Enabled = http2Enabled;
+    }
+
+    public boolean isStreamingEnabled() {
+        return streamingEnabled;
+    }
+
+    public void setStreamingEnabled(boolean streamingEnabled) {
+        this.streamingEnabled = streamingEnabled;
+    }
+
+    public boolean isSpoolingEnabled() {
+        return spoolingEnabled;
+    }
+
+    public void setSpoolingEnabled(boolean spoolingEnabled) {
+        this.spoolingEnabled = spoolingEnabled;
+    }
+
+    public int getSpoolMemoryThreshold() {
+        return spoolMemoryThreshold;
+    }
+
+    public void setSpoolMemoryThreshold(int spoolMemoryThreshold) {
+        this.spoolMemoryThreshold = spoolMemoryThreshold;
+    }
+
+    public String getClientIdentity() {
+        return clientIdentity;
+    }
+
+    public void setClientIdentity(String clientIdentity) {
+        this.clientIdentity = clientIdentity;
+    }
+
+    public boolean isResponseBufferingEnabled() {
+        return responseBufferingEnabled;
+    }
+
+    public void setResponseBufferingEnabled(boolean responseBufferingEnabled) {
+        this.responseBufferingEnabled = responseBufferingEnabled;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+
+    public int getTcpPort() {
+        return tcpPort;
+    }
+
+    public void setTcpPort(int tcpPort) {
+        this.tcpPort = tcpPort;
+    }
+
+    public boolean isWebsocketEnabled() {
+        return websocketEnabled;
+    }
+
+    public void setWebsocketEnabled(boolean websocketEnabled) {
+        this.websocketEnabled = websocketEnabled;
+    }
+
+    public boolean isGrpcEnabled() {
+        return grpcEnabled;
+    }
+
+    public void setGrpcEnabled(boolean grpcEnabled) {
+        this.grpcEnabled = grpcEnabled;
+    }
+}
@@ -205,13 +205,17 @@
 
 package io.surisoft.capi.lb.schema;
 
+import io.surisoft.capi.lb.utils.Constants;
+
 public enum HttpProtocol {
-    HTTP("http"),
-    HTTPS("https");
+    HTTP("http", Constants.H2C_SCHEME),
+    HTTPS("https", Constants.HTTP2_SCHEME);
 
     private String protocol;
-    HttpProtocol(String protocol) {
+    private final String http2Protocol;
+    HttpProtocol(String protocol, String http2Protocol) {
         this.protocol = protocol;
+        this.http2Protocol = http2Protocol;
     }
 
     public String getProtocol() {
@@ -221,4 +225,8 @@ public enum HttpProtocol {
     public void setProtocol(String protocol) {
         this.protocol = protocol;
     }
+
+    public String getHttp2Protocol() {
+        return this.http2Protocol;
+    }
 }
@@ -225,6 +225,10 @@ public class Mapping implements Serializable {
     @Id
     private int port = -1;
     private boolean ingress;
+    private boolean http2Enabled;
+    private boolean expandAddresses;
+    private String clientIdentity;
+    private String unixSocketPath;
 
     public String getRootContext() {
         return rootContext;
@@ -258,6 +262,38 @@ public class Mapping implements Serializable {
         this.ingress = ingress;
     }
 
+    public boolean isHttp2Enabled() {
+        return http2Enabled;
+    }
+
+    public void setHttp2Enabled(boolean http2Enabled) {
+        this.http2Enabled = http2Enabled;
+    }
+
+    public boolean isExpandAddresses() {
+        return expandAddresses;
+    }
+
+    public void setExpandAddresses(boolean expandAddresses) {
+        this.expandAddresses = expandAddresses;
+    }
+
+    public String getClientIdentity() {
+        return clientIdentity;
+    }
+
+    public void setClientIdentity(String clientIdentity) {
+        this.clientIdentity = clientIdentity;
+    }
+
+    public String getUnixSocketPath() {
+        return unixSocketPath;
+    }
+
+    public void setUnixSocketPath(String unixSocketPath) {
+        this.unixSocketPath = unixSocketPath;
+    }
+
     @Override
     public boolean equals(Object o) {
         if(o == null || getClass() != o.getClass()) return false;
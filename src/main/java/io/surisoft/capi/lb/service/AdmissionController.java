@@ -0,0 +1,180 @@
+package io.surisoft.capi.lb.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import io.surisoft.capi.lb.cache.ApiResolver;
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.servlet.handlers.ServletRequestContext;
+import io.undertow.util.AttachmentKey;
+import io.undertow.util.Headers;
+import io.undertow.util.StatusCodes;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Admission control in front of the worker pool. The time requests wait for a worker is watched the CoDel way: once
+ * even the shortest wait of an interval is above the target, the queue is standing and requests waiting longer than
+ * the target are shed, otherwise only the ones waiting longer than a whole interval are. Api priority stretches that
+ * allowance, low priority Apis are refused before being queued while the queue stands, and requests over the
+ * in-flight limit are refused unless their Api has a higher priority.
+ * Only the requests to the CAPI context are admitted, the manager, health and metrics endpoints are never shed.
+ */
+public class AdmissionController {
+
+    public static final String REASON_IN_FLIGHT = "in-flight";
+    public static final String REASON_OVERLOAD = "overload";
+    public static final String REASON_QUEUE_WAIT = "queue-wait";
+    private static final AttachmentKey<Long> QUEUED_AT = AttachmentKey.create(Long.class);
+    private static final byte[] OVERLOADED_BODY = "{\"errorMessage\":\"Service overloaded, retry later\",\"errorCode\":503}".getBytes(StandardCharsets.UTF_8);
+    private static final String CONTENT_TYPE = "application/json";
+
+    private final ApiResolver apiResolver;
+    private final long targetNanos;
+    private final long intervalNanos;
+    private final int maxInFlight;
+    private final String retryAfter;
+    private final ByteBuffer overloadedBody = ByteBuffer.allocateDirect(OVERLOADED_BODY.length).put(OVERLOADED_BODY).flip().asReadOnlyBuffer();
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong intervalMinWait = new AtomicLong(Long.MAX_VALUE);
+    private volatile long intervalStart = System.nanoTime();
+    private volatile boolean overloaded;
+
+    private final Timer queueWait;
+    private final Counter inFlightRejections;
+    private final Counter overloadRejections;
+    private final Counter queueWaitRejections;
+
+    public AdmissionController(ApiResolver apiResolver, long targetMillis, long intervalMillis, int maxInFlight, int retryAfterSeconds, CompositeMeterRegistry meterRegistry) {
+        this.apiResolver = apiResolver;
+        this.targetNanos = TimeUnit.MILLISECONDS.toNanos(targetMillis);
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        this.maxInFlight = maxInFlight;
+        this.retryAfter = String.valueOf(retryAfterSeconds);
+        Gauge.builder("capi.admission.in.flight", inFlight, AtomicInteger::get).register(meterRegistry);
+        Gauge.builder("capi.admission.overloaded", this, controller -> controller.overloaded ? 1 : 0).register(meterRegistry);
+        this.queueWait = Timer.builder("capi.admission.queue.wait").register(meterRegistry);
+        this.inFlightRejections = Counter.builder("capi.admission.shed").tag("reason", REASON_IN_FLIGHT).register(meterRegistry);
+        this.overloadRejections = Counter.builder("capi.admission.shed").tag("reason", REASON_OVERLOAD).register(meterRegistry);
+        this.queueWaitRejections = Counter.builder("capi.admission.shed").tag("reason", REASON_QUEUE_WAIT).register(meterRegistry);
+    }
+
+    /**
+     * Runs on the IO thread, before the request is queued for a worker.
+     */
+    public HttpHandler admissionHandler(HttpHandler next) {
+        return exchange -> {
+            if(!isProxied(exchange)) {
+                next.handleRequest(exchange);
+                return;
+            }
+            int requestsInFlight = inFlight.get();
+            if(maxInFlight > 0 && requestsInFlight >= maxInFlight && getPriority(exchange) <= 0) {
+                inFlightRejections.increment();
+                shedBeforeQueue(exchange);
+                return;
+            }
+            if(overloaded && getPriority(exchange) < 0) {
+                overloadRejections.increment();
+                shedBeforeQueue(exchange);
+                return;
+            }
+            inFlight.incrementAndGet();
+            exchange.addExchangeCompleteListener((completedExchange, nextListener) -> {
+                inFlight.decrementAndGet();
+                nextListener.proceed();
+            });
+            exchange.putAttachment(QUEUED_AT, System.nanoTime());
+            next.handleRequest(exchange);
+        };
+    }
+
+    /**
+     * Runs on the worker thread, once the request got out of the queue.
+     */
+    public HttpHandler dequeueHandler(HttpHandler next) {
+        return exchange -> {
+            Long queuedAt = exchange.getAttachment(QUEUED_AT);
+            if(queuedAt != null) {
+                long now = System.nanoTime();
+                long wait = now - queuedAt;
+                queueWait.record(wait, TimeUnit.NANOSECONDS);
+                updateState(wait, now);
+                if(wait > (overloaded ? targetNanos : intervalNanos) && wait > allowedWait(getPriority(exchange))) {
+                    queueWaitRejections.increment();
+                    shedAfterQueue(exchange);
+                    return;
+                }
+            }
+            next.handleRequest(exchange);
+        };
+    }
+
+    private void updateState(long wait, long now) {
+        intervalMinWait.accumulateAndGet(wait, Math::min);
+        if(now - intervalStart >= intervalNanos) {
+            synchronized(this) {
+                if(now - intervalStart >= intervalNanos) {
+                    overloaded = intervalMinWait.getAndSet(Long.MAX_VALUE) > targetNanos;
+                    intervalStart = now;
+                }
+            }
+        }
+    }
+
+    private long allowedWait(int priority) {
+        return (overloaded ? targetNanos : intervalNanos) * (1 + Math.max(priority, 0));
+    }
+
+    private boolean isProxied(HttpServerExchange exchange) {
+        String path = exchange.getRequestPath();
+        return path.startsWith(apiResolver.getCapiContext() + "/");
+    }
+
+    /**
+     * Only looked up when a request is close to being shed, healthy traffic never pays for it.
+     */
+    private int getPriority(HttpServerExchange exchange) {
+        ApiResolver.ApiMatch apiMatch = apiResolver.resolve(exchange.getRequestPath(), exchange.getRequestMethod().toString());
+        return apiMatch == null ? 0 : apiMatch.getApi().getPriority();
+    }
+
+    public boolean isOverloaded() {
+        return overloaded;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    private void shedBeforeQueue(HttpServerExchange exchange) {
+        exchange.setStatusCode(StatusCodes.SERVICE_UNAVAILABLE);
+        exchange.getResponseHeaders().put(Headers.RETRY_AFTER, retryAfter);
+        exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, CONTENT_TYPE);
+        exchange.getResponseHeaders().put(Headers.CONTENT_LENGTH, OVERLOADED_BODY.length);
+        exchange.getResponseSender().send(overloadedBody.duplicate());
+    }
+
+    private void shedAfterQueue(HttpServerExchange exchange) throws IOException {
+        ServletRequestContext servletRequestContext = exchange.getAttachment(ServletRequestContext.ATTACHMENT_KEY);
+        if(servletRequestContext == null) {
+            shedBeforeQueue(exchange);
+            return;
+        }
+        HttpServletResponse response = (HttpServletResponse) servletRequestContext.getServletResponse();
+        response.setStatus(StatusCodes.SERVICE_UNAVAILABLE);
+        response.setHeader(Headers.RETRY_AFTER_STRING, retryAfter);
+        response.setContentType(CONTENT_TYPE);
+        response.setContentLength(OVERLOADED_BODY.length);
+        response.getOutputStream().write(OVERLOADED_BODY);
+    }
+}
@@ -0,0 +1,205 @@
+package io.surisoft.capi.lb.service;
+
+import org.apache.camel.util.concurrent.Rejectable;
+import org.apache.camel.util.concurrent.ThreadPoolRejectedPolicy;
+
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A new thread for every task, like a thread per task executor, but with at most maxRunning tasks running and at
+ * most maxQueued waiting for one of them to finish. Virtual threads cost next to nothing to start, what they run does
+ * not: the bound keeps the node calls in flight, and the request memory behind them, where a worker pool would.
+ * Over the queue the rejected policy applies, the way it does on a Camel thread pool. A maxQueued of 0 or less
+ * hands the task over or rejects it, as Camel does with such a queue size.
+ */
+public class BoundedThreadPerTaskExecutor extends AbstractExecutorService {
+
+    private final ThreadFactory threadFactory;
+    private final Semaphore permits;
+    private final int maxRunning;
+    private final int maxQueued;
+    private final ThreadPoolRejectedPolicy rejectedPolicy;
+    private final Deque<Runnable> waiting = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger running = new AtomicInteger();
+    private final CountDownLatch terminated = new CountDownLatch(1);
+    private volatile boolean shutdown;
+
+    public BoundedThreadPerTaskExecutor(ThreadFactory threadFactory, int maxRunning, int maxQueued, ThreadPoolRejectedPolicy rejectedPolicy) {
+        if(maxRunning <= 0) {
+            throw new IllegalArgumentException("maxRunning must be > 0, was " + maxRunning);
+        }
+        this.threadFactory = threadFactory;
+        this.permits = new Semaphore(maxRunning);
+        this.maxRunning = maxRunning;
+        this.maxQueued = maxQueued;
+        this.rejectedPolicy = rejectedPolicy != null ? rejectedPolicy : ThreadPoolRejectedPolicy.Abort;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        if(shutdown) {
+            throw new RejectedExecutionException("Task " + task + " rejected from " + this + ", shut down");
+        }
+        // past the waiting tasks only when there are none, a single thread executor keeps its order
+        if(waiting.isEmpty() && permits.tryAcquire()) {
+            running.incrementAndGet();
+            start(task);
+            return;
+        }
+        if(!enqueue(task)) {
+            rejected(task);
+            return;
+        }
+        // a task may have finished between the failed acquire and the enqueue, with nothing left to drain for it
+        drain();
+    }
+
+    public int getRunning() {
+        return running.get();
+    }
+
+    public int getQueued() {
+        return queued.get();
+    }
+
+    public int getMaxRunning() {
+        return maxRunning;
+    }
+
+    @Override
+    public void shutdown() {
+        shutdown = true;
+        terminateIfIdle();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        shutdown = true;
+        List<Runnable> notStarted = new ArrayList<>();
+        Runnable task;
+        while((task = waiting.poll()) != null) {
+            queued.decrementAndGet();
+            notStarted.add(task);
+        }
+        terminateIfIdle();
+        return notStarted;
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return terminated.getCount() == 0;
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return terminated.await(timeout, unit);
+    }
+
+    @Override
+    public String toString() {
+        return "BoundedThreadPerTaskExecutor[running=" + running.get() + "/" + maxRunning + ", queued=" + queued.get()
+                + "/" + maxQueued + ", rejectedPolicy=" + rejectedPolicy + "]";
+    }
+
+    private boolean enqueue(Runnable task) {
+        if(queued.incrementAndGet() > maxQueued) {
+            queued.decrementAndGet();
+            return false;
+        }
+        waiting.add(task);
+        return true;
+    }
+
+    private void rejected(Runnable task) {
+        switch(rejectedPolicy) {
+            case CallerRuns -> task.run();
+            case Discard -> reject(task);
+            case DiscardOldest -> {
+                Runnable oldest = waiting.poll();
+                if(oldest == null) {
+                    reject(task);
+                    return;
+                }
+                queued.decrementAndGet();
+                reject(oldest);
+                execute(task);
+            }
+            default -> {
+                if(task instanceof Rejectable) {
+                    ((Rejectable) task).reject();
+                } else {
+                    throw new RejectedExecutionException("Task " + task + " rejected from " + this);
+                }
+            }
+        }
+    }
+
+    private void reject(Runnable task) {
+        if(task instanceof Rejectable) {
+            ((Rejectable) task).reject();
+        }
+    }
+
+    /**
+     * The permit is taken and the task counted as running by the caller.
+     */
+    private void start(Runnable task) {
+        try {
+            threadFactory.newThread(() -> {
+                try {
+                    task.run();
+                } finally {
+                    finished();
+                }
+            }).start();
+        } catch(RuntimeException | Error e) {
+            finished();
+            throw e;
+        }
+    }
+
+    private void finished() {
+        running.decrementAndGet();
+        permits.release();
+        drain();
+        terminateIfIdle();
+    }
+
+    private void drain() {
+        while(!waiting.isEmpty() && permits.tryAcquire()) {
+            // counted before the poll, an empty queue with nothing running would read as terminated
+            running.incrementAndGet();
+            Runnable next = waiting.poll();
+            if(next == null) {
+                running.decrementAndGet();
+                permits.release();
+                terminateIfIdle();
+                return;
+            }
+            queued.decrementAndGet();
+            start(next);
+        }
+    }
+
+    private void terminateIfIdle() {
+        if(shutdown && running.get() == 0 && waiting.isEmpty()) {
+            terminated.countDown();
+        }
+    }
+}
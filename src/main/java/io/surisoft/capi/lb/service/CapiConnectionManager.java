@@ -0,0 +1,156 @@
+package io.surisoft.capi.lb.service;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import org.apache.http.HttpClientConnection;
+import org.apache.http.config.Registry;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.conn.ManagedHttpClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+
+import javax.net.ssl.SSLSession;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Upstream connection pool shared by the http and https components, connections are pooled per destination
+ * (scheme, host and port) no matter which Api is using them.
+ * Apis presenting a client certificate get a pool of their own per client identity.
+ */
+public class CapiConnectionManager extends PoolingHttpClientConnectionManager {
+
+    private final String identity;
+    private final CompositeMeterRegistry meterRegistry;
+    private final Map<HttpRoute, DestinationMetrics> destinationMetrics = new ConcurrentHashMap<>();
+    private volatile long retiredBefore;
+
+    public CapiConnectionManager(Registry<ConnectionSocketFactory> socketFactoryRegistry, DnsResolver dnsResolver, long timeToLive, String identity, CompositeMeterRegistry meterRegistry) {
+        super(socketFactoryRegistry, null, null, dnsResolver, timeToLive, TimeUnit.MILLISECONDS);
+        this.identity = identity;
+        this.meterRegistry = meterRegistry;
+    }
+
+    @Override
+    public ConnectionRequest requestConnection(HttpRoute route, Object state) {
+        ConnectionRequest connectionRequest = super.requestConnection(route, state);
+        Timer acquireTimer = destinationMetrics.computeIfAbsent(route, this::registerDestinationMetrics).acquireTimer;
+        return new ConnectionRequest() {
+            @Override
+            public HttpClientConnection get(long timeout, TimeUnit timeUnit) throws InterruptedException, ExecutionException, ConnectionPoolTimeoutException {
+                long start = System.nanoTime();
+                try {
+                    return connectionRequest.get(timeout, timeUnit);
+                } finally {
+                    acquireTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                }
+            }
+
+            @Override
+            public boolean cancel() {
+                return connectionRequest.cancel();
+            }
+        };
+    }
+
+    /**
+     * Connections whose TLS session was set up before a retirement are closed instead of going back to the pool.
+     */
+    @Override
+    public void releaseConnection(HttpClientConnection managedConn, Object state, long keepalive, TimeUnit timeUnit) {
+        if(retiredBefore > 0 && managedConn.isOpen()) {
+            SSLSession sslSession = ((ManagedHttpClientConnection) managedConn).getSSLSession();
+            if(sslSession != null && sslSession.getCreationTime() <= retiredBefore) {
+                try {
+                    managedConn.close();
+                } catch(IOException e) {
+                    // closed anyway, the pool discards it
+                }
+            }
+        }
+        super.releaseConnection(managedConn, state, keepalive, timeUnit);
+    }
+
+    /**
+     * Called when the key material of the pool changes, the idle connections are closed now and
+     * the leased ones when they are released.
+     */
+    public void retireConnections() {
+        retiredBefore = System.currentTimeMillis();
+        closeIdleConnections(0, TimeUnit.MILLISECONDS);
+    }
+
+    private DestinationMetrics registerDestinationMetrics(HttpRoute route) {
+        Tags tags = Tags.of("destination", getDestination(route), "identity", identity);
+        List<Meter> meters = List.of(
+                Gauge.builder("capi.upstream.pool.leased", this, connectionManager -> connectionManager.getStats(route).getLeased())
+                        .tags(tags)
+                        .register(meterRegistry),
+                Gauge.builder("capi.upstream.pool.idle", this, connectionManager -> connectionManager.getStats(route).getAvailable())
+                        .tags(tags)
+                        .register(meterRegistry),
+                Gauge.builder("capi.upstream.pool.pending", this, connectionManager -> connectionManager.getStats(route).getPending())
+                        .tags(tags)
+                        .register(meterRegistry),
+                Gauge.builder("capi.upstream.pool.max", this, connectionManager -> connectionManager.getStats(route).getMax())
+                        .tags(tags)
+                        .register(meterRegistry));
+        Timer acquireTimer = Timer.builder("capi.upstream.pool.acquire")
+                .tags(tags)
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        return new DestinationMetrics(acquireTimer, meters);
+    }
+
+    /**
+     * The pool drops a destination once it holds no connection, the expanded per address destinations come and go
+     * with DNS, so their meters are removed with them. Called after the idle eviction.
+     */
+    public void removeUnusedDestinationMetrics() {
+        Set<HttpRoute> pooledRoutes = getRoutes();
+        destinationMetrics.entrySet().removeIf(entry -> {
+            if(pooledRoutes.contains(entry.getKey())) {
+                return false;
+            }
+            meterRegistry.remove(entry.getValue().acquireTimer);
+            entry.getValue().meters.forEach(meterRegistry::remove);
+            return true;
+        });
+    }
+
+    /**
+     * Closes the idle connections to a hostname, new connections will use its current addresses.
+     */
+    public void closeIdleConnections(String hostname) {
+        enumAvailable(entry -> {
+            if(entry.getRoute().getTargetHost().getHostName().equalsIgnoreCase(hostname)) {
+                entry.close();
+            }
+        });
+    }
+
+    public static String getDestination(HttpRoute route) {
+        return route.getTargetHost().toURI();
+    }
+
+    private static class DestinationMetrics {
+        private final Timer acquireTimer;
+        private final List<Meter> meters;
+
+        private DestinationMetrics(Timer acquireTimer, List<Meter> meters) {
+            this.acquireTimer = acquireTimer;
+            this.meters = meters;
+        }
+    }
+}
\ No newline at end of file
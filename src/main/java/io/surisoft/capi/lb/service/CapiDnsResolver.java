@@ -0,0 +1,271 @@
+package io.surisoft.capi.lb.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import okhttp3.Dns;
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.conn.util.InetAddressUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+
+/**
+ * Resolves upstream hostnames on background threads and serves the cached addresses to the http clients,
+ * so a slow or flapping DNS server never blocks a request thread once the hostname is known.
+ * Entries are refreshed every ttl, if a refresh fails the last known addresses keep being served.
+ * The hostnames of deployed mappings are pinned and stay cached until their Api is removed, whether the
+ * connections to them are new or pooled. Any other hostname is dropped once it is not used for a while.
+ */
+public class CapiDnsResolver implements DnsResolver, Dns {
+
+    private static final Logger log = LoggerFactory.getLogger(CapiDnsResolver.class);
+    private static final long FAILURE_RETRY_INTERVAL = 5000;
+    private static final int IDLE_EVICTION_REFRESHES = 10;
+
+    private final long ttl;
+    private final long resolveTimeout;
+    private final Map<String, CachedResolution> cache = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> pinnedHosts = new ConcurrentHashMap<>();
+    private final List<Consumer<String>> addressChangeListeners = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService resolverExecutor = Executors.newScheduledThreadPool(2, runnable -> {
+        Thread thread = new Thread(runnable, "capi-dns-resolver");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Counter failureCounter;
+    private final Counter staleCounter;
+    private final Counter addressChangeCounter;
+
+    public CapiDnsResolver(long ttl, long resolveTimeout, CompositeMeterRegistry meterRegistry) {
+        this.ttl = ttl;
+        this.resolveTimeout = resolveTimeout;
+        Gauge.builder("capi.dns.cache.size", cache, Map::size).register(meterRegistry);
+        this.failureCounter = Counter.builder("capi.dns.lookup.failure").register(meterRegistry);
+        this.staleCounter = Counter.builder("capi.dns.stale").register(meterRegistry);
+        this.addressChangeCounter = Counter.builder("capi.dns.address.change").register(meterRegistry);
+    }
+
+    @Override
+    public InetAddress[] resolve(String host) throws UnknownHostException {
+        if(InetAddressUtils.isIPv4Address(host) || InetAddressUtils.isIPv6Address(host)) {
+            return new InetAddress[] {InetAddress.getByName(host)};
+        }
+        return cache.computeIfAbsent(host, this::newResolution).get();
+    }
+
+    @Override
+    public List<InetAddress> lookup(String hostname) throws UnknownHostException {
+        return Arrays.asList(resolve(hostname));
+    }
+
+    /**
+     * Non-blocking resolve for the event loops. Cached addresses complete right away, on the calling thread,
+     * otherwise the future completes on the given executor once the first lookup is done or timed out.
+     */
+    public CompletableFuture<InetAddress[]> resolveAsync(String host, Executor executor) {
+        if(InetAddressUtils.isIPv4Address(host) || InetAddressUtils.isIPv6Address(host)) {
+            try {
+                // a literal is parsed, there is no lookup
+                return CompletableFuture.completedFuture(new InetAddress[] {InetAddress.getByName(host)});
+            } catch(UnknownHostException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+        CachedResolution resolution = cache.computeIfAbsent(host, this::newResolution);
+        resolution.lastAccess = System.currentTimeMillis();
+        InetAddress[] currentAddresses = resolution.addresses;
+        if(currentAddresses != null) {
+            return CompletableFuture.completedFuture(currentAddresses);
+        }
+        return resolution.firstResolution.copy()
+                .orTimeout(resolveTimeout, TimeUnit.MILLISECONDS)
+                .handleAsync((ignored, timeout) -> {
+                    try {
+                        return resolution.resolved(timeout != null);
+                    } catch(UnknownHostException e) {
+                        throw new CompletionException(e);
+                    }
+                }, executor);
+    }
+
+    /**
+     * Replaces the hostnames pinned for an owner (the Api id), called when its routes are deployed.
+     * They are resolved in the background right away, the ones the owner no longer uses are dropped
+     * unless another owner still pins them.
+     */
+    public void pin(String owner, Collection<String> hosts) {
+        Set<String> ownedHosts = new HashSet<>();
+        for(String host : hosts) {
+            if(host != null && !InetAddressUtils.isIPv4Address(host) && !InetAddressUtils.isIPv6Address(host)) {
+                ownedHosts.add(host);
+            }
+        }
+        Set<String> previousHosts = ownedHosts.isEmpty() ? pinnedHosts.remove(owner) : pinnedHosts.put(owner, Set.copyOf(ownedHosts));
+        for(String host : ownedHosts) {
+            cache.computeIfAbsent(host, this::newResolution);
+        }
+        if(previousHosts != null) {
+            previousHosts.stream().filter(host -> !ownedHosts.contains(host)).forEach(this::dropIfUnpinned);
+        }
+    }
+
+    /**
+     * Called when the routes of an Api are removed, its hostnames no other Api uses leave the cache.
+     */
+    public void unpin(String owner) {
+        Set<String> previousHosts = pinnedHosts.remove(owner);
+        if(previousHosts != null) {
+            previousHosts.forEach(this::dropIfUnpinned);
+        }
+    }
+
+    public boolean isPinned(String host) {
+        for(Set<String> hosts : pinnedHosts.values()) {
+            if(hosts.contains(host)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void dropIfUnpinned(String host) {
+        if(!isPinned(host)) {
+            CachedResolution resolution = cache.remove(host);
+            if(resolution != null) {
+                log.trace("Hostname {} no longer used by any Api, removing it from the DNS cache", host);
+                resolution.removed = true;
+            }
+        }
+    }
+
+    public InetAddress[] getCachedAddresses(String host) {
+        CachedResolution resolution = cache.get(host);
+        return resolution != null ? resolution.addresses : null;
+    }
+
+    /**
+     * Listeners are called with the hostname, every time a refresh returns a different set of addresses.
+     */
+    public void addAddressChangeListener(Consumer<String> listener) {
+        addressChangeListeners.add(listener);
+    }
+
+    public void shutdown() {
+        resolverExecutor.shutdownNow();
+    }
+
+    /**
+     * The blocking lookup, only ever called on the resolver threads.
+     */
+    protected InetAddress[] lookupAll(String host) throws UnknownHostException {
+        return InetAddress.getAllByName(host);
+    }
+
+    private CachedResolution newResolution(String host) {
+        CachedResolution resolution = new CachedResolution(host);
+        resolverExecutor.execute(() -> refresh(resolution));
+        return resolution;
+    }
+
+    private void refresh(CachedResolution resolution) {
+        if(resolution.removed) {
+            return;
+        }
+        if(System.currentTimeMillis() - resolution.lastAccess > ttl * IDLE_EVICTION_REFRESHES && !isPinned(resolution.host)) {
+            log.trace("Hostname {} not used for a while, removing it from the DNS cache", resolution.host);
+            cache.remove(resolution.host, resolution);
+            return;
+        }
+        long nextRefresh = ttl;
+        try {
+            InetAddress[] resolvedAddresses = lookupAll(resolution.host);
+            InetAddress[] previousAddresses = resolution.addresses;
+            resolution.addresses = resolvedAddresses;
+            if(previousAddresses != null && !new HashSet<>(Arrays.asList(previousAddresses)).equals(new HashSet<>(Arrays.asList(resolvedAddresses)))) {
+                log.debug("Addresses for {} changed from {} to {}", resolution.host, Arrays.toString(previousAddresses), Arrays.toString(resolvedAddresses));
+                addressChangeCounter.increment();
+                addressChangeListeners.forEach(listener -> listener.accept(resolution.host));
+            }
+        } catch(UnknownHostException e) {
+            failureCounter.increment();
+            nextRefresh = Math.min(ttl, FAILURE_RETRY_INTERVAL);
+            if(resolution.addresses != null) {
+                log.warn("Could not refresh {}, serving the last known addresses: {}", resolution.host, e.getMessage());
+                staleCounter.increment();
+            } else {
+                log.warn("Could not resolve {}: {}", resolution.host, e.getMessage());
+                resolution.failure = e;
+            }
+        } catch(Exception e) {
+            log.error(e.getMessage(), e);
+        } finally {
+            resolution.firstResolution.complete(null);
+        }
+        if(!resolverExecutor.isShutdown()) {
+            resolverExecutor.schedule(() -> refresh(resolution), nextRefresh, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private class CachedResolution {
+        private final String host;
+        private final CompletableFuture<Void> firstResolution = new CompletableFuture<>();
+        private volatile InetAddress[] addresses;
+        private volatile UnknownHostException failure;
+        private volatile long lastAccess = System.currentTimeMillis();
+        private volatile boolean removed;
+
+        private CachedResolution(String host) {
+            this.host = host;
+        }
+
+        private InetAddress[] get() throws UnknownHostException {
+            lastAccess = System.currentTimeMillis();
+            InetAddress[] currentAddresses = addresses;
+            if(currentAddresses != null) {
+                return currentAddresses;
+            }
+            try {
+                firstResolution.get(resolveTimeout, TimeUnit.MILLISECONDS);
+            } catch(TimeoutException e) {
+                return resolved(true);
+            } catch(ExecutionException e) {
+                return resolved(false);
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new UnknownHostException("Interrupted while resolving " + host);
+            }
+            return resolved(false);
+        }
+
+        private InetAddress[] resolved(boolean timedOut) throws UnknownHostException {
+            InetAddress[] currentAddresses = addresses;
+            if(currentAddresses != null) {
+                return currentAddresses;
+            }
+            if(timedOut) {
+                throw new UnknownHostException("Timed out resolving " + host);
+            }
+            throw failure != null ? failure : new UnknownHostException(host);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package io.surisoft.capi.lb.service;
+
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpRequest;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.conn.util.InetAddressUtils;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpCoreContext;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLSocket;
+import java.io.IOException;
+import java.net.Socket;
+
+/**
+ * Endpoints of expanded mappings target an address and carry the mapping hostname in the Host header,
+ * the handshake uses that hostname for SNI and certificate verification instead of the address.
+ * Every handshake is reported to the {@link CapiTlsSessionManager}.
+ */
+public class CapiSslConnectionSocketFactory extends SSLConnectionSocketFactory {
+
+    private final CapiTlsSessionManager tlsSessionManager;
+
+    public CapiSslConnectionSocketFactory(CapiTlsSessionManager tlsSessionManager, HostnameVerifier hostnameVerifier) {
+        super(tlsSessionManager.getSslContext(), hostnameVerifier);
+        this.tlsSessionManager = tlsSessionManager;
+    }
+
+    @Override
+    public Socket createLayeredSocket(Socket socket, String target, int port, HttpContext context) throws IOException {
+        String tlsHostname = getTlsHostname(target, context);
+        long handshakeStart = System.currentTimeMillis();
+        long start = System.nanoTime();
+        Socket sslSocket = super.createLayeredSocket(socket, tlsHostname, port, context);
+        if(sslSocket instanceof SSLSocket) {
+            tlsSessionManager.recordHandshake(tlsHostname + ":" + port, ((SSLSocket) sslSocket).getSession(), handshakeStart, System.nanoTime() - start);
+        }
+        return sslSocket;
+    }
+
+    private String getTlsHostname(String target, HttpContext context) {
+        if(context == null || !(InetAddressUtils.isIPv4Address(target) || InetAddressUtils.isIPv6Address(target))) {
+            return target;
+        }
+        Object request = context.getAttribute(HttpCoreContext.HTTP_REQUEST);
+        if(request instanceof HttpRequest) {
+            Header hostHeader = ((HttpRequest) request).getFirstHeader(HttpHeaders.HOST);
+            if(hostHeader != null && !hostHeader.getValue().startsWith("[")) {
+                String hostname = hostHeader.getValue();
+                int portIndex = hostname.indexOf(':');
+                return portIndex > 0 ? hostname.substring(0, portIndex) : hostname;
+            }
+        }
+        return target;
+    }
+}
@@ -0,0 +1,126 @@
+package io.surisoft.capi.lb.service;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.X509TrustManager;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Owns the client SSLContext shared by every upstream connection, so all of them resume from the same
+ * session cache (the JDK keys client sessions by peer host and port).
+ * Sessions survive a trust store reload unless the reload removed trust, resuming would skip the certificate checks.
+ */
+public class CapiTlsSessionManager {
+
+    private static final Logger log = LoggerFactory.getLogger(CapiTlsSessionManager.class);
+
+    private final String identity;
+    private final X509TrustManager trustManager;
+    private final int sessionCacheSize;
+    private final int sessionTimeout;
+    private final CompositeMeterRegistry meterRegistry;
+    private final Map<String, SessionMark> lastSessions = new ConcurrentHashMap<>();
+    private volatile SSLContext sslContext;
+
+    public CapiTlsSessionManager(String identity, SSLContext sslContext, X509TrustManager trustManager, int sessionCacheSize, int sessionTimeout, CompositeMeterRegistry meterRegistry) {
+        this.identity = identity;
+        this.trustManager = trustManager;
+        this.sessionCacheSize = sessionCacheSize;
+        this.sessionTimeout = sessionTimeout;
+        this.meterRegistry = meterRegistry;
+        setSslContext(sslContext);
+        Gauge.builder("capi.upstream.tls.sessions", this, CapiTlsSessionManager::getCachedSessionCount)
+                .tag("identity", identity)
+                .register(meterRegistry);
+    }
+
+    /**
+     * Used when the client identity is rotated, sessions of the previous context can't be resumed by the new one.
+     */
+    public void setSslContext(SSLContext sslContext) {
+        sslContext.getClientSessionContext().setSessionCacheSize(sessionCacheSize);
+        sslContext.getClientSessionContext().setSessionTimeout(sessionTimeout);
+        this.sslContext = sslContext;
+        lastSessions.clear();
+    }
+
+    /**
+     * A TLS 1.2 resumption keeps the id of the session it resumes. A TLS 1.3 resumption gets a fresh id from the JDK
+     * but inherits the creation time of the resumed session, which is then older than the handshake.
+     * Both are compared with the last session seen for the destination.
+     */
+    public void recordHandshake(String destination, SSLSession session, long handshakeStart, long durationNanos) {
+        SessionMark previousSession = lastSessions.put(destination, new SessionMark(session.getId(), session.getCreationTime()));
+        boolean resumed = previousSession != null && (Arrays.equals(previousSession.id, session.getId()) ||
+                "TLSv1.3".equals(session.getProtocol()) && previousSession.creationTime == session.getCreationTime() && session.getCreationTime() < handshakeStart);
+        Tags tags = Tags.of("destination", destination, "type", resumed ? "resumed" : "full", "identity", identity);
+        meterRegistry.counter("capi.upstream.tls.handshake", tags).increment();
+        Timer.builder("capi.upstream.tls.handshake.duration")
+                .tags(tags)
+                .register(meterRegistry)
+                .record(durationNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void trustStoreReloaded(X509Certificate[] previousIssuers, X509Certificate[] currentIssuers) {
+        Set<X509Certificate> currentIssuerSet = new HashSet<>(Arrays.asList(currentIssuers));
+        if(currentIssuerSet.containsAll(Arrays.asList(previousIssuers))) {
+            log.trace("Trust store reloaded without removals, keeping the TLS sessions of {}", identity);
+            return;
+        }
+        SSLSessionContext sessionContext = sslContext.getClientSessionContext();
+        int invalidatedSessions = 0;
+        for(byte[] sessionId : Collections.list(sessionContext.getIds())) {
+            SSLSession session = sessionContext.getSession(sessionId);
+            if(session != null) {
+                session.invalidate();
+                invalidatedSessions++;
+            }
+        }
+        lastSessions.clear();
+        log.debug("Trust store lost certificates, {} TLS sessions of {} invalidated", invalidatedSessions, identity);
+    }
+
+    public int getCachedSessionCount() {
+        int count = 0;
+        Enumeration<byte[]> sessionIds = sslContext.getClientSessionContext().getIds();
+        while(sessionIds.hasMoreElements()) {
+            sessionIds.nextElement();
+            count++;
+        }
+        return count;
+    }
+
+    public SSLContext getSslContext() {
+        return sslContext;
+    }
+
+    public X509TrustManager getTrustManager() {
+        return trustManager;
+    }
+
+    private static class SessionMark {
+        private final byte[] id;
+        private final long creationTime;
+
+        private SessionMark(byte[] id, long creationTime) {
+            this.id = id;
+            this.creationTime = creationTime;
+        }
+    }
+}
@@ -18,7 +18,7 @@ public final class CapiTrustManager implements X509TrustManager {
 
     private final String capiTrustStorePassword;
     private final String capiTrustStorePath;
-    private X509TrustManager trustManager;
+    private volatile X509TrustManager trustManager;
 
     public CapiTrustManager(String capiTrustStorePath, String capiTrustStorePassword) throws Exception {
         log.info("Starting CAPI Trust Store Manager");
@@ -0,0 +1,70 @@
+package io.surisoft.capi.lb.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import org.xnio.ChannelListener;
+import org.xnio.ChannelListeners;
+import org.xnio.IoUtils;
+import org.xnio.StreamConnection;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Counts the connections of every client address as they are accepted, before Undertow reads anything from them,
+ * so the idle connections that never send a request are counted too. A connection over the limit is closed right
+ * away, there is no request yet to answer with a 429.
+ */
+public class ClientConnectionLimiter implements ChannelListener<StreamConnection> {
+
+    private final ChannelListener<? super StreamConnection> openListener;
+    private final ClientTrackingTable clientTrackingTable;
+    private final int maxConnectionsPerClient;
+    private final Counter connectionRejections;
+
+    public ClientConnectionLimiter(ChannelListener<? super StreamConnection> openListener, ClientTrackingTable clientTrackingTable, int maxConnectionsPerClient, CompositeMeterRegistry meterRegistry) {
+        this.openListener = openListener;
+        this.clientTrackingTable = clientTrackingTable;
+        this.maxConnectionsPerClient = maxConnectionsPerClient;
+        this.connectionRejections = Counter.builder("capi.downstream.rejected").tag("reason", ClientLimitHandler.REASON_CONNECTIONS).register(meterRegistry);
+    }
+
+    @Override
+    public void handleEvent(StreamConnection connection) {
+        InetSocketAddress peerAddress = connection.getPeerAddress(InetSocketAddress.class);
+        if(peerAddress == null || peerAddress.getAddress() == null) {
+            ChannelListeners.invokeChannelListener(connection, openListener);
+            return;
+        }
+        InetAddress address = peerAddress.getAddress();
+        int connections = clientTrackingTable.connectionOpened(address);
+        if(connections == ClientTrackingTable.UNTRACKED) {
+            ChannelListeners.invokeChannelListener(connection, openListener);
+            return;
+        }
+        AtomicBoolean released = new AtomicBoolean();
+        Runnable release = () -> {
+            if(released.compareAndSet(false, true)) {
+                clientTrackingTable.connectionClosed(address);
+            }
+        };
+        if(maxConnectionsPerClient > 0 && connections > maxConnectionsPerClient) {
+            release.run();
+            connectionRejections.increment();
+            IoUtils.safeClose(connection);
+            return;
+        }
+        ChannelListeners.invokeChannelListener(connection, openListener);
+        // the open listener sets a close listener of its own, ours goes around it
+        ChannelListener<? super StreamConnection> closeListener = connection.getCloseListener();
+        connection.setCloseListener(closedConnection -> {
+            release.run();
+            ChannelListeners.invokeChannelListener(closedConnection, closeListener);
+        });
+        // closed while the open listener ran, before there was a close listener of ours to tell
+        if(!connection.isOpen()) {
+            release.run();
+        }
+    }
+}
@@ -0,0 +1,453 @@
+package io.surisoft.capi.lb.service;
+
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import io.surisoft.capi.lb.schema.AliasInfo;
+import io.surisoft.capi.lb.utils.Constants;
+import org.apache.camel.CamelContext;
+import org.apache.http.HttpHost;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.LayeredConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.protocol.HttpContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.Key;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+/**
+ * Client certificates presented to the backends that require mutual TLS.
+ * Each identity gets its SSLContext built once, and a connection pool of its own, bound in the Camel registry
+ * so the endpoints of the Apis using it can reference it.
+ * Uploading an identity that already exists rotates it: new connections use the new key material,
+ * idle ones are closed and the ones in flight finish their request and are closed when released.
+ * Only created when capi.client.identity.enabled is set.
+ */
+public class ClientIdentityManager {
+
+    private static final Logger log = LoggerFactory.getLogger(ClientIdentityManager.class);
+    private static final Pattern IDENTITY_NAME = Pattern.compile("[A-Za-z0-9._-]+");
+    private static final String KEY_STORE_TYPE = "PKCS12";
+    private static final String KEY_STORE_EXTENSION = ".p12";
+    private static final Set<PosixFilePermission> OWNER_ONLY_DIRECTORY = PosixFilePermissions.fromString("rwx------");
+    private static final Set<PosixFilePermission> OWNER_ONLY_FILE = PosixFilePermissions.fromString("rw-------");
+
+    private final CamelContext camelContext;
+    private final UpstreamConnectionPoolManager upstreamConnectionPoolManager;
+    private final CapiDnsResolver capiDnsResolver;
+    private final CapiTlsSessionManager defaultTlsSessionManager;
+    private final String storePath;
+    private final String storePassword;
+    private final int maxPerDestination;
+    private final long keepAliveTtl;
+    private final int sessionCacheSize;
+    private final int sessionTimeout;
+    private final CompositeMeterRegistry meterRegistry;
+    private final Map<String, ClientIdentity> identities = new ConcurrentHashMap<>();
+    private final List<Consumer<String>> rotationListeners = new CopyOnWriteArrayList<>();
+
+    public ClientIdentityManager(CamelContext camelContext, UpstreamConnectionPoolManager upstreamConnectionPoolManager, CapiDnsResolver capiDnsResolver, CapiTlsSessionManager defaultTlsSessionManager, String storePath, String storePassword, int maxPerDestination, long keepAliveTtl, int sessionCacheSize, int sessionTimeout, CompositeMeterRegistry meterRegistry) {
+        if(storePath == null || storePath.isBlank() || storePassword == null || storePassword.isEmpty()) {
+            throw new IllegalStateException("capi.client.identity.store.path and capi.client.identity.store.password must be configured");
+        }
+        this.camelContext = camelContext;
+        this.upstreamConnectionPoolManager = upstreamConnectionPoolManager;
+        this.capiDnsResolver = capiDnsResolver;
+        this.defaultTlsSessionManager = defaultTlsSessionManager;
+        this.storePath = storePath;
+        this.storePassword = storePassword;
+        this.maxPerDestination = maxPerDestination;
+        this.keepAliveTtl = keepAliveTtl;
+        this.sessionCacheSize = sessionCacheSize;
+        this.sessionTimeout = sessionTimeout;
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * Loads the identities stored by a previous run, called before any route is deployed.
+     */
+    public void loadIdentities() throws IOException {
+        createStoreDirectory();
+        File[] keyStoreFiles = new File(storePath).listFiles((directory, name) -> name.endsWith(KEY_STORE_EXTENSION));
+        if(keyStoreFiles == null) {
+            return;
+        }
+        for(File keyStoreFile : keyStoreFiles) {
+            String name = keyStoreFile.getName().substring(0, keyStoreFile.getName().length() - KEY_STORE_EXTENSION.length());
+            try(InputStream is = new FileInputStream(keyStoreFile)) {
+                KeyStore keyStore = KeyStore.getInstance(KEY_STORE_TYPE);
+                keyStore.load(is, storePassword.toCharArray());
+                applyIdentity(name, keyStore, false);
+            } catch(Exception e) {
+                log.error("Could not load the client identity {}: {}", name, e.getMessage());
+            }
+        }
+        log.info("{} client identities loaded", identities.size());
+    }
+
+    /**
+     * Stores the PKCS12 key store, its first private key entry becomes the identity.
+     */
+    public AliasInfo putIdentity(String name, InputStream keyStoreInput, String password) throws Exception {
+        if(!isValidName(name)) {
+            throw new IllegalArgumentException("Invalid client identity name: " + name);
+        }
+        KeyStore uploadedKeyStore = KeyStore.getInstance(KEY_STORE_TYPE);
+        uploadedKeyStore.load(keyStoreInput, password.toCharArray());
+
+        KeyStore keyStore = KeyStore.getInstance(KEY_STORE_TYPE);
+        keyStore.load(null, null);
+        for(String alias : Collections.list(uploadedKeyStore.aliases())) {
+            Key key = uploadedKeyStore.getKey(alias, password.toCharArray());
+            if(key instanceof PrivateKey) {
+                keyStore.setKeyEntry(name, key, storePassword.toCharArray(), uploadedKeyStore.getCertificateChain(alias));
+                break;
+            }
+        }
+        if(!keyStore.containsAlias(name)) {
+            throw new IllegalArgumentException("No private key found for client identity " + name);
+        }
+
+        return applyIdentity(name, keyStore, true).getAliasInfo();
+    }
+
+    /**
+     * The pool stays bound for the routes still referencing it, but it won't present a certificate anymore.
+     */
+    public boolean removeIdentity(String name) throws IOException {
+        AtomicBoolean removed = new AtomicBoolean();
+        try {
+            identities.computeIfPresent(name, (key, clientIdentity) -> {
+                if(clientIdentity.certificate != null) {
+                    try {
+                        clientIdentity.rotate(null, null);
+                        Files.deleteIfExists(getKeyStoreFile(name).toPath());
+                    } catch(Exception e) {
+                        throw new IllegalStateException(e.getMessage(), e);
+                    }
+                    removed.set(true);
+                }
+                return clientIdentity;
+            });
+        } catch(IllegalStateException e) {
+            throw new IOException(e.getMessage(), e.getCause());
+        }
+        if(!removed.get()) {
+            return false;
+        }
+        rotationListeners.forEach(listener -> listener.accept(name));
+        log.debug("Client identity {} removed", name);
+        return true;
+    }
+
+    /**
+     * Binds the pool of an identity an Api references before it is uploaded, without key material,
+     * so its routes use that pool right away and present the certificate as soon as it is uploaded.
+     */
+    public void reserveIdentity(String name) {
+        if(!isValidName(name)) {
+            throw new IllegalArgumentException("Invalid client identity name: " + name);
+        }
+        identities.computeIfAbsent(name, key -> {
+            try {
+                return new ClientIdentity(name, createSslContext(null), null);
+            } catch(Exception e) {
+                throw new IllegalStateException(e.getMessage(), e);
+            }
+        });
+    }
+
+    public boolean hasIdentity(String name) {
+        ClientIdentity clientIdentity = name != null ? identities.get(name) : null;
+        return clientIdentity != null && clientIdentity.certificate != null;
+    }
+
+    public List<AliasInfo> getIdentities() {
+        List<AliasInfo> aliasList = new ArrayList<>();
+        for(ClientIdentity clientIdentity : identities.values()) {
+            if(clientIdentity.certificate != null) {
+                aliasList.add(clientIdentity.getAliasInfo());
+            }
+        }
+        return aliasList;
+    }
+
+    public void trustStoreReloaded(X509Certificate[] previousIssuers, X509Certificate[] currentIssuers) {
+        for(ClientIdentity clientIdentity : identities.values()) {
+            clientIdentity.tlsSessionManager.trustStoreReloaded(previousIssuers, currentIssuers);
+        }
+    }
+
+    /**
+     * Socket factory for the clients outside the Apache pool (HTTP/2), it keeps its identity across rotations.
+     * Returns null when the identity doesn't exist.
+     */
+    public SSLSocketFactory getSocketFactory(String name) {
+        ClientIdentity clientIdentity = name != null ? identities.get(name) : null;
+        return clientIdentity != null ? clientIdentity.sslSocketFactory : null;
+    }
+
+    public X509TrustManager getTrustManager() {
+        return defaultTlsSessionManager.getTrustManager();
+    }
+
+    /**
+     * Notified with the identity name when its key material changes or is removed.
+     */
+    public void addRotationListener(Consumer<String> listener) {
+        rotationListeners.add(listener);
+    }
+
+    public static String getConnectionManagerName(String identity) {
+        return Constants.CLIENT_IDENTITY_BEAN_PREFIX + identity;
+    }
+
+    public static boolean isValidName(String name) {
+        return name != null && IDENTITY_NAME.matcher(name).matches();
+    }
+
+    /**
+     * Creating, rotating and storing happen under the map lock of the name, so concurrent uploads of
+     * the same identity can't create two pools or leave a key store on disk that isn't the one in use.
+     */
+    private ClientIdentity applyIdentity(String name, KeyStore keyStore, boolean store) throws Exception {
+        KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagerFactory.init(keyStore, storePassword.toCharArray());
+        X509Certificate certificate = (X509Certificate) keyStore.getCertificate(name);
+
+        AtomicBoolean rotated = new AtomicBoolean();
+        ClientIdentity clientIdentity;
+        try {
+            clientIdentity = identities.compute(name, (key, existingIdentity) -> {
+                try {
+                    ClientIdentity appliedIdentity = existingIdentity;
+                    if(appliedIdentity == null) {
+                        appliedIdentity = new ClientIdentity(name, createSslContext(keyManagerFactory.getKeyManagers()), certificate);
+                        log.debug("Client identity {} created for {}", name, certificate.getSubjectX500Principal().getName());
+                    } else {
+                        // a reserved identity is rotated too, its routes already use the pool
+                        appliedIdentity.rotate(keyManagerFactory.getKeyManagers(), certificate);
+                        rotated.set(true);
+                        log.debug("Client identity {} rotated to {}", name, certificate.getSubjectX500Principal().getName());
+                    }
+                    if(store) {
+                        storeKeyStore(name, keyStore);
+                    }
+                    return appliedIdentity;
+                } catch(Exception e) {
+                    throw new IllegalStateException(e.getMessage(), e);
+                }
+            });
+        } catch(IllegalStateException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+        if(rotated.get()) {
+            rotationListeners.forEach(listener -> listener.accept(name));
+        }
+        return clientIdentity;
+    }
+
+    /**
+     * Written to a temporary file only the owner can read and moved in place, a reader never sees half a key store.
+     */
+    private void storeKeyStore(String name, KeyStore keyStore) throws Exception {
+        Path storeDirectory = createStoreDirectory();
+        Path temporaryFile = isPosix(storeDirectory) ?
+                Files.createTempFile(storeDirectory, name, ".tmp", PosixFilePermissions.asFileAttribute(OWNER_ONLY_FILE)) :
+                Files.createTempFile(storeDirectory, name, ".tmp");
+        try {
+            try(OutputStream os = Files.newOutputStream(temporaryFile)) {
+                keyStore.store(os, storePassword.toCharArray());
+            }
+            Files.move(temporaryFile, getKeyStoreFile(name).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporaryFile);
+        }
+    }
+
+    private Path createStoreDirectory() throws IOException {
+        Path storeDirectory = Path.of(storePath);
+        if(!isPosix(storeDirectory)) {
+            return Files.createDirectories(storeDirectory);
+        }
+        if(Files.notExists(storeDirectory)) {
+            Files.createDirectories(storeDirectory, PosixFilePermissions.asFileAttribute(OWNER_ONLY_DIRECTORY));
+        } else if(!Files.getPosixFilePermissions(storeDirectory).equals(OWNER_ONLY_DIRECTORY)) {
+            log.warn("Client identity store {} was accessible to other users, restricting it to its owner", storeDirectory);
+            Files.setPosixFilePermissions(storeDirectory, OWNER_ONLY_DIRECTORY);
+        }
+        return storeDirectory;
+    }
+
+    private static boolean isPosix(Path path) {
+        return path.getFileSystem().supportedFileAttributeViews().contains("posix");
+    }
+
+    private SSLContext createSslContext(KeyManager[] keyManagers) throws Exception {
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(keyManagers, new TrustManager[] {defaultTlsSessionManager.getTrustManager()}, null);
+        return sslContext;
+    }
+
+    private File getKeyStoreFile(String name) {
+        return new File(storePath, name + KEY_STORE_EXTENSION);
+    }
+
+    private class ClientIdentity {
+        private final String name;
+        private final CapiTlsSessionManager tlsSessionManager;
+        private final RotatingSocketFactory socketFactory;
+        private final RotatingSslSocketFactory sslSocketFactory;
+        private final CapiConnectionManager connectionManager;
+        private volatile X509Certificate certificate;
+
+        private ClientIdentity(String name, SSLContext sslContext, X509Certificate certificate) {
+            this.name = name;
+            this.certificate = certificate;
+            this.tlsSessionManager = new CapiTlsSessionManager(name, sslContext, defaultTlsSessionManager.getTrustManager(), sessionCacheSize, sessionTimeout, meterRegistry);
+            this.socketFactory = new RotatingSocketFactory(new CapiSslConnectionSocketFactory(tlsSessionManager, SSLConnectionSocketFactory.getDefaultHostnameVerifier()));
+            this.sslSocketFactory = new RotatingSslSocketFactory(tlsSessionManager);
+
+            Registry<ConnectionSocketFactory> socketFactoryRegistry = RegistryBuilder.<ConnectionSocketFactory>create()
+                    .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                    .register("https", socketFactory)
+                    .build();
+            this.connectionManager = new CapiConnectionManager(socketFactoryRegistry, capiDnsResolver, keepAliveTtl, name, meterRegistry);
+            connectionManager.setMaxTotal(maxPerDestination * 4);
+            connectionManager.setDefaultMaxPerRoute(maxPerDestination);
+            capiDnsResolver.addAddressChangeListener(connectionManager::closeIdleConnections);
+            upstreamConnectionPoolManager.addIdentityConnectionManager(connectionManager);
+            camelContext.getRegistry().bind(getConnectionManagerName(name), connectionManager);
+        }
+
+        private void rotate(KeyManager[] keyManagers, X509Certificate certificate) throws Exception {
+            tlsSessionManager.setSslContext(createSslContext(keyManagers));
+            socketFactory.delegate = new CapiSslConnectionSocketFactory(tlsSessionManager, SSLConnectionSocketFactory.getDefaultHostnameVerifier());
+            this.certificate = certificate;
+            connectionManager.retireConnections();
+        }
+
+        private AliasInfo getAliasInfo() {
+            AliasInfo aliasInfo = new AliasInfo();
+            aliasInfo.setAlias(name);
+            aliasInfo.setSubjectDN(certificate.getSubjectX500Principal().getName());
+            aliasInfo.setIssuerDN(certificate.getIssuerX500Principal().getName());
+            return aliasInfo;
+        }
+    }
+
+    /**
+     * The pool keeps the socket factory it was created with, rotation swaps what it delegates to.
+     */
+    private static class RotatingSocketFactory implements LayeredConnectionSocketFactory {
+        private volatile CapiSslConnectionSocketFactory delegate;
+
+        private RotatingSocketFactory(CapiSslConnectionSocketFactory delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public Socket createSocket(HttpContext context) throws IOException {
+            return delegate.createSocket(context);
+        }
+
+        @Override
+        public Socket connectSocket(int connectTimeout, Socket socket, HttpHost host, InetSocketAddress remoteAddress, InetSocketAddress localAddress, HttpContext context) throws IOException {
+            return delegate.connectSocket(connectTimeout, socket, host, remoteAddress, localAddress, context);
+        }
+
+        @Override
+        public Socket createLayeredSocket(Socket socket, String target, int port, HttpContext context) throws IOException {
+            return delegate.createLayeredSocket(socket, target, port, context);
+        }
+    }
+
+    /**
+     * okhttp pools connections by socket factory instance, so the instance stays and the SSLContext behind it is swapped.
+     */
+    private static class RotatingSslSocketFactory extends SSLSocketFactory {
+        private final CapiTlsSessionManager tlsSessionManager;
+
+        private RotatingSslSocketFactory(CapiTlsSessionManager tlsSessionManager) {
+            this.tlsSessionManager = tlsSessionManager;
+        }
+
+        private SSLSocketFactory delegate() {
+            return tlsSessionManager.getSslContext().getSocketFactory();
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return delegate().getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return delegate().getSupportedCipherSuites();
+        }
+
+        @Override
+        public Socket createSocket() throws IOException {
+            return delegate().createSocket();
+        }
+
+        @Override
+        public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException {
+            return delegate().createSocket(socket, host, port, autoClose);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return delegate().createSocket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            return delegate().createSocket(host, port, localHost, localPort);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return delegate().createSocket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+            return delegate().createSocket(address, port, localAddress, localPort);
+        }
+    }
+}
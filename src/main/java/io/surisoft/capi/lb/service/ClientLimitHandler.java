@@ -0,0 +1,44 @@
+package io.surisoft.capi.lb.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.StatusCodes;
+
+import java.net.InetSocketAddress;
+
+/**
+ * Rejects the clients sending too many requests per second, with a 429. The connections per client are limited
+ * as they are accepted, by the ClientConnectionLimiter.
+ */
+public class ClientLimitHandler implements HttpHandler {
+
+    public static final String REASON_CONNECTIONS = "connections";
+    public static final String REASON_REQUEST_RATE = "request-rate";
+
+    private final HttpHandler next;
+    private final ClientTrackingTable clientTrackingTable;
+    private final int maxRequestsPerSecond;
+    private final Counter requestRateRejections;
+
+    public ClientLimitHandler(HttpHandler next, ClientTrackingTable clientTrackingTable, int maxRequestsPerSecond, CompositeMeterRegistry meterRegistry) {
+        this.next = next;
+        this.clientTrackingTable = clientTrackingTable;
+        this.maxRequestsPerSecond = maxRequestsPerSecond;
+        this.requestRateRejections = Counter.builder("capi.downstream.rejected").tag("reason", REASON_REQUEST_RATE).register(meterRegistry);
+    }
+
+    @Override
+    public void handleRequest(HttpServerExchange exchange) throws Exception {
+        InetSocketAddress peerAddress = exchange.getConnection().getPeerAddress(InetSocketAddress.class);
+        if(peerAddress != null && peerAddress.getAddress() != null
+                && clientTrackingTable.requestStarted(peerAddress.getAddress(), System.currentTimeMillis() / 1000) > maxRequestsPerSecond) {
+            requestRateRejections.increment();
+            exchange.setStatusCode(StatusCodes.TOO_MANY_REQUESTS);
+            exchange.endExchange();
+            return;
+        }
+        next.handleRequest(exchange);
+    }
+}
@@ -0,0 +1,104 @@
+package io.surisoft.capi.lb.service;
+
+import java.net.InetAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Open connections and requests per second of the downstream clients, keyed by the client address. A client is
+ * tracked from its first connection and forgotten with its last one, once its request window is over. Updates only
+ * lock the bin of the one client they touch, well-behaved clients never contend with each other.
+ * The table holds at most the given number of clients, a new client past that is left untracked, and so unlimited,
+ * rather than sharing the counts of another one.
+ */
+public class ClientTrackingTable {
+
+    public static final int UNTRACKED = 0;
+
+    private final int capacity;
+    private final Map<InetAddress, Client> clients = new ConcurrentHashMap<>();
+
+    public ClientTrackingTable(int capacity) {
+        this.capacity = Math.max(capacity, 1);
+    }
+
+    /**
+     * Returns the open connections of the client, this one included, or UNTRACKED when the table is full.
+     */
+    public int connectionOpened(InetAddress address) {
+        if(!hasRoomFor(address)) {
+            return UNTRACKED;
+        }
+        int[] connections = new int[1];
+        clients.compute(address, (key, client) -> {
+            Client tracked = client != null ? client : new Client();
+            connections[0] = ++tracked.connections;
+            return tracked;
+        });
+        return connections[0];
+    }
+
+    public void connectionClosed(InetAddress address) {
+        long second = currentSecond();
+        clients.computeIfPresent(address, (key, client) -> {
+            client.connections = Math.max(client.connections - 1, 0);
+            return client.isIdle(second) ? null : client;
+        });
+    }
+
+    public int getConnections(InetAddress address) {
+        Client client = clients.get(address);
+        return client != null ? client.connections : 0;
+    }
+
+    /**
+     * Returns the requests of the client in the given second, this one included, or UNTRACKED when the table is full.
+     */
+    public int requestStarted(InetAddress address, long epochSecond) {
+        if(!hasRoomFor(address)) {
+            return UNTRACKED;
+        }
+        int[] requests = new int[1];
+        clients.compute(address, (key, client) -> {
+            Client tracked = client != null ? client : new Client();
+            if(tracked.second != epochSecond) {
+                tracked.second = epochSecond;
+                tracked.requests = 0;
+            }
+            requests[0] = ++tracked.requests;
+            return tracked;
+        });
+        return requests[0];
+    }
+
+    public int size() {
+        return clients.size();
+    }
+
+    private boolean hasRoomFor(InetAddress address) {
+        if(clients.size() < capacity || clients.containsKey(address)) {
+            return true;
+        }
+        // only a full table pays for the sweep, the clients without connections nor current requests make room
+        long second = currentSecond();
+        for(InetAddress trackedAddress : clients.keySet()) {
+            clients.computeIfPresent(trackedAddress, (key, client) -> client.isIdle(second) ? null : client);
+        }
+        return clients.size() < capacity;
+    }
+
+    private long currentSecond() {
+        return System.currentTimeMillis() / 1000;
+    }
+
+    private static class Client {
+        // only written inside the compute of the entry, read without it by getConnections
+        private volatile int connections;
+        private volatile long second = -1;
+        private volatile int requests;
+
+        private boolean isIdle(long currentSecond) {
+            return connections == 0 && second != currentSecond;
+        }
+    }
+}
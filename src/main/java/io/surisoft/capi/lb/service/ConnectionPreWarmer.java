@@ -0,0 +1,166 @@
+package io.surisoft.capi.lb.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import io.surisoft.capi.lb.schema.Api;
+import io.surisoft.capi.lb.utils.Constants;
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpHost;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpCoreContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Opens connections, TLS handshake included, to the endpoints of an Api before its routes take traffic.
+ * Destinations that already have enough pooled connections are left alone.
+ */
+public class ConnectionPreWarmer {
+
+    private static final Logger log = LoggerFactory.getLogger(ConnectionPreWarmer.class);
+
+    private final CapiConnectionManager connectionManager;
+    private final int connections;
+    private final long timeout;
+    private final AtomicInteger pendingConnections = new AtomicInteger();
+    private final ExecutorService preWarmExecutor;
+    private final Counter openedCounter;
+    private final Counter failedCounter;
+    private final Timer preWarmTimer;
+
+    public ConnectionPreWarmer(CapiConnectionManager connectionManager, int connections, long timeout, int threads, CompositeMeterRegistry meterRegistry) {
+        this.connectionManager = connectionManager;
+        this.connections = connections;
+        this.timeout = timeout;
+        this.preWarmExecutor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "capi-upstream-prewarm");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Gauge.builder("capi.upstream.prewarm.pending", pendingConnections, AtomicInteger::get).register(meterRegistry);
+        this.openedCounter = Counter.builder("capi.upstream.prewarm.connections").tag("result", "opened").register(meterRegistry);
+        this.failedCounter = Counter.builder("capi.upstream.prewarm.connections").tag("result", "failed").register(meterRegistry);
+        this.preWarmTimer = Timer.builder("capi.upstream.prewarm").register(meterRegistry);
+    }
+
+    /**
+     * Returns right away, the future completes once every connection is open or the pre-warm timeout elapsed,
+     * so deploys are never held by a slow endpoint. Connections still opening after that go back to the pool when they are done.
+     */
+    public CompletableFuture<Void> preWarm(Api api, String[] endpoints) {
+        if(connections <= 0) {
+            return CompletableFuture.completedFuture(null);
+        }
+        long start = System.nanoTime();
+        int connectTimeout = api.getConnectTimeout() > 0 ? api.getConnectTimeout() : (int) timeout;
+        List<CompletableFuture<HttpClientConnection>> openingConnections = new ArrayList<>();
+        for(String endpoint : endpoints) {
+            // endpoints presenting a client identity use the pool of that identity
+            if(endpoint.contains(Constants.CLIENT_CONNECTION_MANAGER)) {
+                continue;
+            }
+            URI uri = URI.create(endpoint);
+            if(!"http".equals(uri.getScheme()) && !"https".equals(uri.getScheme())) {
+                continue;
+            }
+            boolean secure = "https".equals(uri.getScheme());
+            HttpRoute route = new HttpRoute(new HttpHost(uri.getHost(), uri.getPort() > -1 ? uri.getPort() : (secure ? 443 : 80), uri.getScheme()), null, secure);
+            PoolStats stats = connectionManager.getStats(route);
+            int missingConnections = Math.min(connections, stats.getMax()) - stats.getAvailable() - stats.getLeased();
+            String hostHeader = getCustomHostHeader(uri);
+            for(int i = 0; i < missingConnections; i++) {
+                pendingConnections.incrementAndGet();
+                openingConnections.add(CompletableFuture.supplyAsync(() -> openConnection(route, hostHeader, connectTimeout), preWarmExecutor));
+            }
+        }
+        if(openingConnections.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        return CompletableFuture.allOf(openingConnections.toArray(CompletableFuture[]::new))
+                .orTimeout(timeout, TimeUnit.MILLISECONDS)
+                .handle((result, throwable) -> {
+                    if(throwable instanceof TimeoutException || throwable != null && throwable.getCause() instanceof TimeoutException) {
+                        log.debug("Connections for API {} still warming up after {} ms", api.getId(), timeout);
+                    } else if(throwable != null) {
+                        log.debug("Some connections for API {} could not be warmed up: {}", api.getId(), throwable.getMessage());
+                    }
+                    // connections are held until all of them are open, otherwise the same one would be handed out again,
+                    // the ones still opening go back to the pool when they are done
+                    for(CompletableFuture<HttpClientConnection> openingConnection : openingConnections) {
+                        openingConnection.thenAccept(connection -> connectionManager.releaseConnection(connection, null, 0, TimeUnit.MILLISECONDS));
+                    }
+                    preWarmTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                    return null;
+                });
+    }
+
+    private HttpClientConnection openConnection(HttpRoute route, String hostHeader, int connectTimeout) {
+        HttpClientConnection connection = null;
+        try {
+            connection = connectionManager.requestConnection(route, null).get(timeout, TimeUnit.MILLISECONDS);
+            if(!connection.isOpen()) {
+                HttpClientContext context = HttpClientContext.create();
+                BasicHttpRequest request = new BasicHttpRequest("OPTIONS", "*");
+                if(hostHeader != null) {
+                    request.setHeader(HttpHeaders.HOST, hostHeader);
+                }
+                context.setAttribute(HttpCoreContext.HTTP_REQUEST, request);
+                connectionManager.connect(connection, route, connectTimeout, context);
+                connectionManager.routeComplete(connection, route, context);
+            }
+            openedCounter.increment();
+            return connection;
+        } catch(Exception e) {
+            failedCounter.increment();
+            if(connection != null) {
+                try {
+                    connection.close();
+                } catch(IOException closeException) {
+                    log.trace(closeException.getMessage());
+                }
+                connectionManager.releaseConnection(connection, null, 0, TimeUnit.MILLISECONDS);
+            }
+            if(e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            throw new CompletionException(e);
+        } finally {
+            pendingConnections.decrementAndGet();
+        }
+    }
+
+    private String getCustomHostHeader(URI uri) {
+        if(uri.getQuery() == null) {
+            return null;
+        }
+        for(String parameter : uri.getQuery().split("&")) {
+            if(parameter.startsWith(Constants.CUSTOM_HOST_HEADER)) {
+                return parameter.substring(Constants.CUSTOM_HOST_HEADER.length());
+            }
+        }
+        return null;
+    }
+
+    public void shutdown() {
+        preWarmExecutor.shutdownNow();
+    }
+}
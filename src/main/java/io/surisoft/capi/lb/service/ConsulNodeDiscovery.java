@@ -166,6 +166,42 @@ public class ConsulNodeDiscovery {
         return HttpProtocol.HTTP;
     }
 
+    private int getPriority(String tagName, ConsulObject[] consulObject) {
+        if(hasServiceTag(tagName, Constants.PRIORITY_HIGH_CONSUL_SERVICE_TAG, consulObject)) {
+            return 1;
+        }
+        return hasServiceTag(tagName, Constants.PRIORITY_LOW_CONSUL_SERVICE_TAG, consulObject) ? -1 : 0;
+    }
+
+    /**
+     * Services tagged tcp-port=PORT are balanced as raw TCP streams from that port, 0 when there is no such tag.
+     */
+    private int getTcpPort(String tagName, ConsulObject[] consulObject) {
+        for(ConsulObject entry : consulObject) {
+            if(entry.getServiceTags().contains(Constants.CONSUL_GROUP + tagName)) {
+                for(String serviceTag : entry.getServiceTags()) {
+                    if(serviceTag.startsWith(Constants.TCP_PORT_CONSUL_SERVICE_TAG)) {
+                        try {
+                            return Integer.parseInt(serviceTag.substring(Constants.TCP_PORT_CONSUL_SERVICE_TAG.length()));
+                        } catch(NumberFormatException e) {
+                            log.warn("Ignoring invalid tag {} of service group {}", serviceTag, tagName);
+                        }
+                    }
+                }
+            }
+        }
+        return 0;
+    }
+
+    private boolean hasServiceTag(String tagName, String serviceTag, ConsulObject[] consulObject) {
+        for(ConsulObject entry : consulObject) {
+            if(entry.getServiceTags().contains(Constants.CONSUL_GROUP + tagName) && entry.getServiceTags().contains(serviceTag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private boolean showZipkinTraceId(String tagName, ConsulObject[] consulObject) {
         for(ConsulObject entry : consulObject) {
             if(entry.getServiceTags().contains(Constants.CONSUL_GROUP + tagName) && entry.getServiceTags().contains(Constants.TRACE_ID_HEADER)) {
@@ -190,11 +226,19 @@ public class ConsulNodeDiscovery {
         incomingApi.setForwardPrefix(forwardPrefix(key, consulResponse));
         incomingApi.setZipkinShowTraceId(showZipkinTraceId(key, consulResponse));
         incomingApi.setHttpProtocol(getHttpProtocol(serviceName, key, consulResponse));
+        incomingApi.setHttp2Enabled(hasServiceTag(key, Constants.HTTP2_CONSUL_SERVICE_TAG, consulResponse));
+        incomingApi.setStreamingEnabled(hasServiceTag(key, Constants.STREAMING_CONSUL_SERVICE_TAG, consulResponse));
+        incomingApi.setResponseBufferingEnabled(hasServiceTag(key, Constants.RESPONSE_BUFFERING_CONSUL_SERVICE_TAG, consulResponse));
+        incomingApi.setPriority(getPriority(key, consulResponse));
+        incomingApi.setTcpPort(getTcpPort(key, consulResponse));
+        incomingApi.setWebsocketEnabled(hasServiceTag(key, Constants.WEBSOCKET_CONSUL_SERVICE_TAG, consulResponse));
+        incomingApi.setGrpcEnabled(hasServiceTag(key, Constants.GRPC_CONSUL_SERVICE_TAG, consulResponse));
         return incomingApi;
     }
 
     private void createRoute(Api incomingApi) {
         apiCache.put(incomingApi.getId(), incomingApi);
+        routeUtils.preWarmConnections(incomingApi);
         List<String> apiRouteIdList = routeUtils.getAllRouteIdForAGivenApi(incomingApi);
         for(String routeId : apiRouteIdList) {
             Route existingRoute = camelContext.getRoute(routeId);
@@ -0,0 +1,103 @@
+package io.surisoft.capi.lb.service;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * CPU and memory the process may use, from the cgroup limits (v2 or v1) when it runs in a container and from the
+ * host otherwise. The CPU count never goes above what the JVM sees, a memory limit of -1 means there is none.
+ */
+public class ContainerResources {
+
+    public static final String SOURCE_CGROUP_V2 = "cgroup-v2";
+    public static final String SOURCE_CGROUP_V1 = "cgroup-v1";
+    public static final String SOURCE_HOST = "host";
+    private static final Path CGROUP_ROOT = Paths.get("/sys/fs/cgroup");
+    // cgroup v1 reports "no limit" as the largest page aligned long
+    private static final long CGROUP_V1_UNLIMITED = 1L << 62;
+
+    private final int cpus;
+    private final long memoryLimit;
+    private final long maxHeap;
+    private final String source;
+
+    ContainerResources(int cpus, long memoryLimit, long maxHeap, String source) {
+        this.cpus = cpus;
+        this.memoryLimit = memoryLimit;
+        this.maxHeap = maxHeap;
+        this.source = source;
+    }
+
+    public static ContainerResources detect() {
+        return detect(CGROUP_ROOT, Runtime.getRuntime().availableProcessors(), Runtime.getRuntime().maxMemory());
+    }
+
+    public static ContainerResources detect(Path cgroupRoot, int availableProcessors, long maxHeap) {
+        long quota = -1;
+        long period = -1;
+        long memoryLimit = -1;
+        String source = SOURCE_HOST;
+        if(Files.exists(cgroupRoot.resolve("cgroup.controllers"))) {
+            source = SOURCE_CGROUP_V2;
+            // "max 100000" or "200000 100000"
+            String[] cpuMax = read(cgroupRoot.resolve("cpu.max")).split("\\s+");
+            if(cpuMax.length == 2) {
+                quota = parse(cpuMax[0]);
+                period = parse(cpuMax[1]);
+            }
+            memoryLimit = parse(read(cgroupRoot.resolve("memory.max")));
+        } else if(Files.isDirectory(cgroupRoot.resolve("memory")) || Files.isDirectory(cgroupRoot.resolve("cpu"))) {
+            source = SOURCE_CGROUP_V1;
+            quota = parse(read(cgroupRoot.resolve("cpu").resolve("cpu.cfs_quota_us")));
+            period = parse(read(cgroupRoot.resolve("cpu").resolve("cpu.cfs_period_us")));
+            memoryLimit = parse(read(cgroupRoot.resolve("memory").resolve("memory.limit_in_bytes")));
+            if(memoryLimit >= CGROUP_V1_UNLIMITED) {
+                memoryLimit = -1;
+            }
+        }
+
+        int cpus = availableProcessors;
+        if(quota > 0 && period > 0) {
+            cpus = (int) Math.min(availableProcessors, (quota + period - 1) / period);
+        }
+        return new ContainerResources(Math.max(cpus, 1), memoryLimit, maxHeap, source);
+    }
+
+    private static String read(Path path) {
+        try {
+            return Files.readString(path, StandardCharsets.US_ASCII).trim();
+        } catch(IOException e) {
+            return "";
+        }
+    }
+
+    /**
+     * "max", missing and unreadable values all mean no limit.
+     */
+    private static long parse(String value) {
+        try {
+            return Long.parseLong(value);
+        } catch(NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public int getCpus() {
+        return cpus;
+    }
+
+    public long getMemoryLimit() {
+        return memoryLimit;
+    }
+
+    public long getMaxHeap() {
+        return maxHeap;
+    }
+
+    public String getSource() {
+        return source;
+    }
+}
@@ -0,0 +1,119 @@
+package io.surisoft.capi.lb.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wildfly.openssl.OpenSSLProvider;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLContextSpi;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLServerSocketFactory;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.security.SecureRandom;
+
+/**
+ * SSLContext of the downstream listener. Spring Boot builds it from server.ssl.protocol, so the listener asks this
+ * provider for it and gets an OpenSSL context when the native library loads, a JSSE one otherwise, both with the
+ * configured server session cache.
+ */
+public class DownstreamTlsProvider extends Provider {
+
+    private static final Logger log = LoggerFactory.getLogger(DownstreamTlsProvider.class);
+
+    public static final String NAME = "CapiDownstreamTls";
+    public static final String PROTOCOL_PREFIX = "capi.";
+    public static final String ENGINE_JSSE = "jsse";
+    public static final String ENGINE_OPENSSL = "openssl";
+    private static final String OPENSSL_PROTOCOL_PREFIX = "openssl.";
+
+    private final String engine;
+
+    public DownstreamTlsProvider(String preferredEngine, String protocol, int sessionCacheSize, int sessionTimeout) {
+        super(NAME, "1.0", "CAPI downstream TLS");
+        this.engine = ENGINE_OPENSSL.equals(preferredEngine) && isOpenSslAvailable(protocol) ? ENGINE_OPENSSL : ENGINE_JSSE;
+        String delegateProtocol = ENGINE_OPENSSL.equals(engine) ? OPENSSL_PROTOCOL_PREFIX + protocol : protocol;
+        putService(new Service(this, "SSLContext", PROTOCOL_PREFIX + protocol, SessionConfiguringSslContextSpi.class.getName(), null, null) {
+            @Override
+            public Object newInstance(Object constructorParameter) throws NoSuchAlgorithmException {
+                return new SessionConfiguringSslContextSpi(SSLContext.getInstance(delegateProtocol), sessionCacheSize, sessionTimeout);
+            }
+        });
+    }
+
+    /**
+     * The engine actually in use, jsse when openssl was asked for but the native library did not load.
+     */
+    public String getEngine() {
+        return engine;
+    }
+
+    private static boolean isOpenSslAvailable(String protocol) {
+        try {
+            OpenSSLProvider.register();
+            SSLContext.getInstance(OPENSSL_PROTOCOL_PREFIX + protocol);
+            return true;
+        } catch(Exception | LinkageError e) {
+            log.warn("OpenSSL is not available for the downstream listener, falling back to JSSE: {}", e.getMessage());
+            return false;
+        }
+    }
+
+    private static class SessionConfiguringSslContextSpi extends SSLContextSpi {
+
+        private final SSLContext delegate;
+        private final int sessionCacheSize;
+        private final int sessionTimeout;
+
+        private SessionConfiguringSslContextSpi(SSLContext delegate, int sessionCacheSize, int sessionTimeout) {
+            this.delegate = delegate;
+            this.sessionCacheSize = sessionCacheSize;
+            this.sessionTimeout = sessionTimeout;
+        }
+
+        @Override
+        protected void engineInit(KeyManager[] keyManagers, TrustManager[] trustManagers, SecureRandom secureRandom) throws KeyManagementException {
+            delegate.init(keyManagers, trustManagers, secureRandom);
+            SSLSessionContext sessionContext = delegate.getServerSessionContext();
+            if(sessionContext != null) {
+                sessionContext.setSessionCacheSize(sessionCacheSize);
+                sessionContext.setSessionTimeout(sessionTimeout);
+            }
+        }
+
+        @Override
+        protected SSLSocketFactory engineGetSocketFactory() {
+            return delegate.getSocketFactory();
+        }
+
+        @Override
+        protected SSLServerSocketFactory engineGetServerSocketFactory() {
+            return delegate.getServerSocketFactory();
+        }
+
+        @Override
+        protected SSLEngine engineCreateSSLEngine() {
+            return delegate.createSSLEngine();
+        }
+
+        @Override
+        protected SSLEngine engineCreateSSLEngine(String host, int port) {
+            return delegate.createSSLEngine(host, port);
+        }
+
+        @Override
+        protected SSLSessionContext engineGetServerSessionContext() {
+            return delegate.getServerSessionContext();
+        }
+
+        @Override
+        protected SSLSessionContext engineGetClientSessionContext() {
+            return delegate.getClientSessionContext();
+        }
+    }
+}
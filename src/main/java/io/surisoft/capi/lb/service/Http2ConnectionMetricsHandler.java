@@ -0,0 +1,85 @@
+package io.surisoft.capi.lb.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.server.ServerConnection;
+import io.undertow.server.protocol.http2.Http2ServerConnection;
+import io.undertow.util.AttachmentKey;
+import io.undertow.util.HeaderMap;
+import io.undertow.util.Headers;
+import io.undertow.util.HttpString;
+import io.undertow.util.Protocols;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the streams of the downstream HTTP/2 connections, and strips the connection specific headers HTTP/2
+ * forbids from the responses the routes copy from HTTP/1.1 backends.
+ */
+public class Http2ConnectionMetricsHandler implements HttpHandler {
+
+    private static final HttpString PROXY_CONNECTION = new HttpString("Proxy-Connection");
+    private static final AttachmentKey<AtomicLong> CONNECTION_STREAMS = AttachmentKey.create(AtomicLong.class);
+
+    private final HttpHandler next;
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicInteger activeStreams = new AtomicInteger();
+    private final Counter streams;
+    private final DistributionSummary streamsPerConnection;
+
+    public Http2ConnectionMetricsHandler(HttpHandler next, CompositeMeterRegistry meterRegistry) {
+        this.next = next;
+        Gauge.builder("capi.downstream.http2.connections", connections, AtomicInteger::get).register(meterRegistry);
+        Gauge.builder("capi.downstream.http2.streams.active", activeStreams, AtomicInteger::get).register(meterRegistry);
+        this.streams = Counter.builder("capi.downstream.http2.streams").register(meterRegistry);
+        this.streamsPerConnection = DistributionSummary.builder("capi.downstream.http2.streams.per.connection").register(meterRegistry);
+    }
+
+    @Override
+    public void handleRequest(HttpServerExchange exchange) throws Exception {
+        if(Protocols.HTTP_2_0.equals(exchange.getProtocol()) && exchange.getConnection() instanceof Http2ServerConnection) {
+            connectionStreams(exchange.getConnection()).incrementAndGet();
+            streams.increment();
+            activeStreams.incrementAndGet();
+            exchange.addExchangeCompleteListener((completedExchange, nextListener) -> {
+                activeStreams.decrementAndGet();
+                nextListener.proceed();
+            });
+            exchange.addResponseCommitListener(committedExchange -> removeConnectionHeaders(committedExchange.getResponseHeaders()));
+        }
+        next.handleRequest(exchange);
+    }
+
+    /**
+     * Undertow hands every stream its own ServerConnection, they all keep their attachments and close listeners on
+     * the Http2Channel of the client connection. The streams of a connection are read by its one IO thread, which
+     * runs this handler, so the count is attached once per connection.
+     */
+    private AtomicLong connectionStreams(ServerConnection connection) {
+        AtomicLong streamCount = connection.getAttachment(CONNECTION_STREAMS);
+        if(streamCount == null) {
+            AtomicLong newStreamCount = new AtomicLong();
+            connection.putAttachment(CONNECTION_STREAMS, newStreamCount);
+            connections.incrementAndGet();
+            connection.addCloseListener(closedConnection -> {
+                connections.decrementAndGet();
+                streamsPerConnection.record(newStreamCount.get());
+            });
+            streamCount = newStreamCount;
+        }
+        return streamCount;
+    }
+
+    private void removeConnectionHeaders(HeaderMap headers) {
+        headers.remove(Headers.CONNECTION);
+        headers.remove(Headers.KEEP_ALIVE);
+        headers.remove(Headers.TRANSFER_ENCODING);
+        headers.remove(Headers.UPGRADE);
+        headers.remove(PROXY_CONNECTION);
+    }
+}
@@ -0,0 +1,77 @@
+package io.surisoft.capi.lb.service;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Pool sizes and capacities derived from the container resources. They are used for the properties set to auto,
+ * any other value is an explicit override and is kept as it is.
+ */
+public class ResourcePlan {
+
+    public static final String AUTO = "auto";
+    public static final String PROPERTY_SOURCE = "capiResourcePlan";
+
+    public static final String IO_THREADS = "server.undertow.threads.io";
+    public static final String WORKER_THREADS = "server.undertow.threads.worker";
+    public static final String BUFFER_SIZE = "server.undertow.buffer-size";
+    public static final String UPSTREAM_MAX_TOTAL = "capi.upstream.pool.max.total";
+    public static final String UPSTREAM_MAX_PER_DESTINATION = "capi.upstream.pool.max.per.destination";
+    public static final String PREWARM_THREADS = "capi.upstream.prewarm.threads";
+    public static final String SPOOL_MEMORY_BUDGET = "capi.spool.memory.budget";
+    public static final String MEMORY_BUDGET_TOTAL = "capi.memory.budget.total";
+    public static final String API_CACHE_CAPACITY = "capi.cache.api.capacity";
+    public static final String STICKY_SESSION_CACHE_CAPACITY = "capi.cache.sticky.session.capacity";
+
+    private static final long MB = 1024 * 1024;
+    // thread stacks, direct buffers and metaspace live outside the heap, a worker is given this much of it
+    private static final long NATIVE_MEMORY_PER_WORKER = 4 * MB;
+
+    private final ContainerResources resources;
+    private final Map<String, Long> values = new LinkedHashMap<>();
+
+    private ResourcePlan(ContainerResources resources) {
+        this.resources = resources;
+    }
+
+    public static ResourcePlan derive(ContainerResources resources) {
+        ResourcePlan resourcePlan = new ResourcePlan(resources);
+        int cpus = resources.getCpus();
+        long heap = resources.getMaxHeap();
+
+        long ioThreads = Math.max(2, cpus);
+        // workers block on the upstream calls, a proxy wants more of them than the 8 per core of a regular service
+        long workerThreads = Math.max(16, cpus * 16L);
+        if(resources.getMemoryLimit() > heap) {
+            workerThreads = Math.min(workerThreads, Math.max(16, (resources.getMemoryLimit() - heap) / NATIVE_MEMORY_PER_WORKER));
+        }
+        // same steps Undertow takes for its own default
+        long bufferSize = heap < 64 * MB ? 512 : heap < 128 * MB ? 1024 : 16384;
+        long upstreamMaxTotal = workerThreads * 2;
+
+        resourcePlan.values.put(IO_THREADS, ioThreads);
+        resourcePlan.values.put(WORKER_THREADS, workerThreads);
+        resourcePlan.values.put(BUFFER_SIZE, bufferSize);
+        resourcePlan.values.put(UPSTREAM_MAX_TOTAL, upstreamMaxTotal);
+        resourcePlan.values.put(UPSTREAM_MAX_PER_DESTINATION, Math.max(16, upstreamMaxTotal / 8));
+        resourcePlan.values.put(PREWARM_THREADS, Math.max(2L, cpus));
+        resourcePlan.values.put(SPOOL_MEMORY_BUDGET, heap / 8);
+        resourcePlan.values.put(MEMORY_BUDGET_TOTAL, heap / 4);
+        resourcePlan.values.put(API_CACHE_CAPACITY, clamp(heap / MB * 8, 1000, 100000));
+        resourcePlan.values.put(STICKY_SESSION_CACHE_CAPACITY, clamp(heap / MB * 64, 10000, 1000000));
+        return resourcePlan;
+    }
+
+    private static long clamp(long value, long minimum, long maximum) {
+        return Math.max(minimum, Math.min(maximum, value));
+    }
+
+    public ContainerResources getResources() {
+        return resources;
+    }
+
+    public Map<String, Long> getValues() {
+        return Collections.unmodifiableMap(values);
+    }
+}
@@ -0,0 +1,59 @@
+package io.surisoft.capi.lb.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import org.apache.http.HttpRequest;
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.client.HttpRequestRetryHandler;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.protocol.HttpContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketException;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Pooled connections are not checked before every request, a connection the backend closed while it was idle
+ * fails on first use instead. That request is retried once on a fresh connection, when the backend can't have
+ * acted on it: nothing was sent yet, or the method is idempotent.
+ * Request bodies that can't be replayed are never retried, the http client refuses them.
+ */
+public class StaleConnectionRetryHandler implements HttpRequestRetryHandler {
+
+    private static final Logger log = LoggerFactory.getLogger(StaleConnectionRetryHandler.class);
+    private static final Set<String> IDEMPOTENT_METHODS = Set.of("GET", "HEAD", "OPTIONS", "TRACE", "PUT", "DELETE");
+
+    private final Counter retryCounter;
+
+    public StaleConnectionRetryHandler(CompositeMeterRegistry meterRegistry) {
+        this.retryCounter = Counter.builder("capi.upstream.pool.stale.retry").register(meterRegistry);
+    }
+
+    @Override
+    public boolean retryRequest(IOException exception, int executionCount, HttpContext context) {
+        if(executionCount > 1 || !isStaleConnectionFailure(exception)) {
+            return false;
+        }
+        HttpClientContext clientContext = HttpClientContext.adapt(context);
+        HttpRequest request = clientContext.getRequest();
+        boolean idempotent = request != null && IDEMPOTENT_METHODS.contains(request.getRequestLine().getMethod().toUpperCase(Locale.ROOT));
+        if(!clientContext.isRequestSent() || idempotent) {
+            log.debug("Retrying on a fresh connection after {}", exception.getMessage());
+            retryCounter.increment();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * A backend that refuses new connections is down, not stale, failover takes care of it.
+     */
+    private boolean isStaleConnectionFailure(IOException exception) {
+        return exception instanceof NoHttpResponseException || (exception instanceof SocketException && !(exception instanceof ConnectException) && !(exception instanceof NoRouteToHostException));
+    }
+}
@@ -0,0 +1,294 @@
+package io.surisoft.capi.lb.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exposes a Unix domain socket channel as a {@link Socket}, which is what the http client pools.
+ * The channel is blocking, the socket timeout is enforced by a shared timer that closes the channel when a
+ * read or a write takes longer, which surfaces as a {@link SocketTimeoutException}. The http client drops a
+ * connection after a timeout anyway, so losing it is no different from TCP. TCP options are ignored.
+ */
+public class UnixDomainSocket extends Socket {
+
+    private static final ScheduledThreadPoolExecutor TIMEOUTS = createTimeoutExecutor();
+
+    private final UnixDomainSocketAddress address;
+    private SocketChannel channel;
+    private InputStream inputStream;
+    private OutputStream outputStream;
+    private volatile int soTimeout;
+    private volatile boolean closed;
+    private volatile boolean inputShutdown;
+    private volatile boolean outputShutdown;
+    private volatile boolean timedOut;
+
+    public UnixDomainSocket(Path path) {
+        this.address = UnixDomainSocketAddress.of(path);
+    }
+
+    /**
+     * A local socket either accepts the connection right away or refuses it, so there is no connect timeout.
+     */
+    public void connect() throws IOException {
+        channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+        try {
+            channel.connect(address);
+        } catch(IOException e) {
+            close();
+            throw e;
+        }
+        inputStream = new UnixDomainSocketInputStream();
+        outputStream = new UnixDomainSocketOutputStream();
+    }
+
+    @Override
+    public void connect(SocketAddress endpoint, int timeout) throws IOException {
+        connect();
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        ensureConnected();
+        return inputStream;
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        ensureConnected();
+        return outputStream;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if(closed) {
+            return;
+        }
+        closed = true;
+        if(channel != null) {
+            channel.close();
+        }
+    }
+
+    @Override
+    public void shutdownInput() throws IOException {
+        ensureConnected();
+        channel.shutdownInput();
+        inputShutdown = true;
+    }
+
+    @Override
+    public void shutdownOutput() throws IOException {
+        ensureConnected();
+        channel.shutdownOutput();
+        outputShutdown = true;
+    }
+
+    @Override
+    public void setSoTimeout(int timeout) {
+        this.soTimeout = timeout;
+    }
+
+    @Override
+    public int getSoTimeout() {
+        return soTimeout;
+    }
+
+    @Override
+    public void setTcpNoDelay(boolean on) {
+        // not a TCP socket
+    }
+
+    @Override
+    public void setKeepAlive(boolean on) {
+        // not a TCP socket
+    }
+
+    @Override
+    public void setSoLinger(boolean on, int linger) {
+        // not a TCP socket
+    }
+
+    @Override
+    public void setReuseAddress(boolean on) {
+        // not a TCP socket
+    }
+
+    @Override
+    public void setReceiveBufferSize(int size) {
+        // the kernel default is used
+    }
+
+    @Override
+    public void setSendBufferSize(int size) {
+        // the kernel default is used
+    }
+
+    @Override
+    public boolean isConnected() {
+        return channel != null && channel.isConnected();
+    }
+
+    @Override
+    public boolean isBound() {
+        return isConnected();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public boolean isInputShutdown() {
+        return inputShutdown;
+    }
+
+    @Override
+    public boolean isOutputShutdown() {
+        return outputShutdown;
+    }
+
+    @Override
+    public InetAddress getInetAddress() {
+        return null;
+    }
+
+    @Override
+    public InetAddress getLocalAddress() {
+        return InetAddress.getLoopbackAddress();
+    }
+
+    @Override
+    public int getPort() {
+        return -1;
+    }
+
+    @Override
+    public int getLocalPort() {
+        return -1;
+    }
+
+    @Override
+    public SocketAddress getRemoteSocketAddress() {
+        return address;
+    }
+
+    @Override
+    public SocketAddress getLocalSocketAddress() {
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return "UnixDomainSocket[" + address.getPath() + "]";
+    }
+
+    private void ensureConnected() throws SocketException {
+        if(closed) {
+            throw new SocketException("Socket is closed");
+        }
+        if(!isConnected()) {
+            throw new SocketException("Socket is not connected");
+        }
+    }
+
+    private int withTimeout(IoOperation operation, String timeoutMessage) throws IOException {
+        int timeout = soTimeout;
+        if(timeout <= 0) {
+            return operation.run();
+        }
+        ScheduledFuture<?> watchdog = TIMEOUTS.schedule(this::expire, timeout, TimeUnit.MILLISECONDS);
+        try {
+            return operation.run();
+        } catch(AsynchronousCloseException e) {
+            if(timedOut) {
+                throw new SocketTimeoutException(timeoutMessage);
+            }
+            throw e;
+        } finally {
+            watchdog.cancel(false);
+        }
+    }
+
+    private void expire() {
+        timedOut = true;
+        try {
+            close();
+        } catch(IOException e) {
+            // the blocked read or write fails either way
+        }
+    }
+
+    private static ScheduledThreadPoolExecutor createTimeoutExecutor() {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "capi-uds-timeout");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // most reads complete well within the timeout, cancelled checks must not pile up in the queue
+        executor.setRemoveOnCancelPolicy(true);
+        return executor;
+    }
+
+    @FunctionalInterface
+    private interface IoOperation {
+        int run() throws IOException;
+    }
+
+    private class UnixDomainSocketInputStream extends InputStream {
+
+        @Override
+        public int read() throws IOException {
+            byte[] singleByte = new byte[1];
+            int read = read(singleByte, 0, 1);
+            return read == -1 ? -1 : singleByte[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if(len == 0) {
+                return 0;
+            }
+            ensureConnected();
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+            return withTimeout(() -> channel.read(buffer), "Read timed out");
+        }
+    }
+
+    private class UnixDomainSocketOutputStream extends OutputStream {
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ensureConnected();
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+            withTimeout(() -> {
+                // a blocking channel writes the whole buffer unless it is closed
+                while(buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                return len;
+            }, "Write timed out");
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package io.surisoft.capi.lb.service;
+
+import org.apache.http.HttpHost;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.protocol.HttpContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Plain http socket factory that connects to a Unix domain socket instead of TCP, for the mappings of a
+ * sidecar running on the gateway host. The endpoints of those mappings use a host of their own, derived from
+ * the Api and the mapping, so another Api proxying the same hostname:port over TCP never gets the socket.
+ * That host only names the socket and never reaches the DNS.
+ */
+public class UnixDomainSocketFactory implements ConnectionSocketFactory {
+
+    private static final Logger log = LoggerFactory.getLogger(UnixDomainSocketFactory.class);
+
+    private final PlainConnectionSocketFactory plainSocketFactory = PlainConnectionSocketFactory.getSocketFactory();
+    private static final String SOCKET_HOST_PREFIX = "capi-uds-";
+
+    private final Map<String, Path> socketPaths = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> apiSocketHosts = new ConcurrentHashMap<>();
+
+    @Override
+    public Socket createSocket(HttpContext context) throws IOException {
+        return plainSocketFactory.createSocket(context);
+    }
+
+    /**
+     * The socket created for TCP is replaced, the caller binds whatever socket is returned.
+     */
+    @Override
+    public Socket connectSocket(int connectTimeout, Socket socket, HttpHost host, InetSocketAddress remoteAddress, InetSocketAddress localAddress, HttpContext context) throws IOException {
+        Path socketPath = socketPaths.get(host.getHostName().toLowerCase());
+        if(socketPath == null) {
+            return plainSocketFactory.connectSocket(connectTimeout, socket, host, remoteAddress, localAddress, context);
+        }
+        UnixDomainSocket unixDomainSocket = new UnixDomainSocket(socketPath);
+        if(socket != null) {
+            unixDomainSocket.setSoTimeout(socket.getSoTimeout());
+            socket.close();
+        }
+        unixDomainSocket.connect();
+        log.trace("Connected to {} through {}", host, socketPath);
+        return unixDomainSocket;
+    }
+
+    /**
+     * Replaces the sockets of an Api, with one entry per socket host (see {@link #getSocketHost}).
+     */
+    public synchronized void setApiSocketPaths(String apiId, Map<String, Path> apiSocketPaths) {
+        Set<String> previousHosts = apiSocketHosts.getOrDefault(apiId, Set.of());
+        apiSocketPaths.forEach((socketHost, socketPath) -> socketPaths.put(socketHost.toLowerCase(), socketPath));
+        for(String previousHost : previousHosts) {
+            if(!apiSocketPaths.containsKey(previousHost)) {
+                socketPaths.remove(previousHost);
+            }
+        }
+        if(apiSocketPaths.isEmpty()) {
+            apiSocketHosts.remove(apiId);
+        } else {
+            apiSocketHosts.put(apiId, Set.copyOf(apiSocketPaths.keySet()));
+        }
+    }
+
+    public synchronized void removeApi(String apiId) {
+        Set<String> previousHosts = apiSocketHosts.remove(apiId);
+        if(previousHosts != null) {
+            previousHosts.forEach(socketPaths::remove);
+        }
+    }
+
+    public boolean isUnixDomainSocketHost(String hostname) {
+        return hostname.startsWith(SOCKET_HOST_PREFIX) && socketPaths.containsKey(hostname.toLowerCase());
+    }
+
+    /**
+     * Hostnames of socket mappings resolve to the loopback address, the pool needs an address for its routes.
+     */
+    public InetAddress[] resolve(String hostname, CapiDnsResolver capiDnsResolver) throws UnknownHostException {
+        if(isUnixDomainSocketHost(hostname)) {
+            return new InetAddress[] {InetAddress.getLoopbackAddress()};
+        }
+        return capiDnsResolver.resolve(hostname);
+    }
+
+    /**
+     * The host used in the endpoint of a socket mapping, a single DNS label unique to the Api and the mapping.
+     */
+    public static String getSocketHost(String apiId, String hostname, int port) {
+        String mappingKey = apiId + "/" + hostname.toLowerCase() + ":" + port;
+        return SOCKET_HOST_PREFIX + UUID.nameUUIDFromBytes(mappingKey.getBytes(StandardCharsets.UTF_8)).toString().replace("-", "");
+    }
+}
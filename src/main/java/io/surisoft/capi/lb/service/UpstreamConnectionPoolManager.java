@@ -0,0 +1,149 @@
+package io.surisoft.capi.lb.service;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import io.surisoft.capi.lb.schema.Api;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+public class UpstreamConnectionPoolManager {
+
+    private static final Logger log = LoggerFactory.getLogger(UpstreamConnectionPoolManager.class);
+
+    private final CapiConnectionManager connectionManager;
+    private final CompositeMeterRegistry meterRegistry;
+    private final long acquireTimeout;
+    private final long apiAcquireWait;
+    private final long idleTimeout;
+    private final long evictionInterval;
+    private final List<CapiConnectionManager> identityConnectionManagers = new CopyOnWriteArrayList<>();
+    private final Map<String, ApiConnectionLimit> apiConnectionLimits = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService evictionExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "capi-upstream-pool-eviction");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public UpstreamConnectionPoolManager(CapiConnectionManager connectionManager, CompositeMeterRegistry meterRegistry, long acquireTimeout, long apiAcquireWait, long idleTimeout, long evictionInterval) {
+        this.connectionManager = connectionManager;
+        this.meterRegistry = meterRegistry;
+        this.acquireTimeout = acquireTimeout;
+        this.apiAcquireWait = apiAcquireWait;
+        this.idleTimeout = idleTimeout;
+        this.evictionInterval = evictionInterval;
+
+        Gauge.builder("capi.upstream.pool.total.leased", connectionManager, manager -> manager.getTotalStats().getLeased()).register(meterRegistry);
+        Gauge.builder("capi.upstream.pool.total.idle", connectionManager, manager -> manager.getTotalStats().getAvailable()).register(meterRegistry);
+        Gauge.builder("capi.upstream.pool.total.pending", connectionManager, manager -> manager.getTotalStats().getPending()).register(meterRegistry);
+        Gauge.builder("capi.upstream.pool.total.max", connectionManager, manager -> manager.getTotalStats().getMax()).register(meterRegistry);
+    }
+
+    public void start() {
+        log.debug("Starting upstream connection eviction every {} ms", evictionInterval);
+        evictionExecutor.scheduleWithFixedDelay(this::evictConnections, evictionInterval, evictionInterval, TimeUnit.MILLISECONDS);
+    }
+
+    public void shutdown() {
+        evictionExecutor.shutdownNow();
+        connectionManager.shutdown();
+        identityConnectionManagers.forEach(CapiConnectionManager::shutdown);
+    }
+
+    /**
+     * Pools of the client identities are evicted together with the shared one.
+     */
+    public void addIdentityConnectionManager(CapiConnectionManager identityConnectionManager) {
+        identityConnectionManager.setValidateAfterInactivity(connectionManager.getValidateAfterInactivity());
+        identityConnectionManagers.add(identityConnectionManager);
+    }
+
+    private void evictConnections() {
+        try {
+            evictConnections(connectionManager);
+            for(CapiConnectionManager identityConnectionManager : identityConnectionManagers) {
+                evictConnections(identityConnectionManager);
+            }
+        } catch(Exception e) {
+            log.error(e.getMessage(), e);
+        }
+    }
+
+    private void evictConnections(CapiConnectionManager capiConnectionManager) {
+        capiConnectionManager.closeExpiredConnections();
+        capiConnectionManager.closeIdleConnections(idleTimeout, TimeUnit.MILLISECONDS);
+        capiConnectionManager.removeUnusedDestinationMetrics();
+    }
+
+    /**
+     * Takes one of the connections allowed to the given Api, waiting for one up to the configured Api wait only.
+     * Returns the permits the caller must release once done, or null if none became available in time.
+     */
+    public Semaphore acquireApiConnection(Api api) throws InterruptedException {
+        ApiConnectionLimit apiConnectionLimit = apiConnectionLimits.get(api.getId());
+        if(apiConnectionLimit == null || apiConnectionLimit.maxConnections != api.getMaxConnections()) {
+            // first request of the Api, or its limit changed
+            apiConnectionLimit = apiConnectionLimits.compute(api.getId(), (apiId, existingLimit) -> {
+                if(existingLimit == null) {
+                    registerApiMetrics(apiId);
+                } else if(existingLimit.maxConnections == api.getMaxConnections()) {
+                    return existingLimit;
+                }
+                return new ApiConnectionLimit(api.getMaxConnections());
+            });
+        }
+        boolean acquired = apiAcquireWait > 0 ? apiConnectionLimit.permits.tryAcquire(apiAcquireWait, TimeUnit.MILLISECONDS) : apiConnectionLimit.permits.tryAcquire();
+        if(acquired) {
+            return apiConnectionLimit.permits;
+        }
+        log.debug("No connection available for API {} after {} ms", api.getId(), apiAcquireWait);
+        return null;
+    }
+
+    private void registerApiMetrics(String apiId) {
+        Tags tags = Tags.of("api", apiId);
+        Gauge.builder("capi.upstream.api.leased", apiConnectionLimits, limits -> limits.getOrDefault(apiId, ApiConnectionLimit.NONE).getLeased())
+                .tags(tags)
+                .register(meterRegistry);
+        Gauge.builder("capi.upstream.api.pending", apiConnectionLimits, limits -> limits.getOrDefault(apiId, ApiConnectionLimit.NONE).permits.getQueueLength())
+                .tags(tags)
+                .register(meterRegistry);
+    }
+
+    public void removeApi(String apiId) {
+        apiConnectionLimits.remove(apiId);
+    }
+
+    public CapiConnectionManager getConnectionManager() {
+        return connectionManager;
+    }
+
+    public long getAcquireTimeout() {
+        return acquireTimeout;
+    }
+
+    private static class ApiConnectionLimit {
+        private static final ApiConnectionLimit NONE = new ApiConnectionLimit(0);
+
+        private final int maxConnections;
+        private final Semaphore permits;
+
+        private ApiConnectionLimit(int maxConnections) {
+            this.maxConnections = maxConnections;
+            this.permits = new Semaphore(maxConnections, true);
+        }
+
+        private int getLeased() {
+            return maxConnections - permits.availablePermits();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package io.surisoft.capi.lb.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordedStackTrace;
+import jdk.jfr.consumer.RecordingStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+
+/**
+ * Streams the JFR events of virtual threads blocking while pinned to their carrier, inside a synchronized block or a
+ * native frame, and counts them by the CAPI frame they were pinned in (or the first frame outside the JDK).
+ */
+public class VirtualThreadPinningMonitor {
+
+    private static final Logger log = LoggerFactory.getLogger(VirtualThreadPinningMonitor.class);
+    static final String PINNED_EVENT = "jdk.VirtualThreadPinned";
+    private static final String CAPI_PACKAGE = "io.surisoft.capi.";
+
+    private final long thresholdMillis;
+    private final CompositeMeterRegistry meterRegistry;
+    private final Timer pinnedTime;
+    private RecordingStream recordingStream;
+
+    public VirtualThreadPinningMonitor(long thresholdMillis, CompositeMeterRegistry meterRegistry) {
+        this.thresholdMillis = thresholdMillis;
+        this.meterRegistry = meterRegistry;
+        this.pinnedTime = Timer.builder("capi.virtual.threads.pinned.time").register(meterRegistry);
+    }
+
+    public void start() {
+        recordingStream = new RecordingStream();
+        recordingStream.enable(PINNED_EVENT).withThreshold(Duration.ofMillis(thresholdMillis)).withStackTrace();
+        recordingStream.onEvent(PINNED_EVENT, this::onPinned);
+        recordingStream.startAsync();
+        log.info("Reporting virtual threads pinned for more than {} ms", thresholdMillis);
+    }
+
+    public void stop() {
+        if(recordingStream != null) {
+            recordingStream.close();
+        }
+    }
+
+    void onPinned(RecordedEvent event) {
+        String frame = pinnedFrame(event.getStackTrace());
+        pinnedTime.record(event.getDuration());
+        Counter.builder("capi.virtual.threads.pinned").tag("frame", frame).register(meterRegistry).increment();
+        log.warn("Virtual thread {} pinned for {} ms in {}", event.getThread() == null ? "" : event.getThread().getJavaName(), event.getDuration().toMillis(), frame);
+        if(log.isDebugEnabled() && event.getStackTrace() != null) {
+            for(RecordedFrame recordedFrame : event.getStackTrace().getFrames()) {
+                log.debug("    at {}", describe(recordedFrame));
+            }
+        }
+    }
+
+    static String pinnedFrame(RecordedStackTrace stackTrace) {
+        if(stackTrace == null) {
+            return "unknown";
+        }
+        String outsideJdk = null;
+        for(RecordedFrame recordedFrame : stackTrace.getFrames()) {
+            if(!recordedFrame.isJavaFrame()) {
+                continue;
+            }
+            String typeName = recordedFrame.getMethod().getType().getName();
+            if(typeName.startsWith(CAPI_PACKAGE)) {
+                return describe(recordedFrame);
+            }
+            if(outsideJdk == null && !typeName.startsWith("java.") && !typeName.startsWith("jdk.") && !typeName.startsWith("sun.")) {
+                outsideJdk = describe(recordedFrame);
+            }
+        }
+        return outsideJdk == null ? "jdk" : outsideJdk;
+    }
+
+    private static String describe(RecordedFrame recordedFrame) {
+        return recordedFrame.getMethod().getType().getName() + "." + recordedFrame.getMethod().getName();
+    }
+}
@@ -0,0 +1,37 @@
+package io.surisoft.capi.lb.service;
+
+import org.apache.camel.spi.ThreadPoolProfile;
+import org.apache.camel.support.DefaultThreadPoolFactory;
+import org.apache.camel.util.concurrent.ThreadPoolRejectedPolicy;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Gives the Camel thread pools, the threads EIP and the async producers among them, a virtual thread per task.
+ * The profile still holds: no more than its max pool size of tasks run at once, no more than its max queue size
+ * wait, and its rejected policy applies past that. Core pool size and keep alive have nothing to keep alive.
+ * Scheduled pools stay on platform threads, they only ever run a handful of short timer tasks.
+ */
+public class VirtualThreadPoolFactory extends DefaultThreadPoolFactory {
+
+    private static final String THREAD_PREFIX = "capi-camel-virtual-";
+
+    @Override
+    public ExecutorService newCachedThreadPool(ThreadFactory threadFactory) {
+        return VirtualThreads.newThreadPerTaskExecutor(THREAD_PREFIX);
+    }
+
+    @Override
+    public ExecutorService newThreadPool(ThreadPoolProfile profile, ThreadFactory threadFactory) {
+        int maxPoolSize = profile.getMaxPoolSize() != null ? profile.getMaxPoolSize() : 0;
+        int poolSize = profile.getPoolSize() != null ? profile.getPoolSize() : 0;
+        int maxQueueSize = profile.getMaxQueueSize() != null ? profile.getMaxQueueSize() : 0;
+        ThreadPoolRejectedPolicy rejectedPolicy = profile.getRejectedPolicy() != null ? profile.getRejectedPolicy() : ThreadPoolRejectedPolicy.CallerRuns;
+        // the same validation and defaults as the platform pools, a pool of 0 and 0 hands over to a single thread
+        if(maxPoolSize < poolSize) {
+            throw new IllegalArgumentException("MaxPoolSize must be >= corePoolSize, was " + maxPoolSize + " >= " + poolSize);
+        }
+        return VirtualThreads.newBoundedExecutor(THREAD_PREFIX, Math.max(maxPoolSize, 1), maxQueueSize, rejectedPolicy);
+    }
+}
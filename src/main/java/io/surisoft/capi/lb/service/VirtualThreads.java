@@ -0,0 +1,109 @@
+package io.surisoft.capi.lb.service;
+
+import org.apache.camel.util.concurrent.ThreadPoolRejectedPolicy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Virtual threads looked up by reflection, CAPI is built for Java 17 and only gets them when it runs on a JDK that
+ * has them (21 and later).
+ */
+public final class VirtualThreads {
+
+    private static final Logger log = LoggerFactory.getLogger(VirtualThreads.class);
+
+    private static final Method OF_VIRTUAL = lookup(Thread.class, "ofVirtual");
+    private static final Method NAME = lookup(builderClass(), "name", String.class, long.class);
+    private static final Method FACTORY = lookup(builderClass(), "factory");
+    private static final Method IS_VIRTUAL = lookup(Thread.class, "isVirtual");
+    private static final Method NEW_THREAD_PER_TASK_EXECUTOR = lookup(Executors.class, "newThreadPerTaskExecutor", ThreadFactory.class);
+    private static final boolean SUPPORTED = probe();
+
+    private VirtualThreads() {
+    }
+
+    public static boolean isSupported() {
+        return SUPPORTED;
+    }
+
+    /**
+     * Virtual threads named after the prefix and a counter.
+     */
+    public static ThreadFactory threadFactory(String prefix) {
+        if(!isSupported()) {
+            throw new IllegalStateException("capi.virtual.threads.enabled needs Java 21 or later, running on " + Runtime.version());
+        }
+        try {
+            return (ThreadFactory) FACTORY.invoke(NAME.invoke(OF_VIRTUAL.invoke(null), prefix, 0L));
+        } catch(ReflectiveOperationException e) {
+            throw new IllegalStateException("Could not create a virtual thread factory", e);
+        }
+    }
+
+    /**
+     * Starts a new virtual thread for every task, nothing is pooled.
+     */
+    public static ExecutorService newThreadPerTaskExecutor(String prefix) {
+        try {
+            return (ExecutorService) NEW_THREAD_PER_TASK_EXECUTOR.invoke(null, threadFactory(prefix));
+        } catch(ReflectiveOperationException e) {
+            throw new IllegalStateException("Could not create a virtual thread executor", e);
+        }
+    }
+
+    /**
+     * A virtual thread per task, with at most maxRunning of them at once and maxQueued tasks waiting.
+     */
+    public static BoundedThreadPerTaskExecutor newBoundedExecutor(String prefix, int maxRunning, int maxQueued, ThreadPoolRejectedPolicy rejectedPolicy) {
+        return new BoundedThreadPerTaskExecutor(threadFactory(prefix), maxRunning, maxQueued, rejectedPolicy);
+    }
+
+    public static boolean isVirtual(Thread thread) {
+        try {
+            return IS_VIRTUAL != null && (Boolean) IS_VIRTUAL.invoke(thread);
+        } catch(ReflectiveOperationException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Java 19 and 20 have the methods but refuse to run them without --enable-preview.
+     */
+    private static boolean probe() {
+        if(OF_VIRTUAL == null || NAME == null || FACTORY == null || NEW_THREAD_PER_TASK_EXECUTOR == null) {
+            return false;
+        }
+        try {
+            OF_VIRTUAL.invoke(null);
+            return true;
+        } catch(ReflectiveOperationException e) {
+            log.trace("Virtual threads are not enabled on Java {}", Runtime.version());
+            return false;
+        }
+    }
+
+    private static Class<?> builderClass() {
+        try {
+            return Class.forName("java.lang.Thread$Builder");
+        } catch(ClassNotFoundException e) {
+            return null;
+        }
+    }
+
+    private static Method lookup(Class<?> type, String name, Class<?>... parameterTypes) {
+        if(type == null) {
+            return null;
+        }
+        try {
+            return type.getMethod(name, parameterTypes);
+        } catch(NoSuchMethodException e) {
+            log.trace("{}.{} is not available on Java {}", type.getSimpleName(), name, Runtime.version());
+            return null;
+        }
+    }
+}
@@ -250,8 +250,13 @@ public class ApiUtils {
 
     public void updateExistingApi(Api existingApi, Api incomingApi, ApiRepository apiRepository) {
         if(incomingApi.getMappingList().size() == 1) {
-            if(!existingApi.getMappingList().contains(incomingApi.getMappingList().get(0))) {
-                existingApi.getMappingList().add(incomingApi.getMappingList().get(0));
+            Mapping incomingMapping = incomingApi.getMappingList().get(0);
+            int existingIndex = existingApi.getMappingList().indexOf(incomingMapping);
+            if(existingIndex < 0) {
+                existingApi.getMappingList().add(incomingMapping);
+                apiRepository.update(existingApi);
+            } else if(isMappingOptionChanged(existingApi.getMappingList().get(existingIndex), incomingMapping)) {
+                existingApi.getMappingList().set(existingIndex, incomingMapping);
                 apiRepository.update(existingApi);
             }
         } else if(isMappingChanged(existingApi.getMappingList(), incomingApi.getMappingList())) {
@@ -264,21 +269,40 @@ public class ApiUtils {
     }
 
     public void updateExistingApi(Api existingApi, Api incomingApi, Cache<String, Api> apiCache, RouteUtils routeUtils, MetricsProcessor metricsProcessor, CamelContext camelContext, StickySessionCacheManager stickySessionCacheManager, String capiContext) {
+        // the routes deployed for the Api as it was, an Api moving to or from a TCP port gains or loses its HTTP routes
+        List<String> deployedRouteIdList = routeUtils.getAllRouteIdForAGivenApi(existingApi);
+        boolean tcpPortChanged = existingApi.getTcpPort() != incomingApi.getTcpPort();
+        boolean routeOptionChanged = isRouteOptionChanged(existingApi, incomingApi);
+
+        // the TCP engine, the Netty engine and the admission control pick these up on their own
+        existingApi.setTcpPort(incomingApi.getTcpPort());
+        existingApi.setWebsocketEnabled(incomingApi.isWebsocketEnabled());
+        existingApi.setGrpcEnabled(incomingApi.isGrpcEnabled());
+        existingApi.setPriority(incomingApi.getPriority());
+        // these are built into the routes, a change redeploys them
+        existingApi.setHttp2Enabled(incomingApi.isHttp2Enabled());
+        existingApi.setStreamingEnabled(incomingApi.isStreamingEnabled());
+        existingApi.setResponseBufferingEnabled(incomingApi.isResponseBufferingEnabled());
+        if(tcpPortChanged) {
+            routeUtils.warnIfTcpEngineDisabled(existingApi);
+        }
 
-        if(isMappingChanged(existingApi.getMappingList(), incomingApi.getMappingList())) {
+        if(tcpPortChanged || routeOptionChanged || isMappingChanged(existingApi.getMappingList(), incomingApi.getMappingList()) || routeUtils.isExpandedEndpointListChanged(existingApi)) {
             log.trace("Changes detected for API: {}, redeploying routes.", existingApi.getId());
             existingApi.setMappingList(incomingApi.getMappingList());
             apiCache.put(existingApi.getId(), existingApi);
+            routeUtils.preWarmConnections(existingApi);
 
             try {
-                List<String> apiRouteIdList = routeUtils.getAllRouteIdForAGivenApi(existingApi);
-                for(String routeId : apiRouteIdList) {
+                for(String routeId : deployedRouteIdList) {
                     camelContext.getRouteController().stopRoute(routeId);
                     camelContext.removeRoute(routeId);
                     camelContext.getRouteController().stopRoute(Constants.CAMEL_REST_PREFIX + routeId);
                     camelContext.removeRoute(Constants.CAMEL_REST_PREFIX + routeId);
-                    camelContext.addRoutes(new RestDefinitionProcessor(camelContext, incomingApi, routeUtils, routeId));
-                    camelContext.addRoutes(new DirectRouteProcessor(camelContext, incomingApi, routeUtils, metricsProcessor, routeId, stickySessionCacheManager, capiContext));
+                }
+                for(String routeId : routeUtils.getAllRouteIdForAGivenApi(existingApi)) {
+                    camelContext.addRoutes(new RestDefinitionProcessor(camelContext, existingApi, routeUtils, routeId));
+                    camelContext.addRoutes(new DirectRouteProcessor(camelContext, existingApi, routeUtils, metricsProcessor, routeId, stickySessionCacheManager, capiContext));
                 }
             } catch (Exception e) {
                 log.error(e.getMessage(), e);
@@ -306,19 +330,42 @@ public class ApiUtils {
             return true;
         }
         for(Mapping incomingMapping : incomingMappingList) {
-            if(!existingMappingList.contains(incomingMapping)) {
+            int existingIndex = existingMappingList.indexOf(incomingMapping);
+            if(existingIndex < 0 || isMappingOptionChanged(existingMappingList.get(existingIndex), incomingMapping)) {
                 return true;
             }
         }
         return false;
     }
 
+    /**
+     * The Api options the routes are built with, discovery sets them from the service tags.
+     */
+    private boolean isRouteOptionChanged(Api existingApi, Api incomingApi) {
+        return existingApi.isHttp2Enabled() != incomingApi.isHttp2Enabled() ||
+                existingApi.isStreamingEnabled() != incomingApi.isStreamingEnabled() ||
+                existingApi.isResponseBufferingEnabled() != incomingApi.isResponseBufferingEnabled();
+    }
+
+    /**
+     * Mapping equality is its persistence id (root context, hostname and port), the options
+     * that change how the node is reached are compared here.
+     */
+    private boolean isMappingOptionChanged(Mapping existingMapping, Mapping incomingMapping) {
+        return existingMapping.isIngress() != incomingMapping.isIngress() ||
+                existingMapping.isHttp2Enabled() != incomingMapping.isHttp2Enabled() ||
+                existingMapping.isExpandAddresses() != incomingMapping.isExpandAddresses() ||
+                !Objects.equals(existingMapping.getClientIdentity(), incomingMapping.getClientIdentity()) ||
+                !Objects.equals(existingMapping.getUnixSocketPath(), incomingMapping.getUnixSocketPath());
+    }
+
     public void removeUnusedApi(CamelContext camelContext, RouteUtils routeUtils, Cache<String, Api> apiCache, List<String> serviceNameList) throws Exception {
         Iterator<CacheEntry<String, Api>> cachedEntries = apiCache.entries().iterator();
         while(cachedEntries.hasNext()) {
             Api api = cachedEntries.next().getValue();
             if(!serviceNameList.contains(api.getName())) {
                 apiCache.remove(api.getId());
+                routeUtils.removeApiState(api.getId());
                 List<String> apiRouteIdList = routeUtils.getAllRouteIdForAGivenApi(api);
                 for(String routeId : apiRouteIdList) {
                     camelContext.getRouteController().stopRoute(routeId);
@@ -340,6 +387,7 @@ public class ApiUtils {
             Api api = cachedEntries.next().getValue();
             if(!apiNameList.contains(api.getId())) {
                 apiCache.remove(api.getId());
+                routeUtils.removeApiState(api.getId());
                 List<String> apiRouteIdList = routeUtils.getAllRouteIdForAGivenApi(api);
                 for(String routeId : apiRouteIdList) {
                     camelContext.getRouteController().stopRoute(routeId);
@@ -358,6 +406,7 @@ public class ApiUtils {
             Api api = cachedEntries.next().getValue();
             if(!isApiCached(api.getId(), apiList)) {
                 apiCache.remove(api.getId());
+                routeUtils.removeApiState(api.getId());
                 List<String> apiRouteIdList = routeUtils.getAllRouteIdForAGivenApi(api);
                 for(String routeId : apiRouteIdList) {
                     camelContext.getRouteController().stopRoute(routeId);
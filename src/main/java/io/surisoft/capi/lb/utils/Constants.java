@@ -218,22 +218,45 @@ public class Constants {
     public static final String ROUTE_ID_HEADER = "routeID";
     public static final String API_ID_HEADER = "apiId";
     public static final String AUTHORIZATION_HEADER = "Authorization";
+    public static final String TRANSFER_ENCODING_HEADER = "Transfer-Encoding";
     public static final String CAPI_INTERNAL_ERROR = "capi-internal-error";
     public static final String CAPI_INTERNAL_ERROR_CLASS_NAME = "capi-internal-error-class-name";
     public static final String HTTP_CONNECT_TIMEOUT = "connectTimeout=";
     public static final String HTTP_SOCKET_TIMEOUT = "socketTimeout=";
     public static final String CUSTOM_HOST_HEADER = "customHostHeader=";
+    public static final String DISABLE_STREAM_CACHE = "disableStreamCache=";
+    public static final String CAMEL_SERVLET = "servlet:";
+    public static final String UPSTREAM_CONNECTION_RELEASE = "capi-upstream-connection-release";
+    public static final String CLIENT_CONNECTION_MANAGER = "clientConnectionManager=#";
+    public static final String CLIENT_IDENTITY = "clientIdentity=";
+    public static final String CLIENT_IDENTITY_BEAN_PREFIX = "capiClientIdentity-";
+    public static final String DEFAULT_CLIENT_IDENTITY = "default";
+    public static final String NO_CLIENT_IDENTITY_FOUND = "No client identity found with the given name.";
+    public static final String CLIENT_IDENTITY_DISABLED = "Client identities are disabled, to enable this feature, set capi.client.identity.enabled and provide an identity store.";
     public static final String ERROR_API_SHOW_TRACE_ID = "show-trace-id";
     public static final String ERROR_API_SHOW_INTERNAL_ERROR_MESSAGE = "show-internal-error-message";
     public static final String ERROR_API_SHOW_INTERNAL_ERROR_CLASS = "show-internal-error-class";
     public static final String TRACE_ID_HEADER = "X-B3-TraceId";
     public static final String NO_ROOT_CONTEXT = "no-root-context";
     public static final String HTTPS_CONSUL_SERVICE_TAG = "https";
+    public static final String HTTP2_CONSUL_SERVICE_TAG = "http2";
+    public static final String STREAMING_CONSUL_SERVICE_TAG = "streaming";
+    public static final String RESPONSE_BUFFERING_CONSUL_SERVICE_TAG = "response-buffering";
+    public static final String PRIORITY_HIGH_CONSUL_SERVICE_TAG = "priority-high";
+    public static final String PRIORITY_LOW_CONSUL_SERVICE_TAG = "priority-low";
+    public static final String TCP_PORT_CONSUL_SERVICE_TAG = "tcp-port=";
+    public static final String WEBSOCKET_CONSUL_SERVICE_TAG = "websocket";
+    public static final String GRPC_CONSUL_SERVICE_TAG = "grpc";
+    public static final String HTTP2_SCHEME = "h2";
+    public static final String H2C_SCHEME = "h2c";
     public static final String CAPI_INTERNAL_REST_ERROR_PATH = "/capi-error";
     public static final String CAPI_URL_IN_ERROR = "HTTP_URL";
     public static final String CAPI_URI_IN_ERROR = "HTTP_URI";
     public static final String MATCH_ON_URI_PREFIX = "?matchOnUriPrefix=";
     public static final String X_FORWARDED_PREFIX = "x-forwarded-prefix";
+    public static final String X_FORWARDED_FOR = "x-forwarded-for";
+    public static final String X_FORWARDED_PROTO = "x-forwarded-proto";
+    public static final String X_FORWARDED_HOST = "x-forwarded-host";
     public static final String CONSUL_GROUP = "group=";
     public static final String CAMEL_DIRECT = "direct:";
     public static final String CAMEL_REST_PREFIX = "rd_";
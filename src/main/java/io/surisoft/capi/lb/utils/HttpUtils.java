@@ -226,6 +226,18 @@ public class HttpUtils {
         return prepareEndpoint(endpoint) + Constants.CUSTOM_HOST_HEADER + hostName;
     }
 
+    public String setDisableStreamCache(String endpoint) {
+        return prepareEndpoint(endpoint) + Constants.DISABLE_STREAM_CACHE + true;
+    }
+
+    public String setClientConnectionManager(String endpoint, String beanName) {
+        return prepareEndpoint(endpoint) + Constants.CLIENT_CONNECTION_MANAGER + beanName;
+    }
+
+    public String setClientIdentity(String endpoint, String identity) {
+        return prepareEndpoint(endpoint) + Constants.CLIENT_IDENTITY + identity;
+    }
+
     public String getCapiContext(String context) {
         return context.substring(0, context.indexOf("/*"));
     }
@@ -211,12 +211,21 @@ import io.surisoft.capi.lb.builder.RestDefinitionProcessor;
 import io.surisoft.capi.lb.cache.StickySessionCacheManager;
 import io.surisoft.capi.lb.processor.HttpErrorProcessor;
 import io.surisoft.capi.lb.processor.MetricsProcessor;
+import io.surisoft.capi.lb.processor.MemoryBudget;
+import io.surisoft.capi.lb.processor.ReplayBufferPool;
+import io.surisoft.capi.lb.processor.RequestBodySpool;
 import io.surisoft.capi.lb.schema.Api;
 import io.surisoft.capi.lb.schema.HttpMethod;
 import io.surisoft.capi.lb.schema.HttpProtocol;
 import io.surisoft.capi.lb.schema.Mapping;
 
+import io.surisoft.capi.lb.service.CapiDnsResolver;
+import io.surisoft.capi.lb.service.CapiTlsSessionManager;
 import io.surisoft.capi.lb.service.CapiTrustManager;
+import io.surisoft.capi.lb.service.ClientIdentityManager;
+import io.surisoft.capi.lb.service.UnixDomainSocketFactory;
+import io.surisoft.capi.lb.service.ConnectionPreWarmer;
+import io.surisoft.capi.lb.service.UpstreamConnectionPoolManager;
 import org.apache.camel.CamelContext;
 import org.apache.camel.Route;
 import org.apache.camel.component.http.HttpComponent;
@@ -229,9 +238,18 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.file.Path;
+import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static org.apache.camel.language.constant.ConstantLanguage.constant;
 
@@ -243,6 +261,9 @@ public class RouteUtils {
     @Value("${capi.gateway.error.endpoint}")
     private String capiGatewayErrorEndpoint;
 
+    @Value("${capi.engine.tcp.enabled}")
+    private boolean tcpEngineEnabled;
+
     @Autowired
     private HttpErrorProcessor httpErrorProcessor;
 
@@ -261,6 +282,55 @@ public class RouteUtils {
     @Autowired
     private Cache<String, Api> apiCache;
 
+    @Autowired
+    private ReplayBufferPool replayBufferPool;
+
+    @Autowired
+    private UpstreamConnectionPoolManager upstreamConnectionPoolManager;
+
+    @Autowired
+    private RequestBodySpool requestBodySpool;
+
+    @Autowired
+    private MemoryBudget memoryBudget;
+
+    @Autowired
+    private CapiDnsResolver capiDnsResolver;
+
+    @Autowired
+    private ConnectionPreWarmer connectionPreWarmer;
+
+    @Autowired
+    private CapiTlsSessionManager capiTlsSessionManager;
+
+    @Autowired(required = false)
+    private ClientIdentityManager clientIdentityManager;
+
+    @Autowired
+    private UnixDomainSocketFactory unixDomainSocketFactory;
+
+    private final Map<String, Map<String, List<String>>> expandedAddresses = new ConcurrentHashMap<>();
+
+    public ReplayBufferPool getReplayBufferPool() {
+        return replayBufferPool;
+    }
+
+    public RequestBodySpool getRequestBodySpool() {
+        return requestBodySpool;
+    }
+
+    public MemoryBudget getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    public CapiDnsResolver getCapiDnsResolver() {
+        return capiDnsResolver;
+    }
+
+    public UpstreamConnectionPoolManager getUpstreamConnectionPoolManager() {
+        return upstreamConnectionPoolManager;
+    }
+
     public void registerMetric(String routeId) {
         meterRegistry.counter(routeId);
     }
@@ -297,30 +367,159 @@ public class RouteUtils {
 
     public String[] buildEndpoints(Api api) {
         List<String> transformedEndpointList = new ArrayList<>();
+        Map<String, Path> socketPaths = new HashMap<>();
+        Map<String, List<String>> resolvedAddresses = new HashMap<>();
+        List<String> hostnames = new ArrayList<>();
         for(Mapping mapping : api.getMappingList()) {
             if(api.getHttpProtocol() == null) {
                 api.setHttpProtocol(HttpProtocol.HTTP);
             }
-            String endpoint;
-            if(mapping.getPort() > -1) {
-                endpoint = api.getHttpProtocol().getProtocol() + "://" + mapping.getHostname() + ":" + mapping.getPort() + mapping.getRootContext() + "?bridgeEndpoint=true&throwExceptionOnFailure=false";
-            } else {
-                endpoint = api.getHttpProtocol().getProtocol() + "://" + mapping.getHostname() + mapping.getRootContext() + "?bridgeEndpoint=true&throwExceptionOnFailure=false";
+            if(mapping.getUnixSocketPath() != null) {
+                // only plain http is proxied through a socket, the hostname is kept as the Host header
+                String socketHost = UnixDomainSocketFactory.getSocketHost(String.valueOf(api.getId()), mapping.getHostname(), mapping.getPort() > -1 ? mapping.getPort() : 80);
+                socketPaths.put(socketHost, Path.of(mapping.getUnixSocketPath()));
+                String endpoint = buildEndpoint(api, mapping, HttpProtocol.HTTP.getProtocol(), socketHost);
+                if(!mapping.isIngress()) {
+                    endpoint = httpUtils.setIngressEndpoint(endpoint, mapping.getHostname());
+                }
+                transformedEndpointList.add(endpoint);
+                continue;
             }
-            if(api.getConnectTimeout() > -1) {
-                endpoint = httpUtils.setHttpConnectTimeout(endpoint, api.getConnectTimeout());
+            hostnames.add(mapping.getHostname());
+            boolean http2 = api.isHttp2Enabled() || mapping.isHttp2Enabled();
+            String protocol = http2 ? api.getHttpProtocol().getHttp2Protocol() : api.getHttpProtocol().getProtocol();
+            List<String> addresses = mapping.isExpandAddresses() && !http2 ? resolveMappingAddresses(mapping) : null;
+            if(addresses == null) {
+                transformedEndpointList.add(buildEndpoint(api, mapping, protocol, mapping.getHostname()));
+                continue;
             }
-            if(api.getSocketTimeout() > -1) {
-                endpoint = httpUtils.setHttpSocketTimeout(endpoint, api.getSocketTimeout());
+            resolvedAddresses.put(mapping.getHostname(), addresses);
+            for(String address : addresses) {
+                String endpoint = buildEndpoint(api, mapping, protocol, address);
+                if(!mapping.isIngress()) {
+                    // the node still sees (and the TLS handshake still uses) the mapping hostname
+                    endpoint = httpUtils.setIngressEndpoint(endpoint, mapping.getHostname());
+                }
+                transformedEndpointList.add(endpoint);
             }
-            if(mapping.isIngress()) {
-                endpoint = httpUtils.setIngressEndpoint(endpoint, mapping.getHostname());
+        }
+        if(api.getId() != null) {
+            if(resolvedAddresses.isEmpty()) {
+                expandedAddresses.remove(api.getId());
+            } else {
+                expandedAddresses.put(api.getId(), resolvedAddresses);
             }
-            transformedEndpointList.add(endpoint);
+        }
+        if(api.getId() != null) {
+            unixDomainSocketFactory.setApiSocketPaths(api.getId(), socketPaths);
+            // kept resolved for as long as the Api is deployed, pooled connections or not
+            capiDnsResolver.pin(api.getId(), hostnames);
         }
         return transformedEndpointList.toArray(String[]::new);
     }
 
+    private String buildEndpoint(Api api, Mapping mapping, String protocol, String host) {
+        String endpoint;
+        if(mapping.getPort() > -1) {
+            endpoint = protocol + "://" + host + ":" + mapping.getPort() + mapping.getRootContext() + "?bridgeEndpoint=true&throwExceptionOnFailure=false";
+        } else {
+            endpoint = protocol + "://" + host + mapping.getRootContext() + "?bridgeEndpoint=true&throwExceptionOnFailure=false";
+        }
+        if(api.getConnectTimeout() > -1) {
+            endpoint = httpUtils.setHttpConnectTimeout(endpoint, api.getConnectTimeout());
+        }
+        if(api.getSocketTimeout() > -1) {
+            endpoint = httpUtils.setHttpSocketTimeout(endpoint, api.getSocketTimeout());
+        }
+        if(mapping.isIngress()) {
+            endpoint = httpUtils.setIngressEndpoint(endpoint, mapping.getHostname());
+        }
+        if(api.isStreamingEnabled() || api.isResponseBufferingEnabled()) {
+            endpoint = httpUtils.setDisableStreamCache(endpoint);
+        }
+        String clientIdentity = mapping.getClientIdentity() != null ? mapping.getClientIdentity() : api.getClientIdentity();
+        if(clientIdentity != null && (HttpProtocol.HTTPS.getProtocol().equals(protocol) || Constants.HTTP2_SCHEME.equals(protocol))) {
+            if(clientIdentityManager == null) {
+                log.warn("Client identities are disabled (capi.client.identity.enabled), {} will not present the client certificate {}", endpoint, clientIdentity);
+                return endpoint;
+            }
+            if(!ClientIdentityManager.isValidName(clientIdentity)) {
+                log.warn("Invalid client identity name {}, {} will not present a client certificate", clientIdentity, endpoint);
+                return endpoint;
+            }
+            if(!clientIdentityManager.hasIdentity(clientIdentity)) {
+                // the route uses the pool of the identity already, it presents the certificate once uploaded
+                log.warn("Client identity {} not uploaded yet, {} will present it once it is", clientIdentity, endpoint);
+                clientIdentityManager.reserveIdentity(clientIdentity);
+            }
+            if(Constants.HTTP2_SCHEME.equals(protocol)) {
+                endpoint = httpUtils.setClientIdentity(endpoint, clientIdentity);
+            } else {
+                endpoint = httpUtils.setClientConnectionManager(endpoint, ClientIdentityManager.getConnectionManagerName(clientIdentity));
+            }
+        }
+        return endpoint;
+    }
+
+    /**
+     * Sorted, so a DNS server rotating its answers doesn't look like an address change.
+     * Returns null when the hostname can't be resolved, the mapping is then used as is.
+     */
+    private List<String> resolveMappingAddresses(Mapping mapping) {
+        try {
+            return toAddressList(capiDnsResolver.resolve(mapping.getHostname()));
+        } catch(UnknownHostException e) {
+            log.warn("Could not expand the addresses of {}: {}", mapping.getHostname(), e.getMessage());
+            return null;
+        }
+    }
+
+    private List<String> toAddressList(InetAddress[] resolvedAddresses) {
+        List<String> addresses = new ArrayList<>();
+        for(InetAddress address : resolvedAddresses) {
+            addresses.add(address instanceof Inet6Address ? "[" + address.getHostAddress() + "]" : address.getHostAddress());
+        }
+        Collections.sort(addresses);
+        return addresses;
+    }
+
+    /**
+     * Forgets what was kept for an Api whose routes were removed.
+     */
+    public void removeApiState(String apiId) {
+        expandedAddresses.remove(apiId);
+        capiDnsResolver.unpin(apiId);
+        upstreamConnectionPoolManager.removeApi(apiId);
+        unixDomainSocketFactory.removeApi(apiId);
+    }
+
+    /**
+     * True when the addresses behind an Api with expanded mappings are no longer the ones its routes were built with.
+     * The hostnames are pinned while deployed, so this is normally a cache read. A hostname missing from the cache
+     * is resolved again, only a failed lookup keeps the deployed addresses.
+     */
+    public boolean isExpandedEndpointListChanged(Api api) {
+        Map<String, List<String>> deployedAddresses = expandedAddresses.get(api.getId());
+        if(deployedAddresses == null) {
+            return false;
+        }
+        for(Map.Entry<String, List<String>> entry : deployedAddresses.entrySet()) {
+            InetAddress[] currentAddresses = capiDnsResolver.getCachedAddresses(entry.getKey());
+            if(currentAddresses == null) {
+                try {
+                    currentAddresses = capiDnsResolver.resolve(entry.getKey());
+                } catch(UnknownHostException e) {
+                    log.debug("Could not check the addresses of {}, keeping the deployed ones: {}", entry.getKey(), e.getMessage());
+                    continue;
+                }
+            }
+            if(!entry.getValue().equals(toAddressList(currentAddresses))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public String buildFrom(Api api) {
         if(!api.getContext().startsWith("/")) {
             return "/" + api.getContext();
@@ -334,6 +533,10 @@ public class RouteUtils {
 
     public List<String> getAllRouteIdForAGivenApi(Api api) {
         List<String> routeIdList = new ArrayList<>();
+        if(api.getTcpPort() > 0) {
+            // raw TCP Apis are served by the TCP engine, they have no HTTP routes
+            return routeIdList;
+        }
         routeIdList.add(api.getId() + ":" + HttpMethod.DELETE.getMethod());
         routeIdList.add(api.getId() + ":" + HttpMethod.PUT.getMethod());
         routeIdList.add(api.getId() + ":" + HttpMethod.POST.getMethod());
@@ -380,8 +583,26 @@ public class RouteUtils {
         return routeIdList;
     }
 
+    /**
+     * An Api with a TCP port has no HTTP routes, without the TCP engine nothing serves it.
+     */
+    public void warnIfTcpEngineDisabled(Api api) {
+        if(api.getTcpPort() > 0 && !tcpEngineEnabled) {
+            log.warn("Api {} asks for TCP port {} but the TCP engine is disabled (capi.engine.tcp.enabled), it is not served", api.getId(), api.getTcpPort());
+        }
+    }
+
+    public void preWarmConnections(Api api) {
+        if(api.getTcpPort() > 0) {
+            return;
+        }
+        connectionPreWarmer.preWarm(api, buildEndpoints(api));
+    }
+
     public void createRoute(Api incomingApi, Cache<String, Api> apiCache, CamelContext camelContext, MetricsProcessor metricsProcessor, StickySessionCacheManager stickySessionCacheManager, String capiContext) {
         apiCache.put(incomingApi.getId(), incomingApi);
+        warnIfTcpEngineDisabled(incomingApi);
+        preWarmConnections(incomingApi);
         List<String> apiRouteIdList = getAllRouteIdForAGivenApi(incomingApi);
         for(String routeId : apiRouteIdList) {
             Route existingRoute = camelContext.getRoute(routeId);
@@ -401,7 +622,12 @@ public class RouteUtils {
             log.trace("Reloading Trust Store Manager after changes for API: {}", apiId);
             HttpComponent httpComponent = (HttpComponent) camelContext.getComponent("https");
             CapiTrustManager capiTrustManager = (CapiTrustManager) httpComponent.getSslContextParameters().getTrustManagers().getTrustManager();
+            X509Certificate[] previousIssuers = capiTrustManager.getAcceptedIssuers();
             capiTrustManager.reloadTrustManager();
+            capiTlsSessionManager.trustStoreReloaded(previousIssuers, capiTrustManager.getAcceptedIssuers());
+            if(clientIdentityManager != null) {
+                clientIdentityManager.trustStoreReloaded(previousIssuers, capiTrustManager.getAcceptedIssuers());
+            }
 
             if(undeploy) {
                 List<String> routeIdList = getAllRouteIdForAGivenApi(apiId);
@@ -412,6 +638,7 @@ public class RouteUtils {
                     camelContext.removeRoute(routeId);
                 }
                 apiCache.remove(apiId);
+                removeApiState(apiId);
             }
         } catch(Exception e) {
             log.error(e.getMessage(), e);
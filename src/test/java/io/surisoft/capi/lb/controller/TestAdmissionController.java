@@ -0,0 +1,139 @@
+package io.surisoft.capi.lb.controller;
+
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import io.surisoft.capi.lb.cache.ApiContextIndex;
+import io.surisoft.capi.lb.cache.ApiResolver;
+import io.surisoft.capi.lb.schema.Api;
+import io.surisoft.capi.lb.service.AdmissionController;
+import io.undertow.Undertow;
+import io.undertow.server.HttpHandler;
+import io.undertow.server.handlers.BlockingHandler;
+import org.cache2k.Cache;
+import org.cache2k.Cache2kBuilder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The admission handlers around a plain Undertow server, the same two points of the handler chain the servlet
+ * deployment wraps: before the request is queued for a worker and once a worker picked it up.
+ */
+class TestAdmissionController {
+
+    private final ApiContextIndex apiContextIndex = new ApiContextIndex();
+    private final Cache<String, Api> apiCache = apiContextIndex.listenTo(new Cache2kBuilder<String, Api>(){}).build();
+    private final HttpClient httpClient = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+    private final CountDownLatch releaseSlowRequest = new CountDownLatch(1);
+    private final CountDownLatch slowRequestStarted = new CountDownLatch(1);
+    private Undertow undertow;
+    private int port;
+
+    @BeforeEach
+    void initialize() {
+        apiCache.put("slow", newApi("slow", "/slow", 0));
+        apiCache.put("normal", newApi("normal", "/normal", 0));
+        apiCache.put("high", newApi("high", "/high", 1));
+        apiCache.put("low", newApi("low", "/low", -1));
+    }
+
+    @AfterEach
+    void stop() {
+        releaseSlowRequest.countDown();
+        if(undertow != null) {
+            undertow.stop();
+        }
+    }
+
+    @Test
+    void testOnlyCapiRequestsAreShed() throws Exception {
+        start(new AdmissionController(new ApiResolver(apiCache, apiContextIndex, "/capi"), 20, 200, 1, 1, new CompositeMeterRegistry()), 4);
+        CompletableFuture<HttpResponse<String>> slowResponse = holdSlowRequest();
+
+        HttpResponse<String> shed = get("/capi/normal");
+        Assertions.assertEquals(503, shed.statusCode());
+        Assertions.assertEquals("1", shed.headers().firstValue("Retry-After").orElse(null));
+        Assertions.assertEquals(200, get("/manager/api/list").statusCode());
+        Assertions.assertEquals(200, get("/analytics/health").statusCode());
+
+        releaseSlowRequest.countDown();
+        Assertions.assertEquals(200, slowResponse.get(5, TimeUnit.SECONDS).statusCode());
+    }
+
+    @Test
+    void testHigherPriorityGoesPastTheInFlightLimit() throws Exception {
+        start(new AdmissionController(new ApiResolver(apiCache, apiContextIndex, "/capi"), 20, 200, 1, 1, new CompositeMeterRegistry()), 4);
+        CompletableFuture<HttpResponse<String>> slowResponse = holdSlowRequest();
+
+        Assertions.assertEquals(200, get("/capi/high/orders").statusCode());
+        Assertions.assertEquals(503, get("/capi/low/orders").statusCode());
+
+        releaseSlowRequest.countDown();
+        Assertions.assertEquals(200, slowResponse.get(5, TimeUnit.SECONDS).statusCode());
+    }
+
+    @Test
+    void testRequestsWaitingTooLongForAWorkerAreShed() throws Exception {
+        AdmissionController admissionController = new AdmissionController(new ApiResolver(apiCache, apiContextIndex, "/capi"), 1, 50, 0, 1, new CompositeMeterRegistry());
+        start(admissionController, 1);
+        CompletableFuture<HttpResponse<String>> slowResponse = holdSlowRequest();
+
+        // queued behind the slow request for the only worker, far longer than the interval
+        CompletableFuture<HttpResponse<String>> queuedResponse = httpClient.sendAsync(request("/capi/normal"), HttpResponse.BodyHandlers.ofString());
+        Thread.sleep(300);
+        releaseSlowRequest.countDown();
+
+        Assertions.assertEquals(200, slowResponse.get(5, TimeUnit.SECONDS).statusCode());
+        Assertions.assertEquals(503, queuedResponse.get(5, TimeUnit.SECONDS).statusCode());
+        Assertions.assertEquals(0, admissionController.getInFlight());
+    }
+
+    private void start(AdmissionController admissionController, int workerThreads) {
+        HttpHandler application = exchange -> {
+            if(exchange.getRequestPath().startsWith("/capi/slow")) {
+                slowRequestStarted.countDown();
+                releaseSlowRequest.await(10, TimeUnit.SECONDS);
+            }
+            exchange.getResponseSender().send("ok");
+        };
+        undertow = Undertow.builder()
+                .addHttpListener(0, "localhost")
+                .setWorkerThreads(workerThreads)
+                .setHandler(admissionController.admissionHandler(new BlockingHandler(admissionController.dequeueHandler(application))))
+                .build();
+        undertow.start();
+        port = ((InetSocketAddress) undertow.getListenerInfo().get(0).getAddress()).getPort();
+    }
+
+    private CompletableFuture<HttpResponse<String>> holdSlowRequest() throws InterruptedException {
+        CompletableFuture<HttpResponse<String>> slowResponse = httpClient.sendAsync(request("/capi/slow"), HttpResponse.BodyHandlers.ofString());
+        Assertions.assertTrue(slowRequestStarted.await(5, TimeUnit.SECONDS));
+        return slowResponse;
+    }
+
+    private HttpResponse<String> get(String path) throws Exception {
+        return httpClient.send(request(path), HttpResponse.BodyHandlers.ofString());
+    }
+
+    private HttpRequest request(String path) {
+        return HttpRequest.newBuilder(URI.create("http://localhost:" + port + path)).timeout(Duration.ofSeconds(10)).build();
+    }
+
+    private Api newApi(String id, String context, int priority) {
+        Api api = new Api();
+        api.setId(id);
+        api.setContext(context);
+        api.setPriority(priority);
+        return api;
+    }
+}
@@ -1,5 +1,7 @@
 package io.surisoft.capi.lb.controller;
 
+import io.surisoft.capi.lb.cache.StickySessionCacheManager;
+import io.surisoft.capi.lb.processor.MetricsProcessor;
 import io.surisoft.capi.lb.repository.ApiRepository;
 import io.surisoft.capi.lb.schema.Api;
 import io.surisoft.capi.lb.schema.ConsulObject;
@@ -7,7 +9,11 @@ import io.surisoft.capi.lb.schema.HttpProtocol;
 import io.surisoft.capi.lb.schema.Mapping;
 import io.surisoft.capi.lb.utils.ApiUtils;
 import io.surisoft.capi.lb.utils.RouteUtils;
+import org.apache.camel.CamelContext;
+import org.apache.camel.Route;
+import org.apache.camel.component.servlet.ServletEndpoint;
 import org.apache.camel.model.RouteDefinition;
+import org.cache2k.Cache;
 import org.junit.jupiter.api.*;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -17,6 +23,7 @@ import org.springframework.test.context.junit.jupiter.SpringExtension;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.stream.Collectors;
 import java.util.Optional;
 
 @ExtendWith(SpringExtension.class)
@@ -33,6 +40,21 @@ class TestApiUtils {
     @Autowired
     ApiRepository apiRepository;
 
+    @Autowired
+    Cache<String, Api> apiCache;
+
+    @Autowired
+    RouteUtils routeUtils;
+
+    @Autowired
+    MetricsProcessor metricsProcessor;
+
+    @Autowired
+    CamelContext camelContext;
+
+    @Autowired
+    StickySessionCacheManager stickySessionCacheManager;
+
     @Test
     @Order(1)
     void testGetApiId() {
@@ -123,6 +145,99 @@ class TestApiUtils {
         apiRepository.delete(persistedApi);
     }
 
+    @Test
+    @Order(5)
+    void testMappingOptionChanged() {
+        List<Mapping> existingMappingList = getMappingList(2, "localhost");
+        Assertions.assertFalse(apiUtils.isMappingChanged(existingMappingList, getMappingList(2, "localhost")));
+
+        List<Mapping> http2MappingList = getMappingList(2, "localhost");
+        http2MappingList.get(1).setHttp2Enabled(true);
+        Assertions.assertTrue(apiUtils.isMappingChanged(existingMappingList, http2MappingList));
+
+        List<Mapping> identityMappingList = getMappingList(2, "localhost");
+        identityMappingList.get(0).setClientIdentity("unit-test-identity");
+        Assertions.assertTrue(apiUtils.isMappingChanged(existingMappingList, identityMappingList));
+
+        List<Mapping> socketMappingList = getMappingList(2, "localhost");
+        socketMappingList.get(0).setUnixSocketPath("/tmp/unit-test.sock");
+        Assertions.assertTrue(apiUtils.isMappingChanged(existingMappingList, socketMappingList));
+
+        List<Mapping> expandMappingList = getMappingList(2, "localhost");
+        expandMappingList.get(1).setExpandAddresses(true);
+        Assertions.assertTrue(apiUtils.isMappingChanged(existingMappingList, expandMappingList));
+    }
+
+    @Test
+    @Order(6)
+    void testUpdateExistingApiCopiesPriority() {
+        Api existingApi = new Api();
+        existingApi.setName("priority-api");
+        existingApi.setContext("priority-context");
+        existingApi.setId(apiUtils.getApiId(existingApi));
+        existingApi.setMappingList(getMappingList(1, "localhost"));
+
+        Api incomingApi = new Api();
+        incomingApi.setName("priority-api");
+        incomingApi.setContext("priority-context");
+        incomingApi.setId(apiUtils.getApiId(incomingApi));
+        incomingApi.setMappingList(getMappingList(1, "localhost"));
+        incomingApi.setPriority(1);
+
+        apiUtils.updateExistingApi(existingApi, incomingApi, apiCache, routeUtils, metricsProcessor, camelContext, stickySessionCacheManager, "/capi");
+        Assertions.assertEquals(1, existingApi.getPriority());
+    }
+
+    @Test
+    @Order(7)
+    void testUpdateExistingApiRedeploysOnRouteOptionChange() throws Exception {
+        // Camel deadlocks when two threads add routes at once, the discovery is held while the test deploys its own
+        camelContext.getRouteController().stopRoute("db-discovery-service");
+        try {
+            Api existingApi = new Api();
+            existingApi.setName("route-option-api");
+            existingApi.setContext("route-option-context");
+            existingApi.setId(apiUtils.getApiId(existingApi));
+            existingApi.setHttpProtocol(HttpProtocol.HTTP);
+            existingApi.setRoundRobinEnabled(true);
+            existingApi.setMappingList(getMappingList(1, "localhost"));
+            routeUtils.createRoute(existingApi, apiCache, camelContext, metricsProcessor, stickySessionCacheManager, "/capi");
+            String routeId = routeUtils.getAllRouteIdForAGivenApi(existingApi).get(0);
+            Route deployedRoute = camelContext.getRoute(routeId);
+            Assertions.assertNotNull(deployedRoute);
+            // the rest consumer leaves the request stream to the memory admission
+            List<ServletEndpoint> servletEndpoints = camelContext.getEndpoints().stream()
+                    .filter(endpoint -> endpoint instanceof ServletEndpoint && endpoint.getEndpointUri().contains("route-option-context"))
+                    .map(ServletEndpoint.class::cast)
+                    .collect(Collectors.toList());
+            Assertions.assertFalse(servletEndpoints.isEmpty());
+            Assertions.assertTrue(servletEndpoints.stream().allMatch(ServletEndpoint::isDisableStreamCache));
+
+            Api incomingApi = new Api();
+            incomingApi.setName("route-option-api");
+            incomingApi.setContext("route-option-context");
+            incomingApi.setId(apiUtils.getApiId(incomingApi));
+            incomingApi.setHttpProtocol(HttpProtocol.HTTP);
+            incomingApi.setRoundRobinEnabled(true);
+            incomingApi.setMappingList(getMappingList(1, "localhost"));
+            incomingApi.setStreamingEnabled(true);
+
+            apiUtils.updateExistingApi(existingApi, incomingApi, apiCache, routeUtils, metricsProcessor, camelContext, stickySessionCacheManager, "/capi");
+            Assertions.assertTrue(existingApi.isStreamingEnabled());
+            Assertions.assertNotNull(camelContext.getRoute(routeId));
+            Assertions.assertNotSame(deployedRoute, camelContext.getRoute(routeId));
+            Assertions.assertSame(existingApi, apiCache.peek(existingApi.getId()));
+
+            List<Api> remainingApis = new ArrayList<>();
+            apiCache.entries().forEach(entry -> remainingApis.add(entry.getValue()));
+            remainingApis.removeIf(api -> existingApi.getId().equals(api.getId()));
+            apiUtils.removeUnusedApi(camelContext, routeUtils, apiCache, remainingApis);
+            Assertions.assertNull(camelContext.getRoute(routeId));
+        } finally {
+            camelContext.getRouteController().startRoute("db-discovery-service");
+        }
+    }
+
     private List<Mapping> getMappingList(int howManyMapping, String hostname) {
         List<Mapping> mappingList = new ArrayList<>();
         for(int i = 0; i < howManyMapping; i++) {
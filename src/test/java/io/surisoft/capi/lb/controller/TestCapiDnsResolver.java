@@ -0,0 +1,193 @@
+package io.surisoft.capi.lb.controller;
+
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.surisoft.capi.lb.service.CapiDnsResolver;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+class TestCapiDnsResolver {
+
+    private static final String HOSTNAME = "unit-test.node";
+
+    private CompositeMeterRegistry meterRegistry;
+    private CapiDnsResolver capiDnsResolver;
+    private volatile InetAddress[] answer;
+    private volatile UnknownHostException failure;
+
+    @BeforeEach
+    void initialize() throws Exception {
+        meterRegistry = new CompositeMeterRegistry();
+        meterRegistry.add(new SimpleMeterRegistry());
+        answer = new InetAddress[] {address(1)};
+    }
+
+    @AfterEach
+    void stop() {
+        if(capiDnsResolver != null) {
+            capiDnsResolver.shutdown();
+        }
+    }
+
+    @Test
+    void testAddressesAreRefreshedInBackground() throws Exception {
+        capiDnsResolver = newResolver(100, 2000);
+        List<String> changedHosts = new CopyOnWriteArrayList<>();
+        capiDnsResolver.addAddressChangeListener(changedHosts::add);
+
+        Assertions.assertArrayEquals(new InetAddress[] {address(1)}, capiDnsResolver.resolve(HOSTNAME));
+
+        answer = new InetAddress[] {address(2)};
+        awaitAddresses(new InetAddress[] {address(2)});
+        // the listeners are told right after the new addresses are in place
+        long deadline = System.currentTimeMillis() + 5000;
+        while(changedHosts.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        Assertions.assertEquals(List.of(HOSTNAME), changedHosts);
+        Assertions.assertEquals(1, meterRegistry.get("capi.dns.address.change").counter().count());
+    }
+
+    @Test
+    void testLastKnownAddressesAreServedWhileDnsFails() throws Exception {
+        capiDnsResolver = newResolver(100, 2000);
+        Assertions.assertArrayEquals(new InetAddress[] {address(1)}, capiDnsResolver.resolve(HOSTNAME));
+
+        failure = new UnknownHostException("unit-test dns failure");
+        long deadline = System.currentTimeMillis() + 5000;
+        while(meterRegistry.get("capi.dns.stale").counter().count() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        Assertions.assertTrue(meterRegistry.get("capi.dns.stale").counter().count() >= 2);
+        Assertions.assertArrayEquals(new InetAddress[] {address(1)}, capiDnsResolver.resolve(HOSTNAME));
+
+        failure = null;
+        answer = new InetAddress[] {address(3)};
+        awaitAddresses(new InetAddress[] {address(3)});
+    }
+
+    @Test
+    void testFirstResolutionTimesOut() throws Exception {
+        CountDownLatch slowDnsServer = new CountDownLatch(1);
+        capiDnsResolver = new CapiDnsResolver(60000, 200, meterRegistry) {
+            @Override
+            protected InetAddress[] lookupAll(String host) throws UnknownHostException {
+                try {
+                    slowDnsServer.await(10, TimeUnit.SECONDS);
+                } catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return new InetAddress[] {address(1)};
+            }
+        };
+
+        long start = System.nanoTime();
+        Assertions.assertThrows(UnknownHostException.class, () -> capiDnsResolver.resolve(HOSTNAME));
+        Assertions.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 2000);
+
+        slowDnsServer.countDown();
+        awaitAddresses(new InetAddress[] {address(1)});
+    }
+
+    @Test
+    void testAsyncResolutionNeverBlocksTheCaller() throws Exception {
+        CountDownLatch slowDnsServer = new CountDownLatch(1);
+        capiDnsResolver = new CapiDnsResolver(60000, 2000, meterRegistry) {
+            @Override
+            protected InetAddress[] lookupAll(String host) throws UnknownHostException {
+                try {
+                    slowDnsServer.await(10, TimeUnit.SECONDS);
+                } catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return new InetAddress[] {address(1)};
+            }
+        };
+        ExecutorService eventLoop = Executors.newSingleThreadExecutor();
+        try {
+            long start = System.nanoTime();
+            CompletableFuture<InetAddress[]> resolution = capiDnsResolver.resolveAsync(HOSTNAME, eventLoop);
+            Assertions.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 200);
+            Assertions.assertFalse(resolution.isDone());
+
+            slowDnsServer.countDown();
+            Assertions.assertArrayEquals(new InetAddress[] {address(1)}, resolution.get(5, TimeUnit.SECONDS));
+            // once cached the future is already complete
+            Assertions.assertTrue(capiDnsResolver.resolveAsync(HOSTNAME, eventLoop).isDone());
+        } finally {
+            eventLoop.shutdownNow();
+        }
+    }
+
+    @Test
+    void testAsyncResolutionFails() {
+        capiDnsResolver = newResolver(60000, 2000);
+        failure = new UnknownHostException("unit-test unknown host");
+
+        ExecutionException executionException = Assertions.assertThrows(ExecutionException.class, () -> capiDnsResolver.resolveAsync(HOSTNAME, Runnable::run).get(5, TimeUnit.SECONDS));
+        Assertions.assertInstanceOf(UnknownHostException.class, executionException.getCause());
+    }
+
+    @Test
+    void testUnknownHostFailsFast() {
+        capiDnsResolver = newResolver(60000, 2000);
+        failure = new UnknownHostException("unit-test unknown host");
+
+        Assertions.assertThrows(UnknownHostException.class, () -> capiDnsResolver.resolve(HOSTNAME));
+        Assertions.assertEquals(1, meterRegistry.get("capi.dns.lookup.failure").counter().count());
+    }
+
+    @Test
+    void testPinnedHostnamesAreKeptUntilUnpinned() throws Exception {
+        capiDnsResolver = newResolver(50, 2000);
+        capiDnsResolver.pin("unit-test-api", List.of(HOSTNAME, "10.0.0.1"));
+        awaitAddresses(new InetAddress[] {address(1)});
+
+        // twice the idle eviction, only pooled connections would be using it
+        Thread.sleep(50 * 10 * 2);
+        Assertions.assertArrayEquals(new InetAddress[] {address(1)}, capiDnsResolver.getCachedAddresses(HOSTNAME));
+
+        capiDnsResolver.unpin("unit-test-api");
+        Assertions.assertFalse(capiDnsResolver.isPinned(HOSTNAME));
+        Assertions.assertNull(capiDnsResolver.getCachedAddresses(HOSTNAME));
+    }
+
+    private CapiDnsResolver newResolver(long ttl, long resolveTimeout) {
+        return new CapiDnsResolver(ttl, resolveTimeout, meterRegistry) {
+            @Override
+            protected InetAddress[] lookupAll(String host) throws UnknownHostException {
+                UnknownHostException currentFailure = failure;
+                if(currentFailure != null) {
+                    throw currentFailure;
+                }
+                return answer;
+            }
+        };
+    }
+
+    private void awaitAddresses(InetAddress[] expected) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while(!Arrays.equals(expected, capiDnsResolver.getCachedAddresses(HOSTNAME)) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        Assertions.assertArrayEquals(expected, capiDnsResolver.resolve(HOSTNAME));
+    }
+
+    private static InetAddress address(int lastOctet) throws UnknownHostException {
+        return InetAddress.getByAddress(HOSTNAME, new byte[] {10, 0, 0, (byte) lastOctet});
+    }
+}
@@ -0,0 +1,155 @@
+package io.surisoft.capi.lb.controller;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.surisoft.capi.lb.service.CapiSslConnectionSocketFactory;
+import io.surisoft.capi.lb.service.CapiTlsSessionManager;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509TrustManager;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.security.KeyStore;
+
+class TestCapiTlsSessionManager {
+
+    private static final String PASSWORD = "unit-test";
+
+    @TempDir
+    Path keyStoreDirectory;
+
+    private CompositeMeterRegistry meterRegistry;
+    private KeyStore nodeKeyStore;
+    private SSLServerSocket node;
+
+    @BeforeEach
+    void initialize() throws Exception {
+        meterRegistry = new CompositeMeterRegistry();
+        meterRegistry.add(new SimpleMeterRegistry());
+        Path keyStoreFile = keyStoreDirectory.resolve("node.p12");
+        Process keytool = new ProcessBuilder(Path.of(System.getProperty("java.home"), "bin", "keytool").toString(),
+                "-genkeypair", "-keyalg", "EC", "-alias", "node", "-dname", "CN=localhost", "-ext", "SAN=dns:localhost",
+                "-validity", "2", "-storetype", "PKCS12", "-keystore", keyStoreFile.toString(), "-storepass", PASSWORD)
+                .inheritIO()
+                .start();
+        Assertions.assertEquals(0, keytool.waitFor());
+        nodeKeyStore = KeyStore.getInstance("PKCS12");
+        try(InputStream is = new FileInputStream(keyStoreFile.toFile())) {
+            nodeKeyStore.load(is, PASSWORD.toCharArray());
+        }
+    }
+
+    @AfterEach
+    void stop() throws IOException {
+        if(node != null) {
+            node.close();
+        }
+    }
+
+    @Test
+    void testTls12ResumptionIsDetected() throws Exception {
+        assertResumption("TLSv1.2");
+    }
+
+    @Test
+    void testTls13ResumptionIsDetected() throws Exception {
+        assertResumption("TLSv1.3");
+    }
+
+    @Test
+    void testNewContextStartsWithFullHandshake() throws Exception {
+        startNode("TLSv1.3");
+        CapiTlsSessionManager tlsSessionManager = new CapiTlsSessionManager("unit-test", newClientContext(), trustManager(), 100, 3600, meterRegistry);
+        handshake(tlsSessionManager);
+        Thread.sleep(20);
+        tlsSessionManager.setSslContext(newClientContext());
+        handshake(tlsSessionManager);
+
+        Assertions.assertEquals(2, handshakes("full"));
+        Assertions.assertEquals(0, handshakes("resumed"));
+    }
+
+    private void assertResumption(String protocol) throws Exception {
+        startNode(protocol);
+        CapiTlsSessionManager tlsSessionManager = new CapiTlsSessionManager("unit-test", newClientContext(), trustManager(), 100, 3600, meterRegistry);
+        for(int i = 0; i < 3; i++) {
+            handshake(tlsSessionManager);
+            // a TLS 1.3 resumption is recognised by a session older than the handshake
+            Thread.sleep(20);
+        }
+        Assertions.assertEquals(1, handshakes("full"));
+        Assertions.assertEquals(2, handshakes("resumed"));
+    }
+
+    private void startNode(String protocol) throws Exception {
+        KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagerFactory.init(nodeKeyStore, PASSWORD.toCharArray());
+        SSLContext serverContext = SSLContext.getInstance("TLS");
+        serverContext.init(keyManagerFactory.getKeyManagers(), null, null);
+        node = (SSLServerSocket) serverContext.getServerSocketFactory().createServerSocket(0);
+        node.setEnabledProtocols(new String[] {protocol});
+        Thread acceptor = new Thread(() -> {
+            try {
+                while(!node.isClosed()) {
+                    SSLSocket socket = (SSLSocket) node.accept();
+                    Thread connection = new Thread(() -> {
+                        try(socket) {
+                            socket.startHandshake();
+                            // TLS 1.3 session tickets are sent after the handshake, the client reads them with this byte
+                            socket.getOutputStream().write(1);
+                            socket.getOutputStream().flush();
+                            socket.getInputStream().read();
+                        } catch(IOException e) {
+                            // the client went away
+                        }
+                    });
+                    connection.setDaemon(true);
+                    connection.start();
+                }
+            } catch(IOException e) {
+                // closed by the test
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    private void handshake(CapiTlsSessionManager tlsSessionManager) throws Exception {
+        CapiSslConnectionSocketFactory socketFactory = new CapiSslConnectionSocketFactory(tlsSessionManager, SSLConnectionSocketFactory.getDefaultHostnameVerifier());
+        try(Socket socket = socketFactory.createLayeredSocket(new Socket("localhost", node.getLocalPort()), "localhost", node.getLocalPort(), null)) {
+            Assertions.assertEquals(1, socket.getInputStream().read());
+        }
+    }
+
+    private double handshakes(String type) {
+        Counter counter = meterRegistry.find("capi.upstream.tls.handshake").tag("type", type).counter();
+        return counter != null ? counter.count() : 0;
+    }
+
+    private SSLContext newClientContext() throws Exception {
+        SSLContext clientContext = SSLContext.getInstance("TLS");
+        clientContext.init(null, new TrustManager[] {trustManager()}, null);
+        return clientContext;
+    }
+
+    private X509TrustManager trustManager() throws Exception {
+        TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagerFactory.init(nodeKeyStore);
+        return (X509TrustManager) trustManagerFactory.getTrustManagers()[0];
+    }
+}
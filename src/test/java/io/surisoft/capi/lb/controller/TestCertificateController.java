@@ -4,6 +4,7 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import io.surisoft.capi.lb.schema.AliasInfo;
 import io.surisoft.capi.lb.schema.Api;
 import io.surisoft.capi.lb.utils.ApiUtils;
+import io.surisoft.capi.lb.utils.Constants;
 import org.bouncycastle.asn1.x500.X500Name;
 import org.bouncycastle.cert.X509CertificateHolder;
 import org.bouncycastle.cert.X509v3CertificateBuilder;
@@ -110,6 +111,24 @@ class TestCertificateController {
         Assertions.assertEquals(apiId, aliasInfo.getApiId());
     }
 
+    @Test
+    void testClientIdentitiesAreOffByDefault() throws Exception {
+        MvcResult getResult = mockMvc.perform(MockMvcRequestBuilders.get("/manager/certificate/identity")
+                        .accept(MediaType.APPLICATION_JSON_VALUE))
+                .andExpect(status().isOk())
+                .andReturn();
+        List<AliasInfo> aliasInfoList = objectMapper.readValue(getResult.getResponse().getContentAsString(), objectMapper.getTypeFactory().constructCollectionType(List.class, AliasInfo.class));
+        Assertions.assertEquals(1, aliasInfoList.size());
+        Assertions.assertEquals(Constants.CLIENT_IDENTITY_DISABLED, aliasInfoList.get(0).getAdditionalInfo());
+
+        mockMvc.perform(MockMvcRequestBuilders.multipart("/manager/certificate/identity/capi-unit-test")
+                        .file("file", new byte[0])
+                        .param("password", "changeit"))
+                .andExpect(status().isBadRequest());
+        mockMvc.perform(MockMvcRequestBuilders.delete("/manager/certificate/identity/capi-unit-test"))
+                .andExpect(status().isBadRequest());
+    }
+
     private File createTestCertificate() throws Exception {
 
         X509Certificate x509Certificate = createCertificate("capi-unit-test");
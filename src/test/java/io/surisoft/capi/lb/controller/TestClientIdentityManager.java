@@ -0,0 +1,224 @@
+package io.surisoft.capi.lb.controller;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import io.surisoft.capi.lb.schema.AliasInfo;
+import io.surisoft.capi.lb.service.CapiDnsResolver;
+import io.surisoft.capi.lb.service.CapiTlsSessionManager;
+import io.surisoft.capi.lb.service.ClientIdentityManager;
+import io.surisoft.capi.lb.service.UpstreamConnectionPoolManager;
+import org.apache.camel.CamelContext;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.MethodOrderer;
+import org.junit.jupiter.api.Order;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestMethodOrder;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.web.context.WebApplicationContext;
+
+import javax.net.ssl.SSLSocketFactory;
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.List;
+
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+@ExtendWith(SpringExtension.class)
+@SpringBootTest
+@TestPropertySource(
+      locations = "classpath:test-capi-configuration-application.properties"
+)
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+class TestClientIdentityManager {
+
+    private static final String IDENTITY = "unit-test-identity";
+    private static final String RESERVED_IDENTITY = "unit-test-reserved-identity";
+    private static final String UPLOAD_PASSWORD = "unit-test-upload";
+
+    @Autowired
+    private WebApplicationContext webApplicationContext;
+
+    @Autowired
+    private ClientIdentityManager clientIdentityManager;
+
+    @Autowired
+    private CamelContext camelContext;
+
+    @Autowired
+    private UpstreamConnectionPoolManager upstreamConnectionPoolManager;
+
+    @Autowired
+    private CapiDnsResolver capiDnsResolver;
+
+    @Autowired
+    private CapiTlsSessionManager capiTlsSessionManager;
+
+    @Autowired
+    private CompositeMeterRegistry meterRegistry;
+
+    @Value("${capi.client.identity.store.path}")
+    private String storePath;
+
+    @Value("${capi.client.identity.store.password}")
+    private String storePassword;
+
+    private MockMvc mockMvc;
+    private ObjectMapper objectMapper;
+
+    @BeforeEach
+    public void initialize() {
+        mockMvc = MockMvcBuilders.webAppContextSetup(webApplicationContext).build();
+        objectMapper = new ObjectMapper();
+    }
+
+    @Test
+    @Order(1)
+    void testIdentityUpload() throws Exception {
+        AliasInfo aliasInfo = upload("CN=capi-unit-test-first");
+        Assertions.assertEquals(IDENTITY, aliasInfo.getAlias());
+        Assertions.assertEquals("CN=capi-unit-test-first", aliasInfo.getSubjectDN());
+
+        MvcResult getResult = mockMvc.perform(MockMvcRequestBuilders.get("/manager/certificate/identity")
+                        .accept(MediaType.APPLICATION_JSON_VALUE))
+                .andExpect(status().isOk())
+                .andReturn();
+        List<AliasInfo> aliasInfoList = objectMapper.readValue(getResult.getResponse().getContentAsString(), objectMapper.getTypeFactory().constructCollectionType(List.class, AliasInfo.class));
+        Assertions.assertTrue(aliasInfoList.stream().anyMatch(identity -> IDENTITY.equals(identity.getAlias())));
+        Assertions.assertTrue(clientIdentityManager.hasIdentity(IDENTITY));
+    }
+
+    @Test
+    @Order(2)
+    void testStoreIsOwnerOnly() throws Exception {
+        Path keyStoreFile = Path.of(storePath, IDENTITY + ".p12");
+        Assertions.assertTrue(Files.exists(keyStoreFile));
+        Assertions.assertEquals(PosixFilePermissions.fromString("rw-------"), Files.getPosixFilePermissions(keyStoreFile));
+        Assertions.assertEquals(PosixFilePermissions.fromString("rwx------"), Files.getPosixFilePermissions(Path.of(storePath)));
+    }
+
+    @Test
+    @Order(3)
+    void testIdentityRotation() throws Exception {
+        SSLSocketFactory socketFactory = clientIdentityManager.getSocketFactory(IDENTITY);
+        AliasInfo aliasInfo = upload("CN=capi-unit-test-second");
+
+        Assertions.assertEquals("CN=capi-unit-test-second", aliasInfo.getSubjectDN());
+        // the pools keep the same socket factory, only the key material behind it changes
+        Assertions.assertSame(socketFactory, clientIdentityManager.getSocketFactory(IDENTITY));
+        Assertions.assertEquals(1, clientIdentityManager.getIdentities().stream().filter(identity -> IDENTITY.equals(identity.getAlias())).count());
+    }
+
+    @Test
+    @Order(4)
+    void testIdentitiesAreReloaded() throws Exception {
+        ClientIdentityManager reloadedManager = new ClientIdentityManager(camelContext, upstreamConnectionPoolManager, capiDnsResolver, capiTlsSessionManager, storePath, storePassword, 2, 60000, 100, 3600, meterRegistry);
+        reloadedManager.loadIdentities();
+
+        AliasInfo aliasInfo = reloadedManager.getIdentities().stream().filter(identity -> IDENTITY.equals(identity.getAlias())).findFirst().orElse(null);
+        Assertions.assertNotNull(aliasInfo);
+        Assertions.assertEquals("CN=capi-unit-test-second", aliasInfo.getSubjectDN());
+    }
+
+    @Test
+    @Order(5)
+    void testIdentityRemoval() throws Exception {
+        mockMvc.perform(MockMvcRequestBuilders.delete("/manager/certificate/identity/" + IDENTITY))
+                .andExpect(status().isOk());
+        Assertions.assertFalse(clientIdentityManager.hasIdentity(IDENTITY));
+        Assertions.assertFalse(Files.exists(Path.of(storePath, IDENTITY + ".p12")));
+
+        mockMvc.perform(MockMvcRequestBuilders.delete("/manager/certificate/identity/" + IDENTITY))
+                .andExpect(status().isNotFound());
+    }
+
+    @Test
+    @Order(6)
+    void testInvalidUploadsAreRejected() throws Exception {
+        mockMvc.perform(MockMvcRequestBuilders.multipart("/manager/certificate/identity/" + IDENTITY)
+                        .file("file", createKeyStore("CN=capi-unit-test-wrong-password"))
+                        .param("password", "not-the-password"))
+                .andExpect(status().isBadRequest());
+        mockMvc.perform(MockMvcRequestBuilders.multipart("/manager/certificate/identity/invalid~name")
+                        .file("file", createKeyStore("CN=capi-unit-test-invalid-name"))
+                        .param("password", UPLOAD_PASSWORD))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    @Order(7)
+    void testUnconfiguredStoreFailsFast() {
+        Assertions.assertThrows(IllegalStateException.class, () -> new ClientIdentityManager(camelContext, upstreamConnectionPoolManager, capiDnsResolver, capiTlsSessionManager, "", storePassword, 2, 60000, 100, 3600, meterRegistry));
+        Assertions.assertThrows(IllegalStateException.class, () -> new ClientIdentityManager(camelContext, upstreamConnectionPoolManager, capiDnsResolver, capiTlsSessionManager, storePath, null, 2, 60000, 100, 3600, meterRegistry));
+    }
+
+    @Test
+    @Order(8)
+    void testIdentityReferencedBeforeUpload() throws Exception {
+        clientIdentityManager.reserveIdentity(RESERVED_IDENTITY);
+        Object connectionManager = camelContext.getRegistry().lookupByName(ClientIdentityManager.getConnectionManagerName(RESERVED_IDENTITY));
+        Assertions.assertNotNull(connectionManager);
+        Assertions.assertFalse(clientIdentityManager.hasIdentity(RESERVED_IDENTITY));
+
+        // the routes built with the reserved pool present the certificate once it is uploaded
+        AliasInfo aliasInfo = upload(RESERVED_IDENTITY, "CN=capi-unit-test-reserved");
+        Assertions.assertEquals("CN=capi-unit-test-reserved", aliasInfo.getSubjectDN());
+        Assertions.assertTrue(clientIdentityManager.hasIdentity(RESERVED_IDENTITY));
+        Assertions.assertSame(connectionManager, camelContext.getRegistry().lookupByName(ClientIdentityManager.getConnectionManagerName(RESERVED_IDENTITY)));
+        Assertions.assertTrue(clientIdentityManager.removeIdentity(RESERVED_IDENTITY));
+    }
+
+    private AliasInfo upload(String subject) throws Exception {
+        return upload(IDENTITY, subject);
+    }
+
+    private AliasInfo upload(String identity, String subject) throws Exception {
+        MvcResult postResult = mockMvc.perform(MockMvcRequestBuilders.multipart("/manager/certificate/identity/" + identity)
+                        .file("file", createKeyStore(subject))
+                        .param("password", UPLOAD_PASSWORD))
+                .andExpect(status().isOk())
+                .andReturn();
+        return objectMapper.readValue(postResult.getResponse().getContentAsString(), AliasInfo.class);
+    }
+
+    private byte[] createKeyStore(String subject) throws Exception {
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA");
+        keyPairGenerator.initialize(2048, new SecureRandom());
+        KeyPair keyPair = keyPairGenerator.generateKeyPair();
+        X500Name owner = new X500Name(subject);
+        X509Certificate certificate = new JcaX509CertificateConverter().getCertificate(new JcaX509v3CertificateBuilder(
+                owner, new BigInteger(64, new SecureRandom()), new Date(System.currentTimeMillis() - 60000), new Date(System.currentTimeMillis() + 86400000), owner, keyPair.getPublic())
+                .build(new JcaContentSignerBuilder("SHA256WithRSAEncryption").build(keyPair.getPrivate())));
+
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        keyStore.load(null, null);
+        keyStore.setKeyEntry("client", keyPair.getPrivate(), UPLOAD_PASSWORD.toCharArray(), new Certificate[] {certificate});
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        keyStore.store(outputStream, UPLOAD_PASSWORD.toCharArray());
+        return outputStream.toByteArray();
+    }
+}
@@ -0,0 +1,173 @@
+package io.surisoft.capi.lb.controller;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import io.surisoft.capi.lb.service.ClientTrackingTable;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.boot.web.embedded.undertow.UndertowServletWebServerFactory;
+import org.springframework.boot.web.server.LocalServerPort;
+import org.springframework.context.annotation.Bean;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The limits on the real listener, the connections are counted as they are accepted, before any request.
+ */
+@ExtendWith(SpringExtension.class)
+@DirtiesContext
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+@TestPropertySource(
+      locations = "classpath:test-persistence-application.properties",
+      properties = {"capi.downstream.client.max.connections=2", "capi.downstream.client.max.requests.per.second=20", "camel.servlet.mapping.servlet-name=UndertowCamelServlet", "camel.component.servlet.servlet-name=UndertowCamelServlet"}
+)
+class TestClientLimitHandler {
+
+    private static final InetAddress CLIENT = InetAddress.getLoopbackAddress();
+
+    @LocalServerPort
+    private int servletPort;
+
+    /**
+     * WireMock brings Jetty to the test classpath, Spring Boot would pick it before Undertow. The context is not kept
+     * for other tests, and its Camel servlet has a name of its own: Undertow starts it with the context, while the
+     * servlet of a kept Jetty context may still hold the default name.
+     */
+    @TestConfiguration
+    static class UndertowServer {
+        @Bean
+        UndertowServletWebServerFactory undertowServletWebServerFactory() {
+            return new UndertowServletWebServerFactory();
+        }
+    }
+
+    @Autowired
+    private ClientTrackingTable clientTrackingTable;
+
+    @Autowired
+    private CompositeMeterRegistry meterRegistry;
+
+    @Test
+    void testIdleConnectionsAreCountedAtAccept() throws Exception {
+        double rejectionsBefore = rejections("connections");
+        List<Socket> idleConnections = new ArrayList<>();
+        try {
+            for(int i = 0; i < 2; i++) {
+                idleConnections.add(connect(CLIENT));
+            }
+            waitForConnections(2);
+
+            try(Socket overLimit = connect(CLIENT)) {
+                // closed as it is accepted, without a request to answer
+                Assertions.assertEquals(-1, overLimit.getInputStream().read());
+            }
+            Assertions.assertEquals(rejectionsBefore + 1, rejections("connections"));
+
+            // another client address is not held by the first one
+            try(Socket otherClient = connect(InetAddress.getByName("127.0.0.2"))) {
+                Assertions.assertTrue(requestHealth(otherClient).startsWith("HTTP/1.1 200"));
+            }
+
+            idleConnections.remove(0).close();
+            waitForConnections(1);
+            try(Socket afterClose = connect(CLIENT)) {
+                Assertions.assertTrue(requestHealth(afterClose).startsWith("HTTP/1.1 200"));
+            }
+        } finally {
+            for(Socket idleConnection : idleConnections) {
+                idleConnection.close();
+            }
+        }
+        waitForConnections(0);
+    }
+
+    @Test
+    void testRequestRateIsLimited() throws Exception {
+        double rejectionsBefore = rejections("request-rate");
+        int tooManyRequests = 0;
+        // a client of its own, the window of this one does not spill over the other test
+        try(Socket connection = connect(InetAddress.getByName("127.0.0.3"))) {
+            for(int i = 0; i < 60; i++) {
+                if(requestHealth(connection).startsWith("HTTP/1.1 429")) {
+                    tooManyRequests++;
+                }
+            }
+        }
+        Assertions.assertTrue(tooManyRequests > 0);
+        Assertions.assertEquals(rejectionsBefore + tooManyRequests, rejections("request-rate"));
+    }
+
+    private Socket connect(InetAddress localAddress) throws IOException {
+        Socket socket = new Socket();
+        socket.bind(new InetSocketAddress(localAddress, 0));
+        socket.connect(new InetSocketAddress(CLIENT, servletPort));
+        socket.setSoTimeout(5000);
+        return socket;
+    }
+
+    /**
+     * Sends a keep-alive request and reads the whole response, with a content-length or a chunked body.
+     */
+    private String requestHealth(Socket socket) throws IOException {
+        socket.getOutputStream().write(("GET /analytics/health HTTP/1.1\r\nHost: localhost\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        socket.getOutputStream().flush();
+        InputStream inputStream = socket.getInputStream();
+        StringBuilder head = new StringBuilder();
+        while(!head.toString().endsWith("\r\n\r\n")) {
+            int read = inputStream.read();
+            if(read == -1) {
+                throw new SocketTimeoutException("the connection closed before the response head");
+            }
+            head.append((char) read);
+        }
+        int contentLength = 0;
+        boolean chunked = false;
+        for(String line : head.toString().toLowerCase().split("\r\n")) {
+            if(line.startsWith("content-length:")) {
+                contentLength = Integer.parseInt(line.substring("content-length:".length()).trim());
+            } else if(line.startsWith("transfer-encoding:") && line.contains("chunked")) {
+                chunked = true;
+            }
+        }
+        if(!chunked) {
+            inputStream.readNBytes(contentLength);
+            return head.toString();
+        }
+        StringBuilder body = new StringBuilder();
+        while(!body.toString().endsWith("\r\n0\r\n\r\n") && !body.toString().equals("0\r\n\r\n")) {
+            int read = inputStream.read();
+            if(read == -1) {
+                throw new SocketTimeoutException("the connection closed before the last chunk");
+            }
+            body.append((char) read);
+        }
+        return head.toString();
+    }
+
+    private void waitForConnections(int connections) throws InterruptedException {
+        for(int i = 0; i < 50 && clientTrackingTable.getConnections(CLIENT) != connections; i++) {
+            Thread.sleep(100);
+        }
+        Assertions.assertEquals(connections, clientTrackingTable.getConnections(CLIENT));
+    }
+
+    private double rejections(String reason) {
+        Counter counter = meterRegistry.find("capi.downstream.rejected").tag("reason", reason).counter();
+        return counter != null ? counter.count() : 0;
+    }
+}
@@ -0,0 +1,63 @@
+package io.surisoft.capi.lb.controller;
+
+import io.surisoft.capi.lb.service.ClientTrackingTable;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+
+class TestClientTrackingTable {
+
+    @Test
+    void testConnectionsPerClient() throws Exception {
+        ClientTrackingTable clientTrackingTable = new ClientTrackingTable(1024);
+        InetAddress client = InetAddress.getByName("10.0.0.1");
+
+        Assertions.assertEquals(1, clientTrackingTable.connectionOpened(client));
+        Assertions.assertEquals(2, clientTrackingTable.connectionOpened(client));
+        clientTrackingTable.connectionClosed(client);
+        clientTrackingTable.connectionClosed(client);
+        Assertions.assertEquals(0, clientTrackingTable.getConnections(client));
+        // forgotten with its last connection
+        Assertions.assertEquals(0, clientTrackingTable.size());
+    }
+
+    @Test
+    void testClientsNeverShareCounts() throws Exception {
+        ClientTrackingTable clientTrackingTable = new ClientTrackingTable(1024);
+        for(int i = 0; i < 1000; i++) {
+            clientTrackingTable.connectionOpened(InetAddress.getByName("10.0." + (i / 250) + "." + (i % 250)));
+        }
+        for(int i = 0; i < 1000; i++) {
+            Assertions.assertEquals(1, clientTrackingTable.getConnections(InetAddress.getByName("10.0." + (i / 250) + "." + (i % 250))));
+        }
+    }
+
+    @Test
+    void testRequestWindowRestartsEverySecond() throws Exception {
+        ClientTrackingTable clientTrackingTable = new ClientTrackingTable(1024);
+        InetAddress client = InetAddress.getByName("2001:db8::1");
+
+        Assertions.assertEquals(1, clientTrackingTable.requestStarted(client, 1000));
+        Assertions.assertEquals(2, clientTrackingTable.requestStarted(client, 1000));
+        Assertions.assertEquals(3, clientTrackingTable.requestStarted(client, 1000));
+        Assertions.assertEquals(1, clientTrackingTable.requestStarted(client, 1001));
+    }
+
+    @Test
+    void testFullTableLeavesNewClientsUntracked() throws Exception {
+        ClientTrackingTable clientTrackingTable = new ClientTrackingTable(2);
+        InetAddress first = InetAddress.getByName("10.0.0.1");
+        InetAddress second = InetAddress.getByName("10.0.0.2");
+        InetAddress third = InetAddress.getByName("10.0.0.3");
+        clientTrackingTable.connectionOpened(first);
+        clientTrackingTable.connectionOpened(second);
+
+        Assertions.assertEquals(ClientTrackingTable.UNTRACKED, clientTrackingTable.connectionOpened(third));
+        Assertions.assertEquals(2, clientTrackingTable.connectionOpened(first));
+
+        // the idle clients make room for the new ones
+        clientTrackingTable.connectionClosed(second);
+        Assertions.assertEquals(1, clientTrackingTable.connectionOpened(third));
+    }
+}
@@ -0,0 +1,110 @@
+package io.surisoft.capi.lb.controller;
+
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.surisoft.capi.lb.schema.Api;
+import io.surisoft.capi.lb.service.CapiConnectionManager;
+import io.surisoft.capi.lb.service.CapiDnsResolver;
+import io.surisoft.capi.lb.service.ConnectionPreWarmer;
+import org.apache.http.HttpHost;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+class TestConnectionPreWarmer {
+
+    private CompositeMeterRegistry meterRegistry;
+    private CapiDnsResolver capiDnsResolver;
+    private CapiConnectionManager connectionManager;
+    private ConnectionPreWarmer connectionPreWarmer;
+    private ServerSocket node;
+    private final List<Socket> acceptedSockets = new CopyOnWriteArrayList<>();
+
+    @BeforeEach
+    void initialize() throws IOException {
+        meterRegistry = new CompositeMeterRegistry();
+        meterRegistry.add(new SimpleMeterRegistry());
+        capiDnsResolver = new CapiDnsResolver(60000, 2000, meterRegistry);
+        Registry<ConnectionSocketFactory> socketFactoryRegistry = RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                .build();
+        connectionManager = new CapiConnectionManager(socketFactoryRegistry, capiDnsResolver, 60000, "default", meterRegistry);
+        connectionManager.setDefaultMaxPerRoute(10);
+        connectionPreWarmer = new ConnectionPreWarmer(connectionManager, 2, 500, 2, meterRegistry);
+
+        node = new ServerSocket(0);
+        Thread acceptor = new Thread(() -> {
+            try {
+                while(!node.isClosed()) {
+                    acceptedSockets.add(node.accept());
+                }
+            } catch(IOException e) {
+                // closed by the test
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    @AfterEach
+    void stop() throws IOException {
+        connectionPreWarmer.shutdown();
+        connectionManager.shutdown();
+        capiDnsResolver.shutdown();
+        node.close();
+        for(Socket socket : acceptedSockets) {
+            socket.close();
+        }
+    }
+
+    @Test
+    void testConnectionsArePooled() throws Exception {
+        String endpoint = "http://127.0.0.1:" + node.getLocalPort() + "/?bridgeEndpoint=true&throwExceptionOnFailure=false";
+        connectionPreWarmer.preWarm(new Api(), new String[] {endpoint}).get(5, TimeUnit.SECONDS);
+
+        HttpRoute route = new HttpRoute(new HttpHost("127.0.0.1", node.getLocalPort(), "http"));
+        Assertions.assertEquals(2, connectionManager.getStats(route).getAvailable());
+        Assertions.assertEquals(2, meterRegistry.get("capi.upstream.prewarm.connections").tag("result", "opened").counter().count());
+
+        // the destination already has its connections
+        connectionPreWarmer.preWarm(new Api(), new String[] {endpoint}).get(5, TimeUnit.SECONDS);
+        Assertions.assertEquals(2, connectionManager.getStats(route).getAvailable());
+    }
+
+    @Test
+    void testDeployIsNotHeldBySlowEndpoint() throws Exception {
+        Api api = new Api();
+        api.setConnectTimeout(2000);
+        // not routable, the connect only gives up after the connect timeout
+        String endpoint = "http://10.255.255.1:8080/?bridgeEndpoint=true&throwExceptionOnFailure=false";
+
+        long start = System.nanoTime();
+        CompletableFuture<Void> preWarm = connectionPreWarmer.preWarm(api, new String[] {endpoint});
+        Assertions.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 200);
+
+        // completes on the pre-warm timeout, not on the connect timeout
+        preWarm.get(1500, TimeUnit.MILLISECONDS);
+        Assertions.assertTrue(preWarm.isDone());
+    }
+
+    @Test
+    void testOtherSchemesAreSkipped() throws Exception {
+        CompletableFuture<Void> preWarm = connectionPreWarmer.preWarm(new Api(), new String[] {"h2c://127.0.0.1:" + node.getLocalPort() + "/"});
+        Assertions.assertTrue(preWarm.isDone());
+        Assertions.assertTrue(acceptedSockets.isEmpty());
+    }
+}
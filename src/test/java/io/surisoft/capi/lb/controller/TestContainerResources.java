@@ -0,0 +1,72 @@
+package io.surisoft.capi.lb.controller;
+
+import io.surisoft.capi.lb.service.ContainerResources;
+import io.surisoft.capi.lb.service.ResourcePlan;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+class TestContainerResources {
+
+    private static final long MB = 1024 * 1024;
+
+    @Test
+    void testCgroupV2Limits(@TempDir Path cgroupRoot) throws Exception {
+        Files.writeString(cgroupRoot.resolve("cgroup.controllers"), "cpu memory");
+        Files.writeString(cgroupRoot.resolve("cpu.max"), "150000 100000\n");
+        Files.writeString(cgroupRoot.resolve("memory.max"), String.valueOf(1024 * MB));
+
+        ContainerResources resources = ContainerResources.detect(cgroupRoot, 32, 700 * MB);
+        Assertions.assertEquals(ContainerResources.SOURCE_CGROUP_V2, resources.getSource());
+        Assertions.assertEquals(2, resources.getCpus());
+        Assertions.assertEquals(1024 * MB, resources.getMemoryLimit());
+    }
+
+    @Test
+    void testCgroupV2WithoutLimits(@TempDir Path cgroupRoot) throws Exception {
+        Files.writeString(cgroupRoot.resolve("cgroup.controllers"), "cpu memory");
+        Files.writeString(cgroupRoot.resolve("cpu.max"), "max 100000\n");
+        Files.writeString(cgroupRoot.resolve("memory.max"), "max\n");
+
+        ContainerResources resources = ContainerResources.detect(cgroupRoot, 8, 700 * MB);
+        Assertions.assertEquals(8, resources.getCpus());
+        Assertions.assertEquals(-1, resources.getMemoryLimit());
+    }
+
+    @Test
+    void testCgroupV1Limits(@TempDir Path cgroupRoot) throws Exception {
+        Files.createDirectories(cgroupRoot.resolve("cpu"));
+        Files.createDirectories(cgroupRoot.resolve("memory"));
+        Files.writeString(cgroupRoot.resolve("cpu").resolve("cpu.cfs_quota_us"), "-1\n");
+        Files.writeString(cgroupRoot.resolve("cpu").resolve("cpu.cfs_period_us"), "100000\n");
+        Files.writeString(cgroupRoot.resolve("memory").resolve("memory.limit_in_bytes"), "9223372036854771712\n");
+
+        ContainerResources resources = ContainerResources.detect(cgroupRoot, 4, 700 * MB);
+        Assertions.assertEquals(ContainerResources.SOURCE_CGROUP_V1, resources.getSource());
+        Assertions.assertEquals(4, resources.getCpus());
+        Assertions.assertEquals(-1, resources.getMemoryLimit());
+    }
+
+    @Test
+    void testPlanFollowsTheLimits(@TempDir Path cgroupRoot) throws Exception {
+        Files.writeString(cgroupRoot.resolve("cgroup.controllers"), "cpu memory");
+        Files.writeString(cgroupRoot.resolve("cpu.max"), "200000 100000");
+        Files.writeString(cgroupRoot.resolve("memory.max"), String.valueOf(1024 * MB));
+        ResourcePlan smallPlan = ResourcePlan.derive(ContainerResources.detect(cgroupRoot, 64, 700 * MB));
+
+        Files.writeString(cgroupRoot.resolve("cpu.max"), "3200000 100000");
+        Files.writeString(cgroupRoot.resolve("memory.max"), String.valueOf(16384 * MB));
+        ResourcePlan largePlan = ResourcePlan.derive(ContainerResources.detect(cgroupRoot, 64, 11000 * MB));
+
+        Assertions.assertEquals(2L, smallPlan.getValues().get(ResourcePlan.IO_THREADS));
+        Assertions.assertEquals(32L, largePlan.getValues().get(ResourcePlan.IO_THREADS));
+        Assertions.assertEquals(32L, smallPlan.getValues().get(ResourcePlan.WORKER_THREADS));
+        Assertions.assertEquals(512L, largePlan.getValues().get(ResourcePlan.WORKER_THREADS));
+        Assertions.assertTrue(largePlan.getValues().get(ResourcePlan.UPSTREAM_MAX_TOTAL) > smallPlan.getValues().get(ResourcePlan.UPSTREAM_MAX_TOTAL));
+        Assertions.assertEquals(700 * MB / 4, smallPlan.getValues().get(ResourcePlan.MEMORY_BUDGET_TOTAL));
+        Assertions.assertEquals(16384L, smallPlan.getValues().get(ResourcePlan.BUFFER_SIZE));
+    }
+}
@@ -0,0 +1,89 @@
+package io.surisoft.capi.lb.controller;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.boot.web.embedded.undertow.UndertowServletWebServerFactory;
+import org.springframework.boot.web.server.LocalServerPort;
+import org.springframework.context.annotation.Bean;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+
+/**
+ * Cleartext clients switch to HTTP/2 with the h2c upgrade, the TLS listener and ALPN are covered by TestDownstreamHttp2Alpn.
+ */
+@ExtendWith(SpringExtension.class)
+@DirtiesContext
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+@TestPropertySource(
+      locations = "classpath:test-persistence-application.properties",
+      properties = {"server.http2.enabled=true", "camel.servlet.mapping.servlet-name=UndertowCamelServlet", "camel.component.servlet.servlet-name=UndertowCamelServlet"}
+)
+class TestDownstreamHttp2 {
+
+    @LocalServerPort
+    private int servletPort;
+
+    /**
+     * WireMock brings Jetty to the test classpath, Spring Boot would pick it before Undertow. The context is not kept
+     * for other tests, and its Camel servlet has a name of its own: Undertow starts it with the context, while the
+     * servlet of a kept Jetty context may still hold the default name.
+     */
+    @TestConfiguration
+    static class UndertowServer {
+        @Bean
+        UndertowServletWebServerFactory undertowServletWebServerFactory() {
+            return new UndertowServletWebServerFactory();
+        }
+    }
+
+    @Autowired
+    private CompositeMeterRegistry meterRegistry;
+
+    @Test
+    void testH2cUpgrade() throws Exception {
+        HttpClient httpClient = HttpClient.newBuilder().version(HttpClient.Version.HTTP_2).build();
+        double streamsBefore = streams();
+        for(int i = 0; i < 3; i++) {
+            HttpResponse<String> response = httpClient.send(HttpRequest.newBuilder(URI.create("http://localhost:" + servletPort + "/analytics/health")).build(), HttpResponse.BodyHandlers.ofString());
+            Assertions.assertEquals(HttpClient.Version.HTTP_2, response.version());
+        }
+        // the streams after the upgrade share the one client connection
+        Assertions.assertTrue(streams() - streamsBefore >= 2);
+        Gauge connections = meterRegistry.find("capi.downstream.http2.connections").gauge();
+        Assertions.assertNotNull(connections);
+        Assertions.assertEquals(1, connections.value());
+    }
+
+    @Test
+    void testHttp11ClientsAreUnaffected() throws Exception {
+        try(CloseableHttpClient httpClient = HttpClients.createDefault();
+            CloseableHttpResponse response = httpClient.execute(new HttpGet("http://localhost:" + servletPort + "/analytics/health"))) {
+            Assertions.assertEquals(HttpVersion.HTTP_1_1, response.getStatusLine().getProtocolVersion());
+            EntityUtils.consume(response.getEntity());
+        }
+    }
+
+    private double streams() {
+        Counter streams = meterRegistry.find("capi.downstream.http2.streams").counter();
+        return streams != null ? streams.count() : 0;
+    }
+}
@@ -0,0 +1,115 @@
+package io.surisoft.capi.lb.controller;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.boot.web.embedded.undertow.UndertowServletWebServerFactory;
+import org.springframework.boot.web.server.LocalServerPort;
+import org.springframework.context.annotation.Bean;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyStore;
+
+/**
+ * TLS clients negotiate HTTP/2 with ALPN on the downstream listener, the ones that only offer http/1.1 keep it.
+ */
+@ExtendWith(SpringExtension.class)
+@DirtiesContext
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+@TestPropertySource(
+      locations = "classpath:test-persistence-application.properties",
+      properties = {"server.http2.enabled=true", "camel.servlet.mapping.servlet-name=UndertowCamelServlet", "camel.component.servlet.servlet-name=UndertowCamelServlet"}
+)
+class TestDownstreamHttp2Alpn {
+
+    private static final String PASSWORD = "unit-test";
+    private static Path keyStoreFile;
+
+    @LocalServerPort
+    private int servletPort;
+
+    /**
+     * WireMock brings Jetty to the test classpath, Spring Boot would pick it before Undertow. The context is not kept
+     * for other tests, and its Camel servlet has a name of its own: Undertow starts it with the context, while the
+     * servlet of a kept Jetty context may still hold the default name.
+     */
+    @TestConfiguration
+    static class UndertowServer {
+        @Bean
+        UndertowServletWebServerFactory undertowServletWebServerFactory() {
+            return new UndertowServletWebServerFactory();
+        }
+    }
+
+    @Autowired
+    private CompositeMeterRegistry meterRegistry;
+
+    @DynamicPropertySource
+    static void listenerKeyStore(DynamicPropertyRegistry registry) throws IOException, InterruptedException {
+        keyStoreFile = Files.createTempDirectory("capi-alpn").resolve("listener.p12");
+        Process keytool = new ProcessBuilder(Path.of(System.getProperty("java.home"), "bin", "keytool").toString(),
+                "-genkeypair", "-keyalg", "EC", "-alias", "listener", "-dname", "CN=localhost", "-ext", "SAN=dns:localhost",
+                "-validity", "2", "-storetype", "PKCS12", "-keystore", keyStoreFile.toString(), "-storepass", PASSWORD)
+                .inheritIO()
+                .start();
+        Assertions.assertEquals(0, keytool.waitFor());
+        registry.add("server.ssl.enabled", () -> "true");
+        registry.add("server.ssl.key-store", () -> keyStoreFile.toUri().toString());
+        registry.add("server.ssl.key-store-type", () -> "PKCS12");
+        registry.add("server.ssl.key-store-password", () -> PASSWORD);
+        registry.add("server.ssl.key-alias", () -> "listener");
+    }
+
+    @Test
+    void testAlpnNegotiatesHttp2() throws Exception {
+        Counter streams = meterRegistry.find("capi.downstream.http2.streams").counter();
+        double streamsBefore = streams != null ? streams.count() : 0;
+
+        HttpResponse<String> response = newClient(HttpClient.Version.HTTP_2).send(healthRequest(), HttpResponse.BodyHandlers.ofString());
+
+        Assertions.assertEquals(HttpClient.Version.HTTP_2, response.version());
+        Assertions.assertTrue(meterRegistry.get("capi.downstream.http2.streams").counter().count() > streamsBefore);
+    }
+
+    @Test
+    void testHttp11OnlyClientsKeepHttp11() throws Exception {
+        HttpResponse<String> response = newClient(HttpClient.Version.HTTP_1_1).send(healthRequest(), HttpResponse.BodyHandlers.ofString());
+
+        Assertions.assertEquals(HttpClient.Version.HTTP_1_1, response.version());
+    }
+
+    private HttpRequest healthRequest() {
+        return HttpRequest.newBuilder(URI.create("https://localhost:" + servletPort + "/analytics/health")).build();
+    }
+
+    private HttpClient newClient(HttpClient.Version version) throws Exception {
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        try(InputStream is = Files.newInputStream(keyStoreFile)) {
+            keyStore.load(is, PASSWORD.toCharArray());
+        }
+        TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagerFactory.init(keyStore);
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(null, trustManagerFactory.getTrustManagers(), null);
+        return HttpClient.newBuilder().version(version).sslContext(sslContext).build();
+    }
+}
@@ -0,0 +1,198 @@
+package io.surisoft.capi.lb.controller;
+
+import io.surisoft.capi.lb.service.DownstreamTlsProvider;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.cert.X509v3CertificateBuilder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.TrustManagerFactory;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+
+class TestDownstreamTlsProvider {
+
+    private static final Logger log = LoggerFactory.getLogger(TestDownstreamTlsProvider.class);
+    private static final char[] PASSWORD = "changeit".toCharArray();
+
+    private static KeyManagerFactory keyManagerFactory;
+    private static SSLContext clientSslContext;
+
+    @BeforeAll
+    static void createServerIdentity() throws Exception {
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA");
+        keyPairGenerator.initialize(2048, new SecureRandom());
+        KeyPair keyPair = keyPairGenerator.generateKeyPair();
+        X500Name owner = new X500Name("CN=localhost");
+        X509v3CertificateBuilder certificateBuilder = new JcaX509v3CertificateBuilder(owner, new BigInteger(64, new SecureRandom()),
+                new Date(System.currentTimeMillis() - 1000L * 60 * 60 * 24), new Date(System.currentTimeMillis() + 1000L * 60 * 60 * 24), owner, keyPair.getPublic());
+        X509Certificate certificate = new JcaX509CertificateConverter().getCertificate(certificateBuilder.build(new JcaContentSignerBuilder("SHA256WithRSAEncryption").build(keyPair.getPrivate())));
+
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        keyStore.load(null, null);
+        keyStore.setKeyEntry("capi-unit-test", keyPair.getPrivate(), PASSWORD, new X509Certificate[] {certificate});
+        keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagerFactory.init(keyStore, PASSWORD);
+
+        KeyStore trustStore = KeyStore.getInstance("PKCS12");
+        trustStore.load(null, null);
+        trustStore.setCertificateEntry("capi-unit-test", certificate);
+        TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagerFactory.init(trustStore);
+        clientSslContext = SSLContext.getInstance("TLS");
+        clientSslContext.init(null, trustManagerFactory.getTrustManagers(), null);
+    }
+
+    @Test
+    void testJsseEngineWithSessionCache() throws Exception {
+        DownstreamTlsProvider downstreamTlsProvider = new DownstreamTlsProvider(DownstreamTlsProvider.ENGINE_JSSE, "TLS", 128, 600);
+        SSLContext serverSslContext = newServerSslContext(downstreamTlsProvider);
+
+        Assertions.assertEquals(DownstreamTlsProvider.ENGINE_JSSE, downstreamTlsProvider.getEngine());
+        Assertions.assertEquals(128, serverSslContext.getServerSessionContext().getSessionCacheSize());
+        Assertions.assertEquals(600, serverSslContext.getServerSessionContext().getSessionTimeout());
+        handshake(clientSslContext.createSSLEngine(), newServerEngine(serverSslContext));
+    }
+
+    @Test
+    void testOpenSslEngineOrFallback() throws Exception {
+        DownstreamTlsProvider downstreamTlsProvider = new DownstreamTlsProvider(DownstreamTlsProvider.ENGINE_OPENSSL, "TLS", 128, 600);
+        SSLContext serverSslContext = newServerSslContext(downstreamTlsProvider);
+
+        // without the native library this is JSSE, the listener still terminates TLS
+        log.info("Downstream TLS engine: {}", downstreamTlsProvider.getEngine());
+        handshake(clientSslContext.createSSLEngine(), newServerEngine(serverSslContext));
+    }
+
+    /**
+     * Run with -Dcapi.benchmark=true, full handshakes per second and bulk record throughput of both engines.
+     */
+    @Test
+    @EnabledIfSystemProperty(named = "capi.benchmark", matches = "true")
+    void benchmarkOpenSslAgainstJsse() throws Exception {
+        for(String engine : new String[] {DownstreamTlsProvider.ENGINE_JSSE, DownstreamTlsProvider.ENGINE_OPENSSL}) {
+            DownstreamTlsProvider downstreamTlsProvider = new DownstreamTlsProvider(engine, "TLS", 20480, 86400);
+            SSLContext serverSslContext = newServerSslContext(downstreamTlsProvider);
+            for(int round = 0; round < 3; round++) {
+                int handshakes = 500;
+                long start = System.nanoTime();
+                for(int i = 0; i < handshakes; i++) {
+                    // no peer host, so the client never resumes and every handshake is a full one
+                    handshake(clientSslContext.createSSLEngine(), newServerEngine(serverSslContext));
+                }
+                long handshakeTime = System.nanoTime() - start;
+
+                SSLEngine client = clientSslContext.createSSLEngine();
+                SSLEngine server = newServerEngine(serverSslContext);
+                handshake(client, server);
+                long bytes = 256L * 1024 * 1024;
+                start = System.nanoTime();
+                transfer(server, client, bytes);
+                long transferTime = System.nanoTime() - start;
+                log.info("{} ({}): {} handshakes per second, {} MB/s", engine, downstreamTlsProvider.getEngine(),
+                        handshakes * 1_000_000_000L / handshakeTime, bytes * 1000L / transferTime);
+            }
+        }
+    }
+
+    private SSLContext newServerSslContext(DownstreamTlsProvider downstreamTlsProvider) throws Exception {
+        SSLContext serverSslContext = SSLContext.getInstance(DownstreamTlsProvider.PROTOCOL_PREFIX + "TLS", downstreamTlsProvider);
+        serverSslContext.init(keyManagerFactory.getKeyManagers(), null, null);
+        return serverSslContext;
+    }
+
+    private SSLEngine newServerEngine(SSLContext serverSslContext) {
+        SSLEngine sslEngine = serverSslContext.createSSLEngine();
+        sslEngine.setUseClientMode(false);
+        return sslEngine;
+    }
+
+    private void handshake(SSLEngine client, SSLEngine server) throws SSLException {
+        client.setUseClientMode(true);
+        ByteBuffer clientToServer = ByteBuffer.allocate(client.getSession().getPacketBufferSize());
+        ByteBuffer serverToClient = ByteBuffer.allocate(server.getSession().getPacketBufferSize());
+        ByteBuffer clientApplication = ByteBuffer.allocate(client.getSession().getApplicationBufferSize());
+        ByteBuffer serverApplication = ByteBuffer.allocate(server.getSession().getApplicationBufferSize());
+        client.beginHandshake();
+        server.beginHandshake();
+        for(int step = 0; isHandshaking(client) || isHandshaking(server); step++) {
+            Assertions.assertTrue(step < 1000, "the handshake does not progress");
+            step(client, clientToServer, serverToClient, clientApplication);
+            step(server, serverToClient, clientToServer, serverApplication);
+        }
+        // TLS 1.3 session tickets are sent once the handshake is over, records can't be skipped
+        drain(client, serverToClient, clientApplication);
+        drain(server, clientToServer, serverApplication);
+    }
+
+    private void drain(SSLEngine sslEngine, ByteBuffer incoming, ByteBuffer application) throws SSLException {
+        incoming.flip();
+        while(incoming.hasRemaining()) {
+            application.clear();
+            if(sslEngine.unwrap(incoming, application).getStatus() != SSLEngineResult.Status.OK) {
+                break;
+            }
+        }
+        incoming.compact();
+    }
+
+    private boolean isHandshaking(SSLEngine sslEngine) {
+        SSLEngineResult.HandshakeStatus status = sslEngine.getHandshakeStatus();
+        return status != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING && status != SSLEngineResult.HandshakeStatus.FINISHED;
+    }
+
+    private void step(SSLEngine sslEngine, ByteBuffer outgoing, ByteBuffer incoming, ByteBuffer application) throws SSLException {
+        switch(sslEngine.getHandshakeStatus()) {
+            case NEED_TASK -> {
+                Runnable task;
+                while((task = sslEngine.getDelegatedTask()) != null) {
+                    task.run();
+                }
+            }
+            case NEED_WRAP -> sslEngine.wrap(ByteBuffer.allocate(0), outgoing);
+            case NEED_UNWRAP, NEED_UNWRAP_AGAIN -> {
+                incoming.flip();
+                application.clear();
+                sslEngine.unwrap(incoming, application);
+                incoming.compact();
+            }
+            default -> { }
+        }
+    }
+
+    private void transfer(SSLEngine sender, SSLEngine receiver, long bytes) throws SSLException {
+        ByteBuffer plain = ByteBuffer.allocate(16384);
+        ByteBuffer network = ByteBuffer.allocate(sender.getSession().getPacketBufferSize() * 2);
+        ByteBuffer received = ByteBuffer.allocate(receiver.getSession().getApplicationBufferSize());
+        for(long sent = 0; sent < bytes; sent += plain.capacity()) {
+            plain.clear();
+            network.clear();
+            sender.wrap(plain, network);
+            network.flip();
+            while(network.hasRemaining()) {
+                received.clear();
+                if(receiver.unwrap(network, received).getStatus() != SSLEngineResult.Status.OK) {
+                    break;
+                }
+            }
+        }
+    }
+}
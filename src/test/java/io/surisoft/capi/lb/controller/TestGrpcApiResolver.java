@@ -0,0 +1,84 @@
+package io.surisoft.capi.lb.controller;
+
+import io.surisoft.capi.lb.cache.ApiContextIndex;
+import io.surisoft.capi.lb.cache.ApiResolver;
+import io.surisoft.capi.lb.schema.Api;
+import io.surisoft.capi.lb.schema.HttpMethod;
+import org.cache2k.Cache;
+import org.cache2k.Cache2kBuilder;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class TestGrpcApiResolver {
+
+    private Cache<String, Api> apiCache;
+    private ApiResolver apiResolver;
+
+    @BeforeEach
+    void initialize() {
+        ApiContextIndex apiContextIndex = new ApiContextIndex();
+        apiCache = apiContextIndex.listenTo(new Cache2kBuilder<String, Api>(){}).build();
+        apiCache.put("greeter", newApi("greeter", "/helloworld.Greeter", true));
+        apiCache.put("orders", newApi("orders", "/orders/v1", true));
+        apiCache.put("rest", newApi("rest", "/rest/v1", false));
+        apiResolver = new ApiResolver(apiCache, apiContextIndex, "/capi");
+    }
+
+    @Test
+    void testBarePathMatchesServiceContext() {
+        ApiResolver.ApiMatch apiMatch = apiResolver.resolveGrpc("/helloworld.Greeter/SayHello");
+
+        Assertions.assertNotNull(apiMatch);
+        Assertions.assertEquals("greeter", apiMatch.getApi().getId());
+        Assertions.assertEquals("/helloworld.Greeter/SayHello", apiMatch.getUpstreamUri("/"));
+    }
+
+    @Test
+    void testPrefixedPathMatchesApiContext() {
+        ApiResolver.ApiMatch apiMatch = apiResolver.resolveGrpc("/capi/orders/v1/shop.Orders/Get");
+
+        Assertions.assertNotNull(apiMatch);
+        Assertions.assertEquals("orders", apiMatch.getApi().getId());
+        Assertions.assertEquals("/shop.Orders/Get", apiMatch.getUpstreamUri("/"));
+    }
+
+    @Test
+    void testOnlyGrpcApisMatch() {
+        Assertions.assertNull(apiResolver.resolveGrpc("/capi/rest/v1/shop.Orders/Get"));
+        Assertions.assertNull(apiResolver.resolveGrpc("/unknown.Service/Method"));
+    }
+
+    @Test
+    void testLongestContextWins() {
+        apiCache.put("orders-admin", newApi("orders-admin", "/orders/v1/admin/", false));
+
+        Assertions.assertEquals("orders-admin", apiResolver.resolve("/capi/orders/v1/admin/users?page=2", "GET").getApi().getId());
+        Assertions.assertEquals("/users?page=2", apiResolver.resolve("/capi/orders/v1/admin/users?page=2", "GET").getUpstreamUri("/"));
+        Assertions.assertEquals("orders", apiResolver.resolve("/capi/orders/v1/administration", "GET").getApi().getId());
+        Assertions.assertEquals("orders", apiResolver.resolve("/capi/orders/v1", "GET").getApi().getId());
+        Assertions.assertNull(apiResolver.resolve("/capi/orders", "GET"));
+    }
+
+    @Test
+    void testIndexFollowsTheCache() {
+        Api getOnly = newApi("rest-get", "/rest/v2", false);
+        getOnly.setHttpMethod(HttpMethod.GET);
+        apiCache.put("rest-get", getOnly);
+        Assertions.assertEquals("rest-get", apiResolver.resolve("/capi/rest/v2/items", "GET").getApi().getId());
+        Assertions.assertNull(apiResolver.resolve("/capi/rest/v2/items", "POST"));
+
+        apiCache.remove("rest-get");
+        Assertions.assertNull(apiResolver.resolve("/capi/rest/v2/items", "GET"));
+        Assertions.assertNotNull(apiResolver.resolve("/capi/rest/v1/items", "GET"));
+    }
+
+    private Api newApi(String id, String context, boolean grpc) {
+        Api api = new Api();
+        api.setId(id);
+        api.setContext(context);
+        api.setHttpMethod(HttpMethod.ALL);
+        api.setGrpcEnabled(grpc);
+        return api;
+    }
+}
@@ -0,0 +1,185 @@
+package io.surisoft.capi.lb.controller;
+
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import io.surisoft.capi.lb.exception.MemoryBudgetExceededException;
+import io.surisoft.capi.lb.processor.MemoryAdmissionProcessor;
+import io.surisoft.capi.lb.processor.MemoryBudget;
+import io.surisoft.capi.lb.processor.ReplayBufferPool;
+import io.surisoft.capi.lb.processor.ReplayableRequestBody;
+import io.surisoft.capi.lb.schema.Api;
+import org.apache.camel.Exchange;
+import org.apache.camel.ExtendedExchange;
+import org.apache.camel.StreamCache;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultExchange;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class TestMemoryBudget {
+
+    @Test
+    void testGlobalAndApiBudgets() {
+        MemoryBudget memoryBudget = new MemoryBudget(1000, 600, 0, new CompositeMeterRegistry());
+
+        Assertions.assertTrue(memoryBudget.tryReserve("api-a", 500));
+        Assertions.assertFalse(memoryBudget.tryReserve("api-a", 200));
+        Assertions.assertTrue(memoryBudget.tryReserve("api-b", 500));
+        Assertions.assertFalse(memoryBudget.tryReserve("api-c", 1));
+        Assertions.assertEquals(1000, memoryBudget.getUsed());
+        Assertions.assertEquals(500, memoryBudget.getApiUsed("api-a"));
+
+        memoryBudget.release("api-a", 500);
+        memoryBudget.release("api-b", 500);
+        Assertions.assertEquals(0, memoryBudget.getUsed());
+        Assertions.assertEquals(0, memoryBudget.getApiUsed("api-a"));
+    }
+
+    @Test
+    void testReserveWaitsForRelease() throws Exception {
+        MemoryBudget memoryBudget = new MemoryBudget(1000, 0, 5000, new CompositeMeterRegistry());
+        Assertions.assertTrue(memoryBudget.tryReserve("api-a", 800));
+
+        CompletableFuture<Boolean> waiting = CompletableFuture.supplyAsync(() -> {
+            try {
+                return memoryBudget.reserve("api-b", 400);
+            } catch(InterruptedException e) {
+                return false;
+            }
+        });
+        Thread.sleep(100);
+        Assertions.assertFalse(waiting.isDone());
+        memoryBudget.release("api-a", 800);
+        Assertions.assertTrue(waiting.get(2, TimeUnit.SECONDS));
+        Assertions.assertEquals(400, memoryBudget.getUsed());
+    }
+
+    @Test
+    void testReserveGivesUpAfterWait() throws Exception {
+        MemoryBudget memoryBudget = new MemoryBudget(1000, 0, 50, new CompositeMeterRegistry());
+        Assertions.assertTrue(memoryBudget.tryReserve("api-a", 800));
+        Assertions.assertFalse(memoryBudget.reserve("api-b", 400));
+        Assertions.assertEquals(800, memoryBudget.getUsed());
+    }
+
+    @Test
+    void testReplayBufferNeedsBudget() throws Exception {
+        ReplayBufferPool replayBufferPool = new ReplayBufferPool(1024);
+        MemoryBudget memoryBudget = new MemoryBudget(1024, 0, 0, new CompositeMeterRegistry());
+        Exchange exchange = new DefaultExchange(new DefaultCamelContext());
+        exchange.getIn().setBody(new ByteArrayInputStream(new byte[16]));
+
+        // the pooled buffer is one byte larger than the budget, the body is sent once as it is
+        ReplayableRequestBody requestBody = ReplayableRequestBody.capture(exchange, replayBufferPool, memoryBudget, "api-a");
+        Assertions.assertFalse(requestBody.isReplayable());
+        Assertions.assertEquals(16, exchange.getIn().getBody(InputStream.class).readAllBytes().length);
+        Assertions.assertEquals(0, memoryBudget.getUsed());
+
+        memoryBudget = new MemoryBudget(4096, 0, 0, new CompositeMeterRegistry());
+        exchange.getIn().setBody(new ByteArrayInputStream(new byte[16]));
+        requestBody = ReplayableRequestBody.capture(exchange, replayBufferPool, memoryBudget, "api-a");
+        Assertions.assertTrue(requestBody.isReplayable());
+        Assertions.assertEquals(1025, memoryBudget.getApiUsed("api-a"));
+        requestBody.release();
+        Assertions.assertEquals(0, memoryBudget.getUsed());
+    }
+
+    @Test
+    void testRequestIsChargedForTheBytesBuffered() throws Exception {
+        MemoryBudget memoryBudget = new MemoryBudget(1024 * 1024, 0, 0, new CompositeMeterRegistry());
+        Exchange exchange = new DefaultExchange(new DefaultCamelContext());
+        // the declared length is not what gets buffered
+        exchange.getIn().setHeader(Exchange.CONTENT_LENGTH, 10);
+        exchange.getIn().setBody(new ByteArrayInputStream(new byte[200 * 1024 + 1]));
+
+        MemoryAdmissionProcessor.request(memoryBudget, new ReplayBufferPool(64 * 1024), newApi()).process(exchange);
+        Assertions.assertNull(exchange.getException());
+        Assertions.assertEquals(200 * 1024 + 1, memoryBudget.getApiUsed("api-a"));
+        Assertions.assertEquals(200 * 1024 + 1, exchange.getIn().getBody(StreamCache.class).length());
+
+        complete(exchange);
+        Assertions.assertEquals(0, memoryBudget.getUsed());
+    }
+
+    @Test
+    void testRequestOverBudgetIsRefusedWhileBuffering() throws Exception {
+        MemoryBudget memoryBudget = new MemoryBudget(128 * 1024, 0, 0, new CompositeMeterRegistry());
+        Exchange exchange = new DefaultExchange(new DefaultCamelContext());
+        exchange.getIn().setHeader(Exchange.CONTENT_LENGTH, 10);
+        exchange.getIn().setBody(new ByteArrayInputStream(new byte[512 * 1024]));
+
+        MemoryAdmissionProcessor.request(memoryBudget, new ReplayBufferPool(64 * 1024), newApi()).process(exchange);
+        Assertions.assertInstanceOf(MemoryBudgetExceededException.class, exchange.getException());
+        Assertions.assertEquals(0, memoryBudget.getUsed());
+    }
+
+    @Test
+    void testKnownLengthIsReservedOnce() throws Exception {
+        AtomicInteger reservations = new AtomicInteger();
+        MemoryBudget memoryBudget = new MemoryBudget(1024 * 1024, 0, 0, new CompositeMeterRegistry()) {
+            @Override
+            public boolean reserve(String apiId, long bytes) throws InterruptedException {
+                reservations.incrementAndGet();
+                return super.reserve(apiId, bytes);
+            }
+        };
+        ReplayBufferPool replayBufferPool = new ReplayBufferPool(64 * 1024);
+        Exchange exchange = new DefaultExchange(new DefaultCamelContext());
+        exchange.getIn().setHeader(Exchange.CONTENT_LENGTH, 300 * 1024);
+        exchange.getIn().setBody(new ByteArrayInputStream(new byte[300 * 1024]));
+
+        MemoryAdmissionProcessor.request(memoryBudget, replayBufferPool, newApi()).process(exchange);
+        Assertions.assertNull(exchange.getException());
+        Assertions.assertEquals(1, reservations.get());
+        Assertions.assertEquals(300 * 1024, memoryBudget.getApiUsed("api-a"));
+        // the chunk went back to the pool
+        Assertions.assertEquals(64 * 1024 + 1, replayBufferPool.acquire().length);
+    }
+
+    @Test
+    void testBodilessRequestsAreNotRead() throws Exception {
+        MemoryBudget memoryBudget = new MemoryBudget(1024, 0, 0, new CompositeMeterRegistry());
+        Exchange exchange = new DefaultExchange(new DefaultCamelContext());
+        exchange.getIn().setHeader(Exchange.HTTP_METHOD, "GET");
+        InputStream requestStream = new ByteArrayInputStream(new byte[0]);
+        exchange.getIn().setBody(requestStream);
+
+        MemoryAdmissionProcessor.request(memoryBudget, new ReplayBufferPool(64 * 1024), newApi()).process(exchange);
+        Assertions.assertSame(requestStream, exchange.getIn().getBody());
+
+        exchange.getIn().setHeader(Exchange.HTTP_METHOD, "POST");
+        exchange.getIn().setHeader(Exchange.CONTENT_LENGTH, 0);
+        MemoryAdmissionProcessor.request(memoryBudget, new ReplayBufferPool(64 * 1024), newApi()).process(exchange);
+        Assertions.assertSame(requestStream, exchange.getIn().getBody());
+        Assertions.assertEquals(0, memoryBudget.getUsed());
+    }
+
+    @Test
+    void testResponseIsAccountedForItsBody() throws Exception {
+        MemoryBudget memoryBudget = new MemoryBudget(1024 * 1024, 0, 0, new CompositeMeterRegistry());
+        Exchange exchange = new DefaultExchange(new DefaultCamelContext());
+        exchange.getMessage().setHeader(Exchange.CONTENT_LENGTH, 1024 * 1024 * 1024);
+        exchange.getMessage().setBody(new byte[1000]);
+
+        MemoryAdmissionProcessor.response(memoryBudget, newApi()).process(exchange);
+        Assertions.assertEquals(1000, memoryBudget.getApiUsed("api-a"));
+
+        complete(exchange);
+        Assertions.assertEquals(0, memoryBudget.getUsed());
+    }
+
+    private void complete(Exchange exchange) {
+        exchange.adapt(ExtendedExchange.class).handoverCompletions().forEach(synchronization -> synchronization.onComplete(exchange));
+    }
+
+    private Api newApi() {
+        Api api = new Api();
+        api.setId("api-a");
+        return api;
+    }
+}
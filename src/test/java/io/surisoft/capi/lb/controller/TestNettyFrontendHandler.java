@@ -0,0 +1,332 @@
+package io.surisoft.capi.lb.controller;
+
+import com.github.tomakehurst.wiremock.WireMockServer;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.surisoft.capi.lb.cache.ApiContextIndex;
+import io.surisoft.capi.lb.cache.ApiResolver;
+import io.surisoft.capi.lb.netty.NettyGrpcConnectionPool;
+import io.surisoft.capi.lb.netty.NettyProxyServer;
+import io.surisoft.capi.lb.netty.NettyTransport;
+import io.surisoft.capi.lb.netty.NettyUpstreamPool;
+import io.surisoft.capi.lb.netty.NettyWebSocketTunnels;
+import io.surisoft.capi.lb.schema.Api;
+import io.surisoft.capi.lb.schema.HttpMethod;
+import io.surisoft.capi.lb.schema.HttpProtocol;
+import io.surisoft.capi.lb.schema.Mapping;
+import io.surisoft.capi.lb.service.CapiDnsResolver;
+import org.cache2k.Cache;
+import org.cache2k.Cache2kBuilder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.absent;
+import static com.github.tomakehurst.wiremock.client.WireMock.equalTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.post;
+import static com.github.tomakehurst.wiremock.client.WireMock.postRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.options;
+
+/**
+ * Talks to the Netty engine over raw sockets, so the keep-alive connection the requests share is under the test's control.
+ */
+class TestNettyFrontendHandler {
+
+    private static final String NODE_RESPONSE = "OK NETTY NODE";
+
+    private CompositeMeterRegistry meterRegistry;
+    private CapiDnsResolver capiDnsResolver;
+    private Cache<String, Api> apiCache;
+    private NettyProxyServer nettyProxyServer;
+    private WireMockServer deployedNode;
+    private ServerSocket staleNode;
+    private final AtomicInteger staleNodeConnections = new AtomicInteger();
+
+    @BeforeEach
+    void initialize() throws Exception {
+        meterRegistry = new CompositeMeterRegistry();
+        meterRegistry.add(new SimpleMeterRegistry());
+        capiDnsResolver = new CapiDnsResolver(60000, 2000, meterRegistry);
+        ApiContextIndex apiContextIndex = new ApiContextIndex();
+        apiCache = apiContextIndex.listenTo(new Cache2kBuilder<String, Api>(){}).build();
+
+        deployedNode = new WireMockServer(options().dynamicPort());
+        deployedNode.start();
+        deployedNode.stubFor(get(urlEqualTo("/node")).willReturn(aResponse().withBody(NODE_RESPONSE).withHeader("Keep-Alive", "timeout=5")));
+        deployedNode.stubFor(post(urlEqualTo("/echo")).willReturn(aResponse().withBody(NODE_RESPONSE)));
+        deployedNode.stubFor(get(urlEqualTo("/slow")).willReturn(aResponse().withBody(NODE_RESPONSE).withFixedDelay(3000)));
+        startStaleNode();
+
+        nettyProxyServer = new NettyProxyServer(NettyTransport.select(NettyTransport.AUTO),
+                0,
+                1,
+                1,
+                256,
+                new ApiResolver(apiCache, apiContextIndex, "/capi"),
+                new NettyUpstreamPool(10, 60000),
+                capiDnsResolver,
+                SslContextBuilder.forClient().build(),
+                new NettyWebSocketTunnels(1000, 1000, meterRegistry),
+                new NettyGrpcConnectionPool(SslContextBuilder.forClient().build()),
+                meterRegistry);
+        nettyProxyServer.start();
+    }
+
+    @AfterEach
+    void stop() throws IOException {
+        nettyProxyServer.stop();
+        deployedNode.stop();
+        staleNode.close();
+        capiDnsResolver.shutdown();
+    }
+
+    @Test
+    void testPostBodyIsProxied() throws IOException {
+        deploy("posts", false, -1, mapping("localhost", deployedNode.port()));
+        byte[] body = new byte[200 * 1024];
+        for(int i = 0; i < body.length; i++) {
+            body[i] = (byte) ('a' + i % 26);
+        }
+        try(Socket socket = connect()) {
+            // sent chunked, the body goes upstream while it is still arriving
+            write(socket, "POST /capi/posts/echo HTTP/1.1\r\nHost: localhost\r\nTransfer-Encoding: chunked\r\n\r\n");
+            for(int offset = 0; offset < body.length; offset += 16 * 1024) {
+                int chunkLength = Math.min(16 * 1024, body.length - offset);
+                write(socket, Integer.toHexString(chunkLength) + "\r\n");
+                socket.getOutputStream().write(body, offset, chunkLength);
+                write(socket, "\r\n");
+            }
+            write(socket, "0\r\n\r\n");
+            Assertions.assertEquals(200, readResponse(socket).status);
+        }
+        deployedNode.verify(postRequestedFor(urlEqualTo("/echo")).withRequestBody(equalTo(new String(body, StandardCharsets.US_ASCII))));
+    }
+
+    @Test
+    void testHopByHopHeadersAreRemovedAndForwardedHeadersAdded() throws IOException {
+        deploy("headers", false, -1, mapping("localhost", deployedNode.port()));
+        try(Socket socket = connect()) {
+            write(socket, "GET /capi/headers/node HTTP/1.1\r\nHost: gateway.example\r\nConnection: keep-alive, X-Hop\r\nX-Hop: secret\r\n"
+                    + "Proxy-Authorization: Basic dGVzdA==\r\nTE: trailers\r\nX-Forwarded-For: 10.0.0.1\r\n\r\n");
+            Response response = readResponse(socket);
+            Assertions.assertEquals(200, response.status);
+            Assertions.assertFalse(response.headers.toLowerCase().contains("keep-alive: timeout"));
+        }
+        deployedNode.verify(getRequestedFor(urlEqualTo("/node"))
+                .withHeader("X-Hop", absent())
+                .withHeader("Proxy-Authorization", absent())
+                .withHeader("TE", absent())
+                .withHeader("X-Forwarded-For", equalTo("10.0.0.1, 127.0.0.1"))
+                .withHeader("X-Forwarded-Host", equalTo("gateway.example"))
+                .withHeader("X-Forwarded-Proto", equalTo("http"))
+                .withHeader("Host", equalTo("localhost")));
+    }
+
+    @Test
+    void testFailoverToNextMapping() throws IOException {
+        int deadPort;
+        try(ServerSocket serverSocket = new ServerSocket(0)) {
+            deadPort = serverSocket.getLocalPort();
+        }
+        // round robin starts on the first mapping, the dead one
+        deploy("failover", true, -1, mapping("127.0.0.1", deadPort), mapping("localhost", deployedNode.port()));
+        try(Socket socket = connect()) {
+            for(int i = 0; i < 4; i++) {
+                write(socket, "GET /capi/failover/node HTTP/1.1\r\nHost: localhost\r\n\r\n");
+                Response response = readResponse(socket);
+                Assertions.assertEquals(200, response.status);
+                Assertions.assertEquals(NODE_RESPONSE, response.body);
+            }
+        }
+    }
+
+    @Test
+    void testUpstreamTimeoutKeepsTheConnection() throws IOException {
+        deploy("timeout", false, 300, mapping("localhost", deployedNode.port()));
+        try(Socket socket = connect()) {
+            write(socket, "GET /capi/timeout/slow HTTP/1.1\r\nHost: localhost\r\n\r\n");
+            Assertions.assertEquals(504, readResponse(socket).status);
+            // the same downstream connection carries on after the error
+            write(socket, "GET /capi/timeout/node HTTP/1.1\r\nHost: localhost\r\n\r\n");
+            Response response = readResponse(socket);
+            Assertions.assertEquals(200, response.status);
+            Assertions.assertEquals(NODE_RESPONSE, response.body);
+        }
+    }
+
+    @Test
+    void testBadGatewayKeepsTheConnection() throws IOException {
+        int deadPort;
+        try(ServerSocket serverSocket = new ServerSocket(0)) {
+            deadPort = serverSocket.getLocalPort();
+        }
+        deploy("dead", false, -1, mapping("127.0.0.1", deadPort));
+        deploy("alive", false, -1, mapping("localhost", deployedNode.port()));
+        try(Socket socket = connect()) {
+            write(socket, "GET /capi/dead/node HTTP/1.1\r\nHost: localhost\r\n\r\n");
+            Assertions.assertEquals(502, readResponse(socket).status);
+            write(socket, "GET /capi/alive/node HTTP/1.1\r\nHost: localhost\r\n\r\n");
+            Assertions.assertEquals(200, readResponse(socket).status);
+        }
+    }
+
+    @Test
+    void testStalePooledConnectionIsRetried() throws IOException {
+        deploy("stale", false, -1, mapping("localhost", staleNode.getLocalPort()));
+        try(Socket socket = connect()) {
+            for(int i = 0; i < 3; i++) {
+                write(socket, "GET /capi/stale/node HTTP/1.1\r\nHost: localhost\r\n\r\n");
+                Response response = readResponse(socket);
+                Assertions.assertEquals(200, response.status);
+                Assertions.assertEquals(NODE_RESPONSE, response.body);
+            }
+        }
+        // every pooled connection was stale, each request after the first needed a new one
+        Assertions.assertEquals(3, staleNodeConnections.get());
+    }
+
+    /**
+     * Answers the first request of a connection and closes it on the second one, like a node whose keep-alive timeout
+     * expired just as the proxy reused the connection.
+     */
+    private void startStaleNode() throws IOException {
+        staleNode = new ServerSocket(0);
+        Thread acceptor = new Thread(() -> {
+            while(!staleNode.isClosed()) {
+                try {
+                    Socket socket = staleNode.accept();
+                    staleNodeConnections.incrementAndGet();
+                    Thread connection = new Thread(() -> {
+                        try(socket) {
+                            readHead(socket.getInputStream());
+                            write(socket, "HTTP/1.1 200 OK\r\nContent-Length: " + NODE_RESPONSE.length() + "\r\n\r\n" + NODE_RESPONSE);
+                            readHead(socket.getInputStream());
+                        } catch(IOException e) {
+                            // closed by the test
+                        }
+                    });
+                    connection.setDaemon(true);
+                    connection.start();
+                } catch(IOException e) {
+                    return;
+                }
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    private void deploy(String context, boolean failover, int socketTimeout, Mapping... mappings) {
+        Api api = new Api();
+        api.setId("unit-test-" + context);
+        api.setName("unit-test-" + context);
+        api.setContext("/" + context);
+        api.setMappingList(List.of(mappings));
+        api.setHttpMethod(HttpMethod.ALL);
+        api.setHttpProtocol(HttpProtocol.HTTP);
+        api.setFailoverEnabled(failover);
+        api.setSocketTimeout(socketTimeout);
+        apiCache.put(api.getId(), api);
+    }
+
+    private Mapping mapping(String hostname, int port) {
+        Mapping mapping = new Mapping();
+        mapping.setHostname(hostname);
+        mapping.setPort(port);
+        mapping.setRootContext("/");
+        return mapping;
+    }
+
+    private Socket connect() throws IOException {
+        Socket socket = new Socket("127.0.0.1", nettyProxyServer.getPort());
+        socket.setSoTimeout(10000);
+        return socket;
+    }
+
+    private static void write(Socket socket, String data) throws IOException {
+        OutputStream os = socket.getOutputStream();
+        os.write(data.getBytes(StandardCharsets.US_ASCII));
+        os.flush();
+    }
+
+    private static String readHead(InputStream is) throws IOException {
+        ByteArrayOutputStream head = new ByteArrayOutputStream();
+        int matched = 0;
+        while(matched < 4) {
+            int read = is.read();
+            if(read == -1) {
+                throw new IOException("Connection closed");
+            }
+            head.write(read);
+            matched = (read == '\r' && matched % 2 == 0) || (read == '\n' && matched % 2 == 1) ? matched + 1 : 0;
+        }
+        return head.toString(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Reads one response, the proxy always answers with a Content-Length or chunked body.
+     */
+    private static Response readResponse(Socket socket) throws IOException {
+        InputStream is = socket.getInputStream();
+        String head = readHead(is);
+        Response response = new Response();
+        response.status = Integer.parseInt(head.substring(9, 12));
+        response.headers = head;
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        String lowerCaseHead = head.toLowerCase();
+        int contentLengthIndex = lowerCaseHead.indexOf("content-length:");
+        if(contentLengthIndex > -1) {
+            int length = Integer.parseInt(lowerCaseHead.substring(contentLengthIndex + 15, lowerCaseHead.indexOf('\r', contentLengthIndex)).trim());
+            body.write(is.readNBytes(length));
+        } else if(lowerCaseHead.contains("transfer-encoding: chunked")) {
+            while(true) {
+                String sizeLine = readLine(is);
+                int size = Integer.parseInt(sizeLine.trim(), 16);
+                if(size == 0) {
+                    readLine(is);
+                    break;
+                }
+                body.write(is.readNBytes(size));
+                readLine(is);
+            }
+        }
+        response.body = body.toString(StandardCharsets.US_ASCII);
+        return response;
+    }
+
+    private static String readLine(InputStream is) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int read;
+        while((read = is.read()) != '\n') {
+            if(read == -1) {
+                throw new IOException("Connection closed");
+            }
+            if(read != '\r') {
+                line.append((char) read);
+            }
+        }
+        return line.toString();
+    }
+
+    private static class Response {
+        private int status;
+        private String headers;
+        private String body;
+    }
+}
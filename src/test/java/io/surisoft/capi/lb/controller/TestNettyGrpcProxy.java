@@ -0,0 +1,296 @@
+package io.surisoft.capi.lb.controller;
+
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http2.DefaultHttp2DataFrame;
+import io.netty.handler.codec.http2.DefaultHttp2Headers;
+import io.netty.handler.codec.http2.DefaultHttp2HeadersFrame;
+import io.netty.handler.codec.http2.Http2DataFrame;
+import io.netty.handler.codec.http2.Http2FrameCodecBuilder;
+import io.netty.handler.codec.http2.Http2Headers;
+import io.netty.handler.codec.http2.Http2HeadersFrame;
+import io.netty.handler.codec.http2.Http2MultiplexHandler;
+import io.netty.handler.codec.http2.Http2SettingsFrame;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.handler.codec.http2.Http2StreamChannelBootstrap;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.util.ReferenceCountUtil;
+import io.surisoft.capi.lb.cache.ApiContextIndex;
+import io.surisoft.capi.lb.cache.ApiResolver;
+import io.surisoft.capi.lb.netty.NettyGrpcConnectionPool;
+import io.surisoft.capi.lb.netty.NettyProxyServer;
+import io.surisoft.capi.lb.netty.NettyTransport;
+import io.surisoft.capi.lb.netty.NettyUpstreamPool;
+import io.surisoft.capi.lb.netty.NettyWebSocketTunnels;
+import io.surisoft.capi.lb.schema.Api;
+import io.surisoft.capi.lb.schema.HttpMethod;
+import io.surisoft.capi.lb.schema.HttpProtocol;
+import io.surisoft.capi.lb.schema.Mapping;
+import io.surisoft.capi.lb.service.CapiDnsResolver;
+import org.cache2k.Cache;
+import org.cache2k.Cache2kBuilder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * gRPC calls over an HTTP/2 prior knowledge connection to the Netty engine, proxied to a node that answers
+ * /test.Echo/Unary with the message it got and /test.Echo/Stream with three copies of every message, each call
+ * ending with trailers.
+ */
+class TestNettyGrpcProxy {
+
+    private static final int MAX_CONCURRENT_STREAMS = 8;
+
+    private final CompositeMeterRegistry meterRegistry = new CompositeMeterRegistry();
+    private final ApiContextIndex apiContextIndex = new ApiContextIndex();
+    private final Cache<String, Api> apiCache = apiContextIndex.listenTo(new Cache2kBuilder<String, Api>(){}).build();
+    private final CompletableFuture<Http2SettingsFrame> settings = new CompletableFuture<>();
+    private EventLoopGroup eventLoopGroup;
+    private NettyProxyServer nettyProxyServer;
+    private Channel connection;
+
+    @BeforeEach
+    void initialize() throws Exception {
+        meterRegistry.add(new SimpleMeterRegistry());
+        eventLoopGroup = new NioEventLoopGroup(2);
+        int nodePort = startNode();
+
+        Api api = new Api();
+        api.setId("grpc-test");
+        api.setContext("test.Echo");
+        api.setHttpMethod(HttpMethod.ALL);
+        api.setHttpProtocol(HttpProtocol.HTTP);
+        api.setRoundRobinEnabled(true);
+        api.setGrpcEnabled(true);
+        Mapping mapping = new Mapping();
+        mapping.setHostname("127.0.0.1");
+        mapping.setPort(nodePort);
+        mapping.setRootContext("/");
+        api.setMappingList(new ArrayList<>(List.of(mapping)));
+        apiCache.put(api.getId(), api);
+
+        nettyProxyServer = new NettyProxyServer(NettyTransport.select(NettyTransport.AUTO), 0, 2, 1, MAX_CONCURRENT_STREAMS,
+                new ApiResolver(apiCache, apiContextIndex, "/capi"),
+                new NettyUpstreamPool(50, 60000),
+                new CapiDnsResolver(60000, 2000, meterRegistry),
+                SslContextBuilder.forClient().build(),
+                new NettyWebSocketTunnels(1000, 1000, meterRegistry),
+                new NettyGrpcConnectionPool(SslContextBuilder.forClient().build()),
+                meterRegistry);
+        nettyProxyServer.start();
+
+        connection = new Bootstrap()
+                .group(eventLoopGroup)
+                .channel(NioSocketChannel.class)
+                .handler(new ChannelInitializer<>() {
+                    @Override
+                    protected void initChannel(Channel channel) {
+                        channel.pipeline()
+                                .addLast(Http2FrameCodecBuilder.forClient().build())
+                                .addLast(new Http2MultiplexHandler(new ChannelInboundHandlerAdapter()))
+                                .addLast(new ChannelInboundHandlerAdapter() {
+                                    @Override
+                                    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+                                        if(msg instanceof Http2SettingsFrame) {
+                                            settings.complete((Http2SettingsFrame) msg);
+                                        }
+                                        ReferenceCountUtil.release(msg);
+                                    }
+                                });
+                    }
+                })
+                .connect("127.0.0.1", nettyProxyServer.getPort()).sync().channel();
+        // the connection preface goes out with the first flush
+        connection.flush();
+    }
+
+    @AfterEach
+    void stop() {
+        connection.close().syncUninterruptibly();
+        nettyProxyServer.stop();
+        eventLoopGroup.shutdownGracefully(0, 5, TimeUnit.SECONDS).syncUninterruptibly();
+    }
+
+    @Test
+    void testUnaryCall() throws Exception {
+        Call call = call("/test.Echo/Unary", "hello");
+        Assertions.assertEquals("200", call.headers.status().toString());
+        Assertions.assertEquals(List.of("hello"), call.messages);
+        Assertions.assertEquals("0", call.trailers.get("grpc-status").toString());
+        Assertions.assertEquals(1, meterRegistry.get("capi.grpc.request").tag("api", "grpc-test").tag("method", "test.Echo/Unary").tag("status", "0").timer().count());
+    }
+
+    @Test
+    void testStreamingCallKeepsTheTrailers() throws Exception {
+        Call call = call("/test.Echo/Stream", "one", "two");
+        Assertions.assertEquals("200", call.headers.status().toString());
+        Assertions.assertEquals(List.of("one", "one", "one", "two", "two", "two"), call.messages);
+        Assertions.assertEquals("0", call.trailers.get("grpc-status").toString());
+        Assertions.assertEquals("6", call.trailers.get("x-messages-sent").toString());
+    }
+
+    @Test
+    void testUnknownServiceIsUnimplemented() throws Exception {
+        Call call = call("/test.Missing/Unary", "hello");
+        Assertions.assertNull(call.headers);
+        Assertions.assertEquals("12", call.trailers.get("grpc-status").toString());
+    }
+
+    @Test
+    void testMaxConcurrentStreamsIsAnnounced() throws Exception {
+        Assertions.assertEquals(MAX_CONCURRENT_STREAMS, settings.get(10, TimeUnit.SECONDS).settings().maxConcurrentStreams());
+    }
+
+    @Test
+    void testMethodTagIsBounded() throws Exception {
+        for(int i = 0; i < 120; i++) {
+            Assertions.assertEquals("0", call("/test.Echo/Method" + i, "hello").trailers.get("grpc-status").toString());
+        }
+        Set<String> methods = meterRegistry.find("capi.grpc.request").tag("api", "grpc-test").timers().stream()
+                .map(timer -> timer.getId().getTag("method"))
+                .collect(Collectors.toSet());
+        Assertions.assertEquals(101, methods.size());
+        Assertions.assertTrue(methods.contains("other"));
+        Assertions.assertEquals(20, meterRegistry.get("capi.grpc.request").tag("api", "grpc-test").tag("method", "other").timer().count());
+    }
+
+    private Call call(String path, String... messages) throws Exception {
+        BlockingQueue<Object> frames = new LinkedBlockingQueue<>();
+        Http2StreamChannel stream = new Http2StreamChannelBootstrap(connection)
+                .handler(new ChannelInboundHandlerAdapter() {
+                    @Override
+                    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+                        frames.add(msg);
+                    }
+                })
+                .open().sync().getNow();
+        Http2Headers headers = new DefaultHttp2Headers()
+                .method("POST")
+                .scheme("http")
+                .authority("localhost")
+                .path(path)
+                .set("content-type", "application/grpc")
+                .set("te", "trailers");
+        stream.write(new DefaultHttp2HeadersFrame(headers));
+        for(int i = 0; i < messages.length; i++) {
+            stream.write(new DefaultHttp2DataFrame(message(messages[i]), i == messages.length - 1));
+        }
+        stream.flush();
+
+        Call call = new Call();
+        ByteBuf data = Unpooled.buffer();
+        while(call.trailers == null) {
+            Object frame = frames.poll(10, TimeUnit.SECONDS);
+            Assertions.assertNotNull(frame, "no end of stream");
+            if(frame instanceof Http2HeadersFrame) {
+                Http2HeadersFrame headersFrame = (Http2HeadersFrame) frame;
+                if(headersFrame.isEndStream()) {
+                    call.trailers = headersFrame.headers();
+                } else {
+                    call.headers = headersFrame.headers();
+                }
+            } else if(frame instanceof Http2DataFrame) {
+                data.writeBytes(((Http2DataFrame) frame).content());
+            }
+            ReferenceCountUtil.release(frame);
+        }
+        // gRPC messages are length prefixed, the proxy may split or join the data frames carrying them
+        while(data.isReadable()) {
+            data.skipBytes(1);
+            call.messages.add(data.readCharSequence(data.readInt(), StandardCharsets.UTF_8).toString());
+        }
+        stream.close();
+        return call;
+    }
+
+    private static ByteBuf message(String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        return Unpooled.buffer().writeByte(0).writeInt(bytes.length).writeBytes(bytes);
+    }
+
+    private int startNode() throws InterruptedException {
+        Channel channel = new ServerBootstrap()
+                .group(eventLoopGroup)
+                .channel(NioServerSocketChannel.class)
+                .childHandler(new ChannelInitializer<>() {
+                    @Override
+                    protected void initChannel(Channel channel) {
+                        channel.pipeline()
+                                .addLast(Http2FrameCodecBuilder.forServer().build())
+                                .addLast(new Http2MultiplexHandler(new ChannelInitializer<Http2StreamChannel>() {
+                                    @Override
+                                    protected void initChannel(Http2StreamChannel streamChannel) {
+                                        streamChannel.pipeline().addLast(new GrpcNodeHandler());
+                                    }
+                                }));
+                    }
+                })
+                .bind("127.0.0.1", 0).sync().channel();
+        return ((InetSocketAddress) channel.localAddress()).getPort();
+    }
+
+    private static class Call {
+        private Http2Headers headers;
+        private Http2Headers trailers;
+        private final List<String> messages = new ArrayList<>();
+    }
+
+    /**
+     * Answers once the whole request is in, the data frames may carry the messages joined or split.
+     */
+    private static class GrpcNodeHandler extends ChannelInboundHandlerAdapter {
+
+        private final ByteBuf request = Unpooled.buffer();
+        private int copies = 1;
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            if(msg instanceof Http2HeadersFrame) {
+                copies = ((Http2HeadersFrame) msg).headers().path().toString().endsWith("/Stream") ? 3 : 1;
+                ctx.writeAndFlush(new DefaultHttp2HeadersFrame(new DefaultHttp2Headers().status("200").set("content-type", "application/grpc")));
+            } else if(msg instanceof Http2DataFrame) {
+                Http2DataFrame dataFrame = (Http2DataFrame) msg;
+                request.writeBytes(dataFrame.content());
+                if(dataFrame.isEndStream()) {
+                    int sent = 0;
+                    while(request.isReadable()) {
+                        ByteBuf message = request.readSlice(5 + request.getInt(request.readerIndex() + 1));
+                        for(int i = 0; i < copies; i++) {
+                            ctx.write(new DefaultHttp2DataFrame(message.copy()));
+                            sent++;
+                        }
+                    }
+                    ctx.writeAndFlush(new DefaultHttp2HeadersFrame(new DefaultHttp2Headers()
+                            .set("grpc-status", "0")
+                            .set("x-messages-sent", String.valueOf(sent)), true));
+                }
+            }
+            ReferenceCountUtil.release(msg);
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package io.surisoft.capi.lb.controller;
+
+import com.github.tomakehurst.wiremock.WireMockServer;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.surisoft.capi.lb.cache.ApiContextIndex;
+import io.surisoft.capi.lb.cache.ApiResolver;
+import io.surisoft.capi.lb.netty.NettyGrpcConnectionPool;
+import io.surisoft.capi.lb.netty.NettyProxyServer;
+import io.surisoft.capi.lb.netty.NettyTransport;
+import io.surisoft.capi.lb.netty.NettyUpstreamPool;
+import io.surisoft.capi.lb.netty.NettyWebSocketTunnels;
+import io.surisoft.capi.lb.schema.Api;
+import io.surisoft.capi.lb.service.CapiDnsResolver;
+import io.surisoft.capi.lb.service.CapiTlsSessionManager;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.cache2k.Cache;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.web.server.LocalServerPort;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.web.context.WebApplicationContext;
+
+import javax.net.ssl.SSLException;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+@ExtendWith(SpringExtension.class)
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+@TestPropertySource(
+      locations = "classpath:test-persistence-application.properties"
+)
+class TestNettyProxyServer {
+
+    private static final Logger log = LoggerFactory.getLogger(TestNettyProxyServer.class);
+
+    private static final String THE_NETTY_API = """
+            {
+                 "name": "unit-test-netty-api",
+                 "context": "netty-test",
+                 "mappingList": [
+                        {
+                            "hostname": "localhost",
+                            "port": 8883,
+                            "rootContext": "/",
+                            "ingress": false
+                        }
+                 ],
+                 "roundRobinEnabled": true,
+                 "failoverEnabled": true,
+                 "matchOnUriPrefix": true,
+                 "httpMethod": "ALL",
+                 "httpProtocol": "HTTP",
+                 "removeMe": false
+            }""";
+
+    private static final String NODE_RESPONSE = "OK NETTY NODE";
+
+    @Autowired
+    private WebApplicationContext webApplicationContext;
+
+    @Autowired
+    private Cache<String, Api> apiCache;
+
+    @Autowired
+    private ApiContextIndex apiContextIndex;
+
+    @Autowired
+    private CapiDnsResolver capiDnsResolver;
+
+    @Autowired
+    private CapiTlsSessionManager capiTlsSessionManager;
+
+    @Autowired
+    private CompositeMeterRegistry meterRegistry;
+
+    @LocalServerPort
+    private int servletPort;
+
+    private WireMockServer deployedNode;
+    private NettyProxyServer nettyProxyServer;
+    private CloseableHttpClient httpClient;
+
+    @BeforeEach
+    public void initialize() throws Exception {
+        deployedNode = new WireMockServer(8883);
+        deployedNode.start();
+        deployedNode.stubFor(get(urlEqualTo("/node")).willReturn(aResponse().withBody(NODE_RESPONSE)));
+
+        MockMvc mockMvc = MockMvcBuilders.webAppContextSetup(webApplicationContext).build();
+        mockMvc.perform(MockMvcRequestBuilders.post("/manager/api/register/node").content(THE_NETTY_API)
+                        .contentType(MediaType.APPLICATION_JSON_VALUE)
+                        .accept(MediaType.APPLICATION_JSON_VALUE))
+                .andExpect(status().isOk());
+
+        // deployed by the database inspection timer, the engine resolves it from the index once it is in the cache
+        long deadline = System.currentTimeMillis() + 30000;
+        while(apiContextIndex.find("/netty-test").isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+        Assertions.assertFalse(apiContextIndex.find("/netty-test").isEmpty());
+
+        nettyProxyServer = newNettyProxyServer(2);
+        nettyProxyServer.start();
+        httpClient = HttpClients.custom().setMaxConnTotal(100).setMaxConnPerRoute(100).build();
+    }
+
+    private NettyProxyServer newNettyProxyServer(int acceptors) throws SSLException {
+        return new NettyProxyServer(NettyTransport.select(NettyTransport.AUTO),
+                0,
+                4,
+                acceptors,
+                256,
+                new ApiResolver(apiCache, apiContextIndex, "/capi"),
+                new NettyUpstreamPool(50, 60000),
+                capiDnsResolver,
+                SslContextBuilder.forClient().trustManager(capiTlsSessionManager.getTrustManager()).build(),
+                new NettyWebSocketTunnels(1000, 1000, meterRegistry),
+                new NettyGrpcConnectionPool(SslContextBuilder.forClient().trustManager(capiTlsSessionManager.getTrustManager()).build()),
+                meterRegistry);
+    }
+
+    @AfterEach
+    public void stop() throws IOException {
+        httpClient.close();
+        nettyProxyServer.stop();
+        deployedNode.stop();
+    }
+
+    @Test
+    void testProxyThroughNettyEngine() throws IOException {
+        String endpoint = "http://localhost:" + nettyProxyServer.getPort() + "/capi/netty-test/node";
+        Assertions.assertEquals(NODE_RESPONSE, getBody(endpoint));
+        // the downstream and upstream connections are both reused
+        Assertions.assertEquals(NODE_RESPONSE, getBody(endpoint));
+
+        try(CloseableHttpResponse response = httpClient.execute(new HttpGet("http://localhost:" + nettyProxyServer.getPort() + "/capi/not-deployed/node"))) {
+            Assertions.assertEquals(404, response.getStatusLine().getStatusCode());
+            EntityUtils.consume(response.getEntity());
+        }
+    }
+
+    /**
+     * Run with -Dcapi.benchmark=true, compares the Netty engine with the servlet routes on the same Api and node.
+     */
+    @Test
+    @EnabledIfSystemProperty(named = "capi.benchmark", matches = "true")
+    void benchmarkNettyEngineAgainstServlet() throws Exception {
+        String nettyEndpoint = "http://localhost:" + nettyProxyServer.getPort() + "/capi/netty-test/node";
+        String servletEndpoint = "http://localhost:" + servletPort + "/capi/netty-test/node";
+        run(nettyEndpoint, 2000, 8);
+        run(servletEndpoint, 2000, 8);
+        for(int round = 0; round < 3; round++) {
+            report("netty  ", nettyEndpoint);
+            report("servlet", servletEndpoint);
+        }
+    }
+
+    /**
+     * Run with -Dcapi.benchmark=true, every request opens a new connection so the accept path is what gets measured.
+     */
+    @Test
+    @EnabledIfSystemProperty(named = "capi.benchmark", matches = "true")
+    void benchmarkConnectionRateWithReusePort() throws Exception {
+        for(int acceptors : new int[] {1, 4}) {
+            NettyProxyServer server = newNettyProxyServer(acceptors);
+            server.start();
+            try {
+                connect(server.getPort(), 2000, 64);
+                for(int round = 0; round < 3; round++) {
+                    int connections = 20000;
+                    long start = System.nanoTime();
+                    connect(server.getPort(), connections, 64);
+                    log.info("{} acceptors: {} connections per second", acceptors, connections * 1_000_000_000L / (System.nanoTime() - start));
+                }
+            } finally {
+                server.stop();
+            }
+        }
+    }
+
+    private void connect(int port, int connections, int clients) throws Exception {
+        byte[] request = "GET /capi/not-deployed HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+        Thread[] threads = new Thread[clients];
+        for(int i = 0; i < clients; i++) {
+            threads[i] = new Thread(() -> {
+                for(int j = 0; j < connections / clients; j++) {
+                    try(Socket socket = new Socket("localhost", port)) {
+                        socket.getOutputStream().write(request);
+                        socket.getInputStream().readAllBytes();
+                    } catch(IOException e) {
+                        log.warn(e.getMessage());
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for(Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    private void report(String name, String endpoint) throws Exception {
+        int requests = 10000;
+        int clients = 32;
+        long start = System.nanoTime();
+        run(endpoint, requests, clients);
+        long elapsed = System.nanoTime() - start;
+        log.info("{}: {} requests per second with {} clients", name, requests * 1_000_000_000L / elapsed, clients);
+    }
+
+    private void run(String endpoint, int requests, int clients) throws Exception {
+        Thread[] threads = new Thread[clients];
+        for(int i = 0; i < clients; i++) {
+            threads[i] = new Thread(() -> {
+                try {
+                    for(int j = 0; j < requests / clients; j++) {
+                        getBody(endpoint);
+                    }
+                } catch(IOException e) {
+                    log.warn(e.getMessage());
+                }
+            });
+            threads[i].start();
+        }
+        for(Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    private String getBody(String endpoint) throws IOException {
+        try(CloseableHttpResponse response = httpClient.execute(new HttpGet(endpoint))) {
+            return EntityUtils.toString(response.getEntity());
+        }
+    }
+}
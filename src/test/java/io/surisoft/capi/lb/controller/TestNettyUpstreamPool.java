@@ -0,0 +1,63 @@
+package io.surisoft.capi.lb.controller;
+
+import io.netty.channel.Channel;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.surisoft.capi.lb.netty.NettyUpstreamPool;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+class TestNettyUpstreamPool {
+
+    private static final String DESTINATION = "http://upstream.local:8080";
+    private static final String OTHER_DESTINATION = "https://other.local:443";
+
+    @Test
+    void testIdleConnectionIsReused() {
+        NettyUpstreamPool upstreamPool = new NettyUpstreamPool(10, 60000);
+        Channel channel = new EmbeddedChannel();
+        upstreamPool.offer(DESTINATION, channel);
+        Assertions.assertSame(channel, upstreamPool.poll(DESTINATION));
+        Assertions.assertNull(upstreamPool.poll(DESTINATION));
+    }
+
+    @Test
+    void testExpiredConnectionsAreEvicted() throws Exception {
+        NettyUpstreamPool upstreamPool = new NettyUpstreamPool(10, 50);
+        Channel firstChannel = new EmbeddedChannel();
+        Channel secondChannel = new EmbeddedChannel();
+        upstreamPool.offer(DESTINATION, firstChannel);
+        upstreamPool.offer(DESTINATION, secondChannel);
+        Thread.sleep(100);
+
+        upstreamPool.evictIdle();
+        Assertions.assertFalse(firstChannel.isActive());
+        Assertions.assertFalse(secondChannel.isActive());
+        Assertions.assertNull(upstreamPool.poll(DESTINATION));
+    }
+
+    @Test
+    void testExpiredConnectionIsNotReused() throws Exception {
+        NettyUpstreamPool upstreamPool = new NettyUpstreamPool(10, 50);
+        Channel channel = new EmbeddedChannel();
+        upstreamPool.offer(DESTINATION, channel);
+        Thread.sleep(100);
+
+        Assertions.assertNull(upstreamPool.poll(DESTINATION));
+        Assertions.assertFalse(channel.isActive());
+    }
+
+    @Test
+    void testAddressChangeClosesTheConnectionsOfTheHost() {
+        NettyUpstreamPool upstreamPool = new NettyUpstreamPool(10, 60000);
+        Channel channel = new EmbeddedChannel();
+        Channel otherChannel = new EmbeddedChannel();
+        upstreamPool.offer(DESTINATION, channel);
+        upstreamPool.offer(OTHER_DESTINATION, otherChannel);
+
+        upstreamPool.closeIdle("upstream.local");
+        Assertions.assertFalse(channel.isActive());
+        Assertions.assertNull(upstreamPool.poll(DESTINATION));
+        Assertions.assertTrue(otherChannel.isActive());
+        Assertions.assertSame(otherChannel, upstreamPool.poll(OTHER_DESTINATION));
+    }
+}
@@ -0,0 +1,298 @@
+package io.surisoft.capi.lb.controller;
+
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrameAggregator;
+import io.netty.handler.codec.http.websocketx.WebSocketServerProtocolHandler;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.surisoft.capi.lb.cache.ApiContextIndex;
+import io.surisoft.capi.lb.cache.ApiResolver;
+import io.surisoft.capi.lb.netty.NettyGrpcConnectionPool;
+import io.surisoft.capi.lb.netty.NettyProxyServer;
+import io.surisoft.capi.lb.netty.NettyTransport;
+import io.surisoft.capi.lb.netty.NettyUpstreamPool;
+import io.surisoft.capi.lb.netty.NettyWebSocketTunnels;
+import io.surisoft.capi.lb.schema.Api;
+import io.surisoft.capi.lb.schema.HttpMethod;
+import io.surisoft.capi.lb.schema.HttpProtocol;
+import io.surisoft.capi.lb.schema.Mapping;
+import io.surisoft.capi.lb.service.CapiDnsResolver;
+import org.cache2k.Cache;
+import org.cache2k.Cache2kBuilder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.WebSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntSupplier;
+
+/**
+ * WebSocket connections through the Netty engine to WebSocket nodes that answer every text message with their name.
+ */
+class TestNettyWebSocketTunnels {
+
+    private final CompositeMeterRegistry meterRegistry = new CompositeMeterRegistry();
+    private final ApiContextIndex apiContextIndex = new ApiContextIndex();
+    private final Cache<String, Api> apiCache = apiContextIndex.listenTo(new Cache2kBuilder<String, Api>(){}).build();
+    private final HttpClient httpClient = HttpClient.newHttpClient();
+    private final List<WebSocketNode> nodes = new ArrayList<>();
+    private final List<WebSocket> webSockets = new ArrayList<>();
+    private EventLoopGroup nodeEventLoopGroup;
+    private NettyWebSocketTunnels webSocketTunnels;
+    private NettyProxyServer nettyProxyServer;
+
+    @BeforeEach
+    void initialize() throws Exception {
+        meterRegistry.add(new SimpleMeterRegistry());
+        nodeEventLoopGroup = new NioEventLoopGroup(2);
+        nodes.add(new WebSocketNode("node-a"));
+        nodes.add(new WebSocketNode("node-b"));
+
+        Api api = new Api();
+        api.setId("ws-test");
+        api.setContext("ws-test");
+        api.setHttpMethod(HttpMethod.ALL);
+        api.setHttpProtocol(HttpProtocol.HTTP);
+        api.setRoundRobinEnabled(true);
+        api.setWebsocketEnabled(true);
+        api.setMappingList(new ArrayList<>());
+        for(WebSocketNode node : nodes) {
+            api.getMappingList().add(newMapping(node.port));
+        }
+        apiCache.put(api.getId(), api);
+
+        webSocketTunnels = new NettyWebSocketTunnels(1000, 100, meterRegistry);
+        nettyProxyServer = new NettyProxyServer(NettyTransport.select(NettyTransport.AUTO), 0, 2, 1, 256,
+                new ApiResolver(apiCache, apiContextIndex, "/capi"),
+                new NettyUpstreamPool(50, 60000),
+                new CapiDnsResolver(60000, 2000, meterRegistry),
+                SslContextBuilder.forClient().build(),
+                webSocketTunnels,
+                new NettyGrpcConnectionPool(SslContextBuilder.forClient().build()),
+                meterRegistry);
+        nettyProxyServer.start();
+    }
+
+    @AfterEach
+    void stop() {
+        webSockets.forEach(WebSocket::abort);
+        nettyProxyServer.stop();
+        nodeEventLoopGroup.shutdownGracefully(0, 5, TimeUnit.SECONDS).syncUninterruptibly();
+    }
+
+    @Test
+    void testMessagesAreTunnelledBothWays() throws Exception {
+        Client client = connect();
+        String node = client.echo("hello");
+        Assertions.assertTrue(node.startsWith("node-"), node);
+        // the client sends it as fragments, bigger than a read, relayed over several buffers
+        String big = "x".repeat(200 * 1024);
+        Assertions.assertEquals(node + ": " + big, client.send(big));
+
+        Assertions.assertEquals(1, webSocketTunnels.getActive());
+        Assertions.assertEquals(1, meterRegistry.get("capi.websocket.connections").tag("api", "ws-test").counter().count());
+        Assertions.assertTrue(meterRegistry.get("capi.websocket.bytes").tag("api", "ws-test").tag("direction", "upstream").counter().count() > big.length());
+        Assertions.assertTrue(meterRegistry.get("capi.websocket.bytes").tag("api", "ws-test").tag("direction", "downstream").counter().count() > big.length());
+
+        client.webSocket.sendClose(WebSocket.NORMAL_CLOSURE, "").get(10, TimeUnit.SECONDS);
+        awaitValue(webSocketTunnels::getActive, 0);
+    }
+
+    @Test
+    void testNewConnectionsGoToTheLeastActiveNode() throws Exception {
+        List<Client> clients = new ArrayList<>();
+        for(int i = 0; i < 4; i++) {
+            clients.add(connect());
+        }
+        Assertions.assertEquals(2, nodes.get(0).open.get());
+        Assertions.assertEquals(2, nodes.get(1).open.get());
+
+        for(Client client : clients) {
+            if(client.echo("ping").equals("node-a")) {
+                client.webSocket.sendClose(WebSocket.NORMAL_CLOSURE, "").get(10, TimeUnit.SECONDS);
+            }
+        }
+        awaitValue(webSocketTunnels::getActive, 2);
+
+        // round robin alone would send one of them to node-b
+        for(int i = 0; i < 2; i++) {
+            Assertions.assertEquals("node-a", connect().echo("ping"));
+        }
+        Assertions.assertEquals(2, nodes.get(0).open.get());
+        Assertions.assertEquals(2, nodes.get(1).open.get());
+    }
+
+    @Test
+    void testTunnelsToARemovedNodeAreDrained() throws Exception {
+        List<Client> clients = new ArrayList<>();
+        for(int i = 0; i < 2; i++) {
+            clients.add(connect());
+        }
+
+        // discovery drops node-a from the Api
+        Api api = apiCache.peek("ws-test");
+        Api updated = new Api();
+        updated.setId(api.getId());
+        updated.setContext(api.getContext());
+        updated.setHttpMethod(api.getHttpMethod());
+        updated.setHttpProtocol(api.getHttpProtocol());
+        updated.setRoundRobinEnabled(true);
+        updated.setWebsocketEnabled(true);
+        updated.setMappingList(new ArrayList<>(List.of(newMapping(nodes.get(1).port))));
+        apiCache.put(updated.getId(), updated);
+
+        for(Client client : clients) {
+            if(client.echo("ping").equals("node-a")) {
+                Assertions.assertEquals(1001, client.closeStatus.get(10, TimeUnit.SECONDS));
+            } else {
+                Assertions.assertFalse(client.closeStatus.isDone());
+            }
+        }
+        awaitValue(webSocketTunnels::getActive, 1);
+        awaitValue(nodes.get(0).open::get, 0);
+        Assertions.assertEquals(1, meterRegistry.get("capi.websocket.migrated").tag("api", "ws-test").counter().count());
+
+        // the client reconnects, to the node that is left
+        Assertions.assertEquals("node-b", connect().echo("ping"));
+    }
+
+    private Client connect() throws Exception {
+        Client client = new Client();
+        client.webSocket = httpClient.newWebSocketBuilder()
+                .buildAsync(URI.create("ws://127.0.0.1:" + nettyProxyServer.getPort() + "/capi/ws-test/echo"), client)
+                .get(10, TimeUnit.SECONDS);
+        webSockets.add(client.webSocket);
+        return client;
+    }
+
+    private Mapping newMapping(int port) {
+        Mapping mapping = new Mapping();
+        mapping.setHostname("127.0.0.1");
+        mapping.setPort(port);
+        mapping.setRootContext("/");
+        return mapping;
+    }
+
+    private static void awaitValue(IntSupplier value, int expected) throws InterruptedException {
+        for(int i = 0; i < 100 && value.getAsInt() != expected; i++) {
+            Thread.sleep(50);
+        }
+        Assertions.assertEquals(expected, value.getAsInt());
+    }
+
+    private static class Client implements WebSocket.Listener {
+
+        private final LinkedBlockingQueue<String> messages = new LinkedBlockingQueue<>();
+        private final CompletableFuture<Integer> closeStatus = new CompletableFuture<>();
+        private final StringBuilder message = new StringBuilder();
+        private WebSocket webSocket;
+
+        /**
+         * Returns the name of the node that answered.
+         */
+        String echo(String text) throws Exception {
+            String answer = send(text);
+            return answer.substring(0, answer.indexOf(':'));
+        }
+
+        String send(String text) throws Exception {
+            webSocket.sendText(text, true).get(10, TimeUnit.SECONDS);
+            String answer = messages.poll(10, TimeUnit.SECONDS);
+            Assertions.assertNotNull(answer);
+            return answer;
+        }
+
+        @Override
+        public CompletionStage<?> onText(WebSocket webSocket, CharSequence data, boolean last) {
+            message.append(data);
+            if(last) {
+                messages.add(message.toString());
+                message.setLength(0);
+            }
+            webSocket.request(1);
+            return null;
+        }
+
+        @Override
+        public CompletionStage<?> onClose(WebSocket webSocket, int statusCode, String reason) {
+            closeStatus.complete(statusCode);
+            return null;
+        }
+    }
+
+    private class WebSocketNode {
+
+        private final String name;
+        private final AtomicInteger open = new AtomicInteger();
+        private final int port;
+
+        private WebSocketNode(String name) throws InterruptedException {
+            this.name = name;
+            Channel channel = new ServerBootstrap()
+                    .group(nodeEventLoopGroup)
+                    .channel(NioServerSocketChannel.class)
+                    .childHandler(new ChannelInitializer<>() {
+                        @Override
+                        protected void initChannel(Channel channel) {
+                            channel.pipeline()
+                                    .addLast(new HttpServerCodec())
+                                    .addLast(new HttpObjectAggregator(65536))
+                                    .addLast(new WebSocketServerProtocolHandler("/echo", null, false, 1024 * 1024))
+                                    .addLast(new WebSocketFrameAggregator(1024 * 1024))
+                                    .addLast(new EchoHandler());
+                        }
+                    })
+                    .bind("127.0.0.1", 0).sync().channel();
+            this.port = ((InetSocketAddress) channel.localAddress()).getPort();
+        }
+
+        private class EchoHandler extends SimpleChannelInboundHandler<TextWebSocketFrame> {
+
+            private boolean upgraded;
+
+            @Override
+            public void userEventTriggered(ChannelHandlerContext ctx, Object evt) {
+                if(evt instanceof WebSocketServerProtocolHandler.HandshakeComplete) {
+                    upgraded = true;
+                    open.incrementAndGet();
+                }
+                ctx.fireUserEventTriggered(evt);
+            }
+
+            @Override
+            protected void channelRead0(ChannelHandlerContext ctx, TextWebSocketFrame frame) {
+                ctx.writeAndFlush(new TextWebSocketFrame(name + ": " + frame.text()));
+            }
+
+            @Override
+            public void channelInactive(ChannelHandlerContext ctx) {
+                if(upgraded) {
+                    open.decrementAndGet();
+                }
+                ctx.fireChannelInactive();
+            }
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package io.surisoft.capi.lb.controller;
+
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import io.surisoft.capi.lb.processor.MemoryBudget;
+import io.surisoft.capi.lb.processor.ReplayBufferPool;
+import io.surisoft.capi.lb.processor.ReplayableRequestBody;
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.support.DefaultExchange;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+@ExtendWith(SpringExtension.class)
+@SpringBootTest
+@TestPropertySource(
+      locations = "classpath:test-capi-configuration-application.properties"
+)
+class TestReplayableRequestBody {
+
+    @Autowired
+    CamelContext camelContext;
+
+    @Autowired
+    ReplayBufferPool replayBufferPool;
+
+    @Test
+    void testSmallBodyIsReplayed() throws Exception {
+        Exchange exchange = new DefaultExchange(camelContext);
+        exchange.getIn().setBody(new ByteArrayInputStream("unit-test-body".getBytes(StandardCharsets.UTF_8)));
+
+        ReplayableRequestBody requestBody = ReplayableRequestBody.capture(exchange, replayBufferPool);
+        Assertions.assertTrue(requestBody.isReplayable());
+        Assertions.assertEquals("unit-test-body", new String(exchange.getIn().getBody(InputStream.class).readAllBytes(), StandardCharsets.UTF_8));
+
+        requestBody.replay(exchange);
+        Assertions.assertEquals("unit-test-body", new String(exchange.getIn().getBody(InputStream.class).readAllBytes(), StandardCharsets.UTF_8));
+        requestBody.release();
+    }
+
+    @Test
+    void testBodilessRequestTakesNoBuffer() throws Exception {
+        MemoryBudget memoryBudget = new MemoryBudget(1024 * 1024, 0, 0, new CompositeMeterRegistry());
+        Exchange exchange = new DefaultExchange(camelContext);
+        exchange.getIn().setHeader(Exchange.HTTP_METHOD, "POST");
+        exchange.getIn().setHeader(Exchange.CONTENT_LENGTH, 0);
+        InputStream emptyBody = new ByteArrayInputStream(new byte[0]);
+        exchange.getIn().setBody(emptyBody);
+
+        ReplayableRequestBody requestBody = ReplayableRequestBody.capture(exchange, replayBufferPool, memoryBudget, "unit-test-api");
+        Assertions.assertTrue(requestBody.isReplayable());
+        Assertions.assertEquals(0, memoryBudget.getUsed());
+
+        // the reply of a failed node is replaced by the request body
+        exchange.getIn().setBody("unit-test-failed-reply");
+        requestBody.replay(exchange);
+        Assertions.assertSame(emptyBody, exchange.getIn().getBody());
+        requestBody.release();
+    }
+
+    @Test
+    void testLargeBodyIsNotReplayable() throws Exception {
+        byte[] largeBody = new byte[replayBufferPool.getMaxBodySize() * 2];
+        Exchange exchange = new DefaultExchange(camelContext);
+        exchange.getIn().setBody(new ByteArrayInputStream(largeBody));
+
+        ReplayableRequestBody requestBody = ReplayableRequestBody.capture(exchange, replayBufferPool);
+        Assertions.assertFalse(requestBody.isReplayable());
+        Assertions.assertEquals(largeBody.length, exchange.getIn().getBody(InputStream.class).readAllBytes().length);
+    }
+
+    @Test
+    void testBufferIsReused() throws Exception {
+        Exchange exchange = new DefaultExchange(camelContext);
+        exchange.getIn().setBody(new ByteArrayInputStream(new byte[16]));
+
+        ReplayableRequestBody requestBody = ReplayableRequestBody.capture(exchange, replayBufferPool);
+        int pooledBuffers = replayBufferPool.getPooledBufferCount();
+        requestBody.release();
+        Assertions.assertEquals(pooledBuffers + 1, replayBufferPool.getPooledBufferCount());
+    }
+}
@@ -0,0 +1,95 @@
+package io.surisoft.capi.lb.controller;
+
+import io.surisoft.capi.lb.processor.RequestBodySpool;
+import io.surisoft.capi.lb.processor.ResponseBufferingProcessor;
+import io.surisoft.capi.lb.processor.SpooledRequestBody;
+import io.surisoft.capi.lb.schema.Api;
+import io.surisoft.capi.lb.utils.Constants;
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.support.DefaultExchange;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+@ExtendWith(SpringExtension.class)
+@SpringBootTest
+@TestPropertySource(
+      locations = "classpath:test-capi-configuration-application.properties"
+)
+class TestRequestBodySpool {
+
+    @Autowired
+    RequestBodySpool requestBodySpool;
+
+    @Autowired
+    CamelContext camelContext;
+
+    @Test
+    void testSmallBodyStaysInMemory() throws Exception {
+        long memoryInUse = requestBodySpool.getMemoryInUse();
+        SpooledRequestBody spooledRequestBody = requestBodySpool.spool(new ByteArrayInputStream("unit-test-body".getBytes()), 32768);
+
+        Assertions.assertTrue(spooledRequestBody.inMemory());
+        Assertions.assertEquals("unit-test-body", new String(spooledRequestBody.readAllBytes()));
+        spooledRequestBody.release();
+        Assertions.assertEquals(memoryInUse, requestBodySpool.getMemoryInUse());
+    }
+
+    @Test
+    void testLargeBodyOverflowsAndIsReplayed() throws Exception {
+        byte[] largeBody = new byte[100000];
+        new Random().nextBytes(largeBody);
+        SpooledRequestBody spooledRequestBody = requestBodySpool.spool(new ByteArrayInputStream(largeBody), 32768);
+
+        Assertions.assertFalse(spooledRequestBody.inMemory());
+        Assertions.assertEquals(largeBody.length, spooledRequestBody.length());
+        Assertions.assertArrayEquals(largeBody, spooledRequestBody.readAllBytes());
+
+        spooledRequestBody.reset();
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        spooledRequestBody.writeTo(outputStream);
+        Assertions.assertArrayEquals(largeBody, outputStream.toByteArray());
+        spooledRequestBody.release();
+    }
+
+    @Test
+    void testCopyKeepsStorageUntilReleased() throws Exception {
+        long memoryInUse = requestBodySpool.getMemoryInUse();
+        SpooledRequestBody spooledRequestBody = requestBodySpool.spool(new ByteArrayInputStream("unit-test-body".getBytes()), 32768);
+        SpooledRequestBody copy = (SpooledRequestBody) spooledRequestBody.copy(null);
+
+        spooledRequestBody.release();
+        spooledRequestBody.release();
+        Assertions.assertTrue(requestBodySpool.getMemoryInUse() > memoryInUse);
+        Assertions.assertEquals("unit-test-body", new String(copy.readAllBytes()));
+
+        copy.release();
+        Assertions.assertEquals(memoryInUse, requestBodySpool.getMemoryInUse());
+    }
+
+    @Test
+    void testResponseIsBufferedAndConnectionReleased() throws Exception {
+        AtomicBoolean released = new AtomicBoolean();
+        Exchange exchange = new DefaultExchange(camelContext);
+        exchange.getMessage().setBody(new ByteArrayInputStream("unit-test-response".getBytes()));
+        exchange.setProperty(Constants.UPSTREAM_CONNECTION_RELEASE, (Runnable) () -> released.set(true));
+
+        new ResponseBufferingProcessor(requestBodySpool, new Api()).process(exchange);
+
+        Assertions.assertTrue(released.get());
+        SpooledRequestBody bufferedResponse = exchange.getMessage().getBody(SpooledRequestBody.class);
+        Assertions.assertNotNull(bufferedResponse);
+        Assertions.assertEquals("unit-test-response", new String(bufferedResponse.readAllBytes()));
+        bufferedResponse.release();
+    }
+}
@@ -69,6 +69,125 @@ class TestRouteUtils {
         }
     }
 
+    @Test
+    void testBuildHttp2Endpoints() {
+        Api api = new Api();
+        api.setName("test");
+        api.setHttpProtocol(HttpProtocol.HTTP);
+        List<Mapping> mappingList = new ArrayList<>();
+
+        Mapping mapping1 = new Mapping();
+        mapping1.setHostname("first.domain");
+        mapping1.setPort(8380);
+        mapping1.setRootContext("/");
+        mapping1.setHttp2Enabled(true);
+
+        Mapping mapping2 = new Mapping();
+        mapping2.setHostname("second.domain");
+        mapping2.setPort(8381);
+        mapping2.setRootContext("/");
+
+        mappingList.add(mapping1);
+        mappingList.add(mapping2);
+        api.setMappingList(mappingList);
+
+        String[] endpoints = routeUtils.buildEndpoints(api);
+        Assertions.assertTrue(endpoints[0].startsWith("h2c://first.domain:8380/?bridgeEndpoint=true"));
+        Assertions.assertTrue(endpoints[1].startsWith("http://second.domain:8381/?bridgeEndpoint=true"));
+
+        api.setHttpProtocol(HttpProtocol.HTTPS);
+        api.setHttp2Enabled(true);
+        endpoints = routeUtils.buildEndpoints(api);
+        Assertions.assertTrue(endpoints[1].startsWith("h2://second.domain:8381/"));
+    }
+
+    @Test
+    void testBuildExpandedEndpoints() {
+        Api api = new Api();
+        api.setName("test");
+        api.setHttpProtocol(HttpProtocol.HTTP);
+        List<Mapping> mappingList = new ArrayList<>();
+
+        Mapping mapping = new Mapping();
+        mapping.setHostname("localhost");
+        mapping.setPort(8380);
+        mapping.setRootContext("/");
+        mapping.setExpandAddresses(true);
+
+        mappingList.add(mapping);
+        api.setMappingList(mappingList);
+
+        String[] endpoints = routeUtils.buildEndpoints(api);
+        Assertions.assertTrue(endpoints.length > 0);
+        for(String endpoint : endpoints) {
+            Assertions.assertFalse(endpoint.startsWith("http://localhost"));
+            Assertions.assertTrue(endpoint.endsWith("customHostHeader=localhost"));
+        }
+    }
+
+    @Test
+    void testExpandedEndpointCheckResolvesCacheMisses() {
+        Api api = new Api();
+        api.setName("test");
+        api.setId("unit-test-expanded");
+        api.setHttpProtocol(HttpProtocol.HTTP);
+        List<Mapping> mappingList = new ArrayList<>();
+
+        // Apis deployed by other tests keep localhost pinned, this one needs a hostname of its own
+        Mapping mapping = new Mapping();
+        mapping.setHostname("LOCALHOST");
+        mapping.setPort(8380);
+        mapping.setRootContext("/");
+        mapping.setExpandAddresses(true);
+        mappingList.add(mapping);
+
+        Mapping unresolvedMapping = new Mapping();
+        unresolvedMapping.setHostname("unit-test.invalid");
+        unresolvedMapping.setPort(8380);
+        unresolvedMapping.setRootContext("/");
+        unresolvedMapping.setExpandAddresses(true);
+        mappingList.add(unresolvedMapping);
+        api.setMappingList(mappingList);
+
+        Assertions.assertFalse(routeUtils.isExpandedEndpointListChanged(api));
+        routeUtils.buildEndpoints(api);
+        Assertions.assertTrue(routeUtils.getCapiDnsResolver().isPinned("LOCALHOST"));
+        // the unresolvable hostname fails its lookup again and keeps what was deployed
+        Assertions.assertFalse(routeUtils.isExpandedEndpointListChanged(api));
+
+        // a hostname missing from the cache is resolved again, not taken as unchanged
+        routeUtils.getCapiDnsResolver().unpin(api.getId());
+        Assertions.assertNull(routeUtils.getCapiDnsResolver().getCachedAddresses("LOCALHOST"));
+        Assertions.assertFalse(routeUtils.isExpandedEndpointListChanged(api));
+        Assertions.assertNotNull(routeUtils.getCapiDnsResolver().getCachedAddresses("LOCALHOST"));
+        routeUtils.removeApiState(api.getId());
+    }
+
+    @Test
+    void testBuildEndpointsWithUnknownClientIdentity() {
+        Api api = new Api();
+        api.setName("test");
+        api.setHttpProtocol(HttpProtocol.HTTPS);
+        api.setClientIdentity("unknown-identity");
+        List<Mapping> mappingList = new ArrayList<>();
+
+        Mapping mapping = new Mapping();
+        mapping.setHostname("first.domain");
+        mapping.setPort(8380);
+        mapping.setRootContext("/");
+
+        mappingList.add(mapping);
+        api.setMappingList(mappingList);
+
+        String[] endpoints = routeUtils.buildEndpoints(api);
+        Assertions.assertFalse(endpoints[0].contains("clientConnectionManager"));
+
+        api.setHttp2Enabled(true);
+        endpoints = routeUtils.buildEndpoints(api);
+        Assertions.assertTrue(endpoints[0].startsWith("h2://"));
+        Assertions.assertFalse(endpoints[0].contains("clientIdentity"));
+    }
+
     @Test
     void testBuildFrom() {
         Api api = new Api();
@@ -0,0 +1,141 @@
+package io.surisoft.capi.lb.controller;
+
+import com.github.tomakehurst.wiremock.WireMockServer;
+import io.surisoft.capi.lb.cache.StickySessionCacheManager;
+import io.surisoft.capi.lb.processor.MetricsProcessor;
+import io.surisoft.capi.lb.schema.Api;
+import io.surisoft.capi.lb.schema.HttpMethod;
+import io.surisoft.capi.lb.schema.HttpProtocol;
+import io.surisoft.capi.lb.schema.Mapping;
+import io.surisoft.capi.lb.utils.ApiUtils;
+import io.surisoft.capi.lb.utils.RouteUtils;
+import org.apache.camel.CamelContext;
+import org.cache2k.Cache;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+
+/**
+ * The first node of a sticky Api fails, the request is sent again to the second node as it came in.
+ */
+@ExtendWith(SpringExtension.class)
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+@TestPropertySource(
+      locations = "classpath:test-persistence-application.properties"
+)
+class TestStickySessionFailover {
+
+    private static final String REQUEST_BODY = "{\"order\": \"unit-test-order\", \"quantity\": 3}";
+    private static final String NODE_RESPONSE = "OK STICKY NODE";
+
+    @Autowired
+    private ApiUtils apiUtils;
+
+    @Autowired
+    private Cache<String, Api> apiCache;
+
+    @Autowired
+    private RouteUtils routeUtils;
+
+    @Autowired
+    private MetricsProcessor metricsProcessor;
+
+    @Autowired
+    private StickySessionCacheManager stickySessionCacheManager;
+
+    @Autowired
+    private CamelContext camelContext;
+
+    @Autowired
+    private TestRestTemplate restTemplate;
+
+    private WireMockServer failingNode;
+    private WireMockServer workingNode;
+    private Api stickyApi;
+
+    @BeforeEach
+    public void initialize() throws Exception {
+        failingNode = new WireMockServer(8889);
+        workingNode = new WireMockServer(8890);
+        failingNode.start();
+        workingNode.start();
+        failingNode.stubFor(post(urlEqualTo("/order")).willReturn(aResponse().withStatus(503).withHeader("X-Unit-Test-Node", "failing").withBody("DOWN")));
+        workingNode.stubFor(post(urlEqualTo("/order")).willReturn(aResponse().withBody(NODE_RESPONSE)));
+
+        // the registration applies the failover defaults, the sticky Api is deployed as discovery would
+        // Camel deadlocks when two threads add routes at once, the discovery is held while the test deploys its own
+        camelContext.getRouteController().stopRoute("db-discovery-service");
+        stickyApi = new Api();
+        stickyApi.setName("unit-test-sticky-api");
+        stickyApi.setContext("sticky-test");
+        stickyApi.setId(apiUtils.getApiId(stickyApi));
+        stickyApi.setHttpProtocol(HttpProtocol.HTTP);
+        stickyApi.setHttpMethod(HttpMethod.ALL);
+        stickyApi.setMatchOnUriPrefix(true);
+        stickyApi.setRoundRobinEnabled(true);
+        stickyApi.setStickySession(true);
+        stickyApi.setStickySessionParam("unit-test-session");
+        stickyApi.setMappingList(List.of(getMapping(8889), getMapping(8890)));
+        routeUtils.createRoute(stickyApi, apiCache, camelContext, metricsProcessor, stickySessionCacheManager, "/capi");
+    }
+
+    @AfterEach
+    public void stop() throws Exception {
+        try {
+            List<Api> remainingApis = new ArrayList<>();
+            apiCache.entries().forEach(entry -> remainingApis.add(entry.getValue()));
+            remainingApis.removeIf(api -> stickyApi.getId().equals(api.getId()));
+            apiUtils.removeUnusedApi(camelContext, routeUtils, apiCache, remainingApis);
+        } finally {
+            camelContext.getRouteController().startRoute("db-discovery-service");
+            failingNode.stop();
+            workingNode.stop();
+        }
+    }
+
+    @Test
+    void testPostBodyIsReplayedToTheSecondNode() {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_JSON);
+        headers.set("unit-test-session", "unit-test-session-value");
+
+        // the nodes take turns to be the first one, at least one request fails over
+        for(int i = 0; i < 2; i++) {
+            ResponseEntity<String> response = restTemplate.postForEntity("/capi/sticky-test/order", new HttpEntity<>(REQUEST_BODY, headers), String.class);
+            Assertions.assertEquals(HttpStatus.OK, response.getStatusCode());
+            Assertions.assertEquals(NODE_RESPONSE, response.getBody());
+            Assertions.assertNull(response.getHeaders().getFirst("X-Unit-Test-Node"));
+        }
+
+        Assertions.assertFalse(failingNode.findAll(postRequestedFor(urlEqualTo("/order"))).isEmpty());
+        workingNode.verify(2, postRequestedFor(urlEqualTo("/order"))
+                .withHeader("unit-test-session", equalTo("unit-test-session-value"))
+                .withHeader("Content-Type", containing(MediaType.APPLICATION_JSON_VALUE))
+                .withRequestBody(equalTo(REQUEST_BODY)));
+    }
+
+    private Mapping getMapping(int port) {
+        Mapping mapping = new Mapping();
+        mapping.setHostname("localhost");
+        mapping.setPort(port);
+        mapping.setRootContext("/");
+        return mapping;
+    }
+}
@@ -0,0 +1,221 @@
+package io.surisoft.capi.lb.controller;
+
+import com.sun.net.httpserver.HttpServer;
+import org.apache.camel.CamelContext;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.web.server.LocalServerPort;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.web.context.WebApplicationContext;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * The node only gets (or sends) the rest of a body once the other side saw its first chunk,
+ * so the exchanges below only complete when the servlet route does not buffer the bodies.
+ */
+@ExtendWith(SpringExtension.class)
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+@TestPropertySource(
+      locations = "classpath:test-persistence-application.properties"
+)
+class TestStreamingRoute {
+
+    private static final String THE_STREAMING_API = """
+            {
+                 "name": "unit-test-streaming-api",
+                 "context": "streaming-test",
+                 "mappingList": [
+                        {
+                            "hostname": "localhost",
+                            "port": 8885,
+                            "rootContext": "/",
+                            "ingress": false
+                        }
+                 ],
+                 "roundRobinEnabled": true,
+                 "failoverEnabled": false,
+                 "matchOnUriPrefix": true,
+                 "streamingEnabled": true,
+                 "httpMethod": "ALL",
+                 "httpProtocol": "HTTP",
+                 "removeMe": false
+            }""";
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int CHUNKS = 64;
+
+    @Autowired
+    private WebApplicationContext webApplicationContext;
+
+    @Autowired
+    private CamelContext camelContext;
+
+    @LocalServerPort
+    private int servletPort;
+
+    // one node for the class, a node restarted on the same port leaves stale connections in the pool that a
+    // streamed body can not be retried over
+    private static HttpServer deployedNode;
+    private static volatile CountDownLatch firstChunkReceived;
+    private static volatile CountDownLatch firstChunkSent;
+    private CloseableHttpClient httpClient;
+
+    @BeforeAll
+    public static void startNode() throws IOException {
+        deployedNode = HttpServer.create(new InetSocketAddress(8885), 0);
+        deployedNode.createContext("/upload", exchange -> {
+            long received = 0;
+            byte[] buffer = new byte[8192];
+            try(InputStream is = exchange.getRequestBody()) {
+                int read;
+                while((read = is.read(buffer)) != -1) {
+                    received += read;
+                    // each hop keeps up to a buffer of the first chunk until more is written
+                    if(received >= CHUNK_SIZE / 2) {
+                        firstChunkReceived.countDown();
+                    }
+                }
+            }
+            byte[] response = Long.toString(received).getBytes(StandardCharsets.US_ASCII);
+            exchange.sendResponseHeaders(200, response.length);
+            try(OutputStream os = exchange.getResponseBody()) {
+                os.write(response);
+            }
+        });
+        deployedNode.createContext("/download", exchange -> {
+            exchange.sendResponseHeaders(200, 0);
+            try(OutputStream os = exchange.getResponseBody()) {
+                os.write(new byte[CHUNK_SIZE]);
+                os.flush();
+                if(!await(firstChunkSent)) {
+                    return;
+                }
+                for(int i = 1; i < CHUNKS; i++) {
+                    os.write(new byte[CHUNK_SIZE]);
+                }
+            }
+        });
+        deployedNode.start();
+    }
+
+    @AfterAll
+    public static void stopNode() {
+        deployedNode.stop(0);
+    }
+
+    @BeforeEach
+    public void initialize() throws Exception {
+        firstChunkReceived = new CountDownLatch(1);
+        firstChunkSent = new CountDownLatch(1);
+
+        MockMvc mockMvc = MockMvcBuilders.webAppContextSetup(webApplicationContext).build();
+        mockMvc.perform(MockMvcRequestBuilders.post("/manager/api/register/node").content(THE_STREAMING_API)
+                        .contentType(MediaType.APPLICATION_JSON_VALUE)
+                        .accept(MediaType.APPLICATION_JSON_VALUE))
+                .andExpect(status().isOk());
+
+        //Wait for API do be deployed
+        for(int i = 0; i < 60 && !isDeployed(); i++) {
+            Thread.sleep(500);
+        }
+        Assertions.assertTrue(isDeployed());
+        httpClient = HttpClients.createDefault();
+    }
+
+    @AfterEach
+    public void stop() throws IOException {
+        httpClient.close();
+    }
+
+    @Test
+    void testRequestBodyIsStreamedToNode() throws IOException {
+        HttpPost httpPost = new HttpPost("http://localhost:" + servletPort + "/capi/streaming-test/upload");
+        // chunked, the second chunk is only written once the node read the first one
+        httpPost.setEntity(new InputStreamEntity(new InputStream() {
+            private long written;
+
+            @Override
+            public int read() {
+                byte[] single = new byte[1];
+                return read(single, 0, 1) == -1 ? -1 : single[0];
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if(written == (long) CHUNK_SIZE * CHUNKS) {
+                    return -1;
+                }
+                if(written == CHUNK_SIZE && !await(firstChunkReceived)) {
+                    throw new IllegalStateException("The node did not get the first chunk before the body ended");
+                }
+                int count = (int) Math.min(len, (written < CHUNK_SIZE ? CHUNK_SIZE : (long) CHUNK_SIZE * CHUNKS) - written);
+                written += count;
+                return count;
+            }
+        }, -1));
+
+        try(CloseableHttpResponse response = httpClient.execute(httpPost)) {
+            Assertions.assertEquals(200, response.getStatusLine().getStatusCode());
+            Assertions.assertEquals(Long.toString((long) CHUNK_SIZE * CHUNKS), EntityUtils.toString(response.getEntity()));
+        }
+    }
+
+    @Test
+    void testResponseBodyIsStreamedToClient() throws IOException {
+        try(CloseableHttpResponse response = httpClient.execute(new HttpGet("http://localhost:" + servletPort + "/capi/streaming-test/download"))) {
+            Assertions.assertEquals(200, response.getStatusLine().getStatusCode());
+            InputStream is = response.getEntity().getContent();
+            byte[] buffer = new byte[8192];
+            long received = 0;
+            int read;
+            while((read = is.read(buffer)) != -1) {
+                received += read;
+                if(received >= CHUNK_SIZE) {
+                    firstChunkSent.countDown();
+                }
+            }
+            Assertions.assertEquals((long) CHUNK_SIZE * CHUNKS, received);
+        }
+    }
+
+    private boolean isDeployed() {
+        return camelContext.getRoute("unit-test-streaming-api:streaming-test:get") != null && camelContext.getRoute("unit-test-streaming-api:streaming-test:post") != null;
+    }
+
+    private static boolean await(CountDownLatch latch) {
+        try {
+            return latch.await(10, TimeUnit.SECONDS);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
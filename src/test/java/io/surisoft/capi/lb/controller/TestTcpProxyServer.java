@@ -0,0 +1,241 @@
+package io.surisoft.capi.lb.controller;
+
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import io.netty.channel.epoll.Epoll;
+import io.surisoft.capi.lb.netty.NettyTransport;
+import io.surisoft.capi.lb.netty.TcpProxyServer;
+import io.surisoft.capi.lb.schema.Api;
+import io.surisoft.capi.lb.schema.Mapping;
+import io.surisoft.capi.lb.service.CapiDnsResolver;
+import org.cache2k.Cache;
+import org.cache2k.Cache2kBuilder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * The TCP engine against plain socket nodes, on NIO through pooled buffers and on epoll with the sockets spliced.
+ */
+class TestTcpProxyServer {
+
+    private final CompositeMeterRegistry meterRegistry = new CompositeMeterRegistry();
+    private final Cache<String, Api> apiCache = new Cache2kBuilder<String, Api>(){}.build();
+    private final List<ServerSocket> nodes = new ArrayList<>();
+    private TcpProxyServer tcpProxyServer;
+
+    @BeforeEach
+    void initialize() throws IOException {
+        // echoes what it reads, or once the client is done sending, answers with how much it got
+        nodes.add(startNode(socket -> {
+            InputStream is = socket.getInputStream();
+            OutputStream os = socket.getOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            long received = 0;
+            while((read = is.read(buffer)) != -1) {
+                os.write(buffer, 0, read);
+                received += read;
+            }
+            os.write(("received " + received).getBytes(StandardCharsets.US_ASCII));
+            os.flush();
+            socket.shutdownOutput();
+        }));
+    }
+
+    @AfterEach
+    void stop() throws IOException {
+        if(tcpProxyServer != null) {
+            tcpProxyServer.stop();
+        }
+        for(ServerSocket node : nodes) {
+            node.close();
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {NettyTransport.NIO, NettyTransport.EPOLL})
+    void testBytesAreRelayedBothWays(String transport) throws Exception {
+        start(transport, 1024, 65535);
+        int port = deploy("tcp-echo", freePort(), nodes.get(0).getLocalPort());
+
+        byte[] request = new byte[1024 * 1024];
+        new Random(7).nextBytes(request);
+        try(Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            socket.setSoTimeout(10000);
+            Thread writer = new Thread(() -> {
+                try {
+                    socket.getOutputStream().write(request);
+                    socket.getOutputStream().flush();
+                } catch(IOException e) {
+                    // the read below fails with it
+                }
+            });
+            writer.start();
+            byte[] echoed = socket.getInputStream().readNBytes(request.length);
+            writer.join(10000);
+            Assertions.assertArrayEquals(request, echoed);
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {NettyTransport.NIO, NettyTransport.EPOLL})
+    void testHalfCloseKeepsTheOtherDirectionOpen(String transport) throws Exception {
+        start(transport, 1024, 65535);
+        int port = deploy("tcp-half-close", freePort(), nodes.get(0).getLocalPort());
+
+        try(Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            socket.setSoTimeout(10000);
+            socket.getOutputStream().write("hello".getBytes(StandardCharsets.US_ASCII));
+            socket.getOutputStream().flush();
+            // the node only answers once it saw the FIN, and the answer still has to come back
+            socket.shutdownOutput();
+            Assertions.assertEquals("hello" + "received 5", readAll(socket.getInputStream()));
+        }
+    }
+
+    @Test
+    void testFailoverToTheNextMapping() throws Exception {
+        start(NettyTransport.NIO, 1024, 65535);
+        Api api = newApi("tcp-failover", freePort());
+        api.getMappingList().add(newMapping(freePort()));
+        api.getMappingList().add(newMapping(nodes.get(0).getLocalPort()));
+        api.setFailoverEnabled(true);
+        api.setMaximumFailoverAttempts(1);
+        int port = deploy(api);
+
+        // round robin starts every other connection on the mapping that refuses it
+        for(int i = 0; i < 4; i++) {
+            try(Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+                socket.setSoTimeout(10000);
+                socket.getOutputStream().write("ping".getBytes(StandardCharsets.US_ASCII));
+                socket.shutdownOutput();
+                Assertions.assertEquals("ping" + "received 4", readAll(socket.getInputStream()));
+            }
+        }
+    }
+
+    @Test
+    void testListenerClosedWhenTheApiIsRemoved() throws Exception {
+        start(NettyTransport.NIO, 1024, 65535);
+        int port = deploy("tcp-removed", freePort(), nodes.get(0).getLocalPort());
+
+        apiCache.remove("tcp-removed");
+        awaitListenerPort("tcp-removed", -1);
+        Assertions.assertThrows(ConnectException.class, () -> new Socket(InetAddress.getLoopbackAddress(), port).close());
+    }
+
+    @Test
+    void testPortOutOfTheAllowedRangeIsNotBound() throws Exception {
+        int port = freePort();
+        start(NettyTransport.NIO, port + 1, 65535);
+        Api api = newApi("tcp-refused", port);
+        api.getMappingList().add(newMapping(nodes.get(0).getLocalPort()));
+        apiCache.put(api.getId(), api);
+
+        Thread.sleep(500);
+        Assertions.assertEquals(-1, tcpProxyServer.getListenerPort("tcp-refused"));
+        Assertions.assertThrows(ConnectException.class, () -> new Socket(InetAddress.getLoopbackAddress(), port).close());
+    }
+
+    private void start(String transport, int minPort, int maxPort) {
+        if(NettyTransport.EPOLL.equals(transport)) {
+            Assumptions.assumeTrue(Epoll.isAvailable(), "epoll is only available on Linux");
+        }
+        tcpProxyServer = new TcpProxyServer(NettyTransport.select(transport), 1, "127.0.0.1", true, 100, minPort, maxPort,
+                apiCache, new CapiDnsResolver(60000, 2000, meterRegistry), meterRegistry);
+        tcpProxyServer.start();
+    }
+
+    private int deploy(String apiId, int tcpPort, int nodePort) throws InterruptedException {
+        Api api = newApi(apiId, tcpPort);
+        api.getMappingList().add(newMapping(nodePort));
+        return deploy(api);
+    }
+
+    private int deploy(Api api) throws InterruptedException {
+        apiCache.put(api.getId(), api);
+        awaitListenerPort(api.getId(), api.getTcpPort());
+        return api.getTcpPort();
+    }
+
+    private void awaitListenerPort(String apiId, int port) throws InterruptedException {
+        for(int i = 0; i < 100 && tcpProxyServer.getListenerPort(apiId) != port; i++) {
+            Thread.sleep(50);
+        }
+        Assertions.assertEquals(port, tcpProxyServer.getListenerPort(apiId));
+    }
+
+    private Api newApi(String id, int tcpPort) {
+        Api api = new Api();
+        api.setId(id);
+        api.setTcpPort(tcpPort);
+        api.setConnectTimeout(2000);
+        api.setMappingList(new ArrayList<>());
+        return api;
+    }
+
+    private Mapping newMapping(int port) {
+        Mapping mapping = new Mapping();
+        mapping.setHostname("127.0.0.1");
+        mapping.setPort(port);
+        return mapping;
+    }
+
+    private ServerSocket startNode(NodeHandler handler) throws IOException {
+        ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(() -> {
+            while(!serverSocket.isClosed()) {
+                try {
+                    Socket socket = serverSocket.accept();
+                    new Thread(() -> {
+                        try(socket) {
+                            handler.handle(socket);
+                        } catch(IOException e) {
+                            // the client went away
+                        }
+                    }).start();
+                } catch(IOException e) {
+                    return;
+                }
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return serverSocket;
+    }
+
+    private static int freePort() throws IOException {
+        try(ServerSocket serverSocket = new ServerSocket()) {
+            serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            return serverSocket.getLocalPort();
+        }
+    }
+
+    private static String readAll(InputStream is) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        is.transferTo(bytes);
+        return bytes.toString(StandardCharsets.US_ASCII);
+    }
+
+    private interface NodeHandler {
+        void handle(Socket socket) throws IOException;
+    }
+}
@@ -0,0 +1,206 @@
+package io.surisoft.capi.lb.controller;
+
+import io.surisoft.capi.lb.service.UnixDomainSocketFactory;
+import io.surisoft.capi.lb.service.UpstreamConnectionPoolManager;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+@ExtendWith(SpringExtension.class)
+@SpringBootTest
+@TestPropertySource(
+      locations = "classpath:test-capi-configuration-application.properties"
+)
+class TestUnixDomainSocketFactory {
+
+    private static final Logger log = LoggerFactory.getLogger(TestUnixDomainSocketFactory.class);
+    private static final byte[] RESPONSE = "HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok".getBytes(StandardCharsets.US_ASCII);
+
+    @Autowired
+    UnixDomainSocketFactory unixDomainSocketFactory;
+
+    @Autowired
+    UpstreamConnectionPoolManager upstreamConnectionPoolManager;
+
+    private static final String API_ID = "unit-test-uds";
+
+    private Path socketPath;
+    private Path silentSocketPath;
+    private String socketHost;
+    private String silentSocketHost;
+    private ServerSocketChannel unixServer;
+    private ServerSocketChannel silentServer;
+    private ServerSocketChannel tcpServer;
+    private CloseableHttpClient httpClient;
+
+    @BeforeEach
+    void startServers() throws IOException {
+        Path socketDirectory = Files.createTempDirectory("capi-uds");
+        socketPath = socketDirectory.resolve("sidecar.sock");
+        silentSocketPath = socketDirectory.resolve("silent.sock");
+        unixServer = ServerSocketChannel.open(StandardProtocolFamily.UNIX).bind(UnixDomainSocketAddress.of(socketPath));
+        silentServer = ServerSocketChannel.open(StandardProtocolFamily.UNIX).bind(UnixDomainSocketAddress.of(silentSocketPath));
+        tcpServer = ServerSocketChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+        serve(unixServer, true);
+        serve(silentServer, false);
+        serve(tcpServer, true);
+        socketHost = UnixDomainSocketFactory.getSocketHost(API_ID, "uds-sidecar", 8380);
+        silentSocketHost = UnixDomainSocketFactory.getSocketHost(API_ID, "uds-silent", 8380);
+        unixDomainSocketFactory.setApiSocketPaths(API_ID, Map.of(socketHost, socketPath, silentSocketHost, silentSocketPath));
+        httpClient = HttpClients.custom()
+                .setConnectionManager(upstreamConnectionPoolManager.getConnectionManager())
+                .setConnectionManagerShared(true)
+                .build();
+    }
+
+    @AfterEach
+    void stopServers() throws IOException {
+        unixDomainSocketFactory.removeApi(API_ID);
+        httpClient.close();
+        unixServer.close();
+        silentServer.close();
+        tcpServer.close();
+        Files.deleteIfExists(socketPath);
+        Files.deleteIfExists(silentSocketPath);
+    }
+
+    @Test
+    void testRequestThroughUnixDomainSocket() throws IOException {
+        Assertions.assertTrue(unixDomainSocketFactory.isUnixDomainSocketHost(socketHost));
+        Assertions.assertEquals("ok", get("http://" + socketHost + ":8380/"));
+        // the pooled connection is reused
+        Assertions.assertEquals("ok", get("http://" + socketHost + ":8380/"));
+    }
+
+    @Test
+    void testSocketIsOnlyUsedByItsApi() {
+        // another Api, or a plain TCP mapping, proxying the same hostname:port keeps going over TCP
+        Assertions.assertFalse(unixDomainSocketFactory.isUnixDomainSocketHost("uds-sidecar"));
+        Assertions.assertFalse(unixDomainSocketFactory.isUnixDomainSocketHost(UnixDomainSocketFactory.getSocketHost("unit-test-other-api", "uds-sidecar", 8380)));
+        Assertions.assertNotEquals(socketHost, UnixDomainSocketFactory.getSocketHost(API_ID, "uds-sidecar", 8381));
+
+        unixDomainSocketFactory.setApiSocketPaths(API_ID, Map.of(socketHost, socketPath));
+        Assertions.assertTrue(unixDomainSocketFactory.isUnixDomainSocketHost(socketHost));
+        Assertions.assertFalse(unixDomainSocketFactory.isUnixDomainSocketHost(silentSocketHost));
+        unixDomainSocketFactory.removeApi(API_ID);
+        Assertions.assertFalse(unixDomainSocketFactory.isUnixDomainSocketHost(socketHost));
+    }
+
+    @Test
+    void testReadHonoursSocketTimeout() {
+        HttpGet httpGet = new HttpGet("http://" + silentSocketHost + ":8380/");
+        httpGet.setConfig(RequestConfig.custom().setSocketTimeout(300).build());
+        long start = System.nanoTime();
+        Assertions.assertThrows(SocketTimeoutException.class, () -> httpClient.execute(httpGet).close());
+        Assertions.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 5000);
+    }
+
+    /**
+     * Run with -Dcapi.benchmark=true, compares a same-host backend reached through the socket and through 127.0.0.1.
+     */
+    @Test
+    @EnabledIfSystemProperty(named = "capi.benchmark", matches = "true")
+    void benchmarkUnixDomainSocketAgainstLoopback() throws IOException {
+        String unixEndpoint = "http://" + socketHost + ":8380/";
+        String tcpEndpoint = "http://127.0.0.1:" + ((InetSocketAddress) tcpServer.getLocalAddress()).getPort() + "/";
+        run(unixEndpoint, 5000);
+        run(tcpEndpoint, 5000);
+        for(int round = 0; round < 3; round++) {
+            report("unix", unixEndpoint);
+            report("tcp ", tcpEndpoint);
+        }
+    }
+
+    private void report(String name, String endpoint) throws IOException {
+        com.sun.management.OperatingSystemMXBean osBean = (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+        int requests = 20000;
+        long cpuStart = osBean.getProcessCpuTime();
+        long start = System.nanoTime();
+        run(endpoint, requests);
+        long elapsed = System.nanoTime() - start;
+        long cpu = osBean.getProcessCpuTime() - cpuStart;
+        log.info("{}: {} us per request, {} us of CPU per request", name, elapsed / requests / 1000.0, cpu / requests / 1000.0);
+    }
+
+    private void run(String endpoint, int requests) throws IOException {
+        for(int i = 0; i < requests; i++) {
+            get(endpoint);
+        }
+    }
+
+    private String get(String endpoint) throws IOException {
+        try(CloseableHttpResponse response = httpClient.execute(new HttpGet(endpoint))) {
+            return EntityUtils.toString(response.getEntity());
+        }
+    }
+
+    private void serve(ServerSocketChannel server, boolean answer) {
+        Thread acceptor = new Thread(() -> {
+            while(server.isOpen()) {
+                try {
+                    SocketChannel channel = server.accept();
+                    Thread connection = new Thread(() -> handle(channel, answer));
+                    connection.setDaemon(true);
+                    connection.start();
+                } catch(IOException e) {
+                    return;
+                }
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Answers every request of a keep-alive connection, requests have no body. A silent server reads and never answers.
+     */
+    private void handle(SocketChannel channel, boolean answer) {
+        try(channel; InputStream in = new BufferedInputStream(Channels.newInputStream(channel)); OutputStream out = Channels.newOutputStream(channel)) {
+            int matched = 0;
+            int read;
+            while((read = in.read()) != -1) {
+                matched = (read == '\r' && matched % 2 == 0) || (read == '\n' && matched % 2 == 1) ? matched + 1 : 0;
+                if(matched == 4 && answer) {
+                    out.write(RESPONSE);
+                    out.flush();
+                    matched = 0;
+                }
+            }
+        } catch(IOException e) {
+            log.trace(e.getMessage());
+        }
+    }
+}
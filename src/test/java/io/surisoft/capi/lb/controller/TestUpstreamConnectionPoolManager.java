@@ -0,0 +1,145 @@
+package io.surisoft.capi.lb.controller;
+
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.surisoft.capi.lb.exception.UpstreamConnectionLimitException;
+import io.surisoft.capi.lb.processor.UpstreamConnectionLimitProcessor;
+import io.surisoft.capi.lb.schema.Api;
+import io.surisoft.capi.lb.service.CapiConnectionManager;
+import io.surisoft.capi.lb.service.StaleConnectionRetryHandler;
+import io.surisoft.capi.lb.service.UpstreamConnectionPoolManager;
+import io.surisoft.capi.lb.utils.Constants;
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.ExtendedExchange;
+import org.apache.camel.component.http.HttpComponent;
+import org.apache.camel.support.DefaultExchange;
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpHost;
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.message.BasicHttpEntityEnclosingRequest;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.protocol.HttpCoreContext;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+
+import java.net.ConnectException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+@ExtendWith(SpringExtension.class)
+@SpringBootTest
+@TestPropertySource(
+      locations = "classpath:test-capi-configuration-application.properties"
+)
+class TestUpstreamConnectionPoolManager {
+
+    @Autowired
+    UpstreamConnectionPoolManager upstreamConnectionPoolManager;
+
+    @Autowired
+    CamelContext camelContext;
+
+    @Test
+    void testPoolIsSharedByHttpComponents() {
+        HttpComponent httpComponent = (HttpComponent) camelContext.getComponent("http");
+        HttpComponent httpsComponent = (HttpComponent) camelContext.getComponent("https");
+        Assertions.assertSame(upstreamConnectionPoolManager.getConnectionManager(), httpComponent.getClientConnectionManager());
+        Assertions.assertSame(upstreamConnectionPoolManager.getConnectionManager(), httpsComponent.getClientConnectionManager());
+    }
+
+    @Test
+    void testApiConnectionLimit() throws Exception {
+        Api api = new Api();
+        api.setId("unit-test:limited");
+        api.setMaxConnections(1);
+
+        Semaphore permits = upstreamConnectionPoolManager.acquireApiConnection(api);
+        Assertions.assertNotNull(permits);
+        Assertions.assertNull(upstreamConnectionPoolManager.acquireApiConnection(api));
+        permits.release();
+        Assertions.assertNotNull(upstreamConnectionPoolManager.acquireApiConnection(api));
+    }
+
+    @Test
+    void testSaturatedApiIsRejectedWithoutWaiting() throws Exception {
+        Api api = new Api();
+        api.setId("unit-test:saturated");
+        api.setMaxConnections(2);
+        UpstreamConnectionLimitProcessor processor = new UpstreamConnectionLimitProcessor(upstreamConnectionPoolManager, api);
+
+        Exchange first = new DefaultExchange(camelContext);
+        Exchange second = new DefaultExchange(camelContext);
+        processor.process(first);
+        processor.process(second);
+        Assertions.assertNull(first.getException());
+        Assertions.assertNull(second.getException());
+
+        Exchange rejected = new DefaultExchange(camelContext);
+        long start = System.nanoTime();
+        processor.process(rejected);
+        Assertions.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < upstreamConnectionPoolManager.getAcquireTimeout());
+        Assertions.assertInstanceOf(UpstreamConnectionLimitException.class, rejected.getException());
+        Assertions.assertEquals(HttpStatus.SERVICE_UNAVAILABLE.value(), rejected.getIn().getHeader(Constants.REASON_CODE_HEADER));
+
+        // a finished exchange gives its connection back
+        first.adapt(ExtendedExchange.class).handoverCompletions().forEach(synchronization -> synchronization.onComplete(first));
+        Exchange admitted = new DefaultExchange(camelContext);
+        processor.process(admitted);
+        Assertions.assertNull(admitted.getException());
+    }
+
+    @Test
+    void testDestinationMetricsAreRemovedWithTheirRoute() throws Exception {
+        CompositeMeterRegistry meterRegistry = new CompositeMeterRegistry();
+        meterRegistry.add(new SimpleMeterRegistry());
+        CapiConnectionManager connectionManager = new CapiConnectionManager(RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                .build(), null, 60000, "unit-test", meterRegistry);
+        HttpRoute route = new HttpRoute(new HttpHost("unit-test.node", 8080));
+        try {
+            HttpClientConnection connection = connectionManager.requestConnection(route, null).get(1, TimeUnit.SECONDS);
+            connectionManager.removeUnusedDestinationMetrics();
+            Assertions.assertNotNull(meterRegistry.find("capi.upstream.pool.leased").tag("destination", "http://unit-test.node:8080").gauge());
+
+            // the pool forgets the destination once its last connection is gone
+            connectionManager.releaseConnection(connection, null, 0, TimeUnit.MILLISECONDS);
+            connectionManager.closeIdleConnections(0, TimeUnit.MILLISECONDS);
+            connectionManager.removeUnusedDestinationMetrics();
+            Assertions.assertNull(meterRegistry.find("capi.upstream.pool.leased").tag("destination", "http://unit-test.node:8080").gauge());
+            Assertions.assertNull(meterRegistry.find("capi.upstream.pool.acquire").tag("destination", "http://unit-test.node:8080").timer());
+        } finally {
+            connectionManager.shutdown();
+        }
+    }
+
+    @Test
+    void testStaleConnectionRetry() {
+        StaleConnectionRetryHandler retryHandler = new StaleConnectionRetryHandler(new CompositeMeterRegistry());
+
+        HttpClientContext getContext = HttpClientContext.create();
+        getContext.setAttribute(HttpCoreContext.HTTP_REQUEST, new BasicHttpRequest("GET", "/"));
+        getContext.setAttribute(HttpCoreContext.HTTP_REQ_SENT, true);
+        Assertions.assertTrue(retryHandler.retryRequest(new NoHttpResponseException("stale"), 1, getContext));
+        Assertions.assertFalse(retryHandler.retryRequest(new NoHttpResponseException("stale"), 2, getContext));
+        Assertions.assertFalse(retryHandler.retryRequest(new ConnectException("refused"), 1, getContext));
+
+        HttpClientContext postContext = HttpClientContext.create();
+        postContext.setAttribute(HttpCoreContext.HTTP_REQUEST, new BasicHttpEntityEnclosingRequest("POST", "/"));
+        postContext.setAttribute(HttpCoreContext.HTTP_REQ_SENT, true);
+        Assertions.assertFalse(retryHandler.retryRequest(new NoHttpResponseException("stale"), 1, postContext));
+        postContext.setAttribute(HttpCoreContext.HTTP_REQ_SENT, false);
+        Assertions.assertTrue(retryHandler.retryRequest(new NoHttpResponseException("stale"), 1, postContext));
+    }
+}
@@ -0,0 +1,171 @@
+package io.surisoft.capi.lb.controller;
+
+import com.github.tomakehurst.wiremock.WireMockServer;
+import org.apache.camel.CamelContext;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.boot.web.embedded.undertow.UndertowServletWebServerFactory;
+import org.springframework.boot.web.server.LocalServerPort;
+import org.springframework.context.annotation.Bean;
+import org.springframework.http.MediaType;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.web.context.WebApplicationContext;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.options;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * Blocking calls to a 200 ms node through a deployed route on Undertow. Run it once on the worker pool and once on
+ * virtual threads (Java 21+), and compare:
+ * <pre>
+ * mvn test -Dtest=TestVirtualThreadBenchmark -Dcapi.benchmark=true -Dcapi.virtual.threads.enabled=false
+ * mvn test -Dtest=TestVirtualThreadBenchmark -Dcapi.benchmark=true -Dcapi.virtual.threads.enabled=true
+ * </pre>
+ */
+@ExtendWith(SpringExtension.class)
+@DirtiesContext
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+@TestPropertySource(
+      locations = "classpath:test-persistence-application.properties",
+      properties = {"capi.upstream.pool.max.total=2000", "capi.upstream.pool.max.per.destination=2000", "camel.servlet.mapping.servlet-name=UndertowCamelServlet", "camel.component.servlet.servlet-name=UndertowCamelServlet"}
+)
+@EnabledIfSystemProperty(named = "capi.benchmark", matches = "true")
+class TestVirtualThreadBenchmark {
+
+    private static final Logger log = LoggerFactory.getLogger(TestVirtualThreadBenchmark.class);
+
+    private static final String THE_SLOW_API = """
+            {
+                 "name": "unit-test-benchmark-api",
+                 "context": "benchmark-test",
+                 "mappingList": [
+                        {
+                            "hostname": "localhost",
+                            "port": 8887,
+                            "rootContext": "/",
+                            "ingress": false
+                        }
+                 ],
+                 "roundRobinEnabled": true,
+                 "failoverEnabled": false,
+                 "matchOnUriPrefix": true,
+                 "httpMethod": "GET",
+                 "httpProtocol": "HTTP",
+                 "removeMe": false
+            }""";
+
+    private static final int REQUESTS = 4000;
+    private static final int CLIENTS = 500;
+
+    private static WireMockServer slowNode;
+
+    @Autowired
+    private WebApplicationContext webApplicationContext;
+
+    @Autowired
+    private CamelContext camelContext;
+
+    @Value("${capi.virtual.threads.enabled}")
+    private boolean virtualThreads;
+
+    @Value("${server.undertow.threads.worker}")
+    private int workerThreads;
+
+    @Value("${capi.virtual.threads.max.requests}")
+    private int maxRequests;
+
+    @LocalServerPort
+    private int servletPort;
+
+    private final HttpClient httpClient = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+
+    /**
+     * WireMock brings Jetty to the test classpath, Spring Boot would pick it before Undertow. The context is not kept
+     * for other tests, and its Camel servlet has a name of its own: Undertow starts it with the context, while the
+     * servlet of a kept Jetty context may still hold the default name.
+     */
+    @TestConfiguration
+    static class UndertowServer {
+        @Bean
+        UndertowServletWebServerFactory undertowServletWebServerFactory() {
+            return new UndertowServletWebServerFactory();
+        }
+    }
+
+    @BeforeAll
+    static void startNode() {
+        // the delayed responses are scheduled, the node does not hold a thread per request itself
+        slowNode = new WireMockServer(options().port(8887).jettyAcceptQueueSize(CLIENTS).asynchronousResponseEnabled(true).asynchronousResponseThreads(8));
+        slowNode.stubFor(get(urlEqualTo("/slow")).willReturn(aResponse().withStatus(200).withBody("ok").withFixedDelay(200)));
+        slowNode.start();
+    }
+
+    @AfterAll
+    static void stopNode() {
+        slowNode.stop();
+    }
+
+    @BeforeEach
+    void deploy() throws Exception {
+        MockMvc mockMvc = MockMvcBuilders.webAppContextSetup(webApplicationContext).build();
+        mockMvc.perform(MockMvcRequestBuilders.post("/manager/api/register/node").content(THE_SLOW_API)
+                        .contentType(MediaType.APPLICATION_JSON_VALUE)
+                        .accept(MediaType.APPLICATION_JSON_VALUE))
+                .andExpect(status().isOk());
+        for(int i = 0; i < 60 && camelContext.getRoute("unit-test-benchmark-api:benchmark-test:get") == null; i++) {
+            Thread.sleep(500);
+        }
+        Assertions.assertNotNull(camelContext.getRoute("unit-test-benchmark-api:benchmark-test:get"));
+    }
+
+    @Test
+    void benchmarkBlockingCallsThroughTheRoute() throws Exception {
+        String name = virtualThreads ? "virtual threads (" + maxRequests + ")" : "worker pool (" + workerThreads + ")";
+        Semaphore clients = new Semaphore(CLIENTS);
+        for(int round = 0; round < 3; round++) {
+            List<CompletableFuture<HttpResponse<String>>> responses = new ArrayList<>(REQUESTS);
+            long start = System.nanoTime();
+            for(int i = 0; i < REQUESTS; i++) {
+                clients.acquire();
+                responses.add(httpClient.sendAsync(HttpRequest.newBuilder(URI.create("http://localhost:" + servletPort + "/capi/benchmark-test/slow"))
+                        .timeout(Duration.ofMinutes(2)).build(), HttpResponse.BodyHandlers.ofString())
+                        .whenComplete((response, e) -> clients.release()));
+            }
+            for(CompletableFuture<HttpResponse<String>> response : responses) {
+                Assertions.assertEquals(200, response.get(2, TimeUnit.MINUTES).statusCode());
+            }
+            log.info("{}: {} requests from {} clients through the route to a 200 ms node in {} ms", name, REQUESTS, CLIENTS,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+    }
+}
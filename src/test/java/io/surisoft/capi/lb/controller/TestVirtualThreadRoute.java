@@ -0,0 +1,201 @@
+package io.surisoft.capi.lb.controller;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import org.apache.camel.CamelContext;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIf;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.boot.web.embedded.undertow.UndertowServletWebServerFactory;
+import org.springframework.boot.web.server.LocalServerPort;
+import org.springframework.context.annotation.Bean;
+import org.springframework.http.MediaType;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.web.context.WebApplicationContext;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntSupplier;
+
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * Requests through a deployed route on Undertow, with a virtual thread per request and at most four of them: the
+ * node holds every request it gets until the test lets them go.
+ */
+@ExtendWith(SpringExtension.class)
+@DirtiesContext
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+@TestPropertySource(
+      locations = "classpath:test-persistence-application.properties",
+      properties = {"capi.virtual.threads.enabled=true", "capi.virtual.threads.max.requests=4", "capi.virtual.threads.max.queued=2", "camel.servlet.mapping.servlet-name=UndertowCamelServlet", "camel.component.servlet.servlet-name=UndertowCamelServlet"}
+)
+@EnabledIf("io.surisoft.capi.lb.service.VirtualThreads#isSupported")
+class TestVirtualThreadRoute {
+
+    private static final String THE_SLOW_API = """
+            {
+                 "name": "unit-test-slow-api",
+                 "context": "slow-test",
+                 "mappingList": [
+                        {
+                            "hostname": "localhost",
+                            "port": 8886,
+                            "rootContext": "/",
+                            "ingress": false
+                        }
+                 ],
+                 "roundRobinEnabled": true,
+                 "failoverEnabled": false,
+                 "matchOnUriPrefix": true,
+                 "httpMethod": "GET",
+                 "httpProtocol": "HTTP",
+                 "removeMe": false
+            }""";
+
+    private static HttpServer slowNode;
+    private static final AtomicInteger heldRequests = new AtomicInteger();
+    private static volatile CountDownLatch releaseHeldRequests;
+
+    @Autowired
+    private WebApplicationContext webApplicationContext;
+
+    @Autowired
+    private CamelContext camelContext;
+
+    @Autowired
+    private CompositeMeterRegistry meterRegistry;
+
+    @LocalServerPort
+    private int servletPort;
+
+    private final HttpClient httpClient = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+
+    /**
+     * WireMock brings Jetty to the test classpath, Spring Boot would pick it before Undertow. The context is not kept
+     * for other tests, and its Camel servlet has a name of its own: Undertow starts it with the context, while the
+     * servlet of a kept Jetty context may still hold the default name.
+     */
+    @TestConfiguration
+    static class UndertowServer {
+        @Bean
+        UndertowServletWebServerFactory undertowServletWebServerFactory() {
+            return new UndertowServletWebServerFactory();
+        }
+    }
+
+    @BeforeAll
+    static void startNode() throws IOException {
+        slowNode = HttpServer.create(new InetSocketAddress(8886), 0);
+        slowNode.setExecutor(Executors.newCachedThreadPool());
+        slowNode.createContext("/held", exchange -> {
+            heldRequests.incrementAndGet();
+            try {
+                releaseHeldRequests.await(10, TimeUnit.SECONDS);
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            respond(exchange);
+        });
+        slowNode.start();
+    }
+
+    @AfterAll
+    static void stopNode() {
+        slowNode.stop(0);
+    }
+
+    @BeforeEach
+    void deploy() throws Exception {
+        heldRequests.set(0);
+        releaseHeldRequests = new CountDownLatch(1);
+        MockMvc mockMvc = MockMvcBuilders.webAppContextSetup(webApplicationContext).build();
+        mockMvc.perform(MockMvcRequestBuilders.post("/manager/api/register/node").content(THE_SLOW_API)
+                        .contentType(MediaType.APPLICATION_JSON_VALUE)
+                        .accept(MediaType.APPLICATION_JSON_VALUE))
+                .andExpect(status().isOk());
+        for(int i = 0; i < 60 && camelContext.getRoute("unit-test-slow-api:slow-test:get") == null; i++) {
+            Thread.sleep(500);
+        }
+        Assertions.assertNotNull(camelContext.getRoute("unit-test-slow-api:slow-test:get"));
+    }
+
+    @Test
+    void testRequestsOverTheBoundWaitThenAreRejected() throws Exception {
+        List<CompletableFuture<HttpResponse<String>>> responses = new ArrayList<>();
+        for(int i = 0; i < 4; i++) {
+            responses.add(sendAsync("/capi/slow-test/held"));
+        }
+        awaitValue(heldRequests::get, 4);
+        Assertions.assertEquals(4, gauge("capi.virtual.threads.requests.running"));
+
+        // no virtual thread for these two until one of the four is done
+        for(int i = 0; i < 2; i++) {
+            responses.add(sendAsync("/capi/slow-test/held"));
+        }
+        awaitValue(() -> (int) gauge("capi.virtual.threads.requests.queued"), 2);
+        Assertions.assertEquals(4, heldRequests.get());
+
+        Assertions.assertEquals(503, sendAsync("/capi/slow-test/held").get(10, TimeUnit.SECONDS).statusCode());
+
+        releaseHeldRequests.countDown();
+        for(CompletableFuture<HttpResponse<String>> response : responses) {
+            Assertions.assertEquals(200, response.get(10, TimeUnit.SECONDS).statusCode());
+        }
+        Assertions.assertEquals(6, heldRequests.get());
+        awaitValue(() -> (int) gauge("capi.virtual.threads.requests.running"), 0);
+    }
+
+    private CompletableFuture<HttpResponse<String>> sendAsync(String path) {
+        return httpClient.sendAsync(HttpRequest.newBuilder(URI.create("http://localhost:" + servletPort + path))
+                .timeout(Duration.ofSeconds(30)).build(), HttpResponse.BodyHandlers.ofString());
+    }
+
+    private double gauge(String name) {
+        Gauge gauge = meterRegistry.find(name).gauge();
+        return gauge == null ? -1 : gauge.value();
+    }
+
+    private static void awaitValue(IntSupplier value, int expected) throws InterruptedException {
+        for(int i = 0; i < 100 && value.getAsInt() != expected; i++) {
+            Thread.sleep(100);
+        }
+        Assertions.assertEquals(expected, value.getAsInt());
+    }
+
+    private static void respond(HttpExchange exchange) throws IOException {
+        byte[] response = "ok".getBytes(StandardCharsets.US_ASCII);
+        exchange.sendResponseHeaders(200, response.length);
+        try(OutputStream os = exchange.getResponseBody()) {
+            os.write(response);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package io.surisoft.capi.lb.controller;
+
+import io.surisoft.capi.lb.service.BoundedThreadPerTaskExecutor;
+import io.surisoft.capi.lb.service.VirtualThreadPoolFactory;
+import io.surisoft.capi.lb.service.VirtualThreads;
+import org.apache.camel.builder.ThreadPoolProfileBuilder;
+import org.apache.camel.spi.ThreadPoolProfile;
+import org.apache.camel.util.concurrent.ThreadPoolRejectedPolicy;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+class TestVirtualThreads {
+
+    @Test
+    void testVirtualThreadExecutor() throws Exception {
+        Assumptions.assumeTrue(VirtualThreads.isSupported(), "virtual threads need Java 21 or later");
+        ExecutorService executor = VirtualThreads.newThreadPerTaskExecutor("capi-unit-test-");
+        try {
+            Thread thread = executor.submit(Thread::currentThread).get(5, TimeUnit.SECONDS);
+            Assertions.assertTrue(VirtualThreads.isVirtual(thread));
+            Assertions.assertTrue(thread.getName().startsWith("capi-unit-test-"));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void testPlatformThreadIsNotVirtual() {
+        Assertions.assertFalse(VirtualThreads.isVirtual(Thread.currentThread()));
+    }
+
+    @Test
+    void testBoundedExecutorQueuesThenRejects() throws Exception {
+        BoundedThreadPerTaskExecutor executor = new BoundedThreadPerTaskExecutor(Executors.defaultThreadFactory(), 2, 1, ThreadPoolRejectedPolicy.Abort);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(3);
+        try {
+            for(int i = 0; i < 3; i++) {
+                executor.execute(() -> {
+                    started.countDown();
+                    await(release);
+                });
+            }
+            Assertions.assertEquals(2, executor.getRunning());
+            Assertions.assertEquals(1, executor.getQueued());
+            Assertions.assertThrows(RejectedExecutionException.class, () -> executor.execute(() -> {}));
+
+            release.countDown();
+            Assertions.assertTrue(started.await(5, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+            executor.shutdown();
+        }
+        Assertions.assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        Assertions.assertEquals(0, executor.getRunning());
+        Assertions.assertEquals(0, executor.getQueued());
+    }
+
+    @Test
+    void testBoundedExecutorCallerRuns() throws Exception {
+        BoundedThreadPerTaskExecutor executor = new BoundedThreadPerTaskExecutor(Executors.defaultThreadFactory(), 1, 0, ThreadPoolRejectedPolicy.CallerRuns);
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            executor.execute(() -> await(release));
+            Thread[] ranOn = new Thread[1];
+            executor.execute(() -> ranOn[0] = Thread.currentThread());
+            Assertions.assertSame(Thread.currentThread(), ranOn[0]);
+        } finally {
+            release.countDown();
+            executor.shutdown();
+        }
+        Assertions.assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void testSingleThreadKeepsOrder() throws Exception {
+        BoundedThreadPerTaskExecutor executor = new BoundedThreadPerTaskExecutor(Executors.defaultThreadFactory(), 1, 100, ThreadPoolRejectedPolicy.Abort);
+        List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+        for(int i = 0; i < 100; i++) {
+            int task = i;
+            executor.execute(() -> order.add(task));
+        }
+        executor.shutdown();
+        Assertions.assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        Assertions.assertEquals(IntStream.range(0, 100).boxed().toList(), order);
+    }
+
+    @Test
+    void testVirtualThreadPoolFactoryKeepsTheProfile() throws Exception {
+        Assumptions.assumeTrue(VirtualThreads.isSupported(), "virtual threads need Java 21 or later");
+        ThreadPoolProfile profile = new ThreadPoolProfileBuilder("capi-unit-test").poolSize(1).maxPoolSize(2).maxQueueSize(1)
+                .rejectedPolicy(ThreadPoolRejectedPolicy.Abort).build();
+        ExecutorService executor = new VirtualThreadPoolFactory().newThreadPool(profile, Executors.defaultThreadFactory());
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            Future<Thread> running = executor.submit(() -> {
+                await(release);
+                return Thread.currentThread();
+            });
+            executor.execute(() -> await(release));
+            executor.execute(() -> await(release));
+            Assertions.assertThrows(RejectedExecutionException.class, () -> executor.execute(() -> {}));
+            release.countDown();
+            Assertions.assertTrue(VirtualThreads.isVirtual(running.get(5, TimeUnit.SECONDS)));
+        } finally {
+            release.countDown();
+            executor.shutdown();
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
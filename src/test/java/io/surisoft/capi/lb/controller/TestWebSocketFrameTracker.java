@@ -0,0 +1,66 @@
+package io.surisoft.capi.lb.controller;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.surisoft.capi.lb.netty.WebSocketFrameTracker;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+class TestWebSocketFrameTracker {
+
+    // unmasked text frame "hello"
+    private static final byte[] TEXT_FRAME = {(byte) 0x81, 0x05, 'h', 'e', 'l', 'l', 'o'};
+
+    @Test
+    void testFramesInOneBuffer() {
+        ByteBuf stream = Unpooled.wrappedBuffer(TEXT_FRAME, maskedBinaryFrame(300));
+        WebSocketFrameTracker tracker = new WebSocketFrameTracker();
+
+        Assertions.assertEquals(stream.readableBytes(), tracker.scan(stream, false));
+        Assertions.assertTrue(tracker.isAtBoundary());
+        Assertions.assertEquals(0, stream.readerIndex());
+    }
+
+    @Test
+    void testHeaderSplitOverBuffers() {
+        ByteBuf stream = Unpooled.wrappedBuffer(TEXT_FRAME, maskedBinaryFrame(300));
+        WebSocketFrameTracker tracker = new WebSocketFrameTracker();
+
+        // the second frame header is cut after its first extended length byte
+        Assertions.assertEquals(10, tracker.scan(stream.slice(0, 10), false));
+        Assertions.assertFalse(tracker.isAtBoundary());
+        Assertions.assertEquals(stream.readableBytes() - 10, tracker.scan(stream.slice(10, stream.readableBytes() - 10), false));
+        Assertions.assertTrue(tracker.isAtBoundary());
+    }
+
+    @Test
+    void testStopsAtNextBoundary() {
+        ByteBuf stream = Unpooled.wrappedBuffer(TEXT_FRAME, maskedBinaryFrame(300));
+        WebSocketFrameTracker tracker = new WebSocketFrameTracker();
+
+        tracker.scan(stream.slice(0, 4), false);
+        Assertions.assertEquals(3, tracker.scan(stream.slice(4, stream.readableBytes() - 4), true));
+        Assertions.assertTrue(tracker.isAtBoundary());
+        Assertions.assertEquals(0, tracker.scan(stream.slice(7, stream.readableBytes() - 7), true));
+    }
+
+    @Test
+    void testSixtyFourBitLength() {
+        WebSocketFrameTracker tracker = new WebSocketFrameTracker();
+        ByteBuf header = Unpooled.wrappedBuffer(new byte[] {(byte) 0x82, 0x7F, 0, 0, 0, 0, 0, 0x01, 0x11, 0x70});
+
+        Assertions.assertEquals(10, tracker.scan(header, false));
+        Assertions.assertFalse(tracker.isAtBoundary());
+        Assertions.assertEquals(70000, tracker.scan(Unpooled.wrappedBuffer(new byte[70000]), true));
+        Assertions.assertTrue(tracker.isAtBoundary());
+    }
+
+    private byte[] maskedBinaryFrame(int payloadLength) {
+        byte[] frame = new byte[8 + payloadLength];
+        frame[0] = (byte) 0x82;
+        frame[1] = (byte) (0x80 | 126);
+        frame[2] = (byte) (payloadLength >>> 8);
+        frame[3] = (byte) payloadLength;
+        return frame;
+    }
+}